@@ -0,0 +1,312 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A copy of the book of a stock, published by the thread that matches its
+ * orders so that analytics threads can go through every resting order
+ * without locking the stock and without racing with matching. A reader takes
+ * the latest snapshot with Stock.acquireBookSnapshot, reads it as long as it
+ * likes while matching goes on, and hands it back with release.
+ *
+ * <p>
+ * Snapshots are reused: each one counts the readers holding it, and the stock
+ * only overwrites a snapshot that is no longer published and that no reader
+ * holds, so a snapshot never changes while it is held. The stock keeps as many
+ * snapshots as there are readers holding different ones, plus one, and lets
+ * the rest go once their readers are done.
+ * </p>
+ *
+ * <p>
+ * Each side lists its market orders first, oldest first, and then its limit
+ * orders in no particular order; getLevels adds the limit orders up by price.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class BookSnapshot
+{
+    private AtomicInteger readers;
+    private long          version;
+    private double        lastPrice;
+    private int           volume;
+    private int           buyCount;
+    private int           sellCount;
+    private long[]        buyPrices;
+    private int[]         buyShares;
+    private long[]        buySequences;
+    private int[]         buyTraderIds;
+    private long[]        sellPrices;
+    private int[]         sellShares;
+    private long[]        sellSequences;
+    private int[]         sellTraderIds;
+
+
+    /**
+     * Constructs an empty snapshot.
+     */
+    public BookSnapshot()
+    {
+        readers = new AtomicInteger();
+        buyPrices = new long[0];
+        buyShares = new int[0];
+        buySequences = new long[0];
+        buyTraderIds = new int[0];
+        sellPrices = new long[0];
+        sellShares = new int[0];
+        sellSequences = new long[0];
+        sellTraderIds = new int[0];
+    }
+
+
+    /**
+     * Starts a new copy of the book, dropping the orders of the last one.
+     * Called by the stock only, with no reader holding this snapshot.
+     *
+     * @param version   - the number of this copy.
+     * @param lastPrice - the last price of the stock.
+     * @param volume    - the day's volume of the stock.
+     */
+    protected void clear(long version, double lastPrice, int volume)
+    {
+        this.version = version;
+        this.lastPrice = lastPrice;
+        this.volume = volume;
+        buyCount = 0;
+        sellCount = 0;
+    }
+
+
+    /**
+     * Adds a resting order to the copy. Called by the stock only.
+     *
+     * @param order - the order.
+     */
+    protected void add(TradeOrder order)
+    {
+        long price = order.isMarket() ? Long.MIN_VALUE : Math.round(order
+            .getPrice() * 100);
+        if ( order.isBuy() )
+        {
+            if ( buyCount == buyPrices.length )
+            {
+                int capacity = Math.max(16, buyCount * 2);
+                buyPrices = Arrays.copyOf(buyPrices, capacity);
+                buyShares = Arrays.copyOf(buyShares, capacity);
+                buySequences = Arrays.copyOf(buySequences, capacity);
+                buyTraderIds = Arrays.copyOf(buyTraderIds, capacity);
+            }
+            buyPrices[buyCount] = price;
+            buyShares[buyCount] = order.getShares();
+            buySequences[buyCount] = order.getSequence();
+            buyTraderIds[buyCount] = order.getTraderId();
+            buyCount++;
+        }
+        else
+        {
+            if ( sellCount == sellPrices.length )
+            {
+                int capacity = Math.max(16, sellCount * 2);
+                sellPrices = Arrays.copyOf(sellPrices, capacity);
+                sellShares = Arrays.copyOf(sellShares, capacity);
+                sellSequences = Arrays.copyOf(sellSequences, capacity);
+                sellTraderIds = Arrays.copyOf(sellTraderIds, capacity);
+            }
+            sellPrices[sellCount] = price;
+            sellShares[sellCount] = order.getShares();
+            sellSequences[sellCount] = order.getSequence();
+            sellTraderIds[sellCount] = order.getTraderId();
+            sellCount++;
+        }
+    }
+
+
+    /**
+     * Counts a new reader of this snapshot. Called by the stock only; the
+     * stock checks afterwards that the snapshot is still the published one.
+     */
+    protected void acquire()
+    {
+        readers.incrementAndGet();
+    }
+
+
+    /**
+     * Hands this snapshot back once the reader is done with it. The reader
+     * must not use it afterwards.
+     */
+    public void release()
+    {
+        readers.decrementAndGet();
+    }
+
+
+    /**
+     * Returns true if no reader holds this snapshot.
+     *
+     * @return true if the stock may overwrite this snapshot once it is no
+     * longer published; false otherwise.
+     */
+    protected boolean isFree()
+    {
+        return readers.get() == 0;
+    }
+
+
+    /**
+     * Returns the number of this copy of the book. Later copies have higher
+     * numbers.
+     *
+     * @return the version.
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+
+
+    /**
+     * Returns the last price of the stock when the copy was made.
+     *
+     * @return the last price.
+     */
+    public double getLastPrice()
+    {
+        return lastPrice;
+    }
+
+
+    /**
+     * Returns the day's volume of the stock when the copy was made.
+     *
+     * @return the volume.
+     */
+    public int getVolume()
+    {
+        return volume;
+    }
+
+
+    /**
+     * Returns the number of orders on one side of the book.
+     *
+     * @param buy - true for the buy side; false for the sell side.
+     * @return the order count.
+     */
+    public int getOrderCount(boolean buy)
+    {
+        return buy ? buyCount : sellCount;
+    }
+
+
+    /**
+     * Returns the price of an order.
+     *
+     * @param buy   - true for the buy side; false for the sell side.
+     * @param index - the index of the order on its side.
+     * @return the limit price, or NaN for a market order.
+     */
+    public double getPrice(boolean buy, int index)
+    {
+        long price = (buy ? buyPrices : sellPrices)[check(buy, index)];
+        return price == Long.MIN_VALUE ? Double.NaN : price / 100.0;
+    }
+
+
+    /**
+     * Returns the shares an order shows.
+     *
+     * @param buy   - true for the buy side; false for the sell side.
+     * @param index - the index of the order on its side.
+     * @return the shown shares.
+     */
+    public int getShares(boolean buy, int index)
+    {
+        return (buy ? buyShares : sellShares)[check(buy, index)];
+    }
+
+
+    /**
+     * Returns the sequence number of an order, which gives its time priority.
+     *
+     * @param buy   - true for the buy side; false for the sell side.
+     * @param index - the index of the order on its side.
+     * @return the sequence number.
+     */
+    public long getSequence(boolean buy, int index)
+    {
+        return (buy ? buySequences : sellSequences)[check(buy, index)];
+    }
+
+
+    /**
+     * Returns the id of the trader who placed an order.
+     *
+     * @param buy   - true for the buy side; false for the sell side.
+     * @param index - the index of the order on its side.
+     * @return the trader id, or -1 for a trader without a brokerage.
+     */
+    public int getTraderId(boolean buy, int index)
+    {
+        return (buy ? buyTraderIds : sellTraderIds)[check(buy, index)];
+    }
+
+
+    /**
+     * Returns the shares of the market orders on one side of the book.
+     *
+     * @param buy - true for the buy side; false for the sell side.
+     * @return the total shown shares of market orders.
+     */
+    public long getMarketShares(boolean buy)
+    {
+        long[] side = buy ? buyPrices : sellPrices;
+        int[] sizes = buy ? buyShares : sellShares;
+        long total = 0;
+        for ( int i = 0; i < getOrderCount(buy) && side[i] == Long.MIN_VALUE;
+            i++ )
+        {
+            total += sizes[i];
+        }
+        return total;
+    }
+
+
+    /**
+     * Adds up the shown shares of the limit orders on one side of the book by
+     * price, best price first.
+     *
+     * @param buy - true for the buy side; false for the sell side.
+     * @return a new map from prices in cents to shares.
+     */
+    public TreeMap<Long, Long> getLevels(boolean buy)
+    {
+        TreeMap<Long, Long> levels = buy ?
+            new TreeMap<>(Collections.reverseOrder()) : new TreeMap<>();
+        long[] side = buy ? buyPrices : sellPrices;
+        int[] sizes = buy ? buyShares : sellShares;
+        for ( int i = 0; i < getOrderCount(buy); i++ )
+        {
+            if ( side[i] != Long.MIN_VALUE )
+            {
+                levels.merge(side[i], (long)sizes[i], Long::sum);
+            }
+        }
+        return levels;
+    }
+
+
+    // Returns a given index if it is within the orders of one side.
+    private int check(boolean buy, int index)
+    {
+        if ( index < 0 || index >= getOrderCount(buy) )
+        {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return index;
+    }
+}
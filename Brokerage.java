@@ -1,11 +1,28 @@
-import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
 /**
- * Represents a brokerage.
+ * Represents a brokerage. Every trader of a brokerage gets a dense numeric
+ * id, and the per-trader state checked on each order (risk limits and
+ * positions) is kept in arrays indexed by that id rather than in maps keyed
+ * by screen name, as is each trader's OrderStore of open orders and fills.
+ * A trader's orders can fill on several threads at once, as when a
+ * SmartOrderRouter places child orders in parallel, so a trader's position
+ * is only read or changed while holding the trader's OrderStore, which
+ * serves as the lock for all of the trader's state that changes as orders
+ * trade.
+ * <p>
+ * A brokerage may trade at more than one stock exchange. Once a second one is
+ * added, orders go through a SmartOrderRouter, which splits them over the
+ * exchanges by their best prices, and positions are kept under the primary
+ * exchange's instrument ids (symbols it does not list are not tracked).
+ * </p>
  * @author Niranjan Mathirajan
  * @author Leo Xu
  *
@@ -17,6 +34,15 @@ public class Brokerage
     private Map<String, Trader> traders;
     private Set<Trader>         loggedTraders;
     private StockExchange       exchange;
+    private int                 id;
+    private int                 traderCount;
+    private Trader[]            tradersById;
+    private int[]               maxOrderShares;
+    private long[]              maxPositions;
+    private long[][]            positions;
+    private OrderStore[]        orderStores;
+    private List<StockExchange> venues;
+    private SmartOrderRouter    router;
 
 
     /**
@@ -29,8 +55,16 @@ public class Brokerage
     public Brokerage(StockExchange exchange)
     {
         this.exchange = exchange;
+        id = exchange.nextBrokerageId();
         traders = new TreeMap<>();
         loggedTraders = new TreeSet<>();
+        tradersById = new Trader[16];
+        maxOrderShares = new int[16];
+        maxPositions = new long[16];
+        positions = new long[16][];
+        orderStores = new OrderStore[16];
+        venues = new ArrayList<>();
+        venues.add(exchange);
     }
 
 
@@ -65,12 +99,299 @@ public class Brokerage
         }
         else
         {
-            traders.put(name, new Trader(this, name, password));
+            Trader trader = new Trader(this, name, password);
+            traders.put(name, trader);
+            tradersById[trader.getId()] = trader;
             return 0;
         }
     }
 
 
+    /**
+     * Hands out the next numeric trader id of this brokerage.
+     * @return a trader id not used before by this brokerage.
+     */
+    protected int nextTraderId()
+    {
+        if ( traderCount == tradersById.length )
+        {
+            int length = traderCount * 2;
+            tradersById = Arrays.copyOf(tradersById, length);
+            maxOrderShares = Arrays.copyOf(maxOrderShares, length);
+            maxPositions = Arrays.copyOf(maxPositions, length);
+            positions = Arrays.copyOf(positions, length);
+            orderStores = Arrays.copyOf(orderStores, length);
+        }
+        orderStores[traderCount] = new OrderStore();
+        return traderCount++;
+    }
+
+
+    /**
+     * Returns the id the stock exchange gave this brokerage.
+     * @return the brokerage id.
+     */
+    public int getId()
+    {
+        return id;
+    }
+
+
+    /**
+     * Returns the owner id of a trader of this brokerage: the brokerage id
+     * above the trader id, which no trader of another brokerage at the same
+     * exchange has.
+     * @param traderId - the trader's id at this brokerage.
+     * @return the owner id.
+     */
+    protected long ownerIdOf(int traderId)
+    {
+        return (long)id << 32 | traderId;
+    }
+
+
+    /**
+     * Returns the registered trader with a given id.
+     * @param id - a trader id.
+     * @return the trader, or null if no registered trader has that id.
+     */
+    public Trader getTrader(int id)
+    {
+        return id < 0 || id >= traderCount ? null : tradersById[id];
+    }
+
+
+    /**
+     * Sets the risk limits of a trader of this brokerage. Orders that break
+     * a limit are rejected before they reach the exchange.
+     * @param trader - a trader of this brokerage.
+     * @param maxOrderShares - the most shares one order may have, or 0 for no
+     * limit.
+     * @param maxPosition - the largest long or short position the trader may
+     * build in any one stock, counting the new order in full, or 0 for no
+     * limit.
+     */
+    public void setRiskLimits(Trader trader, int maxOrderShares,
+        long maxPosition)
+    {
+        this.maxOrderShares[trader.getId()] = maxOrderShares;
+        maxPositions[trader.getId()] = maxPosition;
+    }
+
+
+    /**
+     * Returns the position of a trader in a stock: shares bought minus
+     * shares sold through this brokerage.
+     * @param trader - a trader of this brokerage.
+     * @param symbol - the stock symbol.
+     * @return the net number of shares held.
+     */
+    public long getPosition(Trader trader, String symbol)
+    {
+        int id = trader.getId();
+        OrderStore store = orderStore(id);
+        if ( store == null )
+        {
+            return 0;
+        }
+        synchronized ( store )
+        {
+            return position(id, exchange.getInstrumentId(symbol));
+        }
+    }
+
+
+    /**
+     * Returns the orders of a trader now open at the exchange.
+     * @param trader - a trader of this brokerage.
+     * @return a new list of the open orders.
+     */
+    public List<TradeOrder> getOpenOrders(Trader trader)
+    {
+        OrderStore store = orderStore(trader.getId());
+        return store == null ? new ArrayList<>() : store.getOpenOrders();
+    }
+
+
+    /**
+     * Returns the open order of a trader with a given order id.
+     * @param trader - a trader of this brokerage.
+     * @param orderId - the order id (see TradeOrder.getOrderId).
+     * @return the order, or null if the trader has no open order with that
+     * id.
+     */
+    public TradeOrder getOpenOrder(Trader trader, long orderId)
+    {
+        OrderStore store = orderStore(trader.getId());
+        return store == null ? null : store.getOpenOrder(orderId);
+    }
+
+
+    /**
+     * Returns the latest fills of a trader's orders, newest first.
+     * @param trader - a trader of this brokerage.
+     * @param max - the most fills to return.
+     * @return a new list of at most max fills.
+     */
+    public List<OrderStore.Fill> getRecentFills(Trader trader, int max)
+    {
+        OrderStore store = orderStore(trader.getId());
+        return store == null ? new ArrayList<>() : store.getRecentFills(max);
+    }
+
+
+    /**
+     * Adds an order placed in a book to the order store of its trader.
+     * @param trader - the trader whose order was placed.
+     * @param order - the order.
+     */
+    protected void recordOpen(Trader trader, TradeOrder order)
+    {
+        OrderStore store = orderStore(trader.getId());
+        if ( store != null )
+        {
+            store.open(order);
+        }
+    }
+
+
+    /**
+     * Takes an order that has left the book out of the order store of its
+     * trader.
+     * @param trader - the trader whose order left the book.
+     * @param order - the order.
+     */
+    protected void recordClose(Trader trader, TradeOrder order)
+    {
+        OrderStore store = orderStore(trader.getId());
+        if ( store != null )
+        {
+            store.close(order);
+        }
+    }
+
+
+    // Returns the order store of the trader with a given id, or null if no
+    // trader has that id.
+    private OrderStore orderStore(int id)
+    {
+        return id < 0 || id >= traderCount ? null : orderStores[id];
+    }
+
+
+    /**
+     * Adds a fill of one of a trader's orders to the trader's position and
+     * fill history.
+     * @param trader - the trader whose order traded.
+     * @param order - the order that traded.
+     * @param numShares - the number of shares traded.
+     * @param price - the price of the trade.
+     */
+    protected void recordFill(Trader trader, TradeOrder order, int numShares,
+        double price)
+    {
+        int id = trader.getId();
+        OrderStore store = orderStore(id);
+        if ( store == null )
+        {
+            return;
+        }
+        int instrument = router == null ? order.getInstrumentId() :
+            exchange.getInstrumentId(order.getSymbol());
+        synchronized ( store )
+        {
+            store.fill(order, numShares, price);
+            if ( instrument < 0 )
+            {
+                return;
+            }
+            long[] held = positions[id];
+            if ( held == null || instrument >= held.length )
+            {
+                held = Arrays.copyOf(held == null ? new long[0] : held,
+                    Math.max(instrument + 1, 8));
+                positions[id] = held;
+            }
+            held[instrument] += order.isBuy() ? numShares : -numShares;
+        }
+    }
+
+
+    // Returns the position of the trader with a given id in the stock with a
+    // given instrument id. Called holding the trader's order store.
+    private long position(int id, int instrument)
+    {
+        long[] held = id < 0 || id >= traderCount ? null : positions[id];
+        return held == null || instrument < 0 || instrument >= held.length ?
+            0 : held[instrument];
+    }
+
+
+    // Returns the reason for turning a given order away, or null if it keeps
+    // within the risk limits of its trader.
+    private String checkLimits(TradeOrder order)
+    {
+        int id = order.getTraderId();
+        if ( id < 0 || id >= traderCount )
+        {
+            return null;
+        }
+        long shares = order.getShares() + order.getHiddenShares();
+        if ( maxOrderShares[id] > 0 && shares > maxOrderShares[id] )
+        {
+            return order.getSymbol() + " order of " + shares +
+                " shares is over the limit of " + maxOrderShares[id];
+        }
+        if ( maxPositions[id] > 0 )
+        {
+            if ( order.getInstrumentId() < 0 )
+            {
+                order.setInstrumentId(exchange.getInstrumentId(order
+                    .getSymbol()));
+            }
+            long held;
+            synchronized ( orderStores[id] )
+            {
+                held = position(id, order.getInstrumentId());
+            }
+            long after = held + (order.isBuy() ? shares : -shares);
+            if ( Math.abs(after) > maxPositions[id] )
+            {
+                return order.getSymbol() + " order would take the position" +
+                    " to " + after + " shares, over the limit of " +
+                    maxPositions[id];
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Adds another stock exchange to trade at. From then on orders are
+     * routed over all the exchanges of this brokerage.
+     * @param venue - a stock exchange.
+     */
+    public void addExchange(StockExchange venue)
+    {
+        venues.add(venue);
+        if ( router != null )
+        {
+            router.shutdown();
+        }
+        router = new SmartOrderRouter(venues);
+    }
+
+
+    /**
+     * Returns the stock exchanges this brokerage trades at.
+     * @return the exchanges, the primary one first.
+     */
+    public List<StockExchange> getExchanges()
+    {
+        return Collections.unmodifiableList(venues);
+    }
+
+
     /**
      * Tries to login a trader with a given screen name and password.
      * @param name - the screen name of the trader.
@@ -120,12 +441,53 @@ public class Brokerage
 
     /**
      *
-     * Places an order at the stock exchange.
+     * Places an order at the stock exchange, unless it breaks the risk
+     * limits of its trader. With more than one exchange the order is routed
+     * over all of them.
      * @param order - an order to be placed at the stock exchange.
      */
     public void placeOrder(TradeOrder order)
     {
-        exchange.placeOrder(order);
+        String rejection = checkLimits(order);
+        if ( rejection != null )
+        {
+            order.getTrader().receiveMessage("Order rejected:\t" + rejection);
+            if ( order.getPool() != null )
+            {
+                order.getPool().release(order);
+            }
+            return;
+        }
+        if ( router == null )
+        {
+            exchange.placeOrder(order);
+        }
+        else
+        {
+            router.route(order);
+        }
+    }
+
+
+    /**
+     *
+     * Cancels an order resting at the stock exchange, or at whichever of
+     * the exchanges it rests at.
+     * @param order - an order placed at the stock exchange.
+     * @return true if the order was cancelled; false otherwise.
+     */
+    public boolean cancelOrder(TradeOrder order)
+    {
+        int instrument = order.getInstrumentId();
+        for ( StockExchange venue : venues )
+        {
+            if ( venue.cancelOrder(order) )
+            {
+                return true;
+            }
+            order.setInstrumentId(instrument);
+        }
+        return false;
     }
 
 
@@ -181,7 +543,7 @@ public class Brokerage
 
     /**
      * <p>
-     * A generic toString implementation that uses reflection to print names and
+     * A generic toString implementation that prints the names and
      * values of all fields <em>declared in this class</em>. Note that
      * superclass fields are left out of this implementation.
      * </p>
@@ -190,27 +552,7 @@ public class Brokerage
      */
     public String toString()
     {
-        String str = this.getClass().getName() + "[";
-        String separator = "";
-
-        Field[] fields = this.getClass().getDeclaredFields();
-
-        for ( Field field : fields )
-        {
-            try
-            {
-                str += separator + field.getType().getName() + " " + field
-                    .getName() + ":" + field.get(this);
-            }
-            catch ( IllegalAccessException ex )
-            {
-                System.out.println(ex);
-            }
-
-            separator = ", ";
-        }
-
-        return str + "]";
+        return FieldFormatter.format(this);
     }
 }
 
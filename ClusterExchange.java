@@ -0,0 +1,598 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stock exchange whose stocks live on the nodes of a cluster (see
+ * ClusterNode). A brokerage uses it like any other exchange; it keeps only a
+ * routing table and forwards each order, cancel and quote to the node that
+ * owns the symbol, over the binary protocol of ClusterProtocol. New symbols
+ * are given to nodes by consistent hashing (see SymbolRing), and moveStock
+ * moves a symbol to another node while the other symbols keep trading.
+ *
+ * <p>
+ * Orders are sent without waiting for the node. Messages, fills and the end
+ * of each order come back on the node's connection and are handed to the
+ * traders on its reader thread; a quote or cancel returns only after
+ * everything the node sent before it has been handed on. The order object a
+ * trader placed stands for the order on the node, so it can be cancelled,
+ * but its shares are not updated as it fills.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class ClusterExchange
+    extends StockExchange
+{
+    private static final long CALL_TIMEOUT_MILLIS = 10000;
+
+    private SymbolRing            ring;
+    private Map<String, Node>     nodes;
+    private Map<String, Route>    routes;
+    private Map<Long, TradeOrder> liveOrders;
+    private Map<Trader, Integer>  traderKeys;
+    private List<Trader>          traders;
+    private AtomicLong            nextRequest;
+
+
+    /**
+     * Constructs an exchange over the nodes at the given addresses and
+     * connects to them.
+     *
+     * @param addresses - the nodes' addresses, as "host:port".
+     * @throws IOException if a node cannot be reached.
+     */
+    public ClusterExchange(String... addresses) throws IOException
+    {
+        ring = new SymbolRing();
+        nodes = new ConcurrentHashMap<>();
+        routes = new ConcurrentHashMap<>();
+        liveOrders = new ConcurrentHashMap<>();
+        traderKeys = new IdentityHashMap<>();
+        traders = new ArrayList<>();
+        nextRequest = new AtomicLong();
+        for ( String address : addresses )
+        {
+            addNode(address);
+        }
+    }
+
+
+    /**
+     * Connects to another node and places it on the ring. Symbols already
+     * listed stay where they are until moved; new symbols may go to it.
+     *
+     * @param address - the node's address, as "host:port".
+     * @throws IOException if the node cannot be reached.
+     */
+    public synchronized void addNode(String address) throws IOException
+    {
+        int colon = address.lastIndexOf(':');
+        Node node = new Node(address, new Socket(address.substring(0, colon),
+            Integer.parseInt(address.substring(colon + 1))));
+        nodes.put(address, node);
+        ring.addNode(address);
+        node.start();
+    }
+
+
+    /**
+     * Returns the address of the node a listed symbol trades on.
+     *
+     * @param symbol - the stock symbol.
+     * @return the node's address, or null if the symbol is not listed.
+     */
+    public String getNodeOf(String symbol)
+    {
+        Route route = routes.get(symbol);
+        return route == null ? null : route.node.address;
+    }
+
+
+    /**
+     * Lists a stock on the node the ring gives its symbol to. The stock
+     * object itself stays here; the node lists a Stock with the same symbol,
+     * name, price and price band.
+     *
+     * @param stock - the stock to list.
+     */
+    public synchronized void listStock(Stock stock)
+    {
+        String symbol = stock.getStockSymbol();
+        Route route = routes.get(symbol);
+        Node node = route != null ? route.node : nodes.get(ring.nodeOf(
+            symbol));
+        node.call(ClusterProtocol.LIST, out ->
+        {
+            out.writeUTF(symbol);
+            out.writeUTF(stock.getCompanyName());
+            out.writeDouble(stock.getLastPrice());
+            out.writeInt(stock.getPriceBand());
+            out.writeLong(stock.getAuctionMillis());
+            out.writeByte(stock.getMarketOrderProtection().ordinal());
+            out.writeInt(stock.getProtectionBasisPoints());
+        });
+        if ( route == null )
+        {
+            routes.put(symbol, new Route(routes.size(), node));
+        }
+    }
+
+
+    /**
+     * Moves a stock and its resting orders to another node. Orders for the
+     * symbol wait until the move is done; other symbols trade on meanwhile.
+     *
+     * @param symbol  - the stock symbol.
+     * @param address - the address of the node to move to.
+     */
+    public void moveStock(String symbol, String address)
+    {
+        Route route = routes.get(symbol);
+        Node target = nodes.get(address);
+        if ( route == null || target == null )
+        {
+            throw new IllegalArgumentException(symbol + " to " + address);
+        }
+        synchronized ( route )
+        {
+            if ( route.node == target )
+            {
+                return;
+            }
+            byte[] book = route.node.call(ClusterProtocol.EXPORT, out -> out
+                .writeUTF(symbol));
+            target.call(ClusterProtocol.IMPORT, out ->
+            {
+                out.writeInt(book.length);
+                out.write(book);
+            });
+            route.node = target;
+        }
+    }
+
+
+    /**
+     * Returns the instrument id this exchange gave a listed symbol.
+     *
+     * @param symbol - the stock symbol.
+     * @return the instrument id, or -1 if the symbol is not listed.
+     */
+    public int getInstrumentId(String symbol)
+    {
+        Route route = routes.get(symbol);
+        return route == null ? -1 : route.instrumentId;
+    }
+
+
+    /**
+     * Returns null, as the stocks of a cluster live on its nodes.
+     *
+     * @param instrumentId - an instrument id.
+     * @return null.
+     */
+    public Stock getStock(int instrumentId)
+    {
+        return null;
+    }
+
+
+    /**
+     * Asks the node that owns a symbol for a quote.
+     *
+     * @param symbol Stock symbol.
+     * @return a text message that contains the quote.
+     */
+    public String getQuote(String symbol)
+    {
+        Route route = routes.get(symbol);
+        if ( route == null )
+        {
+            return symbol + " not found";
+        }
+        synchronized ( route )
+        {
+            return route.node.call(ClusterProtocol.QUOTE, out -> out
+                .writeUTF(symbol), in -> in.readUTF());
+        }
+    }
+
+
+    /**
+     * Sends an order to the node that owns its symbol.
+     *
+     * @param order - a trading order to be placed with this stock exchange.
+     */
+    public void placeOrder(TradeOrder order)
+    {
+        Route route = routes.get(order.getSymbol());
+        if ( route == null )
+        {
+            order.getTrader().receiveMessage(order.getSymbol() + " not found");
+            return;
+        }
+        long request = nextRequest.incrementAndGet();
+        order.setJournalId(request);
+        order.setInstrumentId(route.instrumentId);
+        liveOrders.put(request, order);
+        order.getTrader().orderOpened(order);
+        int key = keyOf(order.getTrader());
+        synchronized ( route )
+        {
+            route.node.send(out ->
+            {
+                out.writeByte(ClusterProtocol.ORDER);
+                ClusterProtocol.writeOrder(out, request, key, order);
+            });
+        }
+    }
+
+
+    /**
+     * Asks the node that owns an order's symbol to cancel it.
+     *
+     * @param order - a trading order placed with this stock exchange.
+     * @return true if the order was cancelled; false otherwise.
+     */
+    public boolean cancelOrder(TradeOrder order)
+    {
+        Route route = routes.get(order.getSymbol());
+        if ( route == null || !liveOrders.containsKey(order.getJournalId()) )
+        {
+            return false;
+        }
+        synchronized ( route )
+        {
+            return route.node.call(ClusterProtocol.CANCEL, out ->
+            {
+                out.writeLong(order.getJournalId());
+                out.writeUTF(order.getSymbol());
+            }, DataInputStream::readBoolean);
+        }
+    }
+
+
+    /**
+     * Expires the orders whose time is up on every node.
+     *
+     * @return the number of orders expired.
+     */
+    public int expireOrders()
+    {
+        int expired = 0;
+        for ( Node node : nodes.values() )
+        {
+            expired += node.call(ClusterProtocol.EXPIRE, out ->
+            {
+            }, DataInputStream::readInt);
+        }
+        return expired;
+    }
+
+
+    /**
+     * Ends the trading day on every node; each node ends the days of its
+     * stocks in parallel.
+     *
+     * @return the day summaries of all the nodes, sorted by symbol.
+     */
+    public List<DaySummary> endDay()
+    {
+        List<DaySummary> summaries = new ArrayList<>();
+        for ( Node node : nodes.values() )
+        {
+            node.call(ClusterProtocol.END_DAY, out ->
+            {
+            }, in ->
+            {
+                for ( int i = in.readInt(); i > 0; i-- )
+                {
+                    summaries.add(DaySummary.readFrom(in));
+                }
+                return null;
+            });
+        }
+        summaries.sort(Comparator.comparing(DaySummary::getSymbol));
+        return summaries;
+    }
+
+
+    /**
+     * Starts the pre-open phase on every node.
+     */
+    public void startPreOpen()
+    {
+        changePhase(TradingPhase.PRE_OPEN);
+    }
+
+
+    /**
+     * Runs the opening auctions and starts continuous trading on every node.
+     */
+    public void startContinuousTrading()
+    {
+        changePhase(TradingPhase.CONTINUOUS);
+    }
+
+
+    /**
+     * Starts the closing auction on every node.
+     */
+    public void startClosingAuction()
+    {
+        changePhase(TradingPhase.CLOSING_AUCTION);
+    }
+
+
+    /**
+     * Runs the closing auctions and closes every stock on every node.
+     */
+    public void closeSession()
+    {
+        changePhase(TradingPhase.CLOSED);
+    }
+
+
+    private void changePhase(TradingPhase phase)
+    {
+        for ( Node node : nodes.values() )
+        {
+            node.call(ClusterProtocol.PHASE, out -> out.writeByte(phase
+                .ordinal()));
+        }
+    }
+
+
+    // Returns the key that names a trader to the nodes.
+    private synchronized int keyOf(Trader trader)
+    {
+        Integer key = traderKeys.get(trader);
+        if ( key == null )
+        {
+            key = traders.size();
+            traderKeys.put(trader, key);
+            traders.add(trader);
+        }
+        return key;
+    }
+
+
+    private synchronized Trader traderOf(int key)
+    {
+        return traders.get(key);
+    }
+
+
+    // Writes the body of a request.
+    private interface Request
+    {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+
+    // Reads the result of a call.
+    private interface Reply<T>
+    {
+        T readFrom(DataInputStream in) throws IOException;
+    }
+
+
+    // The node a symbol trades on. Requests for the symbol lock its route,
+    // so that they wait while the symbol moves.
+    private static class Route
+    {
+        private int           instrumentId;
+        private volatile Node node;
+
+
+        private Route(int instrumentId, Node node)
+        {
+            this.instrumentId = instrumentId;
+            this.node = node;
+        }
+    }
+
+
+    // The connection to one node and the thread that reads what it sends.
+    private class Node
+        extends Thread
+    {
+        private String                               address;
+        private Socket                               socket;
+        private DataOutputStream                     out;
+        private Map<Long, CompletableFuture<byte[]>> calls;
+        private AtomicLong                           nextCall;
+
+
+        private Node(String address, Socket socket) throws IOException
+        {
+            super("SafeTrade-cluster-" + address);
+            setDaemon(true);
+            this.address = address;
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket
+                .getOutputStream(), 1 << 16));
+            calls = new ConcurrentHashMap<>();
+            nextCall = new AtomicLong();
+        }
+
+
+        private void send(Request request)
+        {
+            try
+            {
+                synchronized ( out )
+                {
+                    request.writeTo(out);
+                    out.flush();
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException(address + " is unreachable",
+                    e);
+            }
+        }
+
+
+        // Sends a request and waits for its result, which is read by a given
+        // reply.
+        private <T> T call(byte type, Request body, Reply<T> reply)
+        {
+            try
+            {
+                return reply.readFrom(new DataInputStream(
+                    new ByteArrayInputStream(call(type, body))));
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+
+        // Sends a request and waits for its result.
+        private byte[] call(byte type, Request body)
+        {
+            long call = nextCall.incrementAndGet();
+            CompletableFuture<byte[]> result = new CompletableFuture<>();
+            calls.put(call, result);
+            send(out ->
+            {
+                out.writeByte(type);
+                out.writeLong(call);
+                body.writeTo(out);
+            });
+            try
+            {
+                return result.get(CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch ( ExecutionException e )
+            {
+                throw new IllegalStateException(e.getCause().getMessage());
+            }
+            catch ( InterruptedException | TimeoutException e )
+            {
+                throw new IllegalStateException(address + " did not answer",
+                    e);
+            }
+            finally
+            {
+                calls.remove(call);
+            }
+        }
+
+
+        public void run()
+        {
+            try
+            {
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                while ( true )
+                {
+                    receive(in.readByte(), in);
+                }
+            }
+            catch ( IOException e )
+            {
+                for ( CompletableFuture<byte[]> call : calls.values() )
+                {
+                    call.completeExceptionally(new IOException(address +
+                        " disconnected"));
+                }
+            }
+            finally
+            {
+                close();
+            }
+        }
+
+
+        private void close()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch ( IOException e )
+            {
+                System.out.println(e);
+            }
+        }
+
+
+        private void receive(byte type, DataInputStream in) throws IOException
+        {
+            switch ( type )
+            {
+                case ClusterProtocol.MESSAGE:
+                    Trader trader = traderOf(in.readInt());
+                    trader.receiveMessage(in.readUTF());
+                    break;
+                case ClusterProtocol.FILL:
+                    TradeOrder filled = liveOrders.get(in.readLong());
+                    int shares = in.readInt();
+                    double price = in.readDouble();
+                    if ( filled != null )
+                    {
+                        filled.getTrader().orderFilled(filled, shares, price);
+                    }
+                    break;
+                case ClusterProtocol.DONE:
+                    TradeOrder done = liveOrders.remove(in.readLong());
+                    if ( done != null )
+                    {
+                        done.getTrader().orderClosed(done);
+                    }
+                    if ( done != null && done.getPool() != null )
+                    {
+                        done.getPool().release(done);
+                    }
+                    break;
+                case ClusterProtocol.RESULT:
+                    long call = in.readLong();
+                    boolean ok = in.readBoolean();
+                    byte[] result = new byte[in.readInt()];
+                    in.readFully(result);
+                    CompletableFuture<byte[]> waiting = calls.get(call);
+                    if ( waiting == null )
+                    {
+                        break;
+                    }
+                    if ( ok )
+                    {
+                        waiting.complete(result);
+                    }
+                    else
+                    {
+                        waiting.completeExceptionally(new IOException(
+                            new DataInputStream(new ByteArrayInputStream(
+                                result)).readUTF()));
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown frame " + type);
+            }
+        }
+    }
+}
@@ -0,0 +1,501 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One node of an exchange cluster: a StockExchange that takes requests from
+ * ClusterExchanges over TCP (see ClusterProtocol). Each connection is served
+ * by a thread of its own, and requests are applied one at a time under the
+ * node's lock. Orders are placed for stand-in traders that send their
+ * messages and fills back over the connection the order came in on, and a
+ * DONE frame tells the exchange when an order has left its stock.
+ *
+ * <p>
+ * A stock can be exported, which takes it off this node together with its
+ * resting orders, and imported on another node, which lists it again and
+ * places the orders there in their original time priority. The stand-in
+ * traders of imported orders answer to the connection that imported them, so
+ * a cluster is meant to be driven by one ClusterExchange.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class ClusterNode
+{
+    private StockExchange exchange;
+    private ServerSocket  server;
+
+
+    /**
+     * Constructs a node that takes connections on a given server socket and
+     * starts accepting them.
+     *
+     * @param server - the socket ClusterExchanges connect to.
+     */
+    public ClusterNode(ServerSocket server)
+    {
+        this.server = server;
+        exchange = new StockExchange();
+        Thread acceptor = new Thread(this::accept, "SafeTrade-node-" + server
+            .getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+
+    /**
+     * Returns the address ClusterExchanges connect to.
+     *
+     * @return the address as "host:port".
+     */
+    public String getAddress()
+    {
+        return server.getInetAddress().getHostAddress() + ":" + server
+            .getLocalPort();
+    }
+
+
+    /**
+     * Stops taking connections. Connections already open stay open.
+     */
+    public void close()
+    {
+        try
+        {
+            server.close();
+        }
+        catch ( IOException e )
+        {
+            System.out.println(e);
+        }
+    }
+
+
+    /**
+     * Runs a node from the command line: "ClusterNode port".
+     *
+     * @param args - the port to listen on.
+     * @throws IOException if the port cannot be opened.
+     * @throws InterruptedException if interrupted while running.
+     */
+    public static void main(String[] args)
+        throws IOException, InterruptedException
+    {
+        ClusterNode node = new ClusterNode(new ServerSocket(Integer.parseInt(
+            args[0])));
+        System.out.println("Cluster node at " + node.getAddress());
+        Thread.currentThread().join();
+    }
+
+
+    private void accept()
+    {
+        try
+        {
+            while ( true )
+            {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(new Connection(socket),
+                    "SafeTrade-node-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        catch ( IOException e )
+        {
+            // The server socket was closed.
+        }
+    }
+
+
+    //
+    // The following are for test purposes only
+    //
+
+    /**
+     * Gets the exchange of this node for testing
+     * @return the node's stock exchange
+     */
+    protected StockExchange getExchange()
+    {
+        return exchange;
+    }
+
+
+    // One ClusterExchange connected to this node.
+    private class Connection
+        extends TradeOrderPool
+        implements Runnable, ClusterProtocol.TraderLookup
+    {
+        private Socket                socket;
+        private DataInputStream       in;
+        private DataOutputStream      out;
+        private Map<Integer, Trader>  traders;
+        private Map<Long, TradeOrder> orders;
+        private StandIns              standIns;
+        private boolean               muted;
+
+
+        private Connection(Socket socket) throws IOException
+        {
+            super(0);
+            this.socket = socket;
+            in = new DataInputStream(new BufferedInputStream(socket
+                .getInputStream(), 1 << 16));
+            out = new DataOutputStream(new BufferedOutputStream(socket
+                .getOutputStream(), 1 << 16));
+            traders = new HashMap<>();
+            orders = new HashMap<>();
+            standIns = new StandIns(exchange);
+        }
+
+
+        public void run()
+        {
+            try
+            {
+                while ( true )
+                {
+                    byte type = in.readByte();
+                    synchronized ( exchange )
+                    {
+                        handle(type);
+                    }
+                    if ( in.available() == 0 )
+                    {
+                        out.flush();
+                    }
+                }
+            }
+            catch ( EOFException e )
+            {
+                // The exchange has disconnected.
+            }
+            catch ( IOException e )
+            {
+                System.out.println(e);
+            }
+            finally
+            {
+                close();
+            }
+        }
+
+
+        private void close()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch ( IOException e )
+            {
+                System.out.println(e);
+            }
+        }
+
+
+        private void handle(byte type) throws IOException
+        {
+            if ( type == ClusterProtocol.ORDER )
+            {
+                TradeOrder order = ClusterProtocol.readOrder(in, this);
+                order.setPool(this);
+                orders.put(order.getJournalId(), order);
+                exchange.placeOrder(order);
+                return;
+            }
+            long call = in.readLong();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream result = new DataOutputStream(bytes);
+            String error = null;
+            switch ( type )
+            {
+                case ClusterProtocol.LIST:
+                    Stock listed = new Stock(in.readUTF(), in.readUTF(), in
+                        .readDouble());
+                    listed.setPriceBand(in.readInt(), in.readLong());
+                    listed.setMarketOrderProtection(MarketOrderProtection
+                        .values()[in.readByte()], in.readInt());
+                    exchange.listStock(listed);
+                    break;
+                case ClusterProtocol.CANCEL:
+                    TradeOrder order = orders.get(in.readLong());
+                    String symbol = in.readUTF();
+                    result.writeBoolean(order != null && order.getSymbol()
+                        .equals(symbol) && exchange.cancelOrder(order));
+                    break;
+                case ClusterProtocol.QUOTE:
+                    result.writeUTF(exchange.getQuote(in.readUTF()));
+                    break;
+                case ClusterProtocol.EXPORT:
+                    error = export(in.readUTF(), result);
+                    break;
+                case ClusterProtocol.IMPORT:
+                    byte[] book = new byte[in.readInt()];
+                    in.readFully(book);
+                    importBook(new DataInputStream(
+                        new java.io.ByteArrayInputStream(book)));
+                    break;
+                case ClusterProtocol.PHASE:
+                    changePhase(TradingPhase.values()[in.readByte()]);
+                    break;
+                case ClusterProtocol.EXPIRE:
+                    result.writeInt(exchange.expireOrders());
+                    break;
+                case ClusterProtocol.END_DAY:
+                    List<DaySummary> summaries = exchange.endDay();
+                    result.writeInt(summaries.size());
+                    for ( DaySummary summary : summaries )
+                    {
+                        summary.writeTo(result);
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown request " + type);
+            }
+            out.writeByte(ClusterProtocol.RESULT);
+            out.writeLong(call);
+            out.writeBoolean(error == null);
+            if ( error != null )
+            {
+                bytes.reset();
+                result.writeUTF(error);
+            }
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+
+
+        // Takes a stock off the node and writes its book: the stock and its
+        // resting orders in time priority.
+        private String export(String symbol, DataOutputStream book)
+            throws IOException
+        {
+            Stock stock = exchange.getStock(exchange.getInstrumentId(symbol));
+            if ( stock == null )
+            {
+                return symbol + " not found";
+            }
+            if ( stock.getPhase() != TradingPhase.CONTINUOUS )
+            {
+                return symbol + " can only move during continuous trading";
+            }
+            exchange.delistStock(symbol);
+            List<TradeOrder> resting = stock.getRestingOrders();
+            book.writeUTF(symbol);
+            book.writeUTF(stock.getCompanyName());
+            book.writeDouble(stock.getLastPrice());
+            book.writeInt(stock.getPriceBand());
+            book.writeLong(stock.getAuctionMillis());
+            book.writeByte(stock.getMarketOrderProtection().ordinal());
+            book.writeInt(stock.getProtectionBasisPoints());
+            book.writeDouble(stock.getLoPrice());
+            book.writeDouble(stock.getHiPrice());
+            book.writeInt(stock.getVolume());
+            book.writeInt(stock.getTrades());
+            book.writeDouble(stock.getTurnover());
+            book.writeInt(resting.size());
+            for ( TradeOrder order : resting )
+            {
+                StandIn trader = (StandIn)order.getTrader();
+                trader.connection.orders.remove(order.getJournalId());
+                ClusterProtocol.writeOrder(book, order.getJournalId(),
+                    trader.key, order);
+            }
+            return null;
+        }
+
+
+        // Lists a stock from an exported book and places its orders, without
+        // telling the traders about them again.
+        private void importBook(DataInputStream book) throws IOException
+        {
+            Stock stock = new Stock(book.readUTF(), book.readUTF(), book
+                .readDouble());
+            stock.setPriceBand(book.readInt(), book.readLong());
+            stock.setMarketOrderProtection(MarketOrderProtection.values()[book
+                .readByte()], book.readInt());
+            stock.restoreDay(book.readDouble(), book.readDouble(), book
+                .readInt(), book.readInt(), book.readDouble());
+            exchange.listStock(stock);
+            muted = true;
+            try
+            {
+                for ( int i = book.readInt(); i > 0; i-- )
+                {
+                    TradeOrder order = ClusterProtocol.readOrder(book, this);
+                    order.setPool(this);
+                    orders.put(order.getJournalId(), order);
+                    stock.placeOrder(order);
+                }
+            }
+            finally
+            {
+                muted = false;
+            }
+        }
+
+
+        private void changePhase(TradingPhase phase)
+        {
+            switch ( phase )
+            {
+                case PRE_OPEN:
+                    exchange.startPreOpen();
+                    break;
+                case CONTINUOUS:
+                    exchange.startContinuousTrading();
+                    break;
+                case CLOSING_AUCTION:
+                    exchange.startClosingAuction();
+                    break;
+                default:
+                    exchange.closeSession();
+                    break;
+            }
+        }
+
+
+        public Trader trader(int key, int id, long ownerId, String name)
+        {
+            Trader trader = traders.get(key);
+            if ( trader == null )
+            {
+                trader = standIns.create(this, key, id, ownerId, name);
+                traders.put(key, trader);
+            }
+            return trader;
+        }
+
+
+        // Called by a stock when it is done with an order of this connection.
+        public void release(TradeOrder order)
+        {
+            orders.remove(order.getJournalId());
+            order.setPool(null);
+            write(ClusterProtocol.DONE, order.getJournalId(), 0, 0);
+        }
+
+
+        private void send(int key, String msg)
+        {
+            if ( muted )
+            {
+                return;
+            }
+            try
+            {
+                out.writeByte(ClusterProtocol.MESSAGE);
+                out.writeInt(key);
+                out.writeUTF(msg);
+            }
+            catch ( IOException e )
+            {
+                System.out.println(e);
+            }
+        }
+
+
+        private void write(byte type, long request, int shares, double price)
+        {
+            try
+            {
+                out.writeByte(type);
+                out.writeLong(request);
+                if ( type == ClusterProtocol.FILL )
+                {
+                    out.writeInt(shares);
+                    out.writeDouble(price);
+                }
+            }
+            catch ( IOException e )
+            {
+                System.out.println(e);
+            }
+        }
+    }
+
+
+    // Hands out stand-in traders with the ids and owner ids of the traders
+    // they stand in for, so that self-trade prevention sees the same ids as
+    // on a single exchange.
+    private static class StandIns
+        extends Brokerage
+    {
+        private int  nextId;
+        private long nextOwnerId;
+
+
+        private StandIns(StockExchange exchange)
+        {
+            super(exchange);
+        }
+
+
+        private StandIn create(Connection connection, int key, int id,
+            long ownerId, String name)
+        {
+            nextId = id;
+            nextOwnerId = ownerId;
+            return new StandIn(this, connection, key, name);
+        }
+
+
+        protected int nextTraderId()
+        {
+            return nextId;
+        }
+
+
+        protected long ownerIdOf(int traderId)
+        {
+            return nextOwnerId;
+        }
+    }
+
+
+    // A trader on this node standing in for a trader of a ClusterExchange.
+    private static class StandIn
+        extends Trader
+    {
+        private Connection connection;
+        private int        key;
+
+
+        private StandIn(StandIns brokerage, Connection connection, int key,
+            String name)
+        {
+            super(brokerage, name, "");
+            this.connection = connection;
+            this.key = key;
+        }
+
+
+        public void receiveMessage(String msg)
+        {
+            connection.send(key, msg);
+        }
+
+
+        protected void orderFilled(TradeOrder order, int numShares,
+            double price)
+        {
+            connection.write(ClusterProtocol.FILL, order.getJournalId(),
+                numShares, price);
+        }
+    }
+}
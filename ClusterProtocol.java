@@ -0,0 +1,194 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The binary protocol between a ClusterExchange and its ClusterNodes. Every
+ * frame starts with its type. Orders go to a node without waiting for a
+ * reply; the other requests carry a call id that the node's RESULT frame
+ * echoes. A node sends messages, fills and the end of an order's life back
+ * to the exchange as they happen. Orders are written the same way in ORDER
+ * frames and in the books that move between nodes.
+ *
+ * <pre>
+ * exchange to node:
+ *   LIST   call symbol name price band auctionMillis protection
+ *          protectionBasisPoints
+ *   ORDER  order
+ *   CANCEL call request symbol
+ *   QUOTE  call symbol
+ *   EXPORT call symbol
+ *   IMPORT call length book
+ *   PHASE  call phase
+ *   EXPIRE call
+ *   END_DAY call
+ * node to exchange:
+ *   MESSAGE trader text
+ *   FILL    request shares price
+ *   DONE    request
+ *   RESULT  call ok length payload
+ * </pre>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class ClusterProtocol
+{
+    /**
+     * Lists a stock on a node.
+     */
+    public static final byte LIST    = 1;
+
+    /**
+     * Places an order.
+     */
+    public static final byte ORDER   = 2;
+
+    /**
+     * Cancels an order; the result is a boolean.
+     */
+    public static final byte CANCEL  = 3;
+
+    /**
+     * Asks for a quote; the result is the quote text.
+     */
+    public static final byte QUOTE   = 4;
+
+    /**
+     * Takes a stock and its resting orders off a node; the result is the
+     * stock's book.
+     */
+    public static final byte EXPORT  = 5;
+
+    /**
+     * Lists a stock from a book exported by another node.
+     */
+    public static final byte IMPORT  = 6;
+
+    /**
+     * Moves every stock of a node to a new trading phase.
+     */
+    public static final byte PHASE   = 7;
+
+    /**
+     * Expires the orders whose time is up on a node.
+     */
+    public static final byte EXPIRE  = 8;
+
+    /**
+     * A message for a trader.
+     */
+    public static final byte MESSAGE = 9;
+
+    /**
+     * Some shares of an order traded.
+     */
+    public static final byte FILL    = 10;
+
+    /**
+     * An order has left its stock for good.
+     */
+    public static final byte DONE    = 11;
+
+    /**
+     * The result of a call.
+     */
+    public static final byte RESULT  = 12;
+
+    /**
+     * Ends the trading day of every stock on a node; the result is the
+     * stocks' day summaries.
+     */
+    public static final byte END_DAY = 13;
+
+
+    /**
+     * Finds the stand-in for a trader on a node.
+     */
+    public interface TraderLookup
+    {
+        /**
+         * Returns the trader for a given key.
+         *
+         * @param key     - the exchange's key for the trader.
+         * @param id      - the trader's id at its brokerage.
+         * @param ownerId - the trader's owner id at the exchange.
+         * @param name    - the trader's screen name.
+         * @return the trader.
+         */
+        Trader trader(int key, int id, long ownerId, String name);
+    }
+
+
+    private ClusterProtocol()
+    {
+    }
+
+
+    /**
+     * Writes an order: its request id, its trader and its terms. The shares
+     * written are all that is left of it, hidden ones included.
+     *
+     * @param out       - where to write the order.
+     * @param request   - the request id of the order.
+     * @param traderKey - the exchange's key for the order's trader.
+     * @param order     - the order.
+     * @throws IOException if the order cannot be written.
+     */
+    public static void writeOrder(DataOutput out, long request, int traderKey,
+        TradeOrder order) throws IOException
+    {
+        out.writeLong(request);
+        out.writeInt(traderKey);
+        out.writeInt(order.getTraderId());
+        out.writeLong(order.getOwnerId());
+        out.writeUTF(order.getTrader().getName());
+        out.writeUTF(order.getSymbol());
+        out.writeBoolean(order.isBuy());
+        out.writeBoolean(order.isMarket());
+        out.writeInt(order.getShares() + order.getHiddenShares());
+        out.writeDouble(order.getPrice());
+        out.writeByte(order.getTimeInForce().ordinal());
+        out.writeDouble(order.getStopPrice());
+        out.writeInt(order.getDisplayShares());
+        out.writeLong(order.getExpireTime());
+    }
+
+
+    /**
+     * Reads an order written by writeOrder. The order's journal id is set to
+     * its request id.
+     *
+     * @param in      - where to read the order from.
+     * @param traders - finds the order's trader.
+     * @return a new order.
+     * @throws IOException if the order cannot be read.
+     */
+    public static TradeOrder readOrder(DataInput in, TraderLookup traders)
+        throws IOException
+    {
+        long request = in.readLong();
+        int key = in.readInt();
+        int id = in.readInt();
+        long ownerId = in.readLong();
+        Trader trader = traders.trader(key, id, ownerId, in.readUTF());
+        TradeOrder order = new TradeOrder(trader, in.readUTF(), in
+            .readBoolean(), in.readBoolean(), in.readInt(), in.readDouble());
+        order.setTimeInForce(TimeInForce.values()[in.readByte()]);
+        double stopPrice = in.readDouble();
+        if ( stopPrice > 0 )
+        {
+            order.setStopPrice(stopPrice);
+        }
+        int displayShares = in.readInt();
+        if ( displayShares > 0 )
+        {
+            order.setDisplayShares(displayShares);
+        }
+        order.setExpireTime(in.readLong());
+        order.setJournalId(request);
+        return order;
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The statistics of one stock for one trading day, taken by Stock.endDay
+ * when the day is over: the low, high and last price, the volume, the number
+ * of trades, the volume-weighted average price and the number of orders left
+ * in the book. A day without trades has a VWAP of NaN.
+ *
+ * <p>
+ * Summaries are written to a file one line per stock, comma-separated, and
+ * travel between the nodes of a cluster in binary (see writeTo). Prices in
+ * the file always use '.' as the decimal separator, so that a comma in the
+ * default locale's format cannot run two columns together; PriceFormat is
+ * for display text only.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class DaySummary
+{
+    /**
+     * The first line of a summary file.
+     */
+    public static final String HEADER = "symbol,low,high,last,volume,trades,"
+        + "vwap,resting";
+
+    private static final ThreadLocal<DecimalFormat> PRICE =
+        ThreadLocal.withInitial(() -> new DecimalFormat("0.00",
+            DecimalFormatSymbols.getInstance(Locale.ROOT)));
+
+    private String symbol;
+    private double loPrice;
+    private double hiPrice;
+    private double lastPrice;
+    private int    volume;
+    private int    trades;
+    private double vwap;
+    private int    restingOrders;
+
+
+    /**
+     * Constructs a summary.
+     *
+     * @param symbol        - the stock symbol.
+     * @param loPrice       - the day's low price.
+     * @param hiPrice       - the day's high price.
+     * @param lastPrice     - the last price.
+     * @param volume        - the day's volume.
+     * @param trades        - the day's number of trades.
+     * @param vwap          - the day's volume-weighted average price.
+     * @param restingOrders - the number of orders left in the book.
+     */
+    public DaySummary(
+        String symbol,
+        double loPrice,
+        double hiPrice,
+        double lastPrice,
+        int volume,
+        int trades,
+        double vwap,
+        int restingOrders)
+    {
+        this.symbol = symbol;
+        this.loPrice = loPrice;
+        this.hiPrice = hiPrice;
+        this.lastPrice = lastPrice;
+        this.volume = volume;
+        this.trades = trades;
+        this.vwap = vwap;
+        this.restingOrders = restingOrders;
+    }
+
+
+    /**
+     * Writes this summary in binary.
+     *
+     * @param out - where to write the summary.
+     * @throws IOException if the summary cannot be written.
+     */
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeUTF(symbol);
+        out.writeDouble(loPrice);
+        out.writeDouble(hiPrice);
+        out.writeDouble(lastPrice);
+        out.writeInt(volume);
+        out.writeInt(trades);
+        out.writeDouble(vwap);
+        out.writeInt(restingOrders);
+    }
+
+
+    /**
+     * Reads a summary written by writeTo.
+     *
+     * @param in - where to read the summary from.
+     * @return a new summary.
+     * @throws IOException if the summary cannot be read.
+     */
+    public static DaySummary readFrom(DataInput in) throws IOException
+    {
+        return new DaySummary(in.readUTF(), in.readDouble(), in.readDouble(),
+            in.readDouble(), in.readInt(), in.readInt(), in.readDouble(), in
+                .readInt());
+    }
+
+
+    /**
+     * Writes summaries to a file, one line per stock after a header line.
+     * Prices have two decimals and a '.' separator whatever the default
+     * locale, and a VWAP of NaN is left empty.
+     *
+     * @param file      - the file to write; an existing file is replaced.
+     * @param summaries - the summaries.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void write(Path file, List<DaySummary> summaries)
+        throws IOException
+    {
+        try ( BufferedWriter out = Files.newBufferedWriter(file,
+            StandardCharsets.UTF_8) )
+        {
+            out.write(HEADER);
+            out.newLine();
+            StringBuilder line = new StringBuilder(80);
+            for ( DaySummary summary : summaries )
+            {
+                line.setLength(0);
+                summary.appendTo(line);
+                out.append(line);
+                out.newLine();
+            }
+        }
+    }
+
+
+    /**
+     * Appends this summary as a line of a summary file, without the line
+     * separator.
+     *
+     * @param line - the builder to append to.
+     * @return the builder.
+     */
+    public StringBuilder appendTo(StringBuilder line)
+    {
+        DecimalFormat price = PRICE.get();
+        line.append(symbol).append(',');
+        line.append(price.format(loPrice)).append(',');
+        line.append(price.format(hiPrice)).append(',');
+        line.append(price.format(lastPrice)).append(',');
+        line.append(volume).append(',').append(trades).append(',');
+        if ( !Double.isNaN(vwap) )
+        {
+            line.append(price.format(vwap));
+        }
+        return line.append(',').append(restingOrders);
+    }
+
+
+    /**
+     * Returns the stock symbol.
+     *
+     * @return the symbol.
+     */
+    public String getSymbol()
+    {
+        return symbol;
+    }
+
+
+    /**
+     * Returns the day's low price.
+     *
+     * @return the low price.
+     */
+    public double getLoPrice()
+    {
+        return loPrice;
+    }
+
+
+    /**
+     * Returns the day's high price.
+     *
+     * @return the high price.
+     */
+    public double getHiPrice()
+    {
+        return hiPrice;
+    }
+
+
+    /**
+     * Returns the last price of the day.
+     *
+     * @return the last price.
+     */
+    public double getLastPrice()
+    {
+        return lastPrice;
+    }
+
+
+    /**
+     * Returns the day's volume.
+     *
+     * @return the number of shares traded.
+     */
+    public int getVolume()
+    {
+        return volume;
+    }
+
+
+    /**
+     * Returns the day's number of trades.
+     *
+     * @return the trade count.
+     */
+    public int getTrades()
+    {
+        return trades;
+    }
+
+
+    /**
+     * Returns the day's volume-weighted average price.
+     *
+     * @return the VWAP, or NaN if nothing traded.
+     */
+    public double getVwap()
+    {
+        return vwap;
+    }
+
+
+    /**
+     * Returns the number of orders left in the book, stop orders included.
+     *
+     * @return the resting order count.
+     */
+    public int getRestingOrders()
+    {
+        return restingOrders;
+    }
+
+
+    /**
+     * Returns this summary as a line of a summary file.
+     *
+     * @return the summary line.
+     */
+    public String toString()
+    {
+        return appendTo(new StringBuilder(80)).toString();
+    }
+}
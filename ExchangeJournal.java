@@ -0,0 +1,642 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The binary format of the input events of a stock exchange, as streamed
+ * from a primary ReplicatedExchange to its backup. Every event starts with
+ * its type, its sequence number and the exchange time at which it happened,
+ * so that the backup can apply it at the same time the primary did. The
+ * static write methods encode events; an ExchangeJournal object decodes them
+ * one at a time, keeping the fields of the last event read.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class ExchangeJournal
+{
+    /**
+     * A stock is listed.
+     */
+    public static final byte LIST       = 1;
+
+    /**
+     * An order is placed.
+     */
+    public static final byte ORDER      = 2;
+
+    /**
+     * A resting order is cancelled.
+     */
+    public static final byte CANCEL     = 3;
+
+    /**
+     * Orders whose time is up are expired.
+     */
+    public static final byte EXPIRE     = 4;
+
+    /**
+     * Every stock moves to a new trading phase.
+     */
+    public static final byte PHASE      = 5;
+
+    /**
+     * The self-trade prevention mode changes.
+     */
+    public static final byte SELF_TRADE = 6;
+
+    /**
+     * Nothing happened; sent so the backup knows the primary is alive.
+     */
+    public static final byte HEARTBEAT  = 7;
+
+    /**
+     * A stock is taken off the exchange.
+     */
+    public static final byte DELIST     = 8;
+
+    /**
+     * Two orders traded; recorded after the input event that caused the
+     * trade, so that a replay can check its fills against the recording.
+     */
+    public static final byte FILL       = 9;
+
+    /**
+     * Every stock ends its trading day.
+     */
+    public static final byte END_DAY    = 10;
+
+    private byte                  type;
+    private long                  sequence;
+    private long                  time;
+    private String                symbol;
+    private String                companyName;
+    private double                price;
+    private boolean               offHeap;
+    private boolean               garbageFree;
+    private int                   priceBand;
+    private long                  auctionMillis;
+    private MarketOrderProtection marketOrderProtection;
+    private int                   protectionBasisPoints;
+    private int                   traderId;
+    private long                  ownerId;
+    private String                traderName;
+    private boolean               buyOrder;
+    private boolean               marketOrder;
+    private int                   shares;
+    private TimeInForce           timeInForce;
+    private double                stopPrice;
+    private int                   displayShares;
+    private long                  expireTime;
+    private long                  journalId;
+    private long                  sellJournalId;
+    private TradingPhase          phase;
+    private SelfTradePrevention   selfTradePrevention;
+
+
+    /**
+     * Writes the listing of a stock. Only Stock and OffHeapStock can be
+     * journaled.
+     *
+     * @param out      - where to write the event.
+     * @param sequence - the sequence number of the event.
+     * @param time     - the exchange time in milliseconds.
+     * @param stock    - the stock listed.
+     * @throws IOException if the event cannot be written.
+     */
+    public static void writeList(DataOutput out, long sequence, long time,
+        Stock stock) throws IOException
+    {
+        if ( stock.getClass() != Stock.class &&
+            stock.getClass() != OffHeapStock.class )
+        {
+            throw new IllegalArgumentException(stock.getClass().getName() +
+                " cannot be journaled");
+        }
+        writeHeader(out, LIST, sequence, time);
+        out.writeUTF(stock.getStockSymbol());
+        out.writeUTF(stock.getCompanyName());
+        out.writeDouble(stock.getLastPrice());
+        out.writeBoolean(stock instanceof OffHeapStock);
+        out.writeBoolean(stock.isGarbageFree());
+        out.writeInt(stock.getPriceBand());
+        out.writeLong(stock.getAuctionMillis());
+        out.writeByte(stock.getMarketOrderProtection().ordinal());
+        out.writeInt(stock.getProtectionBasisPoints());
+    }
+
+
+    /**
+     * Writes the delisting of a stock.
+     *
+     * @param out      - where to write the event.
+     * @param sequence - the sequence number of the event.
+     * @param time     - the exchange time in milliseconds.
+     * @param symbol   - the symbol of the stock.
+     * @throws IOException if the event cannot be written.
+     */
+    public static void writeDelist(DataOutput out, long sequence, long time,
+        String symbol) throws IOException
+    {
+        writeHeader(out, DELIST, sequence, time);
+        out.writeUTF(symbol);
+    }
+
+
+    /**
+     * Writes the placing of an order. The order's journal id is the sequence
+     * number of this event.
+     *
+     * @param out      - where to write the event.
+     * @param sequence - the sequence number of the event.
+     * @param time     - the exchange time in milliseconds.
+     * @param order    - the order placed.
+     * @throws IOException if the event cannot be written.
+     */
+    public static void writeOrder(DataOutput out, long sequence, long time,
+        TradeOrder order) throws IOException
+    {
+        writeHeader(out, ORDER, sequence, time);
+        out.writeUTF(order.getSymbol());
+        out.writeInt(order.getTraderId());
+        out.writeLong(order.getOwnerId());
+        out.writeUTF(order.getTrader().getName());
+        out.writeBoolean(order.isBuy());
+        out.writeBoolean(order.isMarket());
+        out.writeInt(order.getShares() + order.getHiddenShares());
+        out.writeDouble(order.getPrice());
+        out.writeByte(order.getTimeInForce().ordinal());
+        out.writeDouble(order.getStopPrice());
+        out.writeInt(order.getDisplayShares());
+        out.writeLong(order.getExpireTime());
+    }
+
+
+    /**
+     * Writes the cancelling of an order.
+     *
+     * @param out      - where to write the event.
+     * @param sequence - the sequence number of the event.
+     * @param time     - the exchange time in milliseconds.
+     * @param order    - the order cancelled, which must have a journal id.
+     * @throws IOException if the event cannot be written.
+     */
+    public static void writeCancel(DataOutput out, long sequence, long time,
+        TradeOrder order) throws IOException
+    {
+        writeHeader(out, CANCEL, sequence, time);
+        out.writeUTF(order.getSymbol());
+        out.writeLong(order.getJournalId());
+    }
+
+
+    /**
+     * Writes a fill. The sequence number is that of the input event that
+     * caused it.
+     *
+     * @param out       - where to write the event.
+     * @param sequence  - the sequence number of the input event.
+     * @param time      - the exchange time in milliseconds.
+     * @param stock     - the stock that traded.
+     * @param buy       - the buy order.
+     * @param sell      - the sell order.
+     * @param numShares - the number of shares traded.
+     * @param price     - the price of the trade.
+     * @throws IOException if the event cannot be written.
+     */
+    public static void writeFill(DataOutput out, long sequence, long time,
+        Stock stock, TradeOrder buy, TradeOrder sell, int numShares,
+        double price) throws IOException
+    {
+        writeHeader(out, FILL, sequence, time);
+        out.writeUTF(stock.getStockSymbol());
+        out.writeLong(buy.getJournalId());
+        out.writeLong(sell.getJournalId());
+        out.writeInt(numShares);
+        out.writeDouble(price);
+    }
+
+
+    /**
+     * Writes an event without a body: EXPIRE, END_DAY or HEARTBEAT.
+     *
+     * @param out      - where to write the event.
+     * @param type     - the event type.
+     * @param sequence - the sequence number of the event.
+     * @param time     - the exchange time in milliseconds.
+     * @throws IOException if the event cannot be written.
+     */
+    public static void writeEvent(DataOutput out, byte type, long sequence,
+        long time) throws IOException
+    {
+        writeHeader(out, type, sequence, time);
+    }
+
+
+    /**
+     * Writes the move of every stock to a new trading phase.
+     *
+     * @param out      - where to write the event.
+     * @param sequence - the sequence number of the event.
+     * @param time     - the exchange time in milliseconds.
+     * @param phase    - the new phase.
+     * @throws IOException if the event cannot be written.
+     */
+    public static void writePhase(DataOutput out, long sequence, long time,
+        TradingPhase phase) throws IOException
+    {
+        writeHeader(out, PHASE, sequence, time);
+        out.writeByte(phase.ordinal());
+    }
+
+
+    /**
+     * Writes a change of the self-trade prevention mode.
+     *
+     * @param out      - where to write the event.
+     * @param sequence - the sequence number of the event.
+     * @param time     - the exchange time in milliseconds.
+     * @param mode     - the new mode.
+     * @throws IOException if the event cannot be written.
+     */
+    public static void writeSelfTradePrevention(DataOutput out,
+        long sequence, long time, SelfTradePrevention mode) throws IOException
+    {
+        writeHeader(out, SELF_TRADE, sequence, time);
+        out.writeByte(mode.ordinal());
+    }
+
+
+    private static void writeHeader(DataOutput out, byte type, long sequence,
+        long time) throws IOException
+    {
+        out.writeByte(type);
+        out.writeLong(sequence);
+        out.writeLong(time);
+    }
+
+
+    /**
+     * Reads the next event, replacing the fields of the last one.
+     *
+     * @param in - where to read the event from.
+     * @return the type of the event.
+     * @throws IOException if the event cannot be read or is malformed.
+     */
+    public byte read(DataInput in) throws IOException
+    {
+        type = in.readByte();
+        sequence = in.readLong();
+        time = in.readLong();
+        switch ( type )
+        {
+            case LIST:
+                symbol = in.readUTF();
+                companyName = in.readUTF();
+                price = in.readDouble();
+                offHeap = in.readBoolean();
+                garbageFree = in.readBoolean();
+                priceBand = in.readInt();
+                auctionMillis = in.readLong();
+                marketOrderProtection =
+                    MarketOrderProtection.values()[in.readByte()];
+                protectionBasisPoints = in.readInt();
+                break;
+            case ORDER:
+                symbol = in.readUTF();
+                traderId = in.readInt();
+                ownerId = in.readLong();
+                traderName = in.readUTF();
+                buyOrder = in.readBoolean();
+                marketOrder = in.readBoolean();
+                shares = in.readInt();
+                price = in.readDouble();
+                timeInForce = TimeInForce.values()[in.readByte()];
+                stopPrice = in.readDouble();
+                displayShares = in.readInt();
+                expireTime = in.readLong();
+                journalId = sequence;
+                break;
+            case CANCEL:
+                symbol = in.readUTF();
+                journalId = in.readLong();
+                break;
+            case DELIST:
+                symbol = in.readUTF();
+                break;
+            case FILL:
+                symbol = in.readUTF();
+                journalId = in.readLong();
+                sellJournalId = in.readLong();
+                shares = in.readInt();
+                price = in.readDouble();
+                break;
+            case PHASE:
+                phase = TradingPhase.values()[in.readByte()];
+                break;
+            case SELF_TRADE:
+                selfTradePrevention =
+                    SelfTradePrevention.values()[in.readByte()];
+                break;
+            case EXPIRE:
+            case END_DAY:
+            case HEARTBEAT:
+                break;
+            default:
+                throw new IOException("Unknown event type " + type);
+        }
+        return type;
+    }
+
+
+    /**
+     * Returns the type of the last event read.
+     *
+     * @return the event type.
+     */
+    public byte getType()
+    {
+        return type;
+    }
+
+
+    /**
+     * Returns the sequence number of the last event read.
+     *
+     * @return the sequence number.
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+
+    /**
+     * Returns the exchange time of the last event read.
+     *
+     * @return the time in milliseconds since the epoch.
+     */
+    public long getTime()
+    {
+        return time;
+    }
+
+
+    /**
+     * Returns the stock symbol of a LIST, DELIST, ORDER, CANCEL or FILL event.
+     *
+     * @return the symbol.
+     */
+    public String getSymbol()
+    {
+        return symbol;
+    }
+
+
+    /**
+     * Returns the company name of a LIST event.
+     *
+     * @return the company name.
+     */
+    public String getCompanyName()
+    {
+        return companyName;
+    }
+
+
+    /**
+     * Returns the price of a LIST, ORDER or FILL event.
+     *
+     * @return the opening price, the order's limit price or the trade
+     * price.
+     */
+    public double getPrice()
+    {
+        return price;
+    }
+
+
+    /**
+     * Returns true if a LIST event lists an OffHeapStock.
+     *
+     * @return true for an off-heap stock; false for a Stock.
+     */
+    public boolean isOffHeap()
+    {
+        return offHeap;
+    }
+
+
+    /**
+     * Returns true if a LIST event lists a stock in garbage-free mode.
+     *
+     * @return true if the stock runs garbage-free; false otherwise.
+     */
+    public boolean isGarbageFree()
+    {
+        return garbageFree;
+    }
+
+
+    /**
+     * Returns the price band of the stock of a LIST event.
+     *
+     * @return the band width in basis points, or 0 for no band.
+     */
+    public int getPriceBand()
+    {
+        return priceBand;
+    }
+
+
+    /**
+     * Returns the volatility auction time of the stock of a LIST event.
+     *
+     * @return the auction time in milliseconds.
+     */
+    public long getAuctionMillis()
+    {
+        return auctionMillis;
+    }
+
+
+    /**
+     * Returns the market order protection mode of the stock of a LIST event.
+     *
+     * @return the market order protection mode.
+     */
+    public MarketOrderProtection getMarketOrderProtection()
+    {
+        return marketOrderProtection;
+    }
+
+
+    /**
+     * Returns the market order protection width of the stock of a LIST
+     * event.
+     *
+     * @return the protection width in basis points.
+     */
+    public int getProtectionBasisPoints()
+    {
+        return protectionBasisPoints;
+    }
+
+
+    /**
+     * Returns the id of the trader of an ORDER event.
+     *
+     * @return the trader id.
+     */
+    public int getTraderId()
+    {
+        return traderId;
+    }
+
+
+    /**
+     * Returns the owner id of the trader of an ORDER event.
+     *
+     * @return the owner id.
+     */
+    public long getOwnerId()
+    {
+        return ownerId;
+    }
+
+
+    /**
+     * Returns the screen name of the trader of an ORDER event.
+     *
+     * @return the trader's name.
+     */
+    public String getTraderName()
+    {
+        return traderName;
+    }
+
+
+    /**
+     * Returns true if an ORDER event places a buy order.
+     *
+     * @return true for a buy order; false for a sell order.
+     */
+    public boolean isBuy()
+    {
+        return buyOrder;
+    }
+
+
+    /**
+     * Returns true if an ORDER event places a market order.
+     *
+     * @return true for a market order; false for a limit order.
+     */
+    public boolean isMarket()
+    {
+        return marketOrder;
+    }
+
+
+    /**
+     * Returns the total shares of an ORDER event, hidden ones included, or
+     * the shares traded in a FILL event.
+     *
+     * @return the number of shares.
+     */
+    public int getShares()
+    {
+        return shares;
+    }
+
+
+    /**
+     * Returns the time in force of an ORDER event.
+     *
+     * @return the time in force.
+     */
+    public TimeInForce getTimeInForce()
+    {
+        return timeInForce;
+    }
+
+
+    /**
+     * Returns the stop price of an ORDER event.
+     *
+     * @return the stop price, or 0 if the order is not a stop order.
+     */
+    public double getStopPrice()
+    {
+        return stopPrice;
+    }
+
+
+    /**
+     * Returns the shown slice of an iceberg order in an ORDER event.
+     *
+     * @return the display shares, or 0 if the order is not an iceberg.
+     */
+    public int getDisplayShares()
+    {
+        return displayShares;
+    }
+
+
+    /**
+     * Returns the expire time of an ORDER event.
+     *
+     * @return the expire time in milliseconds.
+     */
+    public long getExpireTime()
+    {
+        return expireTime;
+    }
+
+
+    /**
+     * Returns the journal id of the order of an ORDER or CANCEL event, or of
+     * the buy order of a FILL event.
+     *
+     * @return the journal id.
+     */
+    public long getJournalId()
+    {
+        return journalId;
+    }
+
+
+    /**
+     * Returns the journal id of the sell order of a FILL event.
+     *
+     * @return the journal id.
+     */
+    public long getSellJournalId()
+    {
+        return sellJournalId;
+    }
+
+
+    /**
+     * Returns the new trading phase of a PHASE event.
+     *
+     * @return the trading phase.
+     */
+    public TradingPhase getPhase()
+    {
+        return phase;
+    }
+
+
+    /**
+     * Returns the new mode of a SELF_TRADE event.
+     *
+     * @return the self-trade prevention mode.
+     */
+    public SelfTradePrevention getSelfTradePrevention()
+    {
+        return selfTradePrevention;
+    }
+}
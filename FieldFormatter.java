@@ -0,0 +1,180 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * Formats an object as its class name followed by the type, name and value of
+ * every field declared in its class, as in
+ * "Stock[java.lang.String stockSymbol:GGGL, ...]". This is the format the
+ * domain classes have always used in toString, but the fields of a class are
+ * looked up only once and read through method handles afterwards, and the
+ * text is built in a StringBuilder kept per thread (one per nesting level, as
+ * printing a field may format another object) instead of by concatenating
+ * strings.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class FieldFormatter
+{
+    private static final ClassValue<FieldFormatter> FORMATTERS =
+        new ClassValue<FieldFormatter>()
+        {
+            protected FieldFormatter computeValue(Class<?> type)
+            {
+                return new FieldFormatter(type);
+            }
+        };
+
+    private static final ThreadLocal<Buffers> BUFFERS =
+        ThreadLocal.withInitial(Buffers::new);
+
+    private String         className;
+    private String[]       labels;
+    private String[]       typeNames;
+    private MethodHandle[] getters;
+
+
+    // Looks up the fields of a class and a getter for each of them.
+    private FieldFormatter(Class<?> type)
+    {
+        className = type.getName();
+        Field[] fields = type.getDeclaredFields();
+        labels = new String[fields.length];
+        typeNames = new String[fields.length];
+        getters = new MethodHandle[fields.length];
+        MethodType objectGetter =
+            MethodType.methodType(Object.class, Object.class);
+        try
+        {
+            MethodHandles.Lookup lookup =
+                MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+            for ( int i = 0; i < fields.length; i++ )
+            {
+                Field field = fields[i];
+                typeNames[i] = field.getType().getName();
+                labels[i] = typeNames[i] + " " + field.getName();
+                MethodHandle getter = lookup.unreflectGetter(field);
+                if ( Modifier.isStatic(field.getModifiers()) )
+                {
+                    getter = MethodHandles.dropArguments(getter
+                        .asType(MethodType.methodType(Object.class)), 0,
+                        Object.class);
+                }
+                getters[i] = getter.asType(objectGetter);
+            }
+        }
+        catch ( IllegalAccessException ex )
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+
+    /**
+     * Formats an object with the values of all its declared fields.
+     *
+     * @param obj - the object to format.
+     * @return the class name and the fields of the object.
+     */
+    public static String format(Object obj)
+    {
+        return format(obj, null);
+    }
+
+
+    /**
+     * Formats an object with the values of its declared fields, leaving out
+     * the value of fields of one type (given by class name), for instance to
+     * avoid printing an object that refers back to this one.
+     *
+     * @param obj      - the object to format.
+     * @param nameOnly - the name of the field type whose values are left out,
+     *                 or null.
+     * @return the class name and the fields of the object.
+     */
+    public static String format(Object obj, String nameOnly)
+    {
+        return FORMATTERS.get(obj.getClass()).apply(obj, nameOnly);
+    }
+
+
+    private String apply(Object obj, String nameOnly)
+    {
+        Buffers buffers = BUFFERS.get();
+        StringBuilder str = buffers.acquire();
+        try
+        {
+            str.append(className).append('[');
+            for ( int i = 0; i < getters.length; i++ )
+            {
+                if ( i > 0 )
+                {
+                    str.append(", ");
+                }
+                str.append(labels[i]);
+                if ( !typeNames[i].equals(nameOnly) )
+                {
+                    Object value = (Object)getters[i].invokeExact(obj);
+                    str.append(':').append(value);
+                }
+            }
+            return str.append(']').toString();
+        }
+        catch ( RuntimeException | Error ex )
+        {
+            throw ex;
+        }
+        catch ( Throwable ex )
+        {
+            throw new IllegalStateException(ex);
+        }
+        finally
+        {
+            buffers.release();
+        }
+    }
+
+
+    // The StringBuilders of one thread, one for each level of nesting. A
+    // builder that has grown past MAX_KEPT characters is dropped instead of
+    // being kept for the next call.
+    private static class Buffers
+    {
+        private static final int MAX_KEPT = 1 << 16;
+
+        private StringBuilder[] stack = new StringBuilder[4];
+        private int             depth;
+
+
+        private StringBuilder acquire()
+        {
+            if ( depth == stack.length )
+            {
+                stack = Arrays.copyOf(stack, depth * 2);
+            }
+            if ( stack[depth] == null )
+            {
+                stack[depth] = new StringBuilder(256);
+            }
+            StringBuilder str = stack[depth++];
+            str.setLength(0);
+            return str;
+        }
+
+
+        private void release()
+        {
+            depth--;
+            if ( stack[depth].capacity() > MAX_KEPT )
+            {
+                stack[depth] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * Receives the fills of a stock as they happen. A listener is called on the
+ * matching path, so it should return quickly; the orders passed in may be
+ * reused once the call returns and must not be kept.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public interface FillListener
+{
+    /**
+     * Called after a buy and a sell order have traded with each other. The
+     * share counts of both orders have already been reduced by the fill.
+     *
+     * @param stock     - the stock that traded.
+     * @param buy       - the buy order.
+     * @param sell      - the sell order.
+     * @param numShares - the number of shares traded.
+     * @param price     - the price of the trade.
+     */
+    void onFill(
+        Stock stock,
+        TradeOrder buy,
+        TradeOrder sell,
+        int numShares,
+        double price);
+}
@@ -1,5 +1,6 @@
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
 import java.util.LinkedList;
 
 import static org.junit.Assert.*;
@@ -267,6 +268,21 @@ public class JUSafeTradeTest
     }
 
 
+    @Test public void priceComparatorBreaksTiesByTime()
+    {
+        PriceComparator comparator = new PriceComparator();
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader trader = new Trader(broke, "bob", "bruh");
+        TradeOrder first = new TradeOrder(trader, "GG", true, false, 10, 9.5);
+        TradeOrder second = new TradeOrder(trader, "GG", true, false, 20,
+            9.5);
+        first.setSequence(1);
+        second.setSequence(2);
+        assertTrue(comparator.compare(first, second) < 0);
+        assertTrue(comparator.compare(second, first) > 0);
+    }
+
+
     // --Test Trader
     @Test public void traderToStringTest()
     {
@@ -462,6 +478,2438 @@ public class JUSafeTradeTest
 
     // TODO your tests here
 
+    // --Test TradeTape
+
+    @Test public void tradeTapeAppend()
+    {
+        TradeTape tape = new TradeTape();
+        for ( int i = 0; i < 3000; i++ )
+        {
+            tape.append(1000L * i, 10.0 + i % 7, 100);
+        }
+        assertEquals(3000, tape.size());
+        assertEquals(2999000L, tape.getTime(2999));
+        assertEquals(10.0 + 2999 % 7, tape.getPrice(2999), 0.0);
+        assertEquals(100, tape.getShares(0));
+        assertEquals(3000, tape.getSecondBars().size());
+        assertEquals(50, tape.getMinuteBars().size());
+        assertEquals(10, tape.getFiveMinuteBars().size());
+    }
+
+
+    @Test public void tradeTapeRangeQueries()
+    {
+        TradeTape tape = new TradeTape();
+        tape.append(500, 10.0, 100);
+        tape.append(1500, 12.0, 300);
+        tape.append(2500, 11.0, 100);
+        assertEquals(2, tape.getTradeCount(1000, 3000));
+        assertEquals(400, tape.getVolume(1000, 3000));
+        assertEquals(11.75, tape.getVwap(1000, 3000), 0.00001);
+        assertEquals(12.0, tape.getHigh(0, 3000), 0.0);
+        assertEquals(10.0, tape.getLow(0, 3000), 0.0);
+        assertTrue(Double.isNaN(tape.getVwap(3000, 4000)));
+    }
+
+
+    @Test public void tradeTapeBars()
+    {
+        TradeTape tape = new TradeTape();
+        tape.append(60000, 10.0, 100);
+        tape.append(60500, 12.0, 200);
+        tape.append(61000, 9.0, 50);
+        tape.append(119999, 11.0, 10);
+        OhlcvBars minutes = tape.getMinuteBars();
+        assertEquals(1, minutes.size());
+        assertEquals(60000L, minutes.getStart(0));
+        assertEquals(10.0, minutes.getOpen(0), 0.0);
+        assertEquals(12.0, minutes.getHigh(0), 0.0);
+        assertEquals(9.0, minutes.getLow(0), 0.0);
+        assertEquals(11.0, minutes.getClose(0), 0.0);
+        assertEquals(360L, minutes.getVolume(0));
+        assertEquals(3, tape.getSecondBars().size());
+    }
+
+
+    @Test public void stockFillsOnTradeTape()
+    {
+        StockExchange exchange = new StockExchange();
+        exchange.listStock("GGGL", "Giggle.com", 10.00);
+        Stock stock = exchange.getListedStocks().get("GGGL");
+        stock.setClock(java.time.Clock.fixed(java.time.Instant.ofEpochMilli(
+            90000), java.time.ZoneOffset.UTC));
+        Brokerage broke = new Brokerage(exchange);
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 100,
+            10.50));
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 60,
+            10.75));
+        TradeTape tape = stock.getTradeTape();
+        assertEquals(1, tape.size());
+        assertEquals(90000L, tape.getTime(0));
+        assertEquals(10.50, tape.getPrice(0), 0.0);
+        assertEquals(60, tape.getShares(0));
+    }
+
+    // --Test trading phases
+
+    @Test public void stockOpeningAuction()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        stock.startPreOpen();
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 100,
+            10.10));
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 100,
+            10.05));
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 50,
+            10.00));
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 100,
+            10.05));
+        assertEquals(TradingPhase.PRE_OPEN, stock.getPhase());
+        assertEquals(0, stock.getVolume());
+
+        stock.startContinuousTrading();
+        assertEquals(TradingPhase.CONTINUOUS, stock.getPhase());
+        assertEquals(150, stock.getVolume());
+        assertEquals(10.05, stock.getLastPrice(), 0.0);
+        assertEquals(3, stock.getTradeTape().size());
+        assertEquals(50, stock.getBuyOrders().peek().getShares());
+        assertTrue(stock.getSellOrders().isEmpty());
+    }
+
+
+    @Test public void stockAuctionWithoutCross()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader trader = new Trader(broke, "trader", "trader");
+        stock.startPreOpen();
+        stock.placeOrder(new TradeOrder(trader, "GGGL", true, false, 100,
+            9.00));
+        stock.placeOrder(new TradeOrder(trader, "GGGL", false, false, 100,
+            11.00));
+        assertTrue(Double.isNaN(stock.uncross()));
+        assertEquals(1, stock.getBuyOrders().size());
+        assertEquals(1, stock.getSellOrders().size());
+    }
+
+
+    @Test public void stockClosingAuctionAndClose()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        stock.startClosingAuction();
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, true, 100, 0));
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 300,
+            9.50));
+        assertEquals(0, stock.getVolume());
+        stock.closeSession();
+        assertEquals(TradingPhase.CLOSED, stock.getPhase());
+        assertEquals(100, stock.getVolume());
+        assertEquals(9.50, stock.getLastPrice(), 0.0);
+
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 100,
+            9.50));
+        assertTrue(buyer.mailbox().contains(
+            "Order rejected:\tGGGL is closed for trading"));
+        assertEquals(200, stock.getSellOrders().peek().getShares());
+
+        stock.startPreOpen();
+        assertEquals(0, stock.getVolume());
+        assertEquals(9.50, stock.getHiPrice(), 0.0);
+    }
+
+
+    @Test public void stockLargeOpeningAuction()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        stock.startPreOpen();
+        for ( int i = 0; i < 50000; i++ )
+        {
+            stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 10,
+                9.50 + (i % 100) / 100.0));
+            stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 10,
+                9.50 + (i % 100) / 100.0));
+        }
+
+        long start = System.nanoTime();
+        double price = stock.uncross();
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(10.00, price, 1e-9);
+        assertEquals(250000, stock.getVolume());
+        assertEquals(25000, stock.getBuyOrders().size());
+        assertEquals(25000, stock.getSellOrders().size());
+        assertTrue(stock.getBuyOrders().peek().getPrice() < stock
+            .getSellOrders().peek().getPrice());
+        assertTrue("uncross took " + millis + " ms", millis < 5000);
+    }
+
+    // --Test order types
+
+    @Test public void stockImmediateOrCancel()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 60,
+            10.00));
+        TradeOrder ioc = new TradeOrder(buyer, "GGGL", true, false, 100,
+            10.00);
+        ioc.setTimeInForce(TimeInForce.IOC);
+        stock.placeOrder(ioc);
+        assertEquals(60, stock.getVolume());
+        assertTrue(stock.getBuyOrders().isEmpty());
+        assertTrue(buyer.mailbox()
+            .contains("Cancelled:\tBuy GGGL(Giggle.com)\n40 shares at $10.00"));
+    }
+
+
+    @Test public void stockFillOrKill()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 60,
+            10.00));
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 60,
+            10.50));
+        TradeOrder fok = new TradeOrder(buyer, "GGGL", true, false, 100,
+            10.00);
+        fok.setTimeInForce(TimeInForce.FOK);
+        stock.placeOrder(fok);
+        assertEquals(0, stock.getVolume());
+        assertTrue(stock.getBuyOrders().isEmpty());
+
+        fok = new TradeOrder(buyer, "GGGL", true, false, 100, 10.50);
+        fok.setTimeInForce(TimeInForce.FOK);
+        stock.placeOrder(fok);
+        assertEquals(100, stock.getVolume());
+        assertEquals(20, stock.getSellOrders().peek().getShares());
+    }
+
+
+    @Test public void stockStopOrders()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        TradeOrder stop = new TradeOrder(buyer, "GGGL", true, true, 50, 0);
+        stop.setStopPrice(10.50);
+        stock.placeOrder(stop);
+        TradeOrder stopLimit = new TradeOrder(buyer, "GGGL", true, false, 50,
+            10.60);
+        stopLimit.setStopPrice(11.00);
+        stock.placeOrder(stopLimit);
+        assertEquals(2, stock.getStopOrders().size());
+        assertTrue(stock.getBuyOrders().isEmpty());
+
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 100,
+            10.50));
+        assertEquals(0, stock.getVolume());
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 10,
+            10.50));
+        assertEquals(60, stock.getVolume());
+        assertEquals(1, stock.getStopOrders().size());
+        assertEquals(40, stock.getSellOrders().peek().getShares());
+    }
+
+
+    @Test public void stockTriggeredStopKeepsItsExpiry()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        VirtualClock clock = new VirtualClock(0);
+        stock.setClock(clock);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        TradeOrderPool pool = new TradeOrderPool(1);
+        TradeOrder stop = pool.acquire(buyer, "GGGL", true, false, 50, 10.60);
+        stop.setStopPrice(10.50);
+        stop.setTimeInForce(TimeInForce.GTT);
+        stop.setExpireTime(1000);
+        stock.placeOrder(stop);
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 100,
+            10.50));
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 10,
+            10.50));
+        assertEquals(60, stock.getVolume());
+        assertEquals(1, pool.size());
+        long announced = buyer.mailbox().stream()
+            .filter(msg -> msg.startsWith("New Order")).count();
+        assertEquals(2, announced);
+
+        TradeOrder reused = pool.acquire(buyer, "GGGL", true, false, 10, 9.00);
+        assertSame(stop, reused);
+        stock.placeOrder(reused);
+        clock.setMillis(2000);
+        assertEquals(0, stock.expireOrders());
+        assertSame(reused, stock.getBuyOrders().peek());
+        assertFalse(buyer.mailbox().stream()
+            .anyMatch(msg -> msg.startsWith("Expired")));
+    }
+
+
+    @Test public void stopOrderIndexTrigger()
+    {
+        StopOrderIndex index = new StopOrderIndex();
+        for ( int i = 1; i <= 100; i++ )
+        {
+            TradeOrder buy = new TradeOrder(null, "GGGL", true, true, 1, 0);
+            buy.setStopPrice(i);
+            index.add(buy);
+            TradeOrder sell = new TradeOrder(null, "GGGL", false, true, 1, 0);
+            sell.setStopPrice(i);
+            index.add(sell);
+        }
+        java.util.List<TradeOrder> triggered = new java.util.ArrayList<>();
+        assertEquals(101, index.trigger(10.0, triggered));
+        assertEquals(1.0, triggered.get(0).getStopPrice(), 0.0);
+        assertTrue(triggered.get(9).isBuy());
+        assertEquals(100.0, triggered.get(10).getStopPrice(), 0.0);
+        assertTrue(triggered.get(100).isSell());
+        assertEquals(99, index.size());
+        assertFalse(index.remove(triggered.get(0)));
+        assertEquals(0, index.trigger(10.0, triggered));
+    }
+
+
+    @Test public void stockIcebergOrder()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        TradeOrder iceberg = new TradeOrder(seller, "GGGL", false, false, 250,
+            10.00);
+        iceberg.setDisplayShares(100);
+        stock.placeOrder(iceberg);
+        assertTrue(seller.mailbox().contains(
+            "New Order:\tSell GGGL(Giggle.com)\n250 shares at $10.00"));
+        assertEquals(100, stock.getSellOrders().peek().getShares());
+
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 120,
+            10.00));
+        assertEquals(120, stock.getVolume());
+        assertEquals(80, iceberg.getShares());
+        assertEquals(50, iceberg.getHiddenShares());
+
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 200,
+            10.00));
+        assertEquals(250, stock.getVolume());
+        assertTrue(stock.getSellOrders().isEmpty());
+        assertEquals(70, stock.getBuyOrders().peek().getShares());
+    }
+
+    // --Test order expiry
+
+    @Test public void timerWheelFiresInDeadlineOrder()
+    {
+        java.util.List<Long> fired = new java.util.ArrayList<>();
+        TimerWheel<Long> wheel = new TimerWheel<>(1000, fired::add);
+        wheel.schedule(1000 + 5000000000L, 5000000000L);
+        wheel.schedule(1070, 70L);
+        wheel.schedule(1003, 3L);
+        TimerWheel.Timeout<Long> cancelled = wheel.schedule(1500, 500L);
+        wheel.schedule(1000 + 4100, 4100L);
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        assertEquals(4, wheel.size());
+
+        assertEquals(2, wheel.advance(1070));
+        assertEquals(1, wheel.advance(1000 + 4100));
+        assertEquals(0, wheel.advance(1000 + 4999999999L));
+        assertEquals(1, wheel.advance(1000 + 5000000000L));
+        assertEquals(java.util.Arrays.asList(3L, 70L, 4100L, 5000000000L),
+            fired);
+        assertEquals(0, wheel.size());
+    }
+
+
+    @Test public void stockGoodTillTimeExpiry()
+    {
+        VirtualClock clock = new VirtualClock(1000000);
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setClock(clock);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader trader = new Trader(broke, "trader", "trader");
+        TradeOrder gtt = new TradeOrder(trader, "GGGL", true, false, 100,
+            9.00);
+        gtt.setTimeInForce(TimeInForce.GTT);
+        gtt.setExpireTime(1060000);
+        stock.placeOrder(gtt);
+        assertEquals(1, stock.getBuyOrders().size());
+
+        clock.advance(59999);
+        assertEquals(0, stock.expireOrders());
+        clock.advance(1);
+        assertEquals(1, stock.expireOrders());
+        assertTrue(stock.getBuyOrders().isEmpty());
+        assertTrue(trader.mailbox().contains(
+            "Expired:\tBuy GGGL(Giggle.com)\n100 shares at $9.00"));
+
+        stock.placeOrder(gtt);
+        assertTrue(trader.mailbox().contains(
+            "Order rejected:\tBuy GGGL(Giggle.com)\n100 shares at $9.00 "
+                + "has already expired"));
+    }
+
+
+    @Test public void stockDayAndGoodTillDateExpiry()
+    {
+        long day = 24 * 60 * 60 * 1000L;
+        VirtualClock clock = new VirtualClock(day * 100 + 1000);
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setClock(clock);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader trader = new Trader(broke, "trader", "trader");
+        TradeOrder dayOrder = new TradeOrder(trader, "GGGL", false, false, 10,
+            11.00);
+        dayOrder.setTimeInForce(TimeInForce.DAY);
+        stock.placeOrder(dayOrder);
+        TradeOrder gtd = new TradeOrder(trader, "GGGL", false, false, 10,
+            12.00);
+        gtd.setTimeInForce(TimeInForce.GTD);
+        gtd.setExpireTime(day * 102 + 5);
+        stock.placeOrder(gtd);
+
+        clock.setMillis(day * 101);
+        stock.placeOrder(null);
+        assertEquals(1, stock.getSellOrders().size());
+        assertEquals(12.00, stock.getSellOrders().peek().getPrice(), 0.0);
+        clock.setMillis(day * 103 - 1);
+        assertEquals(0, stock.expireOrders());
+        clock.setMillis(day * 103);
+        assertEquals(1, stock.expireOrders());
+        assertTrue(stock.getSellOrders().isEmpty());
+    }
+
+
+    @Test public void stockFilledOrderDoesNotExpire()
+    {
+        VirtualClock clock = new VirtualClock(0);
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setClock(clock);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        TradeOrder gtt = new TradeOrder(seller, "GGGL", false, false, 100,
+            10.00);
+        gtt.setTimeInForce(TimeInForce.GTT);
+        gtt.setExpireTime(5000);
+        stock.placeOrder(gtt);
+        assertNotNull(gtt.getExpiry());
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, true, 100, 0));
+        assertNull(gtt.getExpiry());
+        clock.setMillis(6000);
+        assertEquals(0, stock.expireOrders());
+    }
+
+
+    @Test public void stockCancelOrder()
+    {
+        StockExchange exchange = new StockExchange();
+        exchange.listStock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(exchange);
+        Trader trader = new Trader(broke, "trader", "trader");
+        TradeOrder order = new TradeOrder(trader, "GGGL", true, false, 100,
+            9.00);
+        trader.placeOrder(order);
+        assertTrue(trader.cancelOrder(order));
+        assertFalse(trader.cancelOrder(order));
+        assertTrue(exchange.getListedStocks().get("GGGL").getBuyOrders()
+            .isEmpty());
+    }
+
+    // --Test self-trade prevention
+
+    private Stock selfTradeStock(SelfTradePrevention mode, Trader trader)
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setSelfTradePrevention(mode);
+        stock.placeOrder(new TradeOrder(trader, "GGGL", false, false, 100,
+            10.00));
+        stock.placeOrder(new TradeOrder(trader, "GGGL", true, false, 60,
+            10.00));
+        return stock;
+    }
+
+
+    @Test public void traderIds()
+    {
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader t = new Trader(broke, "Neragin", "183nco91hpdb");
+        Trader j = new Trader(broke, "Dhanish", "183nco91hpdb");
+        assertEquals(0, t.getId());
+        assertEquals(1, j.getId());
+        assertEquals(1, new TradeOrder(j, "GGGL", true, true, 1, 0)
+            .getTraderId());
+        assertEquals(-1, new TradeOrder(null, "GGGL", true, true, 1, 0)
+            .getTraderId());
+    }
+
+
+    @Test public void stockSelfTradeAllowed()
+    {
+        Trader trader = new Trader(new Brokerage(new StockExchange()),
+            "trader", "trader");
+        Stock stock = selfTradeStock(SelfTradePrevention.NONE, trader);
+        assertEquals(60, stock.getVolume());
+    }
+
+
+    @Test public void stockSelfTradeCancelNewest()
+    {
+        Trader trader = new Trader(new Brokerage(new StockExchange()),
+            "trader", "trader");
+        Stock stock = selfTradeStock(SelfTradePrevention.CANCEL_NEWEST,
+            trader);
+        assertEquals(0, stock.getVolume());
+        assertTrue(stock.getBuyOrders().isEmpty());
+        assertEquals(100, stock.getSellOrders().peek().getShares());
+        assertTrue(trader.mailbox().contains("Cancelled:\tBuy GGGL(Giggle.com)"
+            + "\n60 shares at $10.00 to prevent a self-trade"));
+    }
+
+
+    @Test public void stockSelfTradeCancelOldest()
+    {
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader trader = new Trader(broke, "trader", "trader");
+        Trader other = new Trader(broke, "other", "other");
+        Stock stock = selfTradeStock(SelfTradePrevention.CANCEL_OLDEST,
+            trader);
+        assertEquals(0, stock.getVolume());
+        assertTrue(stock.getSellOrders().isEmpty());
+        assertEquals(60, stock.getBuyOrders().peek().getShares());
+        stock.placeOrder(new TradeOrder(other, "GGGL", false, false, 60,
+            10.00));
+        assertEquals(60, stock.getVolume());
+    }
+
+
+    @Test public void stockSelfTradeCancelBoth()
+    {
+        Trader trader = new Trader(new Brokerage(new StockExchange()),
+            "trader", "trader");
+        Stock stock = selfTradeStock(SelfTradePrevention.CANCEL_BOTH, trader);
+        assertEquals(0, stock.getVolume());
+        assertTrue(stock.getSellOrders().isEmpty());
+        assertTrue(stock.getBuyOrders().isEmpty());
+    }
+
+
+    @Test public void stockSelfTradeDecrement()
+    {
+        Trader trader = new Trader(new Brokerage(new StockExchange()),
+            "trader", "trader");
+        Stock stock = selfTradeStock(SelfTradePrevention.DECREMENT, trader);
+        assertEquals(0, stock.getVolume());
+        assertTrue(stock.getBuyOrders().isEmpty());
+        assertEquals(40, stock.getSellOrders().peek().getShares());
+    }
+
+
+    @Test public void stockSelfTradeAcrossBrokerages()
+    {
+        StockExchange exchange = new StockExchange();
+        Trader first = new Trader(new Brokerage(exchange), "first", "first");
+        Trader second = new Trader(new Brokerage(exchange), "second",
+            "second");
+        assertEquals(first.getId(), second.getId());
+        assertNotEquals(first.getOwnerId(), second.getOwnerId());
+
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setSelfTradePrevention(SelfTradePrevention.CANCEL_BOTH);
+        stock.placeOrder(new TradeOrder(first, "GGGL", false, false, 100,
+            10.00));
+        stock.placeOrder(new TradeOrder(second, "GGGL", true, false, 60,
+            10.00));
+        assertEquals(60, stock.getVolume());
+        assertEquals(40, stock.getSellOrders().peek().getShares());
+    }
+
+
+    @Test public void stockExchangeSelfTradePrevention()
+    {
+        StockExchange exchange = new StockExchange();
+        exchange.listStock("DS", "DanceStudios.com", 12.33);
+        exchange.setSelfTradePrevention(SelfTradePrevention.CANCEL_BOTH);
+        exchange.listStock("GGGL", "Giggle.com", 10.00);
+        assertEquals(SelfTradePrevention.CANCEL_BOTH, exchange
+            .getListedStocks().get("DS").getSelfTradePrevention());
+        assertEquals(SelfTradePrevention.CANCEL_BOTH, exchange
+            .getListedStocks().get("GGGL").getSelfTradePrevention());
+    }
+
+    // --Test order pooling
+
+    @Test public void tradeOrderPoolReuse()
+    {
+        TradeOrderPool pool = new TradeOrderPool(2);
+        TradeOrder order = pool.acquire(null, "GGGL", true, false, 100, 10.0);
+        order.setTimeInForce(TimeInForce.IOC);
+        assertSame(pool, order.getPool());
+        assertEquals(1, pool.size());
+        pool.release(order);
+        assertNull(order.getPool());
+        assertEquals(2, pool.size());
+
+        TradeOrder again = pool.acquire(null, "DS", false, true, 5, 0);
+        assertSame(order, again);
+        assertEquals(TimeInForce.GTC, again.getTimeInForce());
+        assertEquals("DS", again.getSymbol());
+        assertEquals(5, again.getShares());
+        assertEquals(2, pool.getCreated());
+        try
+        {
+            pool.release(new TradeOrder(null, "DS", true, true, 1, 0));
+            fail();
+        }
+        catch ( IllegalArgumentException e )
+        {
+            assertTrue(true);
+        }
+    }
+
+
+    @Test public void stockReturnsFilledOrdersToPool()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        TradeOrderPool pool = new TradeOrderPool(4);
+        stock.placeOrder(pool.acquire(seller, "GGGL", false, false, 100,
+            10.00));
+        stock.placeOrder(pool.acquire(buyer, "GGGL", true, false, 60, 10.00));
+        assertEquals(3, pool.size());
+        TradeOrder rest = stock.getSellOrders().peek();
+        assertTrue(stock.cancelOrder(rest));
+        assertEquals(4, pool.size());
+        assertEquals(4, pool.getCreated());
+    }
+
+
+    @Test public void stockGarbageFreeSteadyState()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setClock(new VirtualClock(0));
+        stock.setGarbageFree(true);
+        long[] filled = new long[1];
+        stock.setFillListener(
+            (s, buy, sell, numShares, price) -> filled[0] += numShares);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        TradeOrderPool pool = new TradeOrderPool(64);
+
+        long calls = assertGarbageFree(
+            i -> placePooledOrders(stock, pool, buyer, seller, i), 300000);
+
+        assertEquals(calls * 10, filled[0]);
+        assertEquals(64, pool.getCreated());
+        assertTrue(buyer.mailbox().isEmpty());
+    }
+
+
+    // Warms up an action and then asserts that it allocates nothing, in
+    // windows of 100,000 calls. Code compiled while other tests ran can be
+    // deoptimized in a window, as when a speculation left by a test that
+    // writes heap buffers trips on a direct buffer, and the JVM then
+    // allocates a few hundred bytes on this thread. So every window must
+    // stay under a kilobyte, which no allocation on the measured path itself
+    // could do, and one of the first five must be clean.
+    private static long assertGarbageFree(
+        java.util.function.IntConsumer action,
+        int warmUp)
+    {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory
+                .getThreadMXBean();
+        for ( int i = 0; i < warmUp; i++ )
+        {
+            action.accept(i);
+        }
+        long calls = warmUp;
+        long allocated = -1;
+        for ( int window = 0; window < 5 && allocated != 0; window++ )
+        {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for ( int i = 0; i < 100000; i++ )
+            {
+                action.accept(i);
+            }
+            allocated = threads.getCurrentThreadAllocatedBytes() - before;
+            calls += 100000;
+            assertTrue(allocated < 1024);
+        }
+        assertEquals(0, allocated);
+        return calls;
+    }
+
+
+    // Rests a sell order at one of five price levels; every fifth call sends
+    // a market buy that sweeps all five levels.
+    private void placePooledOrders(
+        Stock stock,
+        TradeOrderPool pool,
+        Trader buyer,
+        Trader seller,
+        int i)
+    {
+        stock.placeOrder(pool.acquire(seller, "GGGL", false, false, 10,
+            10.00 + (i % 5) / 100.0));
+        if ( i % 5 == 4 )
+        {
+            stock.placeOrder(pool.acquire(buyer, "GGGL", true, true, 50, 0));
+        }
+    }
+
+    // --Test off-heap order book
+
+    @Test public void offHeapOrderBookLevels()
+    {
+        OffHeapOrderBook book = new OffHeapOrderBook(4);
+        int a = book.add(true, 1000, 100, 1, 1);
+        int b = book.add(true, 1000, 50, 2, 2);
+        int c = book.add(true, 1010, 30, 3, 3);
+        int m = book.add(false, OffHeapOrderBook.MARKET_SELL, 20, 4, 4);
+        book.add(false, 1020, 10, 5, 5);
+        assertEquals(c, book.getBestBid());
+        assertEquals(m, book.getBestAsk());
+        assertTrue(book.isMarket(m));
+        assertEquals(2, book.getLevelCount(true));
+
+        book.reduce(c, 30);
+        assertEquals(a, book.getBestBid());
+        assertEquals(b, book.getNext(a));
+        assertEquals(150, book.getLevelShares(a));
+        book.reduce(a, 40);
+        assertEquals(60, book.getShares(a));
+        assertEquals(110, book.getLevelShares(b));
+        assertTrue(book.cancel(a, 1));
+        assertFalse(book.cancel(a, 1));
+        assertEquals(b, book.getBestBid());
+        assertEquals(2, book.getTraderId(b));
+        assertEquals(3, book.size());
+
+        int reused = book.add(false, 1030, 10, 6, 6);
+        assertTrue(reused == a || reused == c);
+        assertFalse(book.contains(reused, 1));
+        assertTrue(book.contains(reused, 6));
+        assertFalse(book.isBuy(reused));
+        assertEquals(1030, book.getPrice(reused));
+    }
+
+
+    @Test public void offHeapOrderBookManyOrders()
+    {
+        OffHeapOrderBook book = new OffHeapOrderBook(10);
+        for ( int i = 0; i < 200000; i++ )
+        {
+            int offset = i / 2 % 100;
+            book.add(i % 2 == 0, i % 2 == 0 ? 900 + offset : 1100 + offset,
+                1 + i % 7, i % 13, i);
+        }
+        assertEquals(200000, book.size());
+        assertEquals(100, book.getLevelCount(true));
+        assertEquals(999, book.getPrice(book.getBestBid()));
+        assertEquals(1100, book.getPrice(book.getBestAsk()));
+        assertTrue(book.getNativeBytes() >= 200000L * 40);
+
+        int drained = 0;
+        while ( book.getBestBid() >= 0 )
+        {
+            int best = book.getBestBid();
+            book.reduce(best, book.getShares(best));
+            drained++;
+        }
+        assertEquals(100000, drained);
+        assertEquals(100000, book.size());
+    }
+
+
+    @Test public void offHeapStockMatchesHeapStock()
+    {
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader heapBuyer = new Trader(broke, "hb", "hb");
+        Trader heapSeller = new Trader(broke, "hs", "hs");
+        Trader offBuyer = new Trader(broke, "ob", "ob");
+        Trader offSeller = new Trader(broke, "os", "os");
+        Stock heap = new Stock("GGGL", "Giggle.com", 10.00);
+        OffHeapStock offHeap = new OffHeapStock("GGGL", "Giggle.com", 10.00);
+
+        Object[][] orders = { { false, false, 100, 10.10 },
+            { false, false, 50, 10.05 }, { true, false, 70, 10.00 },
+            { true, false, 120, 10.10 }, { false, true, 30, 0.0 },
+            { true, true, 200, 0.0 }, { false, true, 40, 0.0 },
+            { false, false, 90, 9.95 }, { true, false, 10, 10.20 },
+            { false, false, 60, 10.00 } };
+        for ( Object[] o : orders )
+        {
+            boolean buy = (Boolean)o[0];
+            heap.placeOrder(new TradeOrder(buy ? heapBuyer : heapSeller,
+                "GGGL", buy, (Boolean)o[1], (Integer)o[2], (Double)o[3]));
+            offHeap.placeOrder(new TradeOrder(buy ? offBuyer : offSeller,
+                "GGGL", buy, (Boolean)o[1], (Integer)o[2], (Double)o[3]));
+        }
+
+        assertEquals(heap.getVolume(), offHeap.getVolume());
+        assertEquals(heap.getLastPrice(), offHeap.getLastPrice(), 0.001);
+        assertEquals(heap.getHiPrice(), offHeap.getHiPrice(), 0.001);
+        assertEquals(heap.getLoPrice(), offHeap.getLoPrice(), 0.001);
+        assertEquals(heap.getQuote(), offHeap.getQuote());
+        assertEquals(new java.util.ArrayList<>(heapBuyer.mailbox()),
+            new java.util.ArrayList<>(offBuyer.mailbox()));
+        assertEquals(new java.util.ArrayList<>(heapSeller.mailbox()),
+            new java.util.ArrayList<>(offSeller.mailbox()));
+        assertEquals(heap.getRestingOrders().size(), offHeap.getBook().size());
+    }
+
+
+    @Test public void offHeapStockCancelAndReject()
+    {
+        StockExchange exchange = new StockExchange();
+        exchange.listStock(new OffHeapStock("GGGL", "Giggle.com", 10.00));
+        Brokerage broke = new Brokerage(exchange);
+        Trader trader = new Trader(broke, "trader", "trader");
+        TradeOrderPool pool = new TradeOrderPool(2);
+        TradeOrder kept = new TradeOrder(trader, "GGGL", true, false, 100,
+            9.50);
+        trader.placeOrder(kept);
+        trader.placeOrder(pool.acquire(trader, "GGGL", true, false, 50,
+            9.40));
+        assertEquals(2, pool.size());
+        TradeOrder ioc = new TradeOrder(trader, "GGGL", false, true, 10, 0);
+        ioc.setTimeInForce(TimeInForce.IOC);
+        trader.placeOrder(ioc);
+        OffHeapStock stock = (OffHeapStock)exchange.getListedStocks()
+            .get("GGGL");
+        assertEquals(2, stock.getBook().size());
+
+        trader.mailbox().clear();
+        assertTrue(trader.cancelOrder(kept));
+        assertEquals("Cancelled:\tBuy GGGL(Giggle.com)\n100 shares at $9.50",
+            trader.mailbox().peek());
+        assertFalse(trader.cancelOrder(kept));
+        assertEquals(1, stock.getBook().size());
+        assertTrue(new Trader(null, "x", "x").getId() < 0);
+    }
+
+    // --Test instrument ids
+
+    @Test public void stockExchangeInstrumentIds()
+    {
+        StockExchange exchange = new StockExchange();
+        for ( int i = 0; i < 40; i++ )
+        {
+            exchange.listStock("S" + i, "Company " + i, 10.00);
+        }
+        assertEquals(0, exchange.getInstrumentId("S0"));
+        assertEquals(39, exchange.getInstrumentId("S39"));
+        assertEquals(-1, exchange.getInstrumentId("S40"));
+        assertEquals("S17", exchange.getStock(17).getStockSymbol());
+        assertNull(exchange.getStock(40));
+        assertNull(exchange.getStock(-1));
+
+        Stock replacement = new Stock("S5", "Company 5", 11.00);
+        exchange.listStock(replacement);
+        assertEquals(5, exchange.getInstrumentId("S5"));
+        assertSame(replacement, exchange.getStock(5));
+        assertSame(replacement, exchange.getListedStocks().get("S5"));
+    }
+
+
+    @Test public void stockExchangePlaceOrderByInstrumentId()
+    {
+        StockExchange exchange = new StockExchange();
+        exchange.listStock("DS", "DanceStudios.com", 12.33);
+        exchange.listStock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(exchange);
+        Trader trader = new Trader(broke, "trader", "trader");
+
+        TradeOrder order = new TradeOrder(trader, "GGGL", true, false, 10,
+            9.00);
+        assertEquals(-1, order.getInstrumentId());
+        exchange.placeOrder(order);
+        assertEquals(1, order.getInstrumentId());
+        assertEquals(1, exchange.getStock(1).getBuyOrders().size());
+
+        TradeOrder wrongId = new TradeOrder(trader, "DS", true, false, 10,
+            9.00);
+        wrongId.setInstrumentId(1);
+        exchange.placeOrder(wrongId);
+        assertEquals(0, wrongId.getInstrumentId());
+        assertEquals(1, exchange.getStock(0).getBuyOrders().size());
+        assertTrue(exchange.cancelOrder(wrongId));
+
+        TradeOrder unknown = new TradeOrder(trader, "XYZ", true, false, 10,
+            9.00);
+        trader.mailbox().clear();
+        exchange.placeOrder(unknown);
+        assertEquals(-1, unknown.getInstrumentId());
+        assertEquals("XYZ not found", trader.mailbox().peek());
+    }
+
+    // --Test trader ids
+
+    @Test public void traderIdsAndCaseBlindOrder()
+    {
+        Brokerage broke = new Brokerage(new StockExchange());
+        for ( int i = 0; i < 40; i++ )
+        {
+            assertEquals(0, broke.addUser("user" + (100 + i), "secret"));
+        }
+        Trader first = broke.getTraders().get("user100");
+        Trader last = broke.getTraders().get("user139");
+        assertSame(first, broke.getTrader(first.getId()));
+        assertSame(last, broke.getTrader(39));
+        assertNull(broke.getTrader(40));
+
+        Trader upper = new Trader(broke, "NERAGIN", "pass");
+        Trader lower = new Trader(broke, "neragin", "pass");
+        Trader other = new Trader(broke, "Dhanish", "pass");
+        assertEquals(0, upper.compareTo(lower));
+        assertEquals(upper, lower);
+        assertEquals(upper.hashCode(), lower.hashCode());
+        assertEquals(Integer.signum("NERAGIN".compareToIgnoreCase("Dhanish")),
+            Integer.signum(upper.compareTo(other)));
+        assertEquals(Integer.signum("a_b".compareToIgnoreCase("A[B")), Integer
+            .signum(new Trader(broke, "a_b", "pass").compareTo(new Trader(
+                broke, "A[B", "pass"))));
+    }
+
+
+    @Test public void brokerageRiskLimitsAndPositions()
+    {
+        StockExchange exchange = new StockExchange();
+        exchange.listStock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(exchange);
+        broke.addUser("buyer", "buyer");
+        broke.addUser("seller", "seller");
+        Trader buyer = broke.getTraders().get("buyer");
+        Trader seller = broke.getTraders().get("seller");
+        broke.setRiskLimits(buyer, 100, 150);
+
+        buyer.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 200,
+            10.00));
+        assertEquals("Order rejected:\tGGGL order of 200 shares is over the " +
+            "limit of 100", buyer.mailbox().poll());
+        assertTrue(exchange.getStock(0).getBuyOrders().isEmpty());
+
+        seller.placeOrder(new TradeOrder(seller, "GGGL", false, false, 500,
+            10.00));
+        buyer.placeOrder(new TradeOrder(buyer, "GGGL", true, true, 100, 0));
+        assertEquals(100, broke.getPosition(buyer, "GGGL"));
+        assertEquals(-100, broke.getPosition(seller, "GGGL"));
+
+        buyer.mailbox().clear();
+        buyer.placeOrder(new TradeOrder(buyer, "GGGL", true, true, 60, 0));
+        assertEquals("Order rejected:\tGGGL order would take the position " +
+            "to 160 shares, over the limit of 150", buyer.mailbox().poll());
+        buyer.placeOrder(new TradeOrder(buyer, "GGGL", false, true, 100, 0));
+        assertEquals(100, broke.getPosition(buyer, "GGGL"));
+        assertEquals(0, broke.getPosition(buyer, "XYZ"));
+    }
+
+
+    @Test public void brokeragePositionsTakeParallelFills() throws Exception
+    {
+        StockExchange exchange = new StockExchange();
+        for ( int i = 0; i < 16; i++ )
+        {
+            exchange.listStock("S" + i, "Stock " + i, 10.00);
+        }
+        Brokerage broke = new Brokerage(exchange);
+        broke.addUser("buyer", "buyer");
+        Trader buyer = broke.getTraders().get("buyer");
+        Thread[] threads = new Thread[4];
+        for ( int t = 0; t < threads.length; t++ )
+        {
+            threads[t] = new Thread(() ->
+            {
+                for ( int i = 0; i < 20000; i++ )
+                {
+                    TradeOrder order = new TradeOrder(buyer, "S" + i % 16,
+                        true, false, 1, 10.00);
+                    order.setInstrumentId(i % 16);
+                    broke.recordFill(buyer, order, 1, 10.00);
+                }
+            });
+            threads[t].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        for ( int i = 0; i < 16; i++ )
+        {
+            assertEquals(5000, broke.getPosition(buyer, "S" + i));
+        }
+    }
+
+    // --Test message delivery
+
+    @Test public void messageDispatcherKeepsOrder()
+    {
+        StockExchange sync = new StockExchange();
+        StockExchange async = new StockExchange();
+        sync.listStock("GGGL", "Giggle.com", 10.00);
+        async.listStock("GGGL", "Giggle.com", 10.00);
+        MessageDispatcher dispatcher = new MessageDispatcher(3, 8);
+        async.setMessageDispatcher(dispatcher);
+        Brokerage syncBroke = new Brokerage(sync);
+        Brokerage asyncBroke = new Brokerage(async);
+        Trader[] syncTraders = new Trader[5];
+        Trader[] asyncTraders = new Trader[5];
+        for ( int i = 0; i < 5; i++ )
+        {
+            syncTraders[i] = new Trader(syncBroke, "t" + i, "pass");
+            asyncTraders[i] = new Trader(asyncBroke, "t" + i, "pass");
+        }
+        for ( int i = 0; i < 200; i++ )
+        {
+            boolean buy = i % 2 == 0;
+            double price = 10.00 + (i % 7 - 3) / 100.0;
+            syncTraders[i % 5].placeOrder(new TradeOrder(syncTraders[i % 5],
+                "GGGL", buy, false, 10 + i % 3, price));
+            asyncTraders[i % 5].placeOrder(new TradeOrder(asyncTraders[i % 5],
+                "GGGL", buy, false, 10 + i % 3, price));
+        }
+        dispatcher.flush();
+        long total = 0;
+        for ( int i = 0; i < 5; i++ )
+        {
+            assertEquals(new java.util.ArrayList<>(syncTraders[i].mailbox()),
+                new java.util.ArrayList<>(asyncTraders[i].mailbox()));
+            total += asyncTraders[i].mailbox().size();
+        }
+        assertEquals(total, dispatcher.getDelivered());
+        dispatcher.shutdown();
+    }
+
+
+    @Test public void messageDispatcherDoesNotBlockMatching()
+        throws InterruptedException
+    {
+        java.util.concurrent.CountDownLatch release =
+            new java.util.concurrent.CountDownLatch(1);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader slow = new Trader(broke, "slow", "slow")
+        {
+            public void receiveMessage(String msg)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                super.receiveMessage(msg);
+            }
+        };
+        Trader seller = new Trader(broke, "seller", "seller");
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        MessageDispatcher dispatcher = new MessageDispatcher(2);
+        stock.setMessageDispatcher(dispatcher);
+
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 100,
+            10.00));
+        stock.placeOrder(new TradeOrder(slow, "GGGL", true, true, 100, 0));
+        assertEquals(100, stock.getVolume());
+        assertFalse(slow.hasMessages());
+
+        release.countDown();
+        dispatcher.flush();
+        assertEquals("New Order:\tBuy GGGL(Giggle.com)\n100 shares at market",
+            slow.mailbox().poll());
+        assertTrue(slow.mailbox().poll().startsWith("You bought:\t100 GGGL"));
+        dispatcher.shutdown();
+    }
+
+    // --Test fill coalescing
+
+    @Test public void stockCoalescesSweepFills()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setCoalesceFills(true);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 100,
+            10.00));
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 50,
+            10.00));
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 100,
+            10.10));
+        seller.mailbox().clear();
+
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, true, 300, 0));
+        assertEquals(2, buyer.mailbox().size());
+        buyer.mailbox().poll();
+        assertEquals("You bought:\t250 GGGL at 10.04 amt 2510.00 (3 fills" +
+            " at 2 prices)", buyer.mailbox().poll());
+        assertEquals(3, seller.mailbox().size());
+        assertEquals(250, stock.getVolume());
+
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 20,
+            9.00));
+        assertEquals("You bought:\t20 GGGL at 9.00 amt 180.00", buyer
+            .mailbox().poll());
+        assertEquals("You sold:\t20 GGGL at 9.00 amt 180.00", seller
+            .mailbox().toArray()[4]);
+    }
+
+
+    @Test public void offHeapStockCoalescesSweepFills()
+    {
+        StockExchange exchange = new StockExchange();
+        exchange.setCoalesceFills(true);
+        exchange.listStock(new OffHeapStock("GGGL", "Giggle.com", 10.00));
+        Brokerage broke = new Brokerage(exchange);
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        for ( int i = 0; i < 4; i++ )
+        {
+            seller.placeOrder(new TradeOrder(seller, "GGGL", false, false, 10,
+                10.00 + i / 100.0));
+        }
+        buyer.placeOrder(new TradeOrder(buyer, "GGGL", false, false, 5,
+            10.50));
+        buyer.mailbox().clear();
+        buyer.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 40,
+            10.02));
+        buyer.mailbox().poll();
+        assertEquals("You bought:\t30 GGGL at 10.01 amt 300.30 (3 fills at 3" +
+            " prices)", buyer.mailbox().poll());
+        assertTrue(buyer.mailbox().isEmpty());
+    }
+
+    // --Test field formatting
+
+    @Test public void fieldFormatterMatchesReflection() throws Exception
+    {
+        StockExchange exchange = new StockExchange();
+        exchange.listStock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(exchange);
+        broke.addUser("buyer", "buyer");
+        Trader buyer = broke.getTraders().get("buyer");
+        TradeOrder order = new TradeOrder(buyer, "GGGL", true, false, 100,
+            9.50);
+        order.setTimeInForce(TimeInForce.DAY);
+        buyer.placeOrder(order);
+        buyer.placeOrder(new TradeOrder(buyer, "GGGL", false, true, 20, 0));
+
+        Object[] objects = { order, buyer, broke, exchange,
+            exchange.getStock(0), new TradeOrder(null, null, false, false, 0,
+            0) };
+        for ( Object obj : objects )
+        {
+            assertEquals(reflectiveToString(obj), obj.toString());
+        }
+    }
+
+
+    // The reflective toString the domain classes used before FieldFormatter.
+    private String reflectiveToString(Object obj) throws Exception
+    {
+        String str = obj.getClass().getName() + "[";
+        String separator = "";
+        for ( java.lang.reflect.Field field : obj.getClass()
+            .getDeclaredFields() )
+        {
+            field.setAccessible(true);
+            str += separator + field.getType().getName() + " " + field
+                .getName();
+            if ( !(obj instanceof Trader && field.getType().getName()
+                .equals("Brokerage")) )
+            {
+                str += ":" + field.get(obj);
+            }
+            separator = ", ";
+        }
+        return str + "]";
+    }
+
+    // --Test price formatting
+
+    @Test public void priceFormatMatchesDecimalFormat()
+    {
+        java.text.DecimalFormat money = new java.text.DecimalFormat("0.00");
+        double[] values = { 0, -0.0, -0.001, 0.005, 0.015, 0.125, 0.135,
+            1.005, 2.675, 10.125, 1234.565, 5.0 - 1e-15, 99999999.995,
+            123456789012.345, 1e15, Double.NaN, Double.POSITIVE_INFINITY };
+        for ( double value : values )
+        {
+            assertEquals(money.format(value), PriceFormat.format(value));
+        }
+        java.util.Random random = new java.util.Random(38);
+        for ( int i = 0; i < 200000; i++ )
+        {
+            double value = (random.nextInt(20000000) + (i % 2 == 0 ? 0.5 :
+                random.nextDouble())) / 100.0;
+            assertEquals(money.format(value), PriceFormat.format(value));
+            assertEquals(money.format(-value), PriceFormat.format(-value));
+        }
+    }
+
+
+    @Test public void priceFormatAppendsWithoutGarbage()
+    {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory
+                .getThreadMXBean();
+        StringBuilder str = new StringBuilder(64);
+        for ( int i = 0; i < 200000; i++ )
+        {
+            str.setLength(0);
+            PriceFormat.appendTo(str, i * 0.37);
+        }
+        long allocated = -1;
+        for ( int window = 0; window < 5 && allocated != 0; window++ )
+        {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for ( int i = 0; i < 100000; i++ )
+            {
+                str.setLength(0);
+                PriceFormat.appendTo(str, i * 1.01);
+            }
+            allocated = threads.getCurrentThreadAllocatedBytes() - before;
+        }
+        assertEquals(0, allocated);
+        assertEquals("100998.99", str.toString());
+    }
+
+    // --Test order routing
+
+    @Test public void topOfBookFollowsTheBook()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader trader = new Trader(broke, "trader", "trader");
+        TopOfBook top = stock.getTopOfBook().copyTo(new TopOfBook());
+        assertEquals(0, top.getBidSize());
+        assertEquals(0, top.getAskSize());
+
+        stock.placeOrder(new TradeOrder(trader, "GGGL", true, false, 100,
+            9.90));
+        stock.placeOrder(new TradeOrder(trader, "GGGL", false, true, 40, 0));
+        stock.getTopOfBook().copyTo(top);
+        assertEquals(9.90, top.getBidPrice(), 0.001);
+        assertEquals(60, top.getBidSize());
+        assertEquals(0, top.getAskSize());
+
+        stock.placeOrder(new TradeOrder(trader, "GGGL", false, false, 25,
+            10.10));
+        stock.getTopOfBook().copyTo(top);
+        assertEquals(10.10, top.getAskPrice(), 0.001);
+        assertEquals(25, top.getAskSize());
+        assertEquals(3, top.getVersion());
+    }
+
+
+    @Test public void topOfBookShowsTheWholeBestLevel()
+    {
+        Stock[] stocks = { new Stock("GGGL", "Giggle.com", 10.00),
+            new OffHeapStock("GGGL", "Giggle.com", 10.00) };
+        for ( Stock stock : stocks )
+        {
+            Brokerage broke = new Brokerage(new StockExchange());
+            Trader buyer = new Trader(broke, "buyer", "buyer");
+            Trader seller = new Trader(broke, "seller", "seller");
+            stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 100,
+                10.00));
+            TradeOrder second = new TradeOrder(seller, "GGGL", false, false,
+                50, 10.00);
+            stock.placeOrder(second);
+            stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 70,
+                10.01));
+            stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 20,
+                9.90));
+            stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 30,
+                9.90));
+            TopOfBook top = stock.getTopOfBook().copyTo(new TopOfBook());
+            assertEquals(150, top.getAskSize());
+            assertEquals(50, top.getBidSize());
+
+            stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 30,
+                10.00));
+            assertEquals(120, stock.getTopOfBook().copyTo(top).getAskSize());
+            assertTrue(stock.cancelOrder(second));
+            assertEquals(70, stock.getTopOfBook().copyTo(top).getAskSize());
+            stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 70,
+                10.00));
+            stock.getTopOfBook().copyTo(top);
+            assertEquals(10.01, top.getAskPrice(), 0.001);
+            assertEquals(70, top.getAskSize());
+            assertEquals(9.90, top.getBidPrice(), 0.001);
+            assertEquals(50, top.getBidSize());
+        }
+
+        Stock stock = stocks[0];
+        Trader seller = new Trader(new Brokerage(new StockExchange()), "s",
+            "s");
+        TradeOrder iceberg = new TradeOrder(seller, "GGGL", false, false, 500,
+            10.01);
+        iceberg.setDisplayShares(40);
+        stock.placeOrder(iceberg);
+        assertEquals(110, stock.getTopOfBook().copyTo(new TopOfBook())
+            .getAskSize());
+    }
+
+
+    @Test public void priceLevelsAddUpLikeAMap()
+    {
+        PriceLevels levels = new PriceLevels();
+        java.util.Map<Long, Long> expected = new java.util.HashMap<>();
+        java.util.Random random = new java.util.Random(11);
+        for ( int i = 0; i < 200000; i++ )
+        {
+            long price = random.nextInt(i < 100000 ? 500 : 20) * 97L;
+            long have = expected.getOrDefault(price, 0L);
+            long delta = have > 0 && random.nextBoolean() ? -Math.min(have,
+                1 + random.nextInt(3)) : 1 + random.nextInt(3);
+            levels.add(price, delta);
+            expected.merge(price, delta, Long::sum);
+            expected.remove(price, 0L);
+            if ( i % 1000 == 0 )
+            {
+                for ( int p = 0; p < 500; p++ )
+                {
+                    assertEquals(expected.getOrDefault(p * 97L, 0L)
+                        .longValue(), levels.get(p * 97L));
+                }
+            }
+        }
+        assertEquals(expected.size(), levels.size());
+        levels.add(Long.MIN_VALUE, 5);
+        assertEquals(5, levels.get(Long.MIN_VALUE));
+        levels.add(Long.MIN_VALUE, -5);
+        assertEquals(0, levels.get(Long.MIN_VALUE));
+        assertEquals(expected.size(), levels.size());
+    }
+
+
+    @Test public void topOfBookReadsAreConsistent() throws Exception
+    {
+        TopOfBook top = new TopOfBook();
+        Thread writer = new Thread(() ->
+        {
+            for ( int i = 1; i <= 200000; i++ )
+            {
+                top.update(i, i, -i, i);
+            }
+        });
+        writer.start();
+        TopOfBook copy = new TopOfBook();
+        while ( writer.isAlive() )
+        {
+            top.copyTo(copy);
+            assertEquals(copy.getBidPrice(), copy.getBidSize(), 0);
+            assertEquals(-copy.getAskPrice(), copy.getAskSize(), 0);
+        }
+        writer.join();
+        assertEquals(200000, top.copyTo(copy).getAskSize());
+    }
+
+
+    @Test public void routerSplitsOverExchanges()
+    {
+        StockExchange primary = new StockExchange();
+        StockExchange second = new StockExchange();
+        primary.listStock("NSTL", "Nasty Loops Inc.", 0.25);
+        primary.listStock("GGGL", "Giggle.com", 10.00);
+        second.listStock("GGGL", "Giggle.com", 10.00);
+        Trader seller1 = new Trader(new Brokerage(primary), "seller1", "s");
+        Trader seller2 = new Trader(new Brokerage(second), "seller2", "s");
+        seller1.placeOrder(new TradeOrder(seller1, "GGGL", false, false, 100,
+            10.02));
+        seller2.placeOrder(new TradeOrder(seller2, "GGGL", false, false, 150,
+            10.01));
+
+        Brokerage broke = new Brokerage(primary);
+        broke.addExchange(second);
+        assertEquals(2, broke.getExchanges().size());
+        broke.addUser("buyer", "buyer");
+        Trader buyer = broke.getTraders().get("buyer");
+        buyer.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 300,
+            10.05));
+
+        Stock atPrimary = primary.getStock(primary.getInstrumentId("GGGL"));
+        Stock atSecond = second.getStock(second.getInstrumentId("GGGL"));
+        assertTrue(atPrimary.getSellOrders().isEmpty());
+        assertTrue(atPrimary.getBuyOrders().isEmpty());
+        assertTrue(atSecond.getSellOrders().isEmpty());
+        TradeOrder rest = atSecond.getBuyOrders().peek();
+        assertEquals(50, rest.getShares());
+        assertEquals(250, broke.getPosition(buyer, "GGGL"));
+        assertEquals(10.05, atSecond.getTopOfBook().getBidPrice(), 0.001);
+
+        assertTrue(broke.cancelOrder(rest));
+        assertTrue(atSecond.getBuyOrders().isEmpty());
+        assertFalse(broke.cancelOrder(rest));
+    }
+
+    @Test public void routerKeepsFillOrKillWhole()
+    {
+        StockExchange primary = new StockExchange();
+        StockExchange second = new StockExchange();
+        primary.listStock("GGGL", "Giggle.com", 10.00);
+        second.listStock("GGGL", "Giggle.com", 10.00);
+        Trader seller1 = new Trader(new Brokerage(primary), "seller1", "s");
+        Trader seller2 = new Trader(new Brokerage(second), "seller2", "s");
+        seller1.placeOrder(new TradeOrder(seller1, "GGGL", false, false, 100,
+            10.02));
+        seller2.placeOrder(new TradeOrder(seller2, "GGGL", false, false, 150,
+            10.01));
+
+        Brokerage broke = new Brokerage(primary);
+        broke.addExchange(second);
+        broke.addUser("buyer", "buyer");
+        Trader buyer = broke.getTraders().get("buyer");
+        TradeOrder tooBig = new TradeOrder(buyer, "GGGL", true, false, 200,
+            10.05);
+        tooBig.setTimeInForce(TimeInForce.FOK);
+        buyer.placeOrder(tooBig);
+
+        Stock atPrimary = primary.getStock(primary.getInstrumentId("GGGL"));
+        Stock atSecond = second.getStock(second.getInstrumentId("GGGL"));
+        assertEquals(0, broke.getPosition(buyer, "GGGL"));
+        assertEquals(100, atPrimary.getSellOrders().peek().getShares());
+        assertEquals(150, atSecond.getSellOrders().peek().getShares());
+        assertTrue(atPrimary.getBuyOrders().isEmpty());
+        assertTrue(atSecond.getBuyOrders().isEmpty());
+
+        TradeOrder fits = new TradeOrder(buyer, "GGGL", true, false, 150,
+            10.05);
+        fits.setTimeInForce(TimeInForce.FOK);
+        buyer.placeOrder(fits);
+        assertEquals(150, broke.getPosition(buyer, "GGGL"));
+        assertTrue(atSecond.getSellOrders().isEmpty());
+        assertEquals(100, atPrimary.getSellOrders().peek().getShares());
+    }
+
+    @Test public void routerTakesTheWholeBestLevel()
+    {
+        StockExchange primary = new StockExchange();
+        StockExchange second = new StockExchange();
+        primary.listStock("GGGL", "Giggle.com", 10.00);
+        second.listStock("GGGL", "Giggle.com", 10.00);
+        Trader seller1 = new Trader(new Brokerage(primary), "seller1", "s");
+        Trader seller2 = new Trader(new Brokerage(second), "seller2", "s");
+        seller1.placeOrder(new TradeOrder(seller1, "GGGL", false, false, 200,
+            10.02));
+        seller2.placeOrder(new TradeOrder(seller2, "GGGL", false, false, 100,
+            10.01));
+        seller2.placeOrder(new TradeOrder(seller2, "GGGL", false, false, 100,
+            10.01));
+
+        Brokerage broke = new Brokerage(primary);
+        broke.addExchange(second);
+        broke.addUser("buyer", "buyer");
+        Trader buyer = broke.getTraders().get("buyer");
+        buyer.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 300,
+            10.05));
+
+        Stock atPrimary = primary.getStock(primary.getInstrumentId("GGGL"));
+        Stock atSecond = second.getStock(second.getInstrumentId("GGGL"));
+        assertEquals(300, broke.getPosition(buyer, "GGGL"));
+        assertTrue(atSecond.getSellOrders().isEmpty());
+        assertEquals(100, atPrimary.getSellOrders().peek().getShares());
+    }
+
+    // --Test replication
+
+    @Test public void backupFollowsPrimaryAndTakesOver() throws Exception
+    {
+        ReplicatedExchange backup = new ReplicatedExchange();
+        java.net.ServerSocket server = new java.net.ServerSocket(0);
+        backup.followPrimary(server);
+        assertFalse(backup.isPrimary());
+        ReplicatedExchange primary = new ReplicatedExchange();
+        primary.replicateTo("localhost", server.getLocalPort());
+
+        primary.listStock("GGGL", "Giggle.com", 10.00);
+        primary.listStock(new OffHeapStock("NSTL", "Nasty Loops Inc.", 0.25));
+        primary.setSelfTradePrevention(SelfTradePrevention.CANCEL_NEWEST);
+        Brokerage broke = new Brokerage(primary);
+        broke.addUser("buyer", "buyer");
+        broke.addUser("seller", "seller");
+        Trader buyer = broke.getTraders().get("buyer");
+        Trader seller = broke.getTraders().get("seller");
+        java.util.Random random = new java.util.Random(7);
+        TradeOrder resting = null;
+        for ( int i = 0; i < 500; i++ )
+        {
+            boolean buy = random.nextBoolean();
+            Trader trader = random.nextInt(10) == 0 ? buyer : buy ? buyer :
+                seller;
+            TradeOrder order = new TradeOrder(trader, i % 3 == 0 ? "NSTL" :
+                "GGGL", buy, false, 1 + random.nextInt(50), (i % 3 == 0 ?
+                    0.20 : 9.80) + random.nextInt(10) / 100.0);
+            if ( i % 3 != 0 && i % 7 == 0 )
+            {
+                order.setDisplayShares(5);
+            }
+            primary.placeOrder(order);
+            if ( i % 11 == 0 && resting != null )
+            {
+                primary.cancelOrder(resting);
+            }
+            resting = order;
+        }
+        TradeOrder stop = new TradeOrder(seller, "GGGL", false, true, 10, 0);
+        stop.setStopPrice(5.00);
+        primary.placeOrder(stop);
+        assertTrue(primary.awaitReplicated(5000));
+        assertEquals(primary.getSequence(), backup.getSequence());
+        assertEquals(primary.getQuote("GGGL"), backup.getQuote("GGGL"));
+        assertEquals(primary.getQuote("NSTL"), backup.getQuote("NSTL"));
+        assertEquals(primary.getStock(0).getVolume(), backup.getStock(0)
+            .getVolume());
+        assertEquals(primary.getStock(0).getBuyOrders().size(), backup
+            .getStock(0).getBuyOrders().size());
+        assertEquals(1, backup.getStock(0).getStopOrders().size());
+        primary.endDay();
+        assertTrue(primary.awaitReplicated(5000));
+        assertEquals(0, backup.getStock(0).getVolume());
+        assertEquals(primary.getQuote("GGGL"), backup.getQuote("GGGL"));
+        try
+        {
+            backup.placeOrder(new TradeOrder(buyer, "GGGL", true, true, 1, 0));
+            fail();
+        }
+        catch ( IllegalStateException e )
+        {
+            // expected
+        }
+
+        primary.stopReplication();
+        assertTrue(backup.awaitPrimary(5000));
+        Brokerage again = new Brokerage(backup);
+        again.addUser("buyer", "buyer");
+        again.addUser("seller", "seller");
+        again.addUser("latecomer", "late");
+        Trader late = again.getTraders().get("latecomer");
+        backup.placeOrder(new TradeOrder(late, "GGGL", true, true, 1, 0));
+        assertEquals(primary.getStock(0).getVolume() + 1, backup.getStock(0)
+            .getVolume());
+        server.close();
+    }
+
+    // --Test exchange cluster
+
+    @Test public void symbolRingSpreadsAndKeepsSymbols()
+    {
+        SymbolRing ring = new SymbolRing();
+        ring.addNode("a");
+        ring.addNode("b");
+        ring.addNode("c");
+        java.util.Map<String, String> before = new java.util.HashMap<>();
+        java.util.Map<String, Integer> counts = new java.util.HashMap<>();
+        for ( int i = 0; i < 3000; i++ )
+        {
+            String node = ring.nodeOf("S" + i);
+            before.put("S" + i, node);
+            counts.merge(node, 1, Integer::sum);
+        }
+        for ( int count : counts.values() )
+        {
+            assertTrue(count > 500);
+        }
+        ring.addNode("d");
+        int moved = 0;
+        for ( String symbol : before.keySet() )
+        {
+            String node = ring.nodeOf(symbol);
+            assertTrue(node.equals(before.get(symbol)) || node.equals("d"));
+            moved += node.equals("d") ? 1 : 0;
+        }
+        assertTrue(moved > 300 && moved < 1300);
+        ring.removeNode("d");
+        assertEquals(3, ring.size());
+        assertEquals(before.get("S42"), ring.nodeOf("S42"));
+    }
+
+
+    @Test public void clusterRoutesAndMovesStocks() throws Exception
+    {
+        ClusterNode first = new ClusterNode(new java.net.ServerSocket(0, 50,
+            java.net.InetAddress.getLoopbackAddress()));
+        ClusterNode second = new ClusterNode(new java.net.ServerSocket(0, 50,
+            java.net.InetAddress.getLoopbackAddress()));
+        ClusterExchange cluster = new ClusterExchange(first.getAddress(),
+            second.getAddress());
+        for ( int i = 0; i < 20; i++ )
+        {
+            cluster.listStock("S" + i, "Stock " + i, 10.00);
+        }
+        cluster.listStock("GGGL", "Giggle.com", 10.00);
+        assertTrue(first.getExchange().getListedStocks().size() > 0);
+        assertTrue(second.getExchange().getListedStocks().size() > 0);
+        assertEquals(21, first.getExchange().getListedStocks().size() + second
+            .getExchange().getListedStocks().size());
+
+        Brokerage broke = new Brokerage(cluster);
+        broke.addUser("buyer", "buyer");
+        broke.addUser("seller", "seller");
+        Trader buyer = broke.getTraders().get("buyer");
+        Trader seller = broke.getTraders().get("seller");
+        TradeOrder ask = new TradeOrder(seller, "GGGL", false, false, 100,
+            10.05);
+        seller.placeOrder(ask);
+        TradeOrder rest = new TradeOrder(seller, "GGGL", false, false, 50,
+            10.10);
+        seller.placeOrder(rest);
+        buyer.placeOrder(new TradeOrder(buyer, "GGGL", true, true, 30, 0));
+        String quote = cluster.getQuote("GGGL");
+        assertTrue(quote.contains("vol: 30"));
+        assertEquals(30, broke.getPosition(buyer, "GGGL"));
+        assertEquals(-30, broke.getPosition(seller, "GGGL"));
+        assertTrue(buyer.mailbox().contains("You bought:\t30 GGGL at 10.05" +
+            " amt 301.50"));
+
+        String from = cluster.getNodeOf("GGGL");
+        String to = from.equals(first.getAddress()) ? second.getAddress() :
+            first.getAddress();
+        cluster.moveStock("GGGL", to);
+        assertEquals(to, cluster.getNodeOf("GGGL"));
+        assertEquals(quote, cluster.getQuote("GGGL"));
+        ClusterNode target = to.equals(first.getAddress()) ? first : second;
+        assertEquals(2, target.getExchange().getListedStocks().get("GGGL")
+            .getSellOrders().size());
+
+        buyer.placeOrder(new TradeOrder(buyer, "GGGL", true, true, 80, 0));
+        assertTrue(cluster.getQuote("GGGL").contains("vol: 110"));
+        assertEquals(110, broke.getPosition(buyer, "GGGL"));
+        assertFalse(cluster.cancelOrder(ask));
+        assertTrue(cluster.cancelOrder(rest));
+        assertTrue(cluster.getQuote("GGGL").contains("Ask: none"));
+        assertEquals("XYZ not found", cluster.getQuote("XYZ"));
+        java.util.List<DaySummary> days = cluster.endDay();
+        assertEquals(21, days.size());
+        assertEquals("GGGL", days.get(0).getSymbol());
+        assertEquals(110, days.get(0).getVolume());
+        assertTrue(cluster.getQuote("GGGL").contains("vol: 0"));
+        first.close();
+        second.close();
+    }
+
+    // --Test journal replay
+
+    @Test public void replayMatchesRecordedFills() throws Exception
+    {
+        ReplicatedExchange primary = new ReplicatedExchange();
+        java.io.ByteArrayOutputStream recording =
+            new java.io.ByteArrayOutputStream();
+        primary.recordTo(recording);
+        primary.listStock("GGGL", "Giggle.com", 10.00);
+        primary.listStock(new OffHeapStock("NSTL", "Nasty Loops Inc.", 0.25));
+        Brokerage broke = new Brokerage(primary);
+        broke.addUser("buyer", "buyer");
+        broke.addUser("seller", "seller");
+        Trader buyer = broke.getTraders().get("buyer");
+        Trader seller = broke.getTraders().get("seller");
+        java.util.Random random = new java.util.Random(11);
+        TradeOrder resting = null;
+        for ( int i = 0; i < 300; i++ )
+        {
+            boolean buy = random.nextBoolean();
+            TradeOrder order = new TradeOrder(buy ? buyer : seller, i % 3 == 0
+                ? "NSTL" : "GGGL", buy, false, 1 + random.nextInt(50), (i % 3
+                    == 0 ? 0.20 : 9.80) + random.nextInt(10) / 100.0);
+            if ( i % 3 != 0 && i % 7 == 0 )
+            {
+                order.setDisplayShares(5);
+            }
+            primary.placeOrder(order);
+            if ( i % 11 == 0 && resting != null )
+            {
+                primary.cancelOrder(resting);
+            }
+            resting = order;
+        }
+        primary.closeRecording();
+
+        JournalReplay replay = new JournalReplay();
+        assertTrue(replay.replay(new java.io.ByteArrayInputStream(recording
+            .toByteArray())));
+        assertEquals(0, replay.getMismatches());
+        assertEquals(primary.getSequence(), replay.getEvents());
+        assertTrue(replay.getFills() > 0);
+        assertEquals(primary.getQuote("GGGL"), replay.getExchange().getQuote(
+            "GGGL"));
+        assertEquals(primary.getQuote("NSTL"), replay.getExchange().getQuote(
+            "NSTL"));
+    }
+
+
+    @Test public void replayReportsWrongFill() throws Exception
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader trader = new Trader(broke, "bob", "bruh");
+        TradeOrder buy = new TradeOrder(trader, "GGGL", true, false, 10, 10.0);
+        TradeOrder sell = new TradeOrder(trader, "GGGL", false, false, 10,
+            10.0);
+        buy.setJournalId(2);
+        sell.setJournalId(3);
+        java.io.ByteArrayOutputStream bytes =
+            new java.io.ByteArrayOutputStream();
+        java.io.DataOutputStream out = new java.io.DataOutputStream(bytes);
+        ExchangeJournal.writeList(out, 1, 0, stock);
+        ExchangeJournal.writeOrder(out, 2, 0, buy);
+        ExchangeJournal.writeOrder(out, 3, 0, sell);
+        ExchangeJournal.writeFill(out, 3, 0, stock, buy, sell, 5, 10.0);
+
+        JournalReplay replay = new JournalReplay();
+        assertFalse(replay.replay(new java.io.ByteArrayInputStream(bytes
+            .toByteArray())));
+        assertEquals(1, replay.getMismatches());
+        assertEquals(1, replay.getFills());
+        assertTrue(replay.getFirstMismatch().startsWith("event 3"));
+    }
+
+    // --Test end of day
+
+    @Test public void endDayWritesSummariesAndResetsStocks() throws Exception
+    {
+        StockExchange exchange = new StockExchange();
+        exchange.listStock("GGGL", "Giggle.com", 10.00);
+        exchange.listStock(new OffHeapStock("NSTL", "Nasty Loops Inc.", 0.25));
+        Brokerage broke = new Brokerage(exchange);
+        broke.addUser("buyer", "buyer");
+        broke.addUser("seller", "seller");
+        Trader buyer = broke.getTraders().get("buyer");
+        Trader seller = broke.getTraders().get("seller");
+        exchange.placeOrder(new TradeOrder(seller, "GGGL", false, false, 100,
+            11.00));
+        exchange.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 100,
+            11.00));
+        exchange.placeOrder(new TradeOrder(seller, "GGGL", false, false, 300,
+            12.00));
+        exchange.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 300,
+            12.00));
+        exchange.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 5,
+            9.00));
+        exchange.placeOrder(new TradeOrder(seller, "NSTL", false, false, 7,
+            0.30));
+
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("eod",
+            ".csv");
+        java.util.List<DaySummary> summaries = exchange.endDay(file);
+        assertEquals(2, summaries.size());
+        DaySummary gggl = summaries.get(0);
+        assertEquals("GGGL", gggl.getSymbol());
+        assertEquals(400, gggl.getVolume());
+        assertEquals(2, gggl.getTrades());
+        assertEquals(11.75, gggl.getVwap(), 1e-9);
+        assertEquals(10.00, gggl.getLoPrice(), 1e-9);
+        assertEquals(12.00, gggl.getHiPrice(), 1e-9);
+        assertEquals(1, gggl.getRestingOrders());
+        DaySummary nstl = summaries.get(1);
+        assertEquals(0, nstl.getTrades());
+        assertTrue(Double.isNaN(nstl.getVwap()));
+        assertEquals(1, nstl.getRestingOrders());
+
+        java.util.List<String> lines = java.nio.file.Files.readAllLines(file);
+        java.nio.file.Files.delete(file);
+        assertEquals(DaySummary.HEADER, lines.get(0));
+        assertEquals("GGGL,10.00,12.00,12.00,400,2,11.75,1", lines.get(1));
+        assertEquals("NSTL,0.25,0.25,0.25,0,0,,1", lines.get(2));
+
+        Stock stock = exchange.getListedStocks().get("GGGL");
+        assertEquals(0, stock.getVolume());
+        assertEquals(12.00, stock.getLoPrice(), 1e-9);
+        assertEquals(12.00, stock.getHiPrice(), 1e-9);
+        assertEquals(0, exchange.endDay().get(0).getVolume());
+    }
+
+
+    @Test public void endDayCountsOnlyTheLastSession()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(new StockExchange());
+        Trader buyer = new Trader(broke, "buyer", "buyer");
+        Trader seller = new Trader(broke, "seller", "seller");
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 10,
+            210.00));
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 10,
+            210.00));
+        stock.closeSession();
+
+        stock.startPreOpen();
+        stock.startContinuousTrading();
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 10,
+            10.00));
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 10,
+            10.00));
+        DaySummary day = stock.endDay();
+        assertEquals(10, day.getVolume());
+        assertEquals(1, day.getTrades());
+        assertEquals(10.00, day.getVwap(), 1e-9);
+        assertEquals(10.00, day.getLoPrice(), 1e-9);
+        assertEquals(210.00, day.getHiPrice(), 1e-9);
+    }
+
+
+    @Test public void daySummaryLineIgnoresTheDefaultLocale()
+    {
+        java.util.Locale locale = java.util.Locale.getDefault();
+        java.util.Locale.setDefault(java.util.Locale.GERMANY);
+        try
+        {
+            assertEquals("GGGL,10.05,10.50,10.12,0,0,,3", new DaySummary("GGGL",
+                10.05, 10.5, 10.125, 0, 0, Double.NaN, 3).toString());
+            assertEquals("DS,1234.00,1234.56,1234.50,300,2,1234.25,0",
+                new DaySummary("DS", 1234, 1234.56, 1234.5, 300, 2, 1234.25, 0)
+                    .toString());
+        }
+        finally
+        {
+            java.util.Locale.setDefault(locale);
+        }
+    }
+
+
+    @Test public void endDayLosesNoFillsWhileTrading() throws Exception
+    {
+        StockExchange exchange = new StockExchange();
+        String[] symbols = new String[100];
+        for ( int i = 0; i < symbols.length; i++ )
+        {
+            symbols[i] = "S" + i;
+            Stock stock = new Stock(symbols[i], "Stock " + i, 10.00);
+            stock.setGarbageFree(true);
+            exchange.listStock(stock);
+        }
+        Brokerage broke = new Brokerage(exchange);
+        broke.addUser("buyer", "buyer");
+        broke.addUser("seller", "seller");
+        Trader buyer = broke.getTraders().get("buyer");
+        Trader seller = broke.getTraders().get("seller");
+        int pairs = 20000;
+        Thread trading = new Thread(() ->
+        {
+            for ( int i = 0; i < pairs; i++ )
+            {
+                String symbol = symbols[i % symbols.length];
+                exchange.getStock(exchange.getInstrumentId(symbol)).placeOrder(
+                    new TradeOrder(seller, symbol, false, false, 10, 10.00));
+                exchange.getStock(exchange.getInstrumentId(symbol)).placeOrder(
+                    new TradeOrder(buyer, symbol, true, false, 10, 10.00));
+            }
+        });
+        trading.start();
+        long volume = 0;
+        int trades = 0;
+        while ( trading.isAlive() )
+        {
+            for ( DaySummary summary : exchange.endDay() )
+            {
+                volume += summary.getVolume();
+                trades += summary.getTrades();
+            }
+        }
+        trading.join();
+        java.util.List<DaySummary> last = exchange.endDay();
+        assertEquals(symbols.length, last.size());
+        for ( DaySummary summary : last )
+        {
+            volume += summary.getVolume();
+            trades += summary.getTrades();
+        }
+        assertEquals(pairs * 10L, volume);
+        assertEquals(pairs, trades);
+        assertEquals("S0", last.get(0).getSymbol());
+        assertEquals("S1", last.get(1).getSymbol());
+    }
+
+    // --Test bulk listing
+
+    @Test public void listStocksLoadsListingFile() throws Exception
+    {
+        StringBuilder listing = new StringBuilder("# symbol,name,price\n");
+        for ( int i = 0; i < 20000; i++ )
+        {
+            listing.append("S").append(i).append(",Company ").append(i)
+                .append(", Inc.,").append(1 + i % 500).append(".25\r\n");
+            if ( i % 5000 == 0 )
+            {
+                listing.append("\n");
+            }
+        }
+        listing.append("GGGL , Giggle.com , 10.00");
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("listing",
+            ".csv");
+        java.nio.file.Files.write(file, listing.toString().getBytes(
+            java.nio.charset.StandardCharsets.UTF_8));
+        StockExchange exchange = new StockExchange();
+        exchange.listStock("DS", "DanceStudios.com", 12.33);
+        assertEquals(20001, exchange.listStocks(file, 8));
+        java.nio.file.Files.delete(file);
+
+        assertEquals(20002, exchange.getListedStocks().size());
+        assertEquals(1, exchange.getInstrumentId("S0"));
+        assertEquals(20000, exchange.getInstrumentId("S19999"));
+        assertEquals(20001, exchange.getInstrumentId("GGGL"));
+        Stock stock = exchange.getStock(exchange.getInstrumentId("S12345"));
+        assertEquals("Company 12345, Inc.", stock.getCompanyName());
+        assertEquals(346.25, stock.getLastPrice(), 1e-9);
+        assertTrue(exchange.getQuote("GGGL").startsWith("Giggle.com (GGGL)"));
+    }
+
+
+    @Test public void listStocksRejectsBadLine() throws Exception
+    {
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("listing",
+            ".csv");
+        java.nio.file.Files.write(file, "GGGL,Giggle.com,10.00\nNSTL,0.25\n"
+            .getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        try
+        {
+            new StockExchange().listStocks(file, 2);
+            fail();
+        }
+        catch ( java.io.IOException e )
+        {
+            assertEquals("Bad listing: NSTL,0.25", e.getMessage());
+        }
+        java.nio.file.Files.delete(file);
+    }
+
+    // --Test headless server
+
+    @Test public void serverCreatesDemoExchange() throws Exception
+    {
+        StockExchange exchange = SafeTradeServer.createExchange(null);
+        assertEquals(6, exchange.getListedStocks().size());
+        assertTrue(exchange.getQuote("SAFT").startsWith(
+            "SafeTrade.com Inc. (SAFT)"));
+    }
+
+    // --Test price bands
+
+    @Test public void priceBandHaltsIntoVolatilityAuction()
+    {
+        VirtualClock clock = new VirtualClock(1000);
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setClock(clock);
+        stock.setGarbageFree(true);
+        stock.setPriceBand(500, 1000);
+        StockExchange exchange = new StockExchange();
+        exchange.listStock(stock);
+        Brokerage broke = new Brokerage(exchange);
+        broke.addUser("buyer", "buyer");
+        broke.addUser("seller", "seller");
+        Trader buyer = broke.getTraders().get("buyer");
+        Trader seller = broke.getTraders().get("seller");
+
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 100,
+            9.80));
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 100,
+            9.00));
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, true, 150, 0));
+        assertEquals(TradingPhase.VOLATILITY_AUCTION, stock.getPhase());
+        assertEquals(100, stock.getVolume());
+        assertEquals(9.80, stock.getLastPrice(), 1e-9);
+        boolean halted = false;
+        for ( String msg : seller.mailbox() )
+        {
+            halted |= msg.startsWith("Halted:\tGGGL would trade at 9.00, "
+                + "outside 9.50 - 10.50");
+        }
+        assertTrue(halted);
+
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 30, 9.40));
+        assertEquals(100, stock.getVolume());
+        clock.advance(999);
+        stock.expireOrders();
+        assertEquals(TradingPhase.VOLATILITY_AUCTION, stock.getPhase());
+        clock.advance(1);
+        stock.expireOrders();
+        assertEquals(TradingPhase.CONTINUOUS, stock.getPhase());
+        assertEquals(150, stock.getVolume());
+        assertEquals(9.00, stock.getLastPrice(), 1e-9);
+        assertTrue(stock.getSellOrders().isEmpty());
+
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 10,
+            8.60));
+        assertEquals(TradingPhase.CONTINUOUS, stock.getPhase());
+        assertEquals(8.60, stock.getLastPrice(), 1e-9);
+    }
+
+
+    @Test public void offHeapPriceBandCancelsRest() throws Exception
+    {
+        OffHeapStock stock = new OffHeapStock("NSTL", "Nasty Loops Inc.",
+            10.00);
+        stock.setPriceBand(500, 1000);
+        StockExchange exchange = new StockExchange();
+        exchange.listStock(stock);
+        Brokerage broke = new Brokerage(exchange);
+        broke.addUser("buyer", "buyer");
+        broke.addUser("seller", "seller");
+        Trader buyer = broke.getTraders().get("buyer");
+        Trader seller = broke.getTraders().get("seller");
+        stock.placeOrder(new TradeOrder(buyer, "NSTL", true, false, 100,
+            9.80));
+        stock.placeOrder(new TradeOrder(buyer, "NSTL", true, false, 100,
+            9.00));
+        stock.placeOrder(new TradeOrder(seller, "NSTL", false, true, 150, 0));
+        assertEquals(TradingPhase.CONTINUOUS, stock.getPhase());
+        assertEquals(100, stock.getVolume());
+        assertEquals(1, stock.getBook().size());
+        assertTrue(stock.getQuote().endsWith("Bid: 9.0 size: 100"));
+        boolean cancelled = false;
+        for ( String msg : seller.mailbox() )
+        {
+            cancelled |= msg.startsWith("Cancelled:\t")
+                && msg.endsWith(" would trade at 9.00, outside the price band");
+        }
+        assertTrue(cancelled);
+
+        java.io.ByteArrayOutputStream bytes =
+            new java.io.ByteArrayOutputStream();
+        ExchangeJournal.writeList(new java.io.DataOutputStream(bytes), 1, 0,
+            stock);
+        ExchangeJournal event = new ExchangeJournal();
+        event.read(new java.io.DataInputStream(new java.io.ByteArrayInputStream(
+            bytes.toByteArray())));
+        assertEquals(500, event.getPriceBand());
+        assertEquals(1000, event.getAuctionMillis());
+    }
+
+    // --Test market order protection
+
+    @Test public void marketOrdersWaitInTheirOwnQueue()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setGarbageFree(true);
+        Trader buyer = new Trader(null, "buyer", "buyer");
+        Trader seller = new Trader(null, "seller", "seller");
+
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, true, 100, 0));
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, true, 50, 0));
+        assertEquals(0, stock.getVolume());
+        assertEquals(1, stock.getMarketBuyOrders().size());
+        assertEquals(1, stock.getMarketSellOrders().size());
+        assertTrue(stock.getBuyOrders().isEmpty());
+        assertTrue(stock.getQuote().endsWith(
+            "Ask: market size: 50\tBid: market size: 100"));
+
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 30,
+            10.20));
+        assertEquals(30, stock.getVolume());
+        assertEquals(10.20, stock.getLastPrice(), 1e-9);
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 20, 9.90));
+        assertEquals(50, stock.getVolume());
+        assertEquals(9.90, stock.getLastPrice(), 1e-9);
+        assertEquals(70, stock.getMarketBuyOrders().peek().getShares());
+        assertEquals(30, stock.getMarketSellOrders().peek().getShares());
+        assertEquals(2, stock.getRestingOrders().size());
+    }
+
+
+    @Test public void marketOrderProtectionLimitsOrRejects() throws Exception
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setMarketOrderProtection(MarketOrderProtection.PROTECT, 100);
+        StockExchange exchange = new StockExchange();
+        exchange.listStock(stock);
+        Brokerage broke = new Brokerage(exchange);
+        broke.addUser("buyer", "buyer");
+        broke.addUser("seller", "seller");
+        Trader buyer = broke.getTraders().get("buyer");
+        Trader seller = broke.getTraders().get("seller");
+
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 100,
+            10.00));
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 100,
+            10.50));
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, true, 150, 0));
+        assertEquals(100, stock.getVolume());
+        assertEquals(1, stock.getSellOrders().size());
+        assertTrue(stock.getMarketBuyOrders().isEmpty());
+        assertTrue(buyer.mailbox().contains(
+            "Cancelled:\tBuy GGGL(Giggle.com)\n50 shares at $10.10"));
+
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, true, 10, 0));
+        assertEquals(100, stock.getVolume());
+        assertTrue(stock.getMarketSellOrders().isEmpty());
+        assertTrue(seller.mailbox().contains(
+            "Cancelled:\tSell GGGL(Giggle.com)\n10 shares at $9.90"));
+
+        stock.setMarketOrderProtection(MarketOrderProtection.REJECT, 0);
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, true, 10, 0));
+        assertTrue(seller.mailbox().contains("Order rejected:\tSell GGGL("
+            + "Giggle.com)\n10 shares at market finds no buy orders to trade "
+            + "with"));
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, true, 150, 0));
+        assertEquals(200, stock.getVolume());
+        assertEquals(10.50, stock.getLastPrice(), 1e-9);
+        assertEquals(0, stock.getRestingOrders().size());
+
+        java.io.ByteArrayOutputStream bytes =
+            new java.io.ByteArrayOutputStream();
+        ExchangeJournal.writeList(new java.io.DataOutputStream(bytes), 1, 0,
+            stock);
+        ExchangeJournal event = new ExchangeJournal();
+        event.read(new java.io.DataInputStream(new java.io.ByteArrayInputStream(
+            bytes.toByteArray())));
+        assertEquals(MarketOrderProtection.REJECT,
+            event.getMarketOrderProtection());
+
+        OffHeapStock offHeap = new OffHeapStock("NSTL", "Nasty Loops Inc.",
+            1.00);
+        offHeap.setMarketOrderProtection(MarketOrderProtection.PROTECT, 500);
+        exchange.listStock(offHeap);
+        offHeap.placeOrder(new TradeOrder(seller, "NSTL", false, false, 100,
+            1.02));
+        offHeap.placeOrder(new TradeOrder(buyer, "NSTL", true, true, 300, 0));
+        assertEquals(100, offHeap.getVolume());
+        assertEquals(0, offHeap.getBook().size());
+        assertTrue(buyer.mailbox().contains(
+            "Cancelled:\tBuy NSTL(Nasty Loops Inc.)\n200 shares at $1.07"));
+    }
+
+    // --Test book snapshots
+
+    @Test public void bookSnapshotStaysPutWhileHeld()
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setGarbageFree(true);
+        Trader buyer = new Trader(null, "buyer", "buyer");
+        Trader seller = new Trader(null, "seller", "seller");
+        assertNull(stock.acquireBookSnapshot());
+        stock.setBookSnapshots(true);
+
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 100, 9.90));
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 20, 9.90));
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, true, 5, 0));
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 50,
+            10.10));
+        BookSnapshot first = stock.acquireBookSnapshot();
+        assertEquals(2, first.getOrderCount(true));
+        assertEquals(1, first.getOrderCount(false));
+        assertEquals(0, first.getMarketShares(false));
+        assertEquals(Long.valueOf(115), first.getLevels(true).get(990L));
+        assertEquals(10.10, first.getPrice(false, 0), 1e-9);
+
+        stock.placeOrder(new TradeOrder(seller, "GGGL", false, false, 125,
+            9.90));
+        BookSnapshot second = stock.acquireBookSnapshot();
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals(0, second.getOrderCount(true));
+        assertEquals(2, second.getOrderCount(false));
+        assertEquals(120, second.getVolume());
+        assertEquals(2, first.getOrderCount(true));
+        assertEquals(5, first.getVolume());
+        assertEquals(115, first.getShares(true, 0) + first.getShares(true, 1));
+
+        first.release();
+        second.release();
+        stock.placeOrder(new TradeOrder(buyer, "GGGL", true, false, 10, 9.80));
+        BookSnapshot third = stock.acquireBookSnapshot();
+        assertSame(first, third);
+        assertEquals(1, third.getOrderCount(true));
+        third.release();
+        stock.setBookSnapshots(false);
+        assertNull(stock.acquireBookSnapshot());
+    }
+
+
+    @Test public void bookSnapshotsReadWhileMatching() throws Exception
+    {
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setGarbageFree(true);
+        stock.setBookSnapshots(true);
+        Trader buyer = new Trader(null, "buyer", "buyer");
+        Trader seller = new Trader(null, "seller", "seller");
+        java.util.concurrent.atomic.AtomicBoolean done =
+            new java.util.concurrent.atomic.AtomicBoolean();
+        java.util.concurrent.atomic.AtomicInteger bad =
+            new java.util.concurrent.atomic.AtomicInteger();
+        Thread reader = new Thread(() ->
+        {
+            long version = 0;
+            while ( !done.get() )
+            {
+                BookSnapshot snapshot = stock.acquireBookSnapshot();
+                java.util.TreeMap<Long, Long> bids = snapshot.getLevels(true);
+                java.util.TreeMap<Long, Long> asks = snapshot.getLevels(false);
+                if ( snapshot.getVersion() < version || !bids.isEmpty()
+                    && !asks.isEmpty() && bids.firstKey() >= asks.firstKey() )
+                {
+                    bad.incrementAndGet();
+                }
+                version = snapshot.getVersion();
+                snapshot.release();
+            }
+        });
+        reader.start();
+        for ( int i = 0; i < 20000; i++ )
+        {
+            boolean buy = i % 2 == 0;
+            stock.placeOrder(new TradeOrder(buy ? buyer : seller, "GGGL", buy,
+                false, 1 + i % 5, (buy ? 1000 - i % 7 : 995 + i % 7) / 100.0));
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(0, bad.get());
+        assertTrue(stock.getVolume() > 0);
+    }
+
+    // --Test order store
+
+    @Test public void traderListsOpenOrdersAndFills()
+    {
+        StockExchange exchange = new StockExchange();
+        exchange.listStock("GGGL", "Giggle.com", 10.00);
+        Brokerage broke = new Brokerage(exchange);
+        broke.addUser("buyer", "buyer");
+        broke.addUser("seller", "seller");
+        Trader buyer = broke.getTraders().get("buyer");
+        Trader seller = broke.getTraders().get("seller");
+
+        TradeOrder first = new TradeOrder(buyer, "GGGL", true, false, 100,
+            10.00);
+        TradeOrder second = new TradeOrder(buyer, "GGGL", true, false, 100,
+            9.90);
+        buyer.placeOrder(first);
+        buyer.placeOrder(second);
+        assertEquals(2, buyer.getOpenOrders().size());
+        assertNotEquals(0, first.getOrderId());
+        assertNotEquals(first.getOrderId(), second.getOrderId());
+        assertSame(second, broke.getOpenOrder(buyer, second.getOrderId()));
+        assertTrue(seller.getOpenOrders().isEmpty());
+
+        seller.placeOrder(new TradeOrder(seller, "GGGL", false, false, 150,
+            9.90));
+        assertEquals(java.util.List.of(second), buyer.getOpenOrders());
+        assertNull(broke.getOpenOrder(buyer, first.getOrderId()));
+        java.util.List<OrderStore.Fill> fills = buyer.getRecentFills(10);
+        assertEquals(2, fills.size());
+        assertEquals("Bought 50 GGGL at 9.90", fills.get(0).toString());
+        assertEquals(second.getOrderId(), fills.get(0).getOrderId());
+        assertEquals("Bought 100 GGGL at 9.90", fills.get(1).toString());
+        assertEquals(1, buyer.getRecentFills(1).size());
+        assertEquals("Sold 50 GGGL at 9.90", seller.getRecentFills(10).get(0)
+            .toString());
+
+        assertTrue(buyer.cancelOrder(second));
+        assertTrue(buyer.getOpenOrders().isEmpty());
+    }
+
+
+    @Test public void orderStoreReusesSlotsAndKeepsLatestFills()
+    {
+        OrderStore store = new OrderStore(2);
+        Trader trader = new Trader(null, "trader", "trader");
+        TradeOrder a = new TradeOrder(trader, "GGGL", true, false, 10, 10.00);
+        TradeOrder b = new TradeOrder(trader, "GGGL", false, false, 10, 10.00);
+        store.open(a);
+        long first = a.getOrderId();
+        store.open(a);
+        assertEquals(first, a.getOrderId());
+        store.close(a);
+        store.close(a);
+        assertEquals(0, store.getOpenCount());
+        store.open(b);
+        assertEquals((int)first, (int)b.getOrderId());
+        assertNotEquals(first, b.getOrderId());
+        assertNull(store.getOpenOrder(first));
+        assertSame(b, store.getOpenOrder(b.getOrderId()));
+
+        store.fill(a, 1, 10.00);
+        store.fill(b, 2, 10.01);
+        store.fill(b, 3, 10.02);
+        java.util.List<OrderStore.Fill> fills = store.getRecentFills(5);
+        assertEquals(2, fills.size());
+        assertEquals(3, fills.get(0).getShares());
+        assertEquals(2, fills.get(1).getShares());
+        assertFalse(fills.get(1).isBuy());
+    }
+
+    // --Test wire protocol
+
+    @Test public void wireProtocolRoundTripsEveryMessage()
+    {
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(256);
+        Trader trader = new Trader(null, "trader", "trader");
+        TradeOrder order = new TradeOrder(trader, "GGGL", false, false, 500,
+            10.07);
+        order.setInstrumentId(4);
+        order.setTimeInForce(TimeInForce.GTT);
+        order.setExpireTime(60000);
+        order.setStopPrice(9.95);
+        order.setDisplayShares(100);
+        WireProtocol.NewOrder newOrder = new WireProtocol.NewOrder()
+            .encode(buffer, 8, 77, order);
+        assertEquals(WireProtocol.NEW_ORDER, WireProtocol.typeOf(buffer, 8));
+        assertEquals(WireProtocol.NewOrder.LENGTH,
+            WireProtocol.lengthOf(buffer, 8));
+        TradeOrder copy = new WireProtocol.NewOrder().wrap(buffer, 8)
+            .decodeInto(new TradeOrder(null, "XXX", true, true, 0, 0), trader,
+                "GGGL");
+        assertEquals(77, newOrder.getClientOrderId());
+        assertFalse(copy.isBuy());
+        assertFalse(copy.isMarket());
+        assertEquals(4, copy.getInstrumentId());
+        assertEquals(100, copy.getShares());
+        assertEquals(400, copy.getHiddenShares());
+        assertEquals(10.07, copy.getPrice(), 1e-9);
+        assertEquals(9.95, copy.getStopPrice(), 1e-9);
+        assertEquals(TimeInForce.GTT, copy.getTimeInForce());
+        assertEquals(60000, copy.getExpireTime());
+
+        TradeOrder market = new TradeOrder(null, "GGGL", true, true, 10, 0);
+        newOrder.encode(buffer, 0, 78, market);
+        assertTrue(newOrder.isBuy());
+        assertTrue(newOrder.isMarket());
+        assertTrue(Double.isNaN(newOrder.getPrice()));
+        copy = newOrder.decodeInto(copy, null, "GGGL");
+        assertTrue(copy.isMarket());
+        assertFalse(copy.isStop());
+        assertFalse(copy.isIceberg());
+
+        WireProtocol.OrderReference ack = new WireProtocol.OrderReference()
+            .encode(buffer, 64, WireProtocol.ACK, 3, 77, 1L << 32 | 5, 4);
+        ack = new WireProtocol.OrderReference().wrap(buffer, 64);
+        assertEquals(WireProtocol.ACK, WireProtocol.typeOf(buffer, 64));
+        assertEquals(3, ack.getTraderId());
+        assertEquals(77, ack.getClientOrderId());
+        assertEquals(1L << 32 | 5, ack.getOrderId());
+        assertEquals(4, ack.getInstrumentId());
+
+        order.setOrderId(9);
+        order.subtractShares(40);
+        WireProtocol.Fill fill = new WireProtocol.Fill()
+            .encode(buffer, 96, order, 40, 10.07);
+        fill = new WireProtocol.Fill().wrap(buffer, 96);
+        assertFalse(fill.isBuy());
+        assertEquals(9, fill.getOrderId());
+        assertEquals(40, fill.getShares());
+        assertEquals(10.07, fill.getPrice(), 1e-9);
+        assertEquals(460, fill.getSharesLeft());
+
+        new WireProtocol.Reject().encode(buffer, 136, 3, 78, 4,
+            WireProtocol.RISK_LIMIT);
+        WireProtocol.Reject reject = new WireProtocol.Reject().wrap(buffer,
+            136);
+        assertEquals(WireProtocol.RISK_LIMIT, reject.getReason());
+        assertEquals(78, reject.getClientOrderId());
+        assertEquals(3, reject.getTraderId());
+
+        TopOfBook top = new TopOfBook();
+        top.update(Double.NaN, 50, 10.10, 300);
+        new WireProtocol.Quote().encode(buffer, 160, 3, 4, top, 10.05, 1200);
+        WireProtocol.Quote quote = new WireProtocol.Quote().wrap(buffer, 160);
+        assertTrue(Double.isNaN(quote.getBidPrice()));
+        assertEquals(50, quote.getBidSize());
+        assertEquals(10.10, quote.getAskPrice(), 1e-9);
+        assertEquals(300, quote.getAskSize());
+        assertEquals(10.05, quote.getLastPrice(), 1e-9);
+        assertEquals(1200, quote.getVolume());
+        assertEquals(4, quote.getInstrumentId());
+    }
+
+
+    @Test public void wireProtocolLeavesTheBufferOrderAlone()
+    {
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(64);
+        TradeOrder order = new TradeOrder(null, "GGGL", true, false, 100,
+            10.05);
+        order.setInstrumentId(3);
+        WireProtocol.NewOrder message = new WireProtocol.NewOrder().encode(
+            buffer, 0, 0x0102030405060708L, order);
+        assertEquals(java.nio.ByteOrder.BIG_ENDIAN, buffer.order());
+        assertEquals(0, buffer.position());
+        assertEquals(WireProtocol.NewOrder.LENGTH, buffer.get(2));
+        assertEquals(0, buffer.get(3));
+        assertEquals(0x0102030405060708L, buffer.duplicate().order(
+            java.nio.ByteOrder.LITTLE_ENDIAN).getLong(8));
+        assertEquals(0x0102030405060708L, message.getClientOrderId());
+        assertEquals(WireProtocol.NewOrder.LENGTH, WireProtocol.lengthOf(
+            buffer, 0));
+
+        java.nio.ByteBuffer little = buffer.duplicate().order(
+            java.nio.ByteOrder.LITTLE_ENDIAN);
+        assertEquals(100, new WireProtocol.NewOrder().wrap(little, 0)
+            .getShares());
+        assertEquals(java.nio.ByteOrder.BIG_ENDIAN, buffer.order());
+    }
+
+
+    @Test public void wireProtocolRejectsAnUnknownTimeInForce()
+    {
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(64);
+        TradeOrder order = new TradeOrder(null, "GGGL", true, false, 100,
+            10.05);
+        order.setInstrumentId(3);
+        WireProtocol.NewOrder message = new WireProtocol.NewOrder().encode(
+            buffer, 0, 1, order);
+        TradeOrder into = new TradeOrder(null, "XXX", false, true, 7, 0);
+        for ( byte bad : new byte[] { (byte)TimeInForce.values().length, -1 } )
+        {
+            buffer.put(44, bad);
+            try
+            {
+                message.decodeInto(into, null, "GGGL");
+                fail();
+            }
+            catch ( IllegalArgumentException e )
+            {
+                // expected
+            }
+            assertEquals(7, into.getShares());
+            assertEquals("XXX", into.getSymbol());
+        }
+    }
+
+
+    @Test public void wireProtocolCodecsAllocateNothing()
+    {
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocateDirect(128);
+        TradeOrder order = new TradeOrder(null, "GGGL", true, false, 100,
+            10.05);
+        order.setInstrumentId(1);
+        TradeOrder decoded = new TradeOrder(null, "GGGL", true, false, 0, 0);
+        WireProtocol.NewOrder newOrder = new WireProtocol.NewOrder();
+        WireProtocol.Fill fill = new WireProtocol.Fill();
+        long[] sum = new long[1];
+        long calls = assertGarbageFree(i -> sum[0] += roundTrip(buffer,
+            newOrder, fill, order, decoded, i), 200000);
+        assertEquals(calls * 110, sum[0]);
+    }
+
+
+    // Encodes and decodes a new order and a fill.
+    private static int roundTrip(java.nio.ByteBuffer buffer,
+        WireProtocol.NewOrder newOrder, WireProtocol.Fill fill,
+        TradeOrder order, TradeOrder decoded, int i)
+    {
+        newOrder.encode(buffer, 0, i, order);
+        newOrder.wrap(buffer, 0).decodeInto(decoded, null, "GGGL");
+        fill.encode(buffer, 64, decoded, 10, 10.05);
+        return decoded.getShares() + fill.wrap(buffer, 64).getShares();
+    }
+
     // Remove block comment below to run JUnit test in console
 /*
     public static junit.framework.Test suite()
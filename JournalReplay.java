@@ -0,0 +1,359 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Replays a journal recorded by a ReplicatedExchange (see recordTo) on one
+ * thread, with no network, no sender thread and no clock of its own: every
+ * event is applied at the time it was recorded, so a replay matches the same
+ * orders in the same order and produces the same fills, run after run. This
+ * makes a recorded session a reproducible test case for a matching bug and a
+ * benchmark of the matching path alone.
+ *
+ * <p>
+ * The recording holds the fills of each event after the event. The replay
+ * collects the fills its own stocks make while applying an event and checks
+ * them against the recorded ones: symbol, buy and sell order, shares and
+ * price. The stocks are switched to garbage-free mode so that printing books
+ * does not swamp the timing. Orders are known by their journal ids; an
+ * off-heap stock fills with views of its resting orders, so those fills carry
+ * journal id 0 on both sides of the recording.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class JournalReplay
+    implements FillListener
+{
+    private ReplicatedExchange exchange;
+    private String[]           symbols;
+    private long[]             buyIds;
+    private long[]             sellIds;
+    private int[]              shares;
+    private long[]             cents;
+    private int                fills;
+    private int                checked;
+    private long               events;
+    private long               fillCount;
+    private long               mismatches;
+    private String             firstMismatch;
+    private long               nanos;
+
+
+    /**
+     * Constructs a replay on a new exchange on standby.
+     */
+    public JournalReplay()
+    {
+        exchange = new ReplicatedExchange();
+        exchange.standBy();
+        symbols = new String[64];
+        buyIds = new long[64];
+        sellIds = new long[64];
+        shares = new int[64];
+        cents = new long[64];
+    }
+
+
+    /**
+     * Applies every event of a recorded journal and checks the fills.
+     *
+     * @param in - the recording.
+     * @return true if every fill matched the recording; false otherwise.
+     * @throws IOException if the recording cannot be read.
+     */
+    public boolean replay(InputStream in) throws IOException
+    {
+        DataInputStream data = new DataInputStream(in);
+        ExchangeJournal event = new ExchangeJournal();
+        long start = System.nanoTime();
+        while ( true )
+        {
+            try
+            {
+                event.read(data);
+            }
+            catch ( EOFException e )
+            {
+                break;
+            }
+            if ( event.getType() == ExchangeJournal.FILL )
+            {
+                check(event);
+                continue;
+            }
+            endOfEvent();
+            if ( event.getType() == ExchangeJournal.HEARTBEAT )
+            {
+                continue;
+            }
+            exchange.apply(event);
+            events++;
+            if ( event.getType() == ExchangeJournal.LIST )
+            {
+                Stock stock = exchange.getStock(exchange.getInstrumentId(event
+                    .getSymbol()));
+                stock.setGarbageFree(true);
+                stock.setFillListener(this);
+            }
+        }
+        endOfEvent();
+        nanos += System.nanoTime() - start;
+        return mismatches == 0;
+    }
+
+
+    /**
+     * Collects a fill made while applying an event.
+     *
+     * @param stock     - the stock that traded.
+     * @param buy       - the buy order.
+     * @param sell      - the sell order.
+     * @param numShares - the number of shares traded.
+     * @param price     - the price of the trade.
+     */
+    public void onFill(
+        Stock stock,
+        TradeOrder buy,
+        TradeOrder sell,
+        int numShares,
+        double price)
+    {
+        if ( fills == symbols.length )
+        {
+            grow(fills * 2);
+        }
+        symbols[fills] = stock.getStockSymbol();
+        buyIds[fills] = buy.getJournalId();
+        sellIds[fills] = sell.getJournalId();
+        shares[fills] = numShares;
+        cents[fills] = Math.round(price * 100);
+        fills++;
+        fillCount++;
+    }
+
+
+    /**
+     * Returns the exchange the journal is replayed on.
+     *
+     * @return the exchange.
+     */
+    public ReplicatedExchange getExchange()
+    {
+        return exchange;
+    }
+
+
+    /**
+     * Returns the number of events applied so far.
+     *
+     * @return the event count.
+     */
+    public long getEvents()
+    {
+        return events;
+    }
+
+
+    /**
+     * Returns the number of fills made so far.
+     *
+     * @return the fill count.
+     */
+    public long getFills()
+    {
+        return fillCount;
+    }
+
+
+    /**
+     * Returns the number of fills that did not match the recording, counting
+     * the recorded fills that were not made and the other way round.
+     *
+     * @return the mismatch count.
+     */
+    public long getMismatches()
+    {
+        return mismatches;
+    }
+
+
+    /**
+     * Returns a description of the first fill that did not match.
+     *
+     * @return the first mismatch, or null if there has been none.
+     */
+    public String getFirstMismatch()
+    {
+        return firstMismatch;
+    }
+
+
+    /**
+     * Returns the time spent replaying, reading the recording included.
+     *
+     * @return the time in nanoseconds.
+     */
+    public long getNanos()
+    {
+        return nanos;
+    }
+
+
+    /**
+     * Runs from the command line. "JournalReplay record file orders" records
+     * a session of random orders and cancels on a few stocks to a file;
+     * "JournalReplay replay file" replays a recording from memory, prints
+     * the throughput and exits with status 1 if the fills did not match.
+     *
+     * @param args - the command and its arguments.
+     * @throws IOException if the file cannot be written or read.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if ( args.length == 3 && args[0].equals("record") )
+        {
+            record(args[1], Integer.parseInt(args[2]));
+            return;
+        }
+        if ( args.length != 2 || !args[0].equals("replay") )
+        {
+            System.out.println("Usage: JournalReplay record file orders\n" +
+                "       JournalReplay replay file");
+            return;
+        }
+        byte[] journal = Files.readAllBytes(Paths.get(args[1]));
+        JournalReplay replay = new JournalReplay();
+        boolean matched = replay.replay(new ByteArrayInputStream(journal));
+        long nanos = Math.max(replay.getNanos(), 1);
+        System.out.println(replay.getEvents() + " events, " + replay
+            .getFills() + " fills in " + nanos / 1000000 + " ms: " + replay
+                .getEvents() * 1000000000L / nanos + " events/s, " + nanos
+                    / Math.max(replay.getEvents(), 1) + " ns each");
+        if ( !matched )
+        {
+            System.out.println(replay.getMismatches() + " mismatched fills, "
+                + "first: " + replay.getFirstMismatch());
+            System.exit(1);
+        }
+    }
+
+
+    // Records a session of random limit orders and cancels.
+    private static void record(String file, int orders) throws IOException
+    {
+        String[] symbols = { "GGGL", "NSTL", "MSFT", "AAPL" };
+        ReplicatedExchange exchange = new ReplicatedExchange();
+        exchange.recordTo(new FileOutputStream(file));
+        for ( String symbol : symbols )
+        {
+            Stock stock = new Stock(symbol, symbol + " Inc.", 10.00);
+            stock.setGarbageFree(true);
+            exchange.listStock(stock);
+        }
+        Brokerage brokerage = new Brokerage(exchange);
+        brokerage.addUser("buyer", "buyer");
+        brokerage.addUser("seller", "seller");
+        Trader buyer = brokerage.getTraders().get("buyer");
+        Trader seller = brokerage.getTraders().get("seller");
+        java.util.Random random = new java.util.Random(42);
+        TradeOrder[] recent = new TradeOrder[64];
+        for ( int i = 0; i < orders; i++ )
+        {
+            if ( i > recent.length && random.nextInt(4) == 0 )
+            {
+                exchange.cancelOrder(recent[random.nextInt(recent.length)]);
+            }
+            boolean buy = random.nextBoolean();
+            TradeOrder order = new TradeOrder(buy ? buyer : seller,
+                symbols[random.nextInt(symbols.length)], buy, false, 1
+                    + random.nextInt(100), 9.50 + random.nextInt(100) / 100.0);
+            recent[i % recent.length] = order;
+            exchange.placeOrder(order);
+        }
+        exchange.closeRecording();
+        System.out.println("Recorded " + exchange.getSequence() + " events to "
+            + file);
+    }
+
+
+    // Checks a recorded fill against the next fill made by the replay.
+    private void check(ExchangeJournal recorded)
+    {
+        if ( checked == fills )
+        {
+            mismatch("recorded fill not made: " + describe(recorded
+                .getSymbol(), recorded.getJournalId(), recorded
+                    .getSellJournalId(), recorded.getShares(), Math.round(
+                        recorded.getPrice() * 100)));
+            return;
+        }
+        int i = checked++;
+        if ( !symbols[i].equals(recorded.getSymbol()) || buyIds[i] != recorded
+            .getJournalId() || sellIds[i] != recorded.getSellJournalId()
+            || shares[i] != recorded.getShares() || cents[i] != Math.round(
+                recorded.getPrice() * 100) )
+        {
+            mismatch("made " + describe(symbols[i], buyIds[i], sellIds[i],
+                shares[i], cents[i]) + ", recorded " + describe(recorded
+                    .getSymbol(), recorded.getJournalId(), recorded
+                        .getSellJournalId(), recorded.getShares(), Math
+                            .round(recorded.getPrice() * 100)));
+        }
+    }
+
+
+    // Counts the fills of the last event that the recording did not have and
+    // starts collecting the fills of the next one.
+    private void endOfEvent()
+    {
+        if ( checked < fills )
+        {
+            mismatch("fill not recorded: " + describe(symbols[checked],
+                buyIds[checked], sellIds[checked], shares[checked],
+                cents[checked]));
+            mismatches += fills - checked - 1;
+        }
+        fills = 0;
+        checked = 0;
+    }
+
+
+    private void mismatch(String description)
+    {
+        mismatches++;
+        if ( firstMismatch == null )
+        {
+            firstMismatch = "event " + exchange.getSequence() + ", "
+                + description;
+        }
+    }
+
+
+    private static String describe(String symbol, long buyId, long sellId,
+        int numShares, long priceCents)
+    {
+        return symbol + " " + numShares + " shares at " + priceCents + "c, buy "
+            + buyId + ", sell " + sellId;
+    }
+
+
+    // Makes room for a given number of fills per event.
+    private void grow(int capacity)
+    {
+        symbols = Arrays.copyOf(symbols, capacity);
+        buyIds = Arrays.copyOf(buyIds, capacity);
+        sellIds = Arrays.copyOf(sellIds, capacity);
+        shares = Arrays.copyOf(shares, capacity);
+        cents = Arrays.copyOf(cents, capacity);
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * What a stock does with a market order placed during continuous trading,
+ * so that a market order cannot wait in a thin book and then trade far from
+ * the price it was placed at.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public enum MarketOrderProtection
+{
+    /**
+     * The order trades with whatever the book holds and rests until it is
+     * filled.
+     */
+    NONE,
+
+    /**
+     * The order becomes an immediate-or-cancel limit order at the protection
+     * price: the best limit price on the other side of the book, or the last
+     * price if there is none, moved against the order by the protection
+     * width.
+     */
+    PROTECT,
+
+    /**
+     * The order is rejected when the other side of the book has no limit
+     * orders; otherwise it trades with what there is and the rest is
+     * cancelled.
+     */
+    REJECT
+}
@@ -0,0 +1,260 @@
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers messages to traders on delivery threads of its own, so that the
+ * thread that matches orders only has to queue a message instead of waiting
+ * for a trader's mailbox and window. Traders are spread over the delivery
+ * threads by id, and each thread has its own bounded queue; one trader's
+ * messages always go through the same thread and so arrive in the order they
+ * were published. A delivery thread takes whatever has piled up in its queue
+ * as one batch. Publishing blocks while a queue is full, which holds back a
+ * producer that is far ahead of delivery rather than letting the queue grow
+ * without limit.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class MessageDispatcher
+{
+    private static final int BATCH_SIZE = 256;
+
+    private Shard[] shards;
+
+
+    /**
+     * Constructs a dispatcher with a given number of delivery threads, each
+     * with a queue of 65,536 messages, and starts the threads.
+     *
+     * @param threads - the number of delivery threads.
+     */
+    public MessageDispatcher(int threads)
+    {
+        this(threads, 1 << 16);
+    }
+
+
+    /**
+     * Constructs a dispatcher with a given number of delivery threads and
+     * queue size, and starts the threads.
+     *
+     * @param threads  - the number of delivery threads.
+     * @param capacity - the number of messages each queue holds.
+     */
+    public MessageDispatcher(int threads, int capacity)
+    {
+        if ( threads < 1 || capacity < 1 )
+        {
+            throw new IllegalArgumentException();
+        }
+        shards = new Shard[threads];
+        for ( int i = 0; i < threads; i++ )
+        {
+            shards[i] = new Shard("SafeTrade-delivery-" + i, capacity);
+            shards[i].start();
+        }
+    }
+
+
+    /**
+     * Queues a message for a trader.
+     *
+     * @param trader - the trader to tell.
+     * @param msg    - the message.
+     */
+    public void publish(Trader trader, String msg)
+    {
+        shards[(trader.getId() & Integer.MAX_VALUE) % shards.length]
+            .publish(new Message(trader, msg));
+    }
+
+
+    /**
+     * Waits until every message published before this call has been
+     * delivered.
+     */
+    public void flush()
+    {
+        long[] published = new long[shards.length];
+        for ( int i = 0; i < shards.length; i++ )
+        {
+            published[i] = shards[i].published.get();
+        }
+        for ( int i = 0; i < shards.length; i++ )
+        {
+            shards[i].awaitDelivered(published[i]);
+        }
+    }
+
+
+    /**
+     * Delivers the messages still queued and stops the delivery threads.
+     * Nothing may be published after this.
+     */
+    public void shutdown()
+    {
+        for ( Shard shard : shards )
+        {
+            shard.publish(Message.STOP);
+        }
+        for ( Shard shard : shards )
+        {
+            try
+            {
+                shard.join();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of messages delivered so far.
+     *
+     * @return the number of messages handed to traders.
+     */
+    public long getDelivered()
+    {
+        long delivered = 0;
+        for ( Shard shard : shards )
+        {
+            delivered += shard.getDelivered();
+        }
+        return delivered;
+    }
+
+
+    // A message on its way to a trader.
+    private static class Message
+    {
+        private static final Message STOP = new Message(null, null);
+
+        private Trader trader;
+        private String text;
+
+
+        private Message(Trader trader, String text)
+        {
+            this.trader = trader;
+            this.text = text;
+        }
+    }
+
+
+    // A delivery thread and its queue.
+    private static class Shard
+        extends Thread
+    {
+        private BlockingQueue<Message> queue;
+        private AtomicLong             published;
+        private Object                 lock;
+        private long                   delivered;
+
+
+        private Shard(String name, int capacity)
+        {
+            super(name);
+            setDaemon(true);
+            queue = new ArrayBlockingQueue<>(capacity);
+            published = new AtomicLong();
+            lock = new Object();
+        }
+
+
+        private void publish(Message message)
+        {
+            try
+            {
+                queue.put(message);
+                if ( message != Message.STOP )
+                {
+                    published.incrementAndGet();
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        public void run()
+        {
+            ArrayList<Message> batch = new ArrayList<>(BATCH_SIZE);
+            boolean stopping = false;
+            while ( !stopping )
+            {
+                try
+                {
+                    batch.add(queue.take());
+                }
+                catch ( InterruptedException e )
+                {
+                    return;
+                }
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                int count = 0;
+                for ( Message message : batch )
+                {
+                    if ( message == Message.STOP )
+                    {
+                        stopping = true;
+                        continue;
+                    }
+                    try
+                    {
+                        message.trader.receiveMessage(message.text);
+                    }
+                    catch ( RuntimeException ex )
+                    {
+                        System.out.println(ex);
+                    }
+                    count++;
+                }
+                batch.clear();
+                synchronized ( lock )
+                {
+                    delivered += count;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+
+        private void awaitDelivered(long count)
+        {
+            synchronized ( lock )
+            {
+                while ( delivered < count && isAlive() )
+                {
+                    try
+                    {
+                        lock.wait(100);
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+
+        private long getDelivered()
+        {
+            synchronized ( lock )
+            {
+                return delivered;
+            }
+        }
+    }
+}
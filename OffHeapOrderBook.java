@@ -0,0 +1,561 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * An order book that keeps its resting orders outside of the Java heap. Each
+ * order is a fixed-width record in a slab of direct memory, and the orders at
+ * one price form a doubly linked list threaded through the records by index,
+ * so a resting order costs 40 bytes of native memory and no Java object. Only
+ * the price levels are indexed on the heap (one sorted map entry per price,
+ * not per order). Orders are referred to by handle, the index of their record;
+ * records of finished orders are reused, so a handle is only valid together
+ * with the order id it was added with.
+ *
+ * <p>
+ * Market orders rest at a price level above every limit price (buy side) or
+ * below every limit price (sell side), so they are matched first, as with
+ * PriceComparator.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class OffHeapOrderBook
+{
+    /**
+     * The price of a resting market buy order.
+     */
+    public static final long MARKET_BUY  = Long.MAX_VALUE;
+
+    /**
+     * The price of a resting market sell order.
+     */
+    public static final long MARKET_SELL = Long.MIN_VALUE;
+
+    private static final int RECORD_SIZE = 40;
+    private static final int ORDER_ID    = 0;
+    private static final int PRICE       = 8;
+    private static final int SHARES      = 16;
+    private static final int TRADER      = 20;
+    private static final int NEXT        = 24;
+    private static final int PREV        = 28;
+    private static final int LEVEL       = 32;
+    private static final int FLAGS       = 36;
+
+    private static final int IN_USE = 1;
+    private static final int BUY    = 2;
+
+    private static final int LEVEL_SIZE   = 32;
+    private static final int LEVEL_PRICE  = 0;
+    private static final int LEVEL_SHARES = 8;
+    private static final int LEVEL_HEAD   = 16;
+    private static final int LEVEL_TAIL   = 20;
+    private static final int LEVEL_COUNT  = 24;
+    private static final int LEVEL_NEXT   = 28;
+
+    private int                     slabShift;
+    private int                     slabMask;
+    private ByteBuffer[]            slabs;
+    private int                     records;
+    private int                     freeRecord;
+    private ByteBuffer              levels;
+    private int                     levelCount;
+    private int                     freeLevel;
+    private TreeMap<Long, Integer>  bids;
+    private TreeMap<Long, Integer>  asks;
+    private int                     bestBid;
+    private int                     bestAsk;
+    private int                     size;
+
+
+    /**
+     * Constructs an empty book with slabs of 65,536 records.
+     */
+    public OffHeapOrderBook()
+    {
+        this(16);
+    }
+
+
+    /**
+     * Constructs an empty book with slabs of a given size.
+     *
+     * @param slabShift - log2 of the number of records per slab.
+     */
+    public OffHeapOrderBook(int slabShift)
+    {
+        if ( slabShift < 4 || slabShift > 24 )
+        {
+            throw new IllegalArgumentException();
+        }
+        this.slabShift = slabShift;
+        slabMask = (1 << slabShift) - 1;
+        slabs = new ByteBuffer[4];
+        records = 0;
+        freeRecord = -1;
+        levels = allocate(64 * LEVEL_SIZE);
+        levelCount = 0;
+        freeLevel = -1;
+        bids = new TreeMap<>();
+        asks = new TreeMap<>();
+        bestBid = -1;
+        bestAsk = -1;
+        size = 0;
+    }
+
+
+    /**
+     * Adds an order at the back of its price level.
+     *
+     * @param buy      - true for a buy order; false for a sell order.
+     * @param price    - the limit price in cents, or MARKET_BUY or MARKET_SELL.
+     * @param shares   - the number of shares, which must be positive.
+     * @param traderId - the id of the trader who placed the order.
+     * @param orderId  - the id of the order.
+     * @return the handle of the new record.
+     */
+    public int add(boolean buy, long price, int shares, int traderId,
+        long orderId)
+    {
+        if ( shares <= 0 )
+        {
+            throw new IllegalArgumentException();
+        }
+        TreeMap<Long, Integer> side = buy ? bids : asks;
+        Integer found = side.get(price);
+        int level;
+        if ( found == null )
+        {
+            level = newLevel(price);
+            side.put(price, level);
+            if ( buy && (bestBid < 0 || price > levelPrice(bestBid)) )
+            {
+                bestBid = level;
+            }
+            else if ( !buy && (bestAsk < 0 || price < levelPrice(bestAsk)) )
+            {
+                bestAsk = level;
+            }
+        }
+        else
+        {
+            level = found;
+        }
+
+        int handle = newRecord();
+        ByteBuffer slab = slab(handle);
+        int at = offset(handle);
+        int tail = levels.getInt(level * LEVEL_SIZE + LEVEL_TAIL);
+        slab.putLong(at + ORDER_ID, orderId);
+        slab.putLong(at + PRICE, price);
+        slab.putInt(at + SHARES, shares);
+        slab.putInt(at + TRADER, traderId);
+        slab.putInt(at + NEXT, -1);
+        slab.putInt(at + PREV, tail);
+        slab.putInt(at + LEVEL, level);
+        slab.putInt(at + FLAGS, buy ? IN_USE | BUY : IN_USE);
+        if ( tail < 0 )
+        {
+            levels.putInt(level * LEVEL_SIZE + LEVEL_HEAD, handle);
+        }
+        else
+        {
+            slab(tail).putInt(offset(tail) + NEXT, handle);
+        }
+        levels.putInt(level * LEVEL_SIZE + LEVEL_TAIL, handle);
+        addToLevel(level, shares, 1);
+        size++;
+        return handle;
+    }
+
+
+    /**
+     * Takes a number of shares off a resting order, removing the order once
+     * it has none left.
+     *
+     * @param handle - the handle of the order.
+     * @param shares - the number of shares filled or cancelled.
+     */
+    public void reduce(int handle, int shares)
+    {
+        ByteBuffer slab = slab(handle);
+        int at = offset(handle);
+        int left = slab.getInt(at + SHARES) - shares;
+        if ( shares <= 0 || left < 0 )
+        {
+            throw new IllegalArgumentException();
+        }
+        if ( left == 0 )
+        {
+            remove(handle);
+        }
+        else
+        {
+            slab.putInt(at + SHARES, left);
+            addToLevel(slab.getInt(at + LEVEL), -shares, 0);
+        }
+    }
+
+
+    /**
+     * Removes a resting order if the handle still refers to it.
+     *
+     * @param handle  - the handle of the order.
+     * @param orderId - the id the order was added with.
+     * @return true if the order was removed; false if it was no longer
+     * resting.
+     */
+    public boolean cancel(int handle, long orderId)
+    {
+        if ( !contains(handle, orderId) )
+        {
+            return false;
+        }
+        remove(handle);
+        return true;
+    }
+
+
+    /**
+     * Returns true if a handle refers to a resting order with a given id.
+     *
+     * @param handle  - the handle of the order.
+     * @param orderId - the id the order was added with.
+     * @return true if the order is resting; false otherwise.
+     */
+    public boolean contains(int handle, long orderId)
+    {
+        if ( handle < 0 || handle >= records )
+        {
+            return false;
+        }
+        ByteBuffer slab = slab(handle);
+        int at = offset(handle);
+        return (slab.getInt(at + FLAGS) & IN_USE) != 0 && slab
+            .getLong(at + ORDER_ID) == orderId;
+    }
+
+
+    /**
+     * Returns the handle of the first order at the best bid.
+     *
+     * @return the handle, or -1 if there are no buy orders.
+     */
+    public int getBestBid()
+    {
+        return bestBid < 0 ? -1 :
+            levels.getInt(bestBid * LEVEL_SIZE + LEVEL_HEAD);
+    }
+
+
+    /**
+     * Returns the handle of the first order at the best ask.
+     *
+     * @return the handle, or -1 if there are no sell orders.
+     */
+    public int getBestAsk()
+    {
+        return bestAsk < 0 ? -1 :
+            levels.getInt(bestAsk * LEVEL_SIZE + LEVEL_HEAD);
+    }
+
+
+    /**
+     * Returns the handle of the first order at the best limit price of one
+     * side, passing over the market orders resting ahead of it.
+     *
+     * @param buy - true for the buy side; false for the sell side.
+     * @return the handle, or -1 if the side holds no limit orders.
+     */
+    public int getBestLimit(boolean buy)
+    {
+        int level = buy ? bestBid : bestAsk;
+        if ( level >= 0 && levelPrice(level) == (buy ? MARKET_BUY :
+            MARKET_SELL) )
+        {
+            Long price = buy ? bids.lowerKey(MARKET_BUY) : asks.higherKey(
+                MARKET_SELL);
+            level = price == null ? -1 : (buy ? bids : asks).get(price);
+        }
+        return level < 0 ? -1 : levels.getInt(level * LEVEL_SIZE + LEVEL_HEAD);
+    }
+
+
+    /**
+     * Returns the handle of the order behind a given one at the same price.
+     *
+     * @param handle - the handle of a resting order.
+     * @return the handle of the next order, or -1 if it is the last one.
+     */
+    public int getNext(int handle)
+    {
+        return slab(handle).getInt(offset(handle) + NEXT);
+    }
+
+
+    /**
+     * Returns the total number of shares resting at the price of a given
+     * order.
+     *
+     * @param handle - the handle of a resting order.
+     * @return the shares at that price level.
+     */
+    public long getLevelShares(int handle)
+    {
+        int level = slab(handle).getInt(offset(handle) + LEVEL);
+        return levels.getLong(level * LEVEL_SIZE + LEVEL_SHARES);
+    }
+
+
+    /**
+     * Returns the id of a resting order.
+     *
+     * @param handle - the handle of the order.
+     * @return the order id.
+     */
+    public long getOrderId(int handle)
+    {
+        return slab(handle).getLong(offset(handle) + ORDER_ID);
+    }
+
+
+    /**
+     * Returns the price of a resting order.
+     *
+     * @param handle - the handle of the order.
+     * @return the price in cents, or MARKET_BUY or MARKET_SELL.
+     */
+    public long getPrice(int handle)
+    {
+        return slab(handle).getLong(offset(handle) + PRICE);
+    }
+
+
+    /**
+     * Returns true if a resting order is a market order.
+     *
+     * @param handle - the handle of the order.
+     * @return true for a market order; false for a limit order.
+     */
+    public boolean isMarket(int handle)
+    {
+        long price = getPrice(handle);
+        return price == MARKET_BUY || price == MARKET_SELL;
+    }
+
+
+    /**
+     * Returns the number of shares of a resting order.
+     *
+     * @param handle - the handle of the order.
+     * @return the shares left.
+     */
+    public int getShares(int handle)
+    {
+        return slab(handle).getInt(offset(handle) + SHARES);
+    }
+
+
+    /**
+     * Returns the trader id of a resting order.
+     *
+     * @param handle - the handle of the order.
+     * @return the id of the trader who placed the order.
+     */
+    public int getTraderId(int handle)
+    {
+        return slab(handle).getInt(offset(handle) + TRADER);
+    }
+
+
+    /**
+     * Returns true if a resting order is a buy order.
+     *
+     * @param handle - the handle of the order.
+     * @return true for a buy order; false for a sell order.
+     */
+    public boolean isBuy(int handle)
+    {
+        return (slab(handle).getInt(offset(handle) + FLAGS) & BUY) != 0;
+    }
+
+
+    /**
+     * Returns the number of resting orders.
+     *
+     * @return the number of orders in the book.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    /**
+     * Returns the number of price levels on one side of the book.
+     *
+     * @param buy - true for the buy side; false for the sell side.
+     * @return the number of distinct prices.
+     */
+    public int getLevelCount(boolean buy)
+    {
+        return (buy ? bids : asks).size();
+    }
+
+
+    /**
+     * Returns the number of bytes of native memory held by the record slabs.
+     *
+     * @return the native memory in use for orders.
+     */
+    public long getNativeBytes()
+    {
+        long bytes = 0;
+        for ( ByteBuffer slab : slabs )
+        {
+            bytes += slab == null ? 0 : slab.capacity();
+        }
+        return bytes + levels.capacity();
+    }
+
+
+    private void remove(int handle)
+    {
+        ByteBuffer slab = slab(handle);
+        int at = offset(handle);
+        int level = slab.getInt(at + LEVEL);
+        int next = slab.getInt(at + NEXT);
+        int prev = slab.getInt(at + PREV);
+        int base = level * LEVEL_SIZE;
+        if ( prev < 0 )
+        {
+            levels.putInt(base + LEVEL_HEAD, next);
+        }
+        else
+        {
+            slab(prev).putInt(offset(prev) + NEXT, next);
+        }
+        if ( next < 0 )
+        {
+            levels.putInt(base + LEVEL_TAIL, prev);
+        }
+        else
+        {
+            slab(next).putInt(offset(next) + PREV, prev);
+        }
+        addToLevel(level, -slab.getInt(at + SHARES), -1);
+        if ( levels.getInt(base + LEVEL_COUNT) == 0 )
+        {
+            removeLevel(level, (slab.getInt(at + FLAGS) & BUY) != 0);
+        }
+
+        slab.putInt(at + FLAGS, 0);
+        slab.putInt(at + NEXT, freeRecord);
+        freeRecord = handle;
+        size--;
+    }
+
+
+    private void addToLevel(int level, long shares, int count)
+    {
+        int base = level * LEVEL_SIZE;
+        levels.putLong(base + LEVEL_SHARES,
+            levels.getLong(base + LEVEL_SHARES) + shares);
+        levels.putInt(base + LEVEL_COUNT,
+            levels.getInt(base + LEVEL_COUNT) + count);
+    }
+
+
+    private long levelPrice(int level)
+    {
+        return levels.getLong(level * LEVEL_SIZE + LEVEL_PRICE);
+    }
+
+
+    private int newLevel(long price)
+    {
+        int level = freeLevel;
+        if ( level >= 0 )
+        {
+            freeLevel = levels.getInt(level * LEVEL_SIZE + LEVEL_NEXT);
+        }
+        else
+        {
+            level = levelCount++;
+            if ( levelCount * LEVEL_SIZE > levels.capacity() )
+            {
+                ByteBuffer bigger = allocate(levels.capacity() * 2);
+                bigger.put(levels.duplicate().clear());
+                levels = bigger;
+            }
+        }
+        int base = level * LEVEL_SIZE;
+        levels.putLong(base + LEVEL_PRICE, price);
+        levels.putLong(base + LEVEL_SHARES, 0);
+        levels.putInt(base + LEVEL_HEAD, -1);
+        levels.putInt(base + LEVEL_TAIL, -1);
+        levels.putInt(base + LEVEL_COUNT, 0);
+        return level;
+    }
+
+
+    private void removeLevel(int level, boolean buy)
+    {
+        TreeMap<Long, Integer> side = buy ? bids : asks;
+        side.remove(levelPrice(level));
+        if ( buy && level == bestBid )
+        {
+            bestBid = side.isEmpty() ? -1 : side.get(side.lastKey());
+        }
+        else if ( !buy && level == bestAsk )
+        {
+            bestAsk = side.isEmpty() ? -1 : side.get(side.firstKey());
+        }
+        levels.putInt(level * LEVEL_SIZE + LEVEL_NEXT, freeLevel);
+        freeLevel = level;
+    }
+
+
+    private int newRecord()
+    {
+        int handle = freeRecord;
+        if ( handle >= 0 )
+        {
+            freeRecord = slab(handle).getInt(offset(handle) + NEXT);
+            return handle;
+        }
+        handle = records++;
+        int index = handle >>> slabShift;
+        if ( index == slabs.length )
+        {
+            slabs = Arrays.copyOf(slabs, index * 2);
+        }
+        if ( slabs[index] == null )
+        {
+            slabs[index] = allocate((slabMask + 1) * RECORD_SIZE);
+        }
+        return handle;
+    }
+
+
+    private ByteBuffer slab(int handle)
+    {
+        return slabs[handle >>> slabShift];
+    }
+
+
+    private int offset(int handle)
+    {
+        return (handle & slabMask) * RECORD_SIZE;
+    }
+
+
+    private static ByteBuffer allocate(int bytes)
+    {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+}
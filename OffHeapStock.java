@@ -0,0 +1,359 @@
+import java.util.Arrays;
+
+/**
+ * A stock whose resting orders live in an OffHeapOrderBook instead of priority
+ * queues of TradeOrder objects, so that a book of tens of millions of orders
+ * does not grow the Java heap. A placed order is matched against the book
+ * right away, and whatever is left is copied into an off-heap record; the
+ * TradeOrder itself is not kept, and a pooled order goes back to its pool as
+ * soon as it has been placed. Messages and the fill listener see the resting
+ * side of a fill through a reused TradeOrder that holds a copy of its record.
+ *
+ * <p>
+ * This book trades continuously and takes good-till-cancelled limit and
+ * market orders only; other orders are rejected. Self-trade prevention is not
+ * applied. Having no auctions, it does not halt at its price band: the part
+ * of an order that would trade outside the band is cancelled instead. Market
+ * order protection is applied as in Stock, and what is left of a protected
+ * market order is cancelled rather than rested. A market order never trades
+ * with a resting market order. Orders
+ * are kept by trader id, so all traders of one stock must come from the same
+ * brokerage.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class OffHeapStock
+    extends Stock
+{
+    private static final long SERIAL_MASK = 0xFFFFFFFFL;
+
+    private OffHeapOrderBook book;
+    private Trader[]         traders;
+    private TradeOrder       view;
+    private long             sequence;
+
+
+    /**
+     * Constructs a new stock with an empty off-heap book.
+     *
+     * @param symbol - the stock symbol.
+     * @param name   - full company name.
+     * @param price  - opening price for this stock.
+     */
+    public OffHeapStock(String symbol, String name, double price)
+    {
+        this(symbol, name, price, new OffHeapOrderBook());
+    }
+
+
+    /**
+     * Constructs a new stock that keeps its orders in a given book.
+     *
+     * @param symbol - the stock symbol.
+     * @param name   - full company name.
+     * @param price  - opening price for this stock.
+     * @param book   - an empty off-heap order book.
+     */
+    public OffHeapStock(
+        String symbol,
+        String name,
+        double price,
+        OffHeapOrderBook book)
+    {
+        super(symbol, name, price);
+        this.book = book;
+        traders = new Trader[16];
+        view = new TradeOrder(null, symbol, false, false, 0, 0);
+        sequence = 0;
+    }
+
+
+    /**
+     * Places a trading order for this stock: matches it against the best
+     * orders on the other side of the book and rests whatever is left. The
+     * caller may keep an order that is not pooled in order to cancel it
+     * later, but the shares it shows are not updated as it fills.
+     *
+     * @param order - a trading order to be placed.
+     */
+    @Override
+    public synchronized void placeOrder(TradeOrder order)
+    {
+        if ( order == null )
+        {
+            return;
+        }
+        String rejection = checkOrder(order);
+        if ( rejection == null && order.isMarket() )
+        {
+            int other = book.getBestLimit(!order.isBuy());
+            rejection = protectMarketOrder(order, other < 0 ? Double.NaN :
+                book.getPrice(other) / 100.0);
+        }
+        if ( rejection != null )
+        {
+            send(order.getTrader(), "Order rejected:\t" + rejection);
+            retire(order);
+            return;
+        }
+
+        if ( !isGarbageFree() )
+        {
+            send(order.getTrader(), "New Order:\t" + describe(order));
+        }
+        long serial = ++sequence & SERIAL_MASK;
+        boolean buy = order.isBuy();
+        coalesceFillsOf(order);
+        while ( order.getShares() > 0 )
+        {
+            int other = order.isMarket() ? book.getBestLimit(!buy) : buy ?
+                book.getBestAsk() : book.getBestBid();
+            if ( other < 0 )
+            {
+                break;
+            }
+            double price = matchPrice(order, other);
+            if ( Double.isNaN(price) )
+            {
+                break;
+            }
+            if ( isOutsideBand(price) )
+            {
+                send(order.getTrader(), "Cancelled:\t" + describe(order)
+                    + " would trade at " + PriceFormat.format(price)
+                    + ", outside the price band");
+                order.subtractShares(order.getShares());
+                break;
+            }
+            int numShares = Math.min(order.getShares(), book.getShares(other));
+            order.subtractShares(numShares);
+            load(other);
+            view.setInstrumentId(order.getInstrumentId());
+            view.subtractShares(numShares);
+            book.reduce(other, numShares);
+            recordFill(numShares, price);
+            reportFill(buy ? order : view, buy ? view : order, numShares,
+                price);
+        }
+        sendCoalescedFills();
+        updateBand();
+
+        long handle = -1;
+        if ( order.getShares() > 0 && order
+            .getTimeInForce() == TimeInForce.IOC )
+        {
+            send(order.getTrader(), "Cancelled:\t" + describe(order));
+        }
+        else if ( order.getShares() > 0 )
+        {
+            handle = book.add(buy, order.isMarket() ? (buy ?
+                OffHeapOrderBook.MARKET_BUY : OffHeapOrderBook.MARKET_SELL) :
+                Math.round(order.getPrice() * 100), order.getShares(), order
+                .getTraderId(), serial);
+        }
+        order.setSequence(handle << 32 | serial);
+        retire(order);
+        updateTopOfBook();
+    }
+
+
+    // Returns the reason for turning a given order away, or null if it can be
+    // placed.
+    private String checkOrder(TradeOrder order)
+    {
+        if ( getPhase() != TradingPhase.CONTINUOUS )
+        {
+            return order.getSymbol() + " only trades continuously";
+        }
+        if ( order.getTimeInForce() != TimeInForce.GTC || order
+            .isStop() || order.isIceberg() )
+        {
+            return describe(order) + " is not supported by this book";
+        }
+        int id = order.getTraderId();
+        if ( id < 0 )
+        {
+            return describe(order) + " needs a trader with a brokerage";
+        }
+        if ( id >= traders.length )
+        {
+            traders = Arrays.copyOf(traders, Math.max(id + 1,
+                traders.length * 2));
+        }
+        if ( traders[id] == null )
+        {
+            traders[id] = order.getTrader();
+        }
+        else if ( traders[id] != order.getTrader() )
+        {
+            return describe(order) + " comes from another brokerage";
+        }
+        return null;
+    }
+
+
+    // Returns the price at which a new order trades with a resting one, as in
+    // Stock.executeOrders, or NaN if the two do not cross. A market order is
+    // only matched with limit orders.
+    private double matchPrice(TradeOrder order, int other)
+    {
+        if ( book.isMarket(other) )
+        {
+            return order.getPrice();
+        }
+        double price = book.getPrice(other) / 100.0;
+        if ( order.isMarket() )
+        {
+            return price;
+        }
+        if ( order.isBuy() ? order.getPrice() < price :
+            order.getPrice() > price )
+        {
+            return Double.NaN;
+        }
+        return order.isBuy() ? price : order.getPrice();
+    }
+
+
+    // Copies a resting record into the reused view order.
+    private TradeOrder load(int handle)
+    {
+        boolean market = book.isMarket(handle);
+        view.reset(traders[book.getTraderId(handle)], getStockSymbol(), book
+            .isBuy(handle), market, book.getShares(handle), market ? 0 : book
+            .getPrice(handle) / 100.0);
+        return view;
+    }
+
+
+    /**
+     * Cancels an order resting in the book and tells its trader.
+     *
+     * @param order - the order as it was placed.
+     * @return true if the order was cancelled; false if it was not resting
+     * here.
+     */
+    @Override
+    public synchronized boolean cancelOrder(TradeOrder order)
+    {
+        if ( !isResting(order) )
+        {
+            return false;
+        }
+        long tag = order.getSequence();
+        int handle = (int)(tag >> 32);
+        load(handle);
+        book.cancel(handle, tag & SERIAL_MASK);
+        send(order.getTrader(), "Cancelled:\t" + describe(view));
+        updateTopOfBook();
+        return true;
+    }
+
+
+    /**
+     * Returns true if an order placed with this stock still rests in its
+     * book, going by the handle kept in the order's sequence.
+     *
+     * @param order - an order placed with this stock.
+     * @return true if the order rests in the book; false otherwise.
+     */
+    public synchronized boolean isResting(TradeOrder order)
+    {
+        long tag = order.getSequence();
+        return book.contains((int)(tag >> 32), tag & SERIAL_MASK);
+    }
+
+
+    /**
+     * Publishes the best bid and ask of the off-heap book. The size shown
+     * for each side is the shares at the best price, not just the best order.
+     */
+    @Override
+    protected void updateTopOfBook()
+    {
+        int bid = book.getBestBid();
+        int ask = book.getBestAsk();
+        getTopOfBook().update(topPrice(bid), topSize(bid), topPrice(ask),
+            topSize(ask));
+    }
+
+
+    private double topPrice(int handle)
+    {
+        return handle < 0 || book.isMarket(handle) ? Double.NaN :
+            book.getPrice(handle) / 100.0;
+    }
+
+
+    private int topSize(int handle)
+    {
+        return handle < 0 ? 0 :
+            (int)Math.min(book.getLevelShares(handle), Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Returns a quote string for this stock.
+     *
+     * @return the quote for this stock.
+     */
+    @Override
+    public synchronized String getQuote()
+    {
+        String quote =
+            getCompanyName() + " (" + getStockSymbol() + ")" +
+                "\nPrice: " + getLastPrice() + "\thi: " + getHiPrice() +
+                "\tlo: " + getLoPrice() + "\tvol: " + getVolume() + "\n";
+
+        int ask = book.getBestAsk();
+        int bid = book.getBestBid();
+
+        String askString = ask < 0 ?
+            "Ask: none\t" :
+            "Ask: " + quotePrice(ask) + " size: " + book.getShares(ask) + "\t";
+
+        String bidString = bid < 0 ?
+            "Bid: none" :
+            "Bid: " + quotePrice(bid) + " size: " + book.getShares(bid);
+
+        return quote + askString + bidString;
+    }
+
+
+    /**
+     * Returns the number of orders in the off-heap book.
+     *
+     * @return the resting order count.
+     */
+    @Override
+    protected int countRestingOrders()
+    {
+        return book.size();
+    }
+
+
+    private String quotePrice(int handle)
+    {
+        return book.isMarket(handle) ? "market" :
+            String.valueOf(book.getPrice(handle) / 100.0);
+    }
+
+    //
+    // The following are for test purposes only
+    //
+
+
+    /**
+     *
+     * Returns the off-heap book of this stock
+     * @return the order book
+     */
+    protected OffHeapOrderBook getBook()
+    {
+        return book;
+    }
+}
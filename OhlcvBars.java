@@ -0,0 +1,231 @@
+import java.util.Arrays;
+
+/**
+ * A series of open/high/low/close/volume bars of a fixed time interval for
+ * one stock. Bars are kept in parallel primitive arrays and are updated
+ * incrementally as fills are appended, so reading the latest bar never
+ * requires a pass over the trade tape. The arrays are allocated with the
+ * first bar, so the bars of a stock that never trades take no room.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class OhlcvBars
+{
+    private static final int      INITIAL_CAPACITY = 16;
+    private static final long[]   NO_LONGS         = new long[0];
+    private static final double[] NO_DOUBLES       = new double[0];
+
+    private long     interval;
+    private int      size;
+    private long[]   starts;
+    private double[] opens;
+    private double[] highs;
+    private double[] lows;
+    private double[] closes;
+    private long[]   volumes;
+
+
+    /**
+     * Constructs an empty series of bars of a given length.
+     *
+     * @param interval - the length of one bar in milliseconds.
+     */
+    public OhlcvBars(long interval)
+    {
+        if ( interval <= 0 )
+        {
+            throw new IllegalArgumentException();
+        }
+        this.interval = interval;
+        size = 0;
+        starts = NO_LONGS;
+        opens = NO_DOUBLES;
+        highs = NO_DOUBLES;
+        lows = NO_DOUBLES;
+        closes = NO_DOUBLES;
+        volumes = NO_LONGS;
+    }
+
+
+    /**
+     * Adds a fill to the bar that covers its timestamp, opening a new bar
+     * when the fill falls past the end of the latest one. A fill stamped
+     * before the latest bar (the clock stepped back) is folded into the
+     * latest bar so the series stays in time order.
+     *
+     * @param time      - the time of the fill in milliseconds.
+     * @param price     - the price of the fill.
+     * @param numShares - the number of shares filled.
+     */
+    public void add(long time, double price, int numShares)
+    {
+        long start = time - Math.floorMod(time, interval);
+        if ( size > 0 && start <= starts[size - 1] )
+        {
+            int last = size - 1;
+            highs[last] = Math.max(highs[last], price);
+            lows[last] = Math.min(lows[last], price);
+            closes[last] = price;
+            volumes[last] += numShares;
+        }
+        else
+        {
+            if ( size == starts.length )
+            {
+                int capacity = Math.max(size * 2, INITIAL_CAPACITY);
+                starts = Arrays.copyOf(starts, capacity);
+                opens = Arrays.copyOf(opens, capacity);
+                highs = Arrays.copyOf(highs, capacity);
+                lows = Arrays.copyOf(lows, capacity);
+                closes = Arrays.copyOf(closes, capacity);
+                volumes = Arrays.copyOf(volumes, capacity);
+            }
+            starts[size] = start;
+            opens[size] = price;
+            highs[size] = price;
+            lows[size] = price;
+            closes[size] = price;
+            volumes[size] = numShares;
+            size++;
+        }
+    }
+
+
+    /**
+     * Returns the index of the first bar that starts at or after a given
+     * time, or size() if there is none.
+     *
+     * @param time - a time in milliseconds.
+     * @return the index of the first bar starting at or after time.
+     */
+    public int indexOf(long time)
+    {
+        int lo = 0;
+        int hi = size;
+        while ( lo < hi )
+        {
+            int mid = (lo + hi) >>> 1;
+            if ( starts[mid] < time )
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+
+    /**
+     * Returns the length of one bar in milliseconds.
+     *
+     * @return the bar interval.
+     */
+    public long getInterval()
+    {
+        return interval;
+    }
+
+
+    /**
+     * Returns the number of bars in this series.
+     *
+     * @return the number of bars.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    /**
+     * Returns the start time of a given bar.
+     *
+     * @param i - index of the bar.
+     * @return the start time of the bar in milliseconds.
+     */
+    public long getStart(int i)
+    {
+        checkIndex(i);
+        return starts[i];
+    }
+
+
+    /**
+     * Returns the opening price of a given bar.
+     *
+     * @param i - index of the bar.
+     * @return the price of the first fill in the bar.
+     */
+    public double getOpen(int i)
+    {
+        checkIndex(i);
+        return opens[i];
+    }
+
+
+    /**
+     * Returns the highest price of a given bar.
+     *
+     * @param i - index of the bar.
+     * @return the highest fill price in the bar.
+     */
+    public double getHigh(int i)
+    {
+        checkIndex(i);
+        return highs[i];
+    }
+
+
+    /**
+     * Returns the lowest price of a given bar.
+     *
+     * @param i - index of the bar.
+     * @return the lowest fill price in the bar.
+     */
+    public double getLow(int i)
+    {
+        checkIndex(i);
+        return lows[i];
+    }
+
+
+    /**
+     * Returns the closing price of a given bar.
+     *
+     * @param i - index of the bar.
+     * @return the price of the last fill in the bar.
+     */
+    public double getClose(int i)
+    {
+        checkIndex(i);
+        return closes[i];
+    }
+
+
+    /**
+     * Returns the number of shares traded in a given bar.
+     *
+     * @param i - index of the bar.
+     * @return the volume of the bar.
+     */
+    public long getVolume(int i)
+    {
+        checkIndex(i);
+        return volumes[i];
+    }
+
+
+    private void checkIndex(int i)
+    {
+        if ( i < 0 || i >= size )
+        {
+            throw new IndexOutOfBoundsException(i);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The orders of one trader: the orders now open at the exchange, by order id,
+ * and the trader's most recent fills. A brokerage keeps one per trader, and
+ * the stocks keep it up to date as orders are placed, traded and leave the
+ * book, so that a trader's orders can be listed without going through the
+ * books of the exchange.
+ *
+ * <p>
+ * Open orders sit in a table of slots, so that an order is found by id, added
+ * and removed in constant time, and in a dense list of the slots in use, so
+ * that listing them takes time in proportion to their number. An order id is
+ * the slot number with a count of the slot's reuses above it, so an id is
+ * never handed out twice. Fills go into a ring buffer, made on the first
+ * fill, that keeps the latest ones. Neither allocates once it has grown to
+ * its working size, so keeping the store does not spoil a garbage-free
+ * stock. The methods are synchronized, as orders of one trader may trade in
+ * several stocks on different threads.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class OrderStore
+{
+    /**
+     * The number of fills kept by default.
+     */
+    public static final int FILL_HISTORY = 128;
+
+    private int          fillHistory;
+    private TradeOrder[] slots;
+    private int[]        reuses;
+    private int[]        denseOfSlot;
+    private int[]        slotOfDense;
+    private int          slotCount;
+    private int          openCount;
+    private int          freeSlot;
+    private long[]       fillOrderIds;
+    private String[]     fillSymbols;
+    private boolean[]    fillBuys;
+    private int[]        fillShares;
+    private double[]     fillPrices;
+    private long         fillCount;
+
+
+    /**
+     * Constructs an empty store that keeps the last FILL_HISTORY fills.
+     */
+    public OrderStore()
+    {
+        this(FILL_HISTORY);
+    }
+
+
+    /**
+     * Constructs an empty store that keeps a given number of fills.
+     *
+     * @param fillHistory - the number of latest fills to keep.
+     */
+    public OrderStore(int fillHistory)
+    {
+        if ( fillHistory <= 0 )
+        {
+            throw new IllegalArgumentException();
+        }
+        slots = new TradeOrder[0];
+        reuses = new int[0];
+        denseOfSlot = new int[0];
+        slotOfDense = new int[0];
+        freeSlot = -1;
+        this.fillHistory = fillHistory;
+    }
+
+
+    /**
+     * Adds an order that has been placed in a book and gives it its order
+     * id. An order that is already open keeps its id.
+     *
+     * @param order - the order.
+     */
+    public synchronized void open(TradeOrder order)
+    {
+        if ( find(order.getOrderId()) == order )
+        {
+            return;
+        }
+        int slot = freeSlot;
+        if ( slot >= 0 )
+        {
+            freeSlot = denseOfSlot[slot];
+        }
+        else
+        {
+            if ( slotCount == slots.length )
+            {
+                int length = Math.max(16, slotCount * 2);
+                slots = Arrays.copyOf(slots, length);
+                reuses = Arrays.copyOf(reuses, length);
+                denseOfSlot = Arrays.copyOf(denseOfSlot, length);
+                slotOfDense = Arrays.copyOf(slotOfDense, length);
+            }
+            slot = slotCount++;
+        }
+        reuses[slot]++;
+        slots[slot] = order;
+        denseOfSlot[slot] = openCount;
+        slotOfDense[openCount++] = slot;
+        order.setOrderId((long)reuses[slot] << 32 | slot);
+    }
+
+
+    /**
+     * Removes an order that has left the book for good. An order that is not
+     * open is ignored.
+     *
+     * @param order - the order.
+     */
+    public synchronized void close(TradeOrder order)
+    {
+        if ( find(order.getOrderId()) != order )
+        {
+            return;
+        }
+        int slot = (int)order.getOrderId();
+        int dense = denseOfSlot[slot];
+        int moved = slotOfDense[--openCount];
+        slotOfDense[dense] = moved;
+        denseOfSlot[moved] = dense;
+        slots[slot] = null;
+        denseOfSlot[slot] = freeSlot;
+        freeSlot = slot;
+    }
+
+
+    /**
+     * Adds a fill of one of the orders to the fill history, dropping the
+     * oldest fill if the history is full.
+     *
+     * @param order     - the order that traded.
+     * @param numShares - the number of shares traded.
+     * @param price     - the price of the trade.
+     */
+    public synchronized void fill(TradeOrder order, int numShares,
+        double price)
+    {
+        if ( fillOrderIds == null )
+        {
+            fillOrderIds = new long[fillHistory];
+            fillSymbols = new String[fillHistory];
+            fillBuys = new boolean[fillHistory];
+            fillShares = new int[fillHistory];
+            fillPrices = new double[fillHistory];
+        }
+        int at = (int)(fillCount++ % fillHistory);
+        fillOrderIds[at] = order.getOrderId();
+        fillSymbols[at] = order.getSymbol();
+        fillBuys[at] = order.isBuy();
+        fillShares[at] = numShares;
+        fillPrices[at] = price;
+    }
+
+
+    /**
+     * Returns the open order with a given id.
+     *
+     * @param orderId - the order id.
+     * @return the order, or null if no open order has that id.
+     */
+    public synchronized TradeOrder getOpenOrder(long orderId)
+    {
+        return find(orderId);
+    }
+
+
+    /**
+     * Returns the open orders. The orders are the ones placed, so their
+     * shares go down as they trade; a pooled order must not be used once it
+     * has left the book.
+     *
+     * @return a new list of the open orders.
+     */
+    public synchronized List<TradeOrder> getOpenOrders()
+    {
+        List<TradeOrder> open = new ArrayList<>(openCount);
+        for ( int i = 0; i < openCount; i++ )
+        {
+            open.add(slots[slotOfDense[i]]);
+        }
+        return open;
+    }
+
+
+    /**
+     * Returns the number of open orders.
+     *
+     * @return the open order count.
+     */
+    public synchronized int getOpenCount()
+    {
+        return openCount;
+    }
+
+
+    /**
+     * Returns the latest fills, newest first.
+     *
+     * @param max - the most fills to return.
+     * @return a new list of at most max fills.
+     */
+    public synchronized List<Fill> getRecentFills(int max)
+    {
+        int count = (int)Math.min(Math.min(max, fillCount), fillHistory);
+        List<Fill> fills = new ArrayList<>(count);
+        for ( int i = 1; i <= count; i++ )
+        {
+            int at = (int)((fillCount - i) % fillHistory);
+            fills.add(new Fill(fillOrderIds[at], fillSymbols[at],
+                fillBuys[at], fillShares[at], fillPrices[at]));
+        }
+        return fills;
+    }
+
+
+    // Returns the open order with a given id, or null if there is none.
+    private TradeOrder find(long orderId)
+    {
+        int slot = (int)orderId;
+        if ( orderId == 0 || slot < 0 || slot >= slotCount )
+        {
+            return null;
+        }
+        TradeOrder order = slots[slot];
+        return order != null && order.getOrderId() == orderId ? order : null;
+    }
+
+
+    /**
+     * One fill of an order, as kept in the fill history.
+     */
+    public static class Fill
+    {
+        private long    orderId;
+        private String  symbol;
+        private boolean buy;
+        private int     shares;
+        private double  price;
+
+
+        /**
+         * Constructs a fill.
+         *
+         * @param orderId - the id of the order that traded.
+         * @param symbol  - the stock symbol.
+         * @param buy     - true if the order bought; false if it sold.
+         * @param shares  - the number of shares traded.
+         * @param price   - the price of the trade.
+         */
+        public Fill(long orderId, String symbol, boolean buy, int shares,
+            double price)
+        {
+            this.orderId = orderId;
+            this.symbol = symbol;
+            this.buy = buy;
+            this.shares = shares;
+            this.price = price;
+        }
+
+
+        /**
+         * Returns the id of the order that traded.
+         *
+         * @return the order id.
+         */
+        public long getOrderId()
+        {
+            return orderId;
+        }
+
+
+        /**
+         * Returns the stock symbol.
+         *
+         * @return the symbol.
+         */
+        public String getSymbol()
+        {
+            return symbol;
+        }
+
+
+        /**
+         * Returns true if the order bought.
+         *
+         * @return true for a buy; false for a sell.
+         */
+        public boolean isBuy()
+        {
+            return buy;
+        }
+
+
+        /**
+         * Returns the number of shares traded.
+         *
+         * @return the shares.
+         */
+        public int getShares()
+        {
+            return shares;
+        }
+
+
+        /**
+         * Returns the price of the trade.
+         *
+         * @return the price.
+         */
+        public double getPrice()
+        {
+            return price;
+        }
+
+
+        /**
+         * Describes this fill as in "Bought 100 GGGL at 10.00".
+         *
+         * @return the description.
+         */
+        public String toString()
+        {
+            return (buy ? "Bought " : "Sold ") + shares + " " + symbol + " at "
+                + PriceFormat.format(price);
+        }
+    }
+}
@@ -41,13 +41,15 @@ public class PriceComparator
      *
      * @param order1 - the first order
      * @param order2 - the second order
-     * @return 0 if both orders are market orders; -1 if order1 is market and
-     * order2 is limit; 1 if order1 is limit and order2 is market; the
-     * difference in prices, rounded to the nearest cent, if both order1
-     * and order2 are limit orders. In the latter case, the difference
-     * returned is cents1 - cents2 or cents2 - cents1, depending on whether
-     * this is an ascending or descending comparator (ascending is true or
-     * false).
+     * @return -1 if order1 is market and order2 is limit; 1 if order1 is
+     * limit and order2 is market; the difference in prices, rounded to the
+     * nearest cent, if both order1 and order2 are limit orders. In the
+     * latter case, the difference returned is cents1 - cents2 or cents2 -
+     * cents1, depending on whether this is an ascending or descending
+     * comparator (ascending is true or false). Orders at the same price,
+     * or two market orders, are compared by their sequence numbers, so
+     * that the order placed first comes first whatever the order of
+     * insertion into a priority queue.
      */
     public int compare(TradeOrder order1, TradeOrder order2)
     {
@@ -57,7 +59,7 @@ public class PriceComparator
         }
         else if ( order1.isMarket() && order2.isMarket() )
         {
-            return 0;
+            return Long.compare(order1.getSequence(), order2.getSequence());
         }
         else if ( order1.isLimit() && order2.isMarket() )
         {
@@ -65,9 +67,11 @@ public class PriceComparator
         }
         else
         {
-            return ascending ?
-                (int)((order1.getPrice() - order2.getPrice()) * 100) :
-                (int)((order2.getPrice() - order1.getPrice()) * 100);
+            int cents = ascending ?
+                (int)Math.round((order1.getPrice() - order2.getPrice()) * 100) :
+                (int)Math.round((order2.getPrice() - order1.getPrice()) * 100);
+            return cents != 0 ? cents :
+                Long.compare(order1.getSequence(), order2.getSequence());
         }
     }
 
@@ -0,0 +1,121 @@
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Formats prices and amounts with two decimals, giving exactly what a
+ * DecimalFormat with the pattern "0.00" gives in the default locale (rounding
+ * half to even on the exact value of the double), without sharing any mutable
+ * state between threads. Digits are written straight into a StringBuilder, so
+ * appendTo produces no garbage. Values of a trillion or more, infinities and
+ * NaN are handed to a DecimalFormat kept per thread.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class PriceFormat
+{
+    // DecimalFormat rounds the shortest decimal representation of a double,
+    // which agrees with rounding its exact value as long as a cent is many
+    // ulps wide; larger values go to the fallback.
+    private static final double MAX_FAST = 1e12;
+
+    private static final char ZERO;
+    private static final char SEPARATOR;
+    private static final char MINUS;
+
+    private static final ThreadLocal<DecimalFormat> FALLBACK =
+        ThreadLocal.withInitial(() -> new DecimalFormat("0.00"));
+
+    static
+    {
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance();
+        ZERO = symbols.getZeroDigit();
+        SEPARATOR = symbols.getDecimalSeparator();
+        MINUS = symbols.getMinusSign();
+    }
+
+
+    private PriceFormat()
+    {
+    }
+
+
+    /**
+     * Formats a value with two decimals.
+     *
+     * @param value - a price or amount.
+     * @return the formatted value, as in "1234.50".
+     */
+    public static String format(double value)
+    {
+        return appendTo(new StringBuilder(24), value).toString();
+    }
+
+
+    /**
+     * Appends a value with two decimals to a StringBuilder.
+     *
+     * @param str   - the builder to append to.
+     * @param value - a price or amount.
+     * @return the builder.
+     */
+    public static StringBuilder appendTo(StringBuilder str, double value)
+    {
+        double abs = Math.abs(value);
+        if ( !(abs < MAX_FAST) )
+        {
+            return str.append(FALLBACK.get().format(value));
+        }
+        if ( Double.doubleToRawLongBits(value) < 0 )
+        {
+            str.append(MINUS);
+        }
+        long cents = cents(abs);
+        appendDigits(str, cents / 100);
+        str.append(SEPARATOR);
+        str.append((char)(ZERO + (int)(cents / 10 % 10)));
+        str.append((char)(ZERO + (int)(cents % 10)));
+        return str;
+    }
+
+
+    // Returns a non-negative value in cents, rounded half to even on the
+    // exact value of the double. The product with 100 is kept as a rounded
+    // product plus its exact error (found with a fused multiply-add), so the
+    // fraction of a cent is compared with one half without rounding error.
+    private static long cents(double abs)
+    {
+        double product = abs * 100;
+        double error = Math.fma(abs, 100, -product);
+        double whole = Math.floor(product);
+        double half = (product - whole) - 0.5;
+        long cents = (long)whole;
+        if ( half > 0 || half == 0 && (error > 0 || error == 0 && (cents &
+            1) != 0) )
+        {
+            cents++;
+        }
+        return cents;
+    }
+
+
+    // Appends the decimal digits of a non-negative number.
+    private static void appendDigits(StringBuilder str, long number)
+    {
+        int start = str.length();
+        do
+        {
+            str.append((char)(ZERO + (int)(number % 10)));
+            number /= 10;
+        }
+        while ( number > 0 );
+        for ( int i = start, j = str.length() - 1; i < j; i++, j-- )
+        {
+            char c = str.charAt(i);
+            str.setCharAt(i, str.charAt(j));
+            str.setCharAt(j, c);
+        }
+    }
+}
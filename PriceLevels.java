@@ -0,0 +1,149 @@
+/**
+ * Adds up the shares shown at each price of one side of a Stock's book, so
+ * that the size at the best price can be published without looking at every
+ * order there. Prices are kept in cents in an open-addressing hash table of
+ * primitive longs; a level is dropped as soon as its shares reach zero, and
+ * the table only allocates when it grows.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class PriceLevels
+{
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] prices;
+    private long[] shares;
+    private int    size;
+
+
+    /**
+     * Constructs an empty set of price levels.
+     */
+    public PriceLevels()
+    {
+        prices = new long[INITIAL_CAPACITY];
+        shares = new long[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+
+    /**
+     * Adds shares to the level at a price.
+     *
+     * @param price - the price in cents.
+     * @param delta - the shares to add, or a negative number to take some
+     *              away.
+     */
+    public void add(long price, long delta)
+    {
+        if ( delta == 0 )
+        {
+            return;
+        }
+        int slot = find(price);
+        if ( shares[slot] == 0 )
+        {
+            prices[slot] = price;
+            shares[slot] = delta;
+            if ( ++size * 2 > prices.length )
+            {
+                grow();
+            }
+            return;
+        }
+        shares[slot] += delta;
+        if ( shares[slot] == 0 )
+        {
+            remove(slot);
+        }
+    }
+
+
+    /**
+     * Returns the shares at a price.
+     *
+     * @param price - the price in cents.
+     * @return the shares at that price, or 0 if there are none.
+     */
+    public long get(long price)
+    {
+        return shares[find(price)];
+    }
+
+
+    /**
+     * Returns the number of prices that have shares.
+     *
+     * @return the number of levels.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    // Returns the slot of a price, or the empty slot where it would go.
+    private int find(long price)
+    {
+        int mask = prices.length - 1;
+        int slot = hash(price) & mask;
+        while ( shares[slot] != 0 && prices[slot] != price )
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+
+    // Spreads the bits of a price over the low bits used as the slot.
+    private static int hash(long price)
+    {
+        long h = price * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+
+    // Empties a slot and moves later entries of its probe run back, so that
+    // lookups never stop at the hole.
+    private void remove(int slot)
+    {
+        int mask = prices.length - 1;
+        int hole = slot;
+        int next = (slot + 1) & mask;
+        while ( shares[next] != 0 )
+        {
+            int home = hash(prices[next]) & mask;
+            if ( ((next - home) & mask) >= ((next - hole) & mask) )
+            {
+                prices[hole] = prices[next];
+                shares[hole] = shares[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        shares[hole] = 0;
+        size--;
+    }
+
+
+    // Doubles the table and puts every level back.
+    private void grow()
+    {
+        long[] oldPrices = prices;
+        long[] oldShares = shares;
+        prices = new long[oldPrices.length * 2];
+        shares = new long[oldShares.length * 2];
+        for ( int i = 0; i < oldPrices.length; i++ )
+        {
+            if ( oldShares[i] != 0 )
+            {
+                int slot = find(oldPrices[i]);
+                prices[slot] = oldPrices[i];
+                shares[slot] = oldShares[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,988 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Clock;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A stock exchange that replicates its state to a hot standby on another
+ * node. The primary gives every input event (listing, delisting, order,
+ * cancel, expiry, phase change, end of day) a sequence number and the
+ * exchange time, journals it (see ExchangeJournal) and then applies it; the
+ * stocks of the exchange read a VirtualClock that is set to each event's
+ * time, so the backup, applying the same events at the same times, ends up
+ * with the same books, fills and expiries.
+ *
+ * <p>
+ * The matching thread only appends the event to a buffer in memory. A sender
+ * thread writes whatever has piled up to the backup's TCP connection in one
+ * write, and sends a heartbeat when there is nothing to send. The backup
+ * applies the events it reads and acknowledges the last one each time it has
+ * run out of input, so acknowledgements come in batches. The primary does not
+ * wait for them unless asked to (see awaitReplicated).
+ * </p>
+ *
+ * <p>
+ * The backup turns down orders and other input while it is on standby. When
+ * the connection to the primary breaks, or nothing arrives for the failover
+ * time (50 milliseconds by default), the backup takes over as primary.
+ * Traders on the backup are shadows that stand in for the primary's traders
+ * (by id and screen name) and ignore their messages; traders have to log in
+ * again after a failover. A backup must be connected before the first event,
+ * as there is no way yet to send it a snapshot of an exchange that is already
+ * trading.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class ReplicatedExchange
+    extends StockExchange
+{
+    private static final int HEARTBEAT_MILLIS = 10;
+    private static final int PRUNE_AT         = 1024;
+
+    private Clock                 source;
+    private VirtualClock          clock;
+    private long                  sequence;
+    private volatile boolean      primary;
+    private int                   failoverMillis;
+    private Link                  link;
+    private Map<Long, TradeOrder> liveOrders;
+    private Map<String, Trader>   shadows;
+    private ShadowBrokerage       shadowBrokerage;
+    private ShadowPool            shadowPool;
+    private int                   pruneAt;
+    private DataOutputStream      recording;
+
+
+    /**
+     * Constructs a primary exchange timed by the system clock. It works on
+     * its own until a backup is connected with replicateTo.
+     */
+    public ReplicatedExchange()
+    {
+        this(Clock.systemUTC());
+    }
+
+
+    /**
+     * Constructs a primary exchange timed by a given clock.
+     *
+     * @param source - the clock that gives the time of each event.
+     */
+    public ReplicatedExchange(Clock source)
+    {
+        this.source = source;
+        clock = new VirtualClock(source.millis());
+        primary = true;
+        failoverMillis = 50;
+    }
+
+
+    /**
+     * Connects this primary to a backup that is waiting in followPrimary.
+     *
+     * @param host - the backup's host.
+     * @param port - the backup's port.
+     * @throws IOException if the backup cannot be reached.
+     */
+    public synchronized void replicateTo(String host, int port)
+        throws IOException
+    {
+        if ( !primary || sequence > 0 || link != null )
+        {
+            throw new IllegalStateException(
+                "A backup must be connected before the first event");
+        }
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        link = new Link(socket);
+        link.start();
+    }
+
+
+    /**
+     * Makes this exchange a backup of a primary that will connect to a given
+     * server socket, and returns at once. The backup applies the primary's
+     * events until the primary goes away, then takes over.
+     *
+     * @param server - the socket the primary connects to.
+     */
+    public synchronized void followPrimary(ServerSocket server)
+    {
+        standBy();
+        Thread follower = new Thread(() -> follow(server),
+            "SafeTrade-backup");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+
+    /**
+     * Puts this exchange on standby: from now on it turns down input and
+     * only applies events from a primary's journal (see apply). Called by
+     * followPrimary, and by a JournalReplay to replay a recorded journal.
+     */
+    public synchronized void standBy()
+    {
+        if ( sequence > 0 )
+        {
+            throw new IllegalStateException("This exchange is already trading");
+        }
+        primary = false;
+        liveOrders = new HashMap<>();
+        shadows = new HashMap<>();
+        shadowBrokerage = new ShadowBrokerage(this);
+        shadowPool = new ShadowPool(liveOrders);
+        pruneAt = PRUNE_AT;
+    }
+
+
+    /**
+     * Records the journal of this primary to a stream, such as a file, for
+     * replaying later with JournalReplay. Every fill is recorded after the
+     * event that caused it, through the fill listeners of the stocks, so
+     * that the replay can check its fills. Must be called before the first
+     * event.
+     *
+     * @param out - where to record the journal.
+     */
+    public synchronized void recordTo(OutputStream out)
+    {
+        if ( !primary || sequence > 0 || recording != null )
+        {
+            throw new IllegalStateException(
+                "Recording must start before the first event");
+        }
+        recording = new DataOutputStream(new BufferedOutputStream(out,
+            1 << 16));
+    }
+
+
+    /**
+     * Writes out what is left of the recording and closes its stream.
+     *
+     * @throws IOException if the recording cannot be written.
+     */
+    public synchronized void closeRecording() throws IOException
+    {
+        if ( recording != null )
+        {
+            recording.close();
+            recording = null;
+        }
+    }
+
+
+    /**
+     * Sets how long the backup waits for the primary before taking over.
+     *
+     * @param failoverMillis - the time in milliseconds.
+     */
+    public void setFailoverMillis(int failoverMillis)
+    {
+        this.failoverMillis = failoverMillis;
+    }
+
+
+    /**
+     * Returns true if this exchange is the primary, which it is from the
+     * start unless it follows another one, and after taking over.
+     *
+     * @return true if this exchange takes input; false if on standby.
+     */
+    public boolean isPrimary()
+    {
+        return primary;
+    }
+
+
+    /**
+     * Waits until this backup has taken over as primary.
+     *
+     * @param timeoutMillis - the longest time to wait.
+     * @return true if this exchange is the primary.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized boolean awaitPrimary(long timeoutMillis)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long left = timeoutMillis;
+        while ( !primary && left > 0 )
+        {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        return primary;
+    }
+
+
+    /**
+     * Waits until the backup has acknowledged every event so far.
+     *
+     * @param timeoutMillis - the longest time to wait.
+     * @return true if the backup has them all; false if it timed out or no
+     * backup is connected.
+     */
+    public boolean awaitReplicated(long timeoutMillis)
+    {
+        Link replica;
+        long last;
+        synchronized ( this )
+        {
+            replica = link;
+            last = sequence;
+        }
+        return replica != null && replica.awaitAcked(last, timeoutMillis);
+    }
+
+
+    /**
+     * Returns the sequence number of the last event journaled (on the
+     * primary) or applied (on the backup).
+     *
+     * @return the last sequence number.
+     */
+    public synchronized long getSequence()
+    {
+        return sequence;
+    }
+
+
+    /**
+     * Returns the clock the stocks of this exchange read.
+     *
+     * @return the exchange clock, set to the time of the last event.
+     */
+    public VirtualClock getClock()
+    {
+        return clock;
+    }
+
+
+    /**
+     * Lists a stock, journaling the listing. Only Stock and OffHeapStock can
+     * be listed.
+     *
+     * @param stock - the stock to list.
+     */
+    public synchronized void listStock(Stock stock)
+    {
+        long time = nextEvent();
+        journal(out -> ExchangeJournal.writeList(out, sequence, time, stock));
+        stock.setClock(clock);
+        if ( recording != null )
+        {
+            stock.setFillListener(this::recordFill);
+        }
+        super.listStock(stock);
+    }
+
+
+    /**
+     * Takes a stock off this exchange, journaling the delisting.
+     *
+     * @param symbol - the stock symbol.
+     * @return the stock taken off, or null if the symbol is not listed.
+     */
+    public synchronized Stock delistStock(String symbol)
+    {
+        long time = nextEvent();
+        journal(out -> ExchangeJournal.writeDelist(out, sequence, time,
+            symbol));
+        return super.delistStock(symbol);
+    }
+
+
+    /**
+     * Sets the self-trade prevention mode of every stock, journaling the
+     * change.
+     *
+     * @param mode - the self-trade prevention mode.
+     */
+    public synchronized void setSelfTradePrevention(SelfTradePrevention mode)
+    {
+        long time = nextEvent();
+        journal(out -> ExchangeJournal.writeSelfTradePrevention(out,
+            sequence, time, mode));
+        super.setSelfTradePrevention(mode);
+    }
+
+
+    /**
+     * Places an order, journaling it first. The order's journal id is set to
+     * the sequence number of the event.
+     *
+     * @param order - a trading order to be placed with this stock exchange.
+     */
+    public synchronized void placeOrder(TradeOrder order)
+    {
+        long time = nextEvent();
+        order.setJournalId(sequence);
+        journal(out -> ExchangeJournal.writeOrder(out, sequence, time, order));
+        super.placeOrder(order);
+    }
+
+
+    /**
+     * Cancels an order, journaling the cancel. An order this exchange has
+     * not journaled is not resting here, so nothing is journaled for it.
+     *
+     * @param order - a trading order placed with this stock exchange.
+     * @return true if the order was cancelled; false otherwise.
+     */
+    public synchronized boolean cancelOrder(TradeOrder order)
+    {
+        if ( order.getJournalId() == 0 )
+        {
+            return false;
+        }
+        long time = nextEvent();
+        journal(out -> ExchangeJournal.writeCancel(out, sequence, time,
+            order));
+        return super.cancelOrder(order);
+    }
+
+
+    /**
+     * Expires the orders whose time is up, journaling the expiry.
+     *
+     * @return the number of orders expired.
+     */
+    public synchronized int expireOrders()
+    {
+        long time = nextEvent();
+        journal(out -> ExchangeJournal.writeEvent(out,
+            ExchangeJournal.EXPIRE, sequence, time));
+        return super.expireOrders();
+    }
+
+
+    /**
+     * Ends the trading day of every listed stock, journaling the end of the
+     * day so that the backup resets its stocks too.
+     *
+     * @return the day summaries, sorted by symbol.
+     */
+    public synchronized List<DaySummary> endDay()
+    {
+        long time = nextEvent();
+        journal(out -> ExchangeJournal.writeEvent(out,
+            ExchangeJournal.END_DAY, sequence, time));
+        return super.endDay();
+    }
+
+
+    /**
+     * Starts the pre-open phase for every listed stock.
+     */
+    public synchronized void startPreOpen()
+    {
+        changePhase(TradingPhase.PRE_OPEN);
+    }
+
+
+    /**
+     * Runs the opening auctions and starts continuous trading for every listed
+     * stock.
+     */
+    public synchronized void startContinuousTrading()
+    {
+        changePhase(TradingPhase.CONTINUOUS);
+    }
+
+
+    /**
+     * Starts the closing auction for every listed stock.
+     */
+    public synchronized void startClosingAuction()
+    {
+        changePhase(TradingPhase.CLOSING_AUCTION);
+    }
+
+
+    /**
+     * Runs the closing auctions and closes every listed stock.
+     */
+    public synchronized void closeSession()
+    {
+        changePhase(TradingPhase.CLOSED);
+    }
+
+
+    /**
+     * Stops replicating: closes the connection to the backup, which then
+     * takes over. Meant for a controlled switch-over and for tests.
+     */
+    public synchronized void stopReplication()
+    {
+        if ( link != null )
+        {
+            link.close();
+            link = null;
+        }
+    }
+
+
+    /**
+     * Tries out replication with two JVMs on one machine. "backup port"
+     * waits for a primary and prints a quote when it takes over; "primary
+     * host port orders" lists a stock, places random orders, waits for the
+     * backup to acknowledge them, prints a quote and exits, which makes the
+     * backup take over.
+     *
+     * @param args - the role and its arguments.
+     * @throws Exception if replication fails.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        ReplicatedExchange exchange = new ReplicatedExchange();
+        if ( args.length == 2 && args[0].equals("backup") )
+        {
+            exchange.followPrimary(new ServerSocket(Integer.parseInt(args[1])));
+            while ( !exchange.awaitPrimary(Long.MAX_VALUE) )
+            {
+            }
+            System.out.println("Took over after event " + exchange
+                .getSequence() + ":\n" + exchange.getQuote("GGGL"));
+            return;
+        }
+        if ( args.length != 4 || !args[0].equals("primary") )
+        {
+            System.out.println("Usage: ReplicatedExchange backup port\n" +
+                "       ReplicatedExchange primary host port orders");
+            return;
+        }
+        exchange.replicateTo(args[1], Integer.parseInt(args[2]));
+        Stock stock = new Stock("GGGL", "Giggle.com", 10.00);
+        stock.setGarbageFree(true);
+        exchange.listStock(stock);
+        Brokerage brokerage = new Brokerage(exchange);
+        brokerage.addUser("buyer", "buyer");
+        brokerage.addUser("seller", "seller");
+        Trader buyer = brokerage.getTraders().get("buyer");
+        Trader seller = brokerage.getTraders().get("seller");
+        java.util.Random random = new java.util.Random(42);
+        int orders = Integer.parseInt(args[3]);
+        long start = System.nanoTime();
+        for ( int i = 0; i < orders; i++ )
+        {
+            boolean buy = random.nextBoolean();
+            exchange.placeOrder(new TradeOrder(buy ? buyer : seller, "GGGL",
+                buy, false, 1 + random.nextInt(100), 9.50 + random.nextInt(
+                    100) / 100.0));
+        }
+        long placed = System.nanoTime() - start;
+        boolean replicated = exchange.awaitReplicated(10000);
+        System.out.println(orders + " orders at " + placed / 1000 / Math.max(
+            orders, 1) + " us each, replicated: " + replicated + "\n" +
+            exchange.getQuote("GGGL"));
+        System.exit(0);
+    }
+
+
+    private void changePhase(TradingPhase phase)
+    {
+        long time = nextEvent();
+        journal(out -> ExchangeJournal.writePhase(out, sequence, time, phase));
+        applyPhase(phase);
+    }
+
+
+    private void applyPhase(TradingPhase phase)
+    {
+        switch ( phase )
+        {
+            case PRE_OPEN:
+                super.startPreOpen();
+                break;
+            case CONTINUOUS:
+                super.startContinuousTrading();
+                break;
+            case CLOSING_AUCTION:
+                super.startClosingAuction();
+                break;
+            default:
+                super.closeSession();
+                break;
+        }
+    }
+
+
+    // Gives the next event its sequence number and moves the exchange clock
+    // to its time, which never goes backwards.
+    private long nextEvent()
+    {
+        if ( !primary )
+        {
+            throw new IllegalStateException(
+                "This exchange is a backup on standby");
+        }
+        sequence++;
+        clock.setMillis(Math.max(clock.millis(), source.millis()));
+        return clock.millis();
+    }
+
+
+    // Appends an event to the buffer of the sender thread, if there is a
+    // backup, and to the recording, if there is one.
+    private void journal(Event event)
+    {
+        if ( link != null )
+        {
+            link.append(event);
+        }
+        if ( recording != null )
+        {
+            try
+            {
+                event.writeTo(recording);
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+
+    // Records a fill after the event that caused it.
+    private void recordFill(Stock stock, TradeOrder buy, TradeOrder sell,
+        int numShares, double price)
+    {
+        try
+        {
+            ExchangeJournal.writeFill(recording, sequence, clock.millis(),
+                stock, buy, sell, numShares, price);
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    // Runs on the backup: waits for the primary, then applies its events and
+    // acknowledges them until the primary goes away.
+    private void follow(ServerSocket server)
+    {
+        try ( Socket socket = server.accept() )
+        {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(failoverMillis);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream(), 1 << 16));
+            DataOutputStream acks = new DataOutputStream(socket
+                .getOutputStream());
+            ExchangeJournal event = new ExchangeJournal();
+            while ( true )
+            {
+                event.read(in);
+                if ( event.getType() != ExchangeJournal.HEARTBEAT )
+                {
+                    apply(event);
+                }
+                if ( in.available() == 0 )
+                {
+                    acks.writeLong(getSequence());
+                    acks.flush();
+                }
+            }
+        }
+        catch ( SocketTimeoutException | EOFException e )
+        {
+            // The primary has gone quiet or closed the connection.
+        }
+        catch ( IOException e )
+        {
+            System.out.println(e);
+        }
+        finally
+        {
+            takeOver();
+        }
+    }
+
+
+    /**
+     * Applies an event from a primary's journal at the time it happened
+     * there. Fill and heartbeat events change nothing. Only an exchange on
+     * standby applies events.
+     *
+     * @param event - the event last read by an ExchangeJournal.
+     */
+    protected synchronized void apply(ExchangeJournal event)
+    {
+        if ( primary )
+        {
+            throw new IllegalStateException("Only a backup applies events");
+        }
+        sequence = event.getSequence();
+        clock.setMillis(event.getTime());
+        switch ( event.getType() )
+        {
+            case ExchangeJournal.LIST:
+                Stock stock = event.isOffHeap() ?
+                    new OffHeapStock(event.getSymbol(), event
+                        .getCompanyName(), event.getPrice()) :
+                    new Stock(event.getSymbol(), event.getCompanyName(), event
+                        .getPrice());
+                stock.setGarbageFree(event.isGarbageFree());
+                stock.setPriceBand(event.getPriceBand(), event
+                    .getAuctionMillis());
+                stock.setMarketOrderProtection(event
+                    .getMarketOrderProtection(), event
+                    .getProtectionBasisPoints());
+                stock.setClock(clock);
+                super.listStock(stock);
+                break;
+            case ExchangeJournal.DELIST:
+                super.delistStock(event.getSymbol());
+                break;
+            case ExchangeJournal.ORDER:
+                applyOrder(event);
+                break;
+            case ExchangeJournal.CANCEL:
+                TradeOrder order = liveOrders.remove(event.getJournalId());
+                if ( order != null )
+                {
+                    super.cancelOrder(order);
+                }
+                break;
+            case ExchangeJournal.EXPIRE:
+                super.expireOrders();
+                break;
+            case ExchangeJournal.END_DAY:
+                super.endDay();
+                break;
+            case ExchangeJournal.PHASE:
+                applyPhase(event.getPhase());
+                break;
+            case ExchangeJournal.SELF_TRADE:
+                super.setSelfTradePrevention(event.getSelfTradePrevention());
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    private void applyOrder(ExchangeJournal event)
+    {
+        String key = event.getOwnerId() + ":" + event.getTraderName();
+        Trader trader = shadows.get(key);
+        if ( trader == null )
+        {
+            trader = shadowBrokerage.shadow(event.getTraderId(), event
+                .getOwnerId(), event.getTraderName());
+            shadows.put(key, trader);
+        }
+        Stock stock = getStock(getInstrumentId(event.getSymbol()));
+        TradeOrder order = stock instanceof OffHeapStock ?
+            new TradeOrder(trader, event.getSymbol(), event.isBuy(), event
+                .isMarket(), event.getShares(), event.getPrice()) :
+            shadowPool.acquire(trader, event.getSymbol(), event.isBuy(), event
+                .isMarket(), event.getShares(), event.getPrice());
+        order.setTimeInForce(event.getTimeInForce());
+        if ( event.getStopPrice() > 0 )
+        {
+            order.setStopPrice(event.getStopPrice());
+        }
+        if ( event.getDisplayShares() > 0 )
+        {
+            order.setDisplayShares(event.getDisplayShares());
+        }
+        order.setExpireTime(event.getExpireTime());
+        order.setJournalId(event.getJournalId());
+        super.placeOrder(order);
+        if ( isResting(order) )
+        {
+            liveOrders.put(order.getJournalId(), order);
+            if ( liveOrders.size() > pruneAt )
+            {
+                liveOrders.values().removeIf(live -> !isResting(live));
+                pruneAt = Math.max(PRUNE_AT, liveOrders.size() * 2);
+            }
+        }
+    }
+
+
+    // Returns true if a shadow order may still rest in its stock. An order
+    // in a Stock is live until its stock hands it back to the shadow pool;
+    // an OffHeapStock keeps no order objects, so its book is asked instead.
+    private boolean isResting(TradeOrder order)
+    {
+        if ( order.getPool() == shadowPool )
+        {
+            return true;
+        }
+        Stock stock = getStock(order.getInstrumentId());
+        return stock instanceof OffHeapStock && ((OffHeapStock)stock)
+            .isResting(order);
+    }
+
+
+    // Makes this backup the primary.
+    private synchronized void takeOver()
+    {
+        primary = true;
+        notifyAll();
+    }
+
+
+    // Writes an event to a journal.
+    private interface Event
+    {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+
+    // The connection to the backup: a buffer the matching thread appends
+    // events to, a sender thread that empties it into the socket and a thread
+    // that reads the backup's acknowledgements.
+    private static class Link
+        extends Thread
+    {
+        private Socket                socket;
+        private OutputStream          out;
+        private ByteArrayOutputStream pending;
+        private DataOutputStream      pendingData;
+        private ByteArrayOutputStream sending;
+        private DataOutputStream      sendingData;
+        private long                  lastSequence;
+        private long                  acked;
+        private boolean               closed;
+
+
+        private Link(Socket socket) throws IOException
+        {
+            super("SafeTrade-replication");
+            setDaemon(true);
+            this.socket = socket;
+            out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+            pending = new ByteArrayOutputStream(1 << 16);
+            pendingData = new DataOutputStream(pending);
+            sending = new ByteArrayOutputStream(1 << 16);
+            sendingData = new DataOutputStream(sending);
+            Thread ackReader = new Thread(this::readAcks,
+                "SafeTrade-replication-acks");
+            ackReader.setDaemon(true);
+            ackReader.start();
+        }
+
+
+        private synchronized void append(Event event)
+        {
+            if ( closed )
+            {
+                return;
+            }
+            try
+            {
+                event.writeTo(pendingData);
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalStateException(e);
+            }
+            notify();
+        }
+
+
+        public void run()
+        {
+            try
+            {
+                while ( true )
+                {
+                    synchronized ( this )
+                    {
+                        if ( pending.size() == 0 && !closed )
+                        {
+                            wait(HEARTBEAT_MILLIS);
+                        }
+                        if ( closed )
+                        {
+                            return;
+                        }
+                        if ( pending.size() == 0 )
+                        {
+                            ExchangeJournal.writeEvent(pendingData,
+                                ExchangeJournal.HEARTBEAT, 0,
+                                System.currentTimeMillis());
+                        }
+                        ByteArrayOutputStream full = pending;
+                        DataOutputStream fullData = pendingData;
+                        pending = sending;
+                        pendingData = sendingData;
+                        sending = full;
+                        sendingData = fullData;
+                    }
+                    sending.writeTo(out);
+                    sending.reset();
+                    out.flush();
+                }
+            }
+            catch ( IOException e )
+            {
+                System.out.println(e);
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                close();
+            }
+        }
+
+
+        private void readAcks()
+        {
+            try
+            {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream()));
+                while ( true )
+                {
+                    long sequence = in.readLong();
+                    synchronized ( this )
+                    {
+                        acked = sequence;
+                        notifyAll();
+                    }
+                }
+            }
+            catch ( IOException e )
+            {
+                close();
+            }
+        }
+
+
+        private synchronized boolean awaitAcked(long sequence,
+            long timeoutMillis)
+        {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long left = timeoutMillis;
+            while ( acked < sequence && !closed && left > 0 )
+            {
+                try
+                {
+                    wait(left);
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                left = deadline - System.currentTimeMillis();
+            }
+            return acked >= sequence;
+        }
+
+
+        private synchronized void close()
+        {
+            if ( closed )
+            {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            try
+            {
+                socket.close();
+            }
+            catch ( IOException e )
+            {
+                System.out.println(e);
+            }
+        }
+    }
+
+
+    // Gives shadow traders the ids and owner ids of the traders they stand
+    // in for.
+    private static class ShadowBrokerage
+        extends Brokerage
+    {
+        private int  nextId;
+        private long nextOwnerId;
+
+
+        private ShadowBrokerage(StockExchange exchange)
+        {
+            super(exchange);
+        }
+
+
+        private Trader shadow(int id, long ownerId, String name)
+        {
+            nextId = id;
+            nextOwnerId = ownerId;
+            return new Trader(this, name, "")
+            {
+                public synchronized void receiveMessage(String msg)
+                {
+                }
+
+
+                protected void orderFilled(TradeOrder order, int numShares,
+                    double price)
+                {
+                }
+            };
+        }
+
+
+        protected int nextTraderId()
+        {
+            return nextId;
+        }
+
+
+        protected long ownerIdOf(int traderId)
+        {
+            return nextOwnerId;
+        }
+    }
+
+
+    // Orders the backup builds from ORDER events; an order leaves the live
+    // orders when its stock is done with it.
+    private static class ShadowPool
+        extends TradeOrderPool
+    {
+        private Map<Long, TradeOrder> liveOrders;
+
+
+        private ShadowPool(Map<Long, TradeOrder> liveOrders)
+        {
+            super(0);
+            this.liveOrders = liveOrders;
+        }
+
+
+        public void release(TradeOrder order)
+        {
+            liveOrders.remove(order.getJournalId());
+            super.release(order);
+        }
+    }
+}
@@ -1,19 +1,15 @@
 import javax.swing.*;
+import java.io.IOException;
 
 /**
  * The main class for the <i>SafeTrade</i> application.
  */
 public class SafeTrade
 {
-    public static void main(String[] args)
+    public static void main(String[] args) throws IOException
     {
-        StockExchange exchange = new StockExchange();
-        exchange.listStock("DS", "DanceStudios.com", 12.33);
-        exchange.listStock("NSTL", "Nasty Loops Inc.", 0.25);
-        exchange.listStock("GGGL", "Giggle.com", 10.00);
-        exchange.listStock("MATI", "M and A Travel Inc.", 28.20);
-        exchange.listStock("DDLC", "Dulce De Leche Corp.", 57.50);
-        exchange.listStock("SAFT", "SafeTrade.com Inc.", 322.45);
+        StockExchange exchange = SafeTradeServer.createExchange(args.length
+            > 0 ? args[0] : null);
 
         Brokerage safeTrade = new Brokerage(exchange);
         safeTrade.addUser("stockman", "sesame");
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * The headless entry point of <i>SafeTrade</i>: runs the exchange and the
+ * brokerage without a user interface, as behind a gateway, and never loads
+ * Swing or AWT. SafeTrade.main sets up the exchange the same way and adds the
+ * login window on top.
+ *
+ * <p>
+ * Startup is cut further by an AppCDS archive of the classes a session uses:
+ * cds.sh makes one from a training run of this class (--train), which also
+ * places and cancels a few orders so that the matching path is archived, and
+ * then measures the startup time of the server with and without the archive.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class SafeTradeServer
+{
+    private SafeTradeServer()
+    {
+    }
+
+
+    /**
+     * Builds an exchange with the stocks of a listing file (see
+     * StockExchange.listStocks), or with the demo stocks if there is none.
+     *
+     * @param listing - the listing file, or null for the demo stocks.
+     * @return a new exchange.
+     * @throws IOException if the listing file cannot be read.
+     */
+    public static StockExchange createExchange(String listing)
+        throws IOException
+    {
+        StockExchange exchange = new StockExchange();
+        if ( listing != null )
+        {
+            exchange.listStocks(Paths.get(listing), 16);
+        }
+        else
+        {
+            exchange.listStock("DS", "DanceStudios.com", 12.33);
+            exchange.listStock("NSTL", "Nasty Loops Inc.", 0.25);
+            exchange.listStock("GGGL", "Giggle.com", 10.00);
+            exchange.listStock("MATI", "M and A Travel Inc.", 28.20);
+            exchange.listStock("DDLC", "Dulce De Leche Corp.", 57.50);
+            exchange.listStock("SAFT", "SafeTrade.com Inc.", 322.45);
+        }
+        return exchange;
+    }
+
+
+    /**
+     * Runs the server from the command line:
+     * "SafeTradeServer [--exit | --train] [listing]". The server prints how
+     * long it took to get ready and keeps running; with --exit it stops once
+     * it is ready, and with --train it first trades a little, for making a
+     * class data sharing archive.
+     *
+     * @param args - the options and the listing file.
+     * @throws IOException if the listing file cannot be read.
+     * @throws InterruptedException if interrupted while running.
+     */
+    public static void main(String[] args)
+        throws IOException, InterruptedException
+    {
+        long start = System.nanoTime();
+        boolean exit = args.length > 0 && args[0].equals("--exit");
+        boolean train = args.length > 0 && args[0].equals("--train");
+        int next = exit || train ? 1 : 0;
+        StockExchange exchange = createExchange(args.length > next ?
+            args[next] : null);
+        Brokerage brokerage = new Brokerage(exchange);
+        if ( train )
+        {
+            train(exchange, brokerage);
+        }
+        System.out.println("SafeTrade server ready in " + (System.nanoTime()
+            - start) / 1000 + " us");
+        if ( !exit && !train )
+        {
+            Thread.currentThread().join();
+        }
+    }
+
+
+    // Places, fills and cancels a few orders on a stock of its own, so that
+    // a training run loads the classes of the matching path.
+    private static void train(StockExchange exchange, Brokerage brokerage)
+    {
+        Stock stock = new Stock("TRAIN", "Training Inc.", 10.00);
+        stock.setGarbageFree(true);
+        exchange.listStock(stock);
+        brokerage.addUser("buyer", "buyer");
+        brokerage.addUser("seller", "seller");
+        Trader buyer = brokerage.getTraders().get("buyer");
+        Trader seller = brokerage.getTraders().get("seller");
+        brokerage.placeOrder(new TradeOrder(seller, "TRAIN", false, false, 100,
+            10.00));
+        brokerage.placeOrder(new TradeOrder(buyer, "TRAIN", true, true, 50, 0));
+        TradeOrder rest = new TradeOrder(buyer, "TRAIN", true, false, 10, 9.00);
+        brokerage.placeOrder(rest);
+        brokerage.getQuote("TRAIN", buyer);
+        brokerage.cancelOrder(rest);
+        exchange.endDay();
+        exchange.delistStock("TRAIN");
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * What a stock does when the best buy and the best sell order in its book
+ * belong to the same trader.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public enum SelfTradePrevention
+{
+    /**
+     * The orders trade with each other.
+     */
+    NONE,
+
+    /**
+     * The order that arrived last is cancelled.
+     */
+    CANCEL_NEWEST,
+
+    /**
+     * The order that arrived first is cancelled.
+     */
+    CANCEL_OLDEST,
+
+    /**
+     * Both orders are cancelled.
+     */
+    CANCEL_BOTH,
+
+    /**
+     * Both orders are reduced by the smaller of their sizes without a trade;
+     * an order reduced to nothing leaves the book.
+     */
+    DECREMENT
+}
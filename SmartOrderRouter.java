@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits orders across several stock exchanges that list the same symbols.
+ * The router reads the best bid and ask of each venue without locking (see
+ * TopOfBook) and, for a buy order, takes the shares shown at the cheapest ask
+ * first, then at the next cheapest, and so on while the asks are within the
+ * order's limit (the other way round for a sell order). Whatever the shown
+ * sizes cannot fill goes to the venue with the best price, or to the first
+ * venue listing the symbol if none crosses. The child orders are then placed
+ * at their venues in parallel.
+ *
+ * <p>
+ * Stop, iceberg and fill-or-kill orders are not split; they go whole to the
+ * venue with the best price. A fill-or-kill order cut into children could
+ * fill at one venue and be killed at another, leaving it partly filled. An
+ * order that ends up with a single venue is placed there as
+ * it is; otherwise it is replaced by new child orders with the same trader,
+ * side, price and time in force, and a pooled parent goes back to its pool.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class SmartOrderRouter
+{
+    private List<StockExchange> venues;
+    private ExecutorService     executor;
+
+
+    /**
+     * Constructs a router over a list of venues.
+     *
+     * @param venues - the stock exchanges to route to, the primary one first.
+     */
+    public SmartOrderRouter(List<StockExchange> venues)
+    {
+        this.venues = new ArrayList<>(venues);
+        executor = Executors.newCachedThreadPool(task ->
+        {
+            Thread thread = new Thread(task, "SafeTrade-router");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+
+    /**
+     * Routes an order: splits it over the venues and places the parts.
+     *
+     * @param order - the order to route.
+     * @return the orders placed, one per venue used.
+     */
+    public List<TradeOrder> route(TradeOrder order)
+    {
+        int count = venues.size();
+        Stock[] stocks = new Stock[count];
+        TopOfBook[] tops = new TopOfBook[count];
+        int home = -1;
+        for ( int i = 0; i < count; i++ )
+        {
+            StockExchange venue = venues.get(i);
+            stocks[i] = venue.getStock(venue.getInstrumentId(order
+                .getSymbol()));
+            if ( stocks[i] != null )
+            {
+                tops[i] = stocks[i].getTopOfBook().copyTo(new TopOfBook());
+                home = home < 0 ? i : home;
+            }
+        }
+        List<TradeOrder> placed = new ArrayList<>();
+        if ( home < 0 )
+        {
+            venues.get(0).placeOrder(order);
+            return placed;
+        }
+
+        int[] shares = new int[count];
+        boolean[] used = new boolean[count];
+        int remaining = order.getShares() + order.getHiddenShares();
+        boolean split = !order.isStop() && !order.isIceberg() && order
+            .getTimeInForce() != TimeInForce.FOK;
+        int best = nextVenue(order, tops, used);
+        home = best < 0 ? home : best;
+        while ( split && remaining > 0 && best >= 0 )
+        {
+            used[best] = true;
+            int size = order.isBuy() ? tops[best].getAskSize() :
+                tops[best].getBidSize();
+            shares[best] = Math.min(remaining, size);
+            remaining -= shares[best];
+            best = nextVenue(order, tops, used);
+        }
+        shares[home] += remaining;
+
+        int venuesUsed = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            venuesUsed += shares[i] > 0 ? 1 : 0;
+        }
+        if ( venuesUsed == 1 )
+        {
+            placed.add(order);
+            venues.get(home).placeOrder(order);
+            return placed;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for ( int i = 0; i < count; i++ )
+        {
+            if ( shares[i] > 0 )
+            {
+                TradeOrder child = new TradeOrder(order.getTrader(), order
+                    .getSymbol(), order.isBuy(), order.isMarket(), shares[i],
+                    order.getPrice());
+                child.setTimeInForce(order.getTimeInForce());
+                child.setExpireTime(order.getExpireTime());
+                StockExchange venue = venues.get(i);
+                placed.add(child);
+                tasks.add(() ->
+                {
+                    venue.placeOrder(child);
+                    return null;
+                });
+            }
+        }
+        if ( order.getPool() != null )
+        {
+            order.getPool().release(order);
+        }
+        runAll(tasks);
+        return placed;
+    }
+
+
+    /**
+     * Stops the threads that place child orders.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+
+    // Returns the unused venue with the best opposite price that an order
+    // can trade at, or -1 if there is none. A market order at the top of a
+    // venue's book counts as the best price.
+    private static int nextVenue(
+        TradeOrder order,
+        TopOfBook[] tops,
+        boolean[] used)
+    {
+        int best = -1;
+        double bestPrice = 0;
+        for ( int i = 0; i < tops.length; i++ )
+        {
+            if ( tops[i] == null || used[i] )
+            {
+                continue;
+            }
+            int size = order.isBuy() ? tops[i].getAskSize() :
+                tops[i].getBidSize();
+            double price = order.isBuy() ? tops[i].getAskPrice() :
+                tops[i].getBidPrice();
+            if ( size == 0 || !Double.isNaN(price) && !order.isMarket() &&
+                (order.isBuy() ? price > order.getPrice() :
+                price < order.getPrice()) )
+            {
+                continue;
+            }
+            if ( best < 0 || Double.isNaN(price) && !Double.isNaN(bestPrice) ||
+                !Double.isNaN(price) && !Double.isNaN(bestPrice) &&
+                (order.isBuy() ? price < bestPrice : price > bestPrice) )
+            {
+                best = i;
+                bestPrice = price;
+            }
+        }
+        return best;
+    }
+
+
+    // Places child orders in parallel and waits until all are placed.
+    private void runAll(List<Callable<Void>> tasks)
+    {
+        try
+        {
+            for ( Future<Void> done : executor.invokeAll(tasks) )
+            {
+                done.get();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch ( ExecutionException e )
+        {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -1,9 +1,19 @@
-import java.lang.reflect.Field;
-import java.text.DecimalFormat;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.TreeMap;
 
 /**
- * Represents a stock in the SafeTrade project
+ * Represents a stock in the SafeTrade project. The methods that change the
+ * book are synchronized, so orders for one stock may come in from several
+ * threads, and the best bid and ask are published for lock-free reading.
  *
  * @author Niranjan Mathirajan
  * @author Leo Xu
@@ -12,17 +22,50 @@ import java.util.PriorityQueue;
  */
 public class Stock
 {
-
-    private static DecimalFormat money = new DecimalFormat("0.00");
-
     private String stockSymbol;
     private String companyName;
     private double loPrice;
     private double hiPrice;
     private double lastPrice;
     private int                       volume;
+    private int                       trades;
+    private double                    turnover;
     private PriorityQueue<TradeOrder> buyOrders;
     private PriorityQueue<TradeOrder> sellOrders;
+    private ArrayDeque<TradeOrder>    marketBuyOrders;
+    private ArrayDeque<TradeOrder>    marketSellOrders;
+    private PriceLevels               buyLevels;
+    private PriceLevels               sellLevels;
+    private Clock                     clock;
+    private TradeTape                 tape;
+    private TradingPhase              phase;
+    private StopOrderIndex            stopOrders;
+    private TimerWheel<TradeOrder>    expirations;
+    private SelfTradePrevention       selfTradePrevention;
+    private long                      sequence;
+    private boolean                   garbageFree;
+    private FillListener              fillListener;
+    private MessageDispatcher         dispatcher;
+    private boolean                   coalesceFills;
+    private TradeOrder                aggressor;
+    private Trader                    aggressorTrader;
+    private boolean                   aggressorBuys;
+    private int                       coalescedShares;
+    private double                    coalescedAmount;
+    private double                    coalescedPrice;
+    private int                       coalescedFills;
+    private int                       coalescedLevels;
+    private TopOfBook                 top;
+    private volatile BookSnapshot     bookSnapshot;
+    private ArrayList<BookSnapshot>   bookSnapshots;
+    private long                      snapshotVersion;
+    private int                       bandBasisPoints;
+    private long                      auctionMillis;
+    private long                      bandLow;
+    private long                      bandHigh;
+    private long                      auctionEnd;
+    private MarketOrderProtection     marketOrderProtection;
+    private int                       protectionBasisPoints;
 
 
     /**
@@ -38,13 +81,33 @@ public class Stock
      * priority qieue for buy orders to an empty
      * PriorityQueue with a
      * PriceComparator configured for comparing orders in
-     * descending order.
+     * descending order. Market orders wait in first-in, first-out queues of
+     * their own. Starts an empty trade tape stamped by the system
+     * clock. The stock starts out in continuous trading, without self-trade
+     * prevention or market order protection.
      *
      * @param symbol - the stock symbol.
      * @param name   - full company name.
      * @param price  - opening price for this stock.
      */
     public Stock(String symbol, String name, double price)
+    {
+        this(symbol, name, price, 2);
+    }
+
+
+    /**
+     * Constructs a new stock whose buy and sell queues start out with room
+     * for a given number of orders each, so that a stock expected to have a
+     * deep book does not grow its queues while trading.
+     *
+     * @param symbol       - the stock symbol.
+     * @param name         - full company name.
+     * @param price        - opening price for this stock.
+     * @param bookCapacity - the number of orders each side starts out with
+     *                     room for.
+     */
+    public Stock(String symbol, String name, double price, int bookCapacity)
     {
         volume = 0;
         stockSymbol = symbol;
@@ -54,9 +117,22 @@ public class Stock
         lastPrice = price;
         PriceComparator asc = new PriceComparator();
         PriceComparator desc = new PriceComparator(false);
-        buyOrders = new PriorityQueue<>(2, desc);
-        sellOrders = new PriorityQueue<>(2, asc);
-
+        buyOrders = new PriorityQueue<>(bookCapacity, desc);
+        sellOrders = new PriorityQueue<>(bookCapacity, asc);
+        marketBuyOrders = new ArrayDeque<>();
+        marketSellOrders = new ArrayDeque<>();
+        buyLevels = new PriceLevels();
+        sellLevels = new PriceLevels();
+        clock = Clock.systemUTC();
+        tape = new TradeTape();
+        phase = TradingPhase.CONTINUOUS;
+        stopOrders = new StopOrderIndex();
+        expirations = new TimerWheel<>(clock.millis(), this::expire);
+        selfTradePrevention = SelfTradePrevention.NONE;
+        marketOrderProtection = MarketOrderProtection.NONE;
+        sequence = 0;
+        top = new TopOfBook();
+        updateBand();
     }
 
 
@@ -65,278 +141,1582 @@ public class Stock
      *
      * @return the quote for this stock.
      */
-    public String getQuote()
+    public synchronized String getQuote()
     {
         String quote =
             companyName + " (" + stockSymbol + ")" +
                 "\nPrice: " + getLastPrice() + "\thi: " + getHiPrice() +
                 "\tlo: " + getLoPrice() + "\tvol: " + getVolume() + "\n";
 
-        TradeOrder ask = sellOrders.peek();
-        TradeOrder bid = buyOrders.peek();
+        TradeOrder ask = bestSell();
+        TradeOrder bid = bestBuy();
 
         String askString = ask == null ?
             "Ask: none\t" :
-            "Ask: " + ask.getPrice() + " size: " + ask.getShares() + "\t";
+            "Ask: " + quotePrice(ask) + " size: " + ask.getShares() + "\t";
 
         String bidString = bid == null ?
             "Bid: none" :
-            "Bid: " + bid.getPrice() + " size: " + bid.getShares();
+            "Bid: " + quotePrice(bid) + " size: " + bid.getShares();
 
         return quote + askString + bidString;
 
     }
 
 
+    // Returns the price of an order as shown in a quote.
+    private static String quotePrice(TradeOrder order)
+    {
+        return order.isMarket() ? "market" : String.valueOf(order.getPrice());
+    }
+
+
     /**
-     * Places a trading order for this stock.
+     * Places a trading order for this stock. Orders are matched right away
+     * during continuous trading, collected for the next auction during the
+     * pre-open and closing auction phases, and rejected once the session is
+     * closed. Stop orders wait in the stop index until the last price reaches
+     * their stop price. Whatever is left of an immediate-or-cancel order after
+     * matching is cancelled, and a fill-or-kill order is rejected unless the
+     * book holds enough shares to fill it. Day, good-till-date and
+     * good-till-time orders are scheduled to expire; orders whose time has
+     * come are expired before the new order is handled.
+     *
+     * An order taken from a TradeOrderPool belongs to the stock once placed;
+     * the stock hands it back to the pool when the order is filled, cancelled,
+     * expired or rejected, so the caller must not use it after that.
      *
      * @param order - a trading order to be placed.
      */
-    public void placeOrder(TradeOrder order)
+    public synchronized void placeOrder(TradeOrder order)
+    {
+        place(order, false);
+    }
+
+
+    // Places a new order, or a stop order its stop price has just triggered.
+    // A triggered stop was announced and opened when it was placed and keeps
+    // the expiry timer it has had since, so none of that is done again.
+    private void place(TradeOrder order, boolean triggered)
     {
-        String msg = "";
-        if ( order != null && order.isLimit() )
+        expireOrders();
+        if ( order != null )
         {
-            if ( order.isSell() )
+            String rejection = checkOrder(order);
+            if ( rejection != null )
             {
-                msg = "New Order:\t" + "Sell " + order
-                    .getSymbol() + "(" + companyName + ")\n" + order
-                    .getShares() + " shares at $" +
-                    money.format(order.getPrice());
-                sellOrders.add(order);
+                send(order.getTrader(), "Order rejected:\t" + rejection);
+                retire(order);
+                return;
             }
-            else if ( order.isBuy() )
+
+            if ( !garbageFree && !triggered )
             {
-                msg = "New Order:\t" + "Buy " + order
-                    .getSymbol() + "(" + companyName + ")\n" + order
-                    .getShares() + " shares at $" +
-                    money.format(order.getPrice());
-                buyOrders.add(order);
+                send(order.getTrader(), "New Order:\t" + describe(order));
             }
-        }
-        else if ( order != null && order.isMarket() )
-        {
-            if ( order.isSell() )
+            order.setSequence(++sequence);
+            if ( !triggered )
+            {
+                order.getTrader().orderOpened(order);
+            }
+            if ( order.isStop() )
+            {
+                stopOrders.add(order);
+            }
+            else
             {
-                msg = "New Order:\t" + "Sell " + order
-                    .getSymbol() + "(" + companyName + ")\n" + order
-                    .getShares() + " shares at market";
-                sellOrders.add(order);
+                enqueue(order);
             }
-            else if ( order.isBuy() )
+            long expireTime = triggered ? Long.MAX_VALUE : expireTime(order);
+            if ( expireTime != Long.MAX_VALUE )
             {
-                msg = "New Order:\t" + "Buy " + order
-                    .getSymbol() + "(" + companyName + ")\n" + order
-                    .getShares() + " shares at market";
-                buyOrders.add(order);
+                order.setExpiry(expirations.schedule(expireTime, order));
             }
         }
-        if ( order != null )
+        if ( phase == TradingPhase.CONTINUOUS )
         {
-            order.getTrader().receiveMessage(msg);
+            coalesceFillsOf(order);
+            executeOrders();
+            sendCoalescedFills();
+            if ( order != null )
+            {
+                cancelUnfilled(order);
+            }
+            if ( phase == TradingPhase.CONTINUOUS )
+            {
+                updateBand();
+            }
+            triggerStops();
         }
-        executeOrders();
+        updateTopOfBook();
     }
 
 
-    /**
-     * Executes as many pending orders as possible.
-     */
-    protected void executeOrders()
+    // Returns the reason for turning a given order away, or null if it can be
+    // placed.
+    private String checkOrder(TradeOrder order)
     {
-        TradeOrder topSell = sellOrders.peek();
-        TradeOrder topBuy = buyOrders.peek();
-        while ( topSell != null && topBuy != null && !(topBuy
-            .isLimit() && topSell.isLimit() && topSell.getPrice() > topBuy
-            .getPrice()) )
+        if ( phase == TradingPhase.CLOSED )
         {
-
-            if ( topSell.isLimit() && topBuy.isLimit() && topBuy
-                .getPrice() >= topSell.getPrice() )
+            return order.getSymbol() + " is closed for trading";
+        }
+        if ( order.isMarket() && !order.isStop() &&
+            phase == TradingPhase.CONTINUOUS )
+        {
+            TradeOrder other = (order.isBuy() ? sellOrders : buyOrders).peek();
+            String rejection = protectMarketOrder(order, other == null ?
+                Double.NaN : other.getPrice());
+            if ( rejection != null )
             {
-                execution(topSell, topBuy, topSell.getPrice());
+                return rejection;
             }
-            else if ( topSell.isMarket() && topBuy.isMarket() )
+        }
+        TimeInForce tif = order.getTimeInForce();
+        if ( tif != TimeInForce.IOC && tif != TimeInForce.FOK )
+        {
+            return expireTime(order) <= clock.millis() ?
+                describe(order) + " has already expired" : null;
+        }
+        if ( order.isStop() )
+        {
+            return null;
+        }
+        if ( phase != TradingPhase.CONTINUOUS )
+        {
+            return tif + " orders for " + order
+                .getSymbol() + " need continuous trading";
+        }
+        if ( tif == TimeInForce.FOK && !canFill(order) )
+        {
+            return describe(order) + " cannot be filled in full";
+        }
+        return null;
+    }
+
+
+    // Returns true if the opposite side of the book holds enough shares at
+    // acceptable prices to fill a given order completely. Market orders only
+    // trade with limit orders.
+    private boolean canFill(TradeOrder order)
+    {
+        long needed = order.getShares() + order.getHiddenShares();
+        if ( order.isLimit() )
+        {
+            for ( TradeOrder other :
+                order.isBuy() ? marketSellOrders : marketBuyOrders )
             {
-                execution(topSell, topBuy, lastPrice);
+                needed -= other.getShares() + other.getHiddenShares();
+                if ( needed <= 0 )
+                {
+                    return true;
+                }
             }
-            else if ( topSell.isLimit() && topBuy.isMarket() )
+        }
+        for ( TradeOrder other : order.isBuy() ? sellOrders : buyOrders )
+        {
+            if ( order.isMarket() || (order.isBuy() ?
+                other.getPrice() <= order.getPrice() :
+                other.getPrice() >= order.getPrice()) )
             {
-                execution(topSell, topBuy, topSell.getPrice());
+                needed -= other.getShares() + other.getHiddenShares();
+                if ( needed <= 0 )
+                {
+                    return true;
+                }
             }
-            else if ( topBuy.isLimit() && topSell.isMarket() )
+        }
+        return false;
+    }
+
+
+    // Cancels whatever is left of an immediate-or-cancel or fill-or-kill
+    // order once matching is done.
+    private void cancelUnfilled(TradeOrder order)
+    {
+        TimeInForce tif = order.getTimeInForce();
+        if ( (tif == TimeInForce.IOC || tif == TimeInForce.FOK) && !order
+            .isStop() )
+        {
+            cancelOrder(order);
+        }
+    }
+
+
+    // Places the stop orders triggered by the last price, repeating as long
+    // as their fills trigger more stops.
+    private void triggerStops()
+    {
+        if ( stopOrders.isEmpty() )
+        {
+            return;
+        }
+        ArrayList<TradeOrder> triggered = new ArrayList<>();
+        while ( stopOrders.trigger(lastPrice, triggered) > 0 )
+        {
+            for ( TradeOrder order : triggered )
             {
-                execution(topSell, topBuy, topBuy.getPrice());
+                order.triggerStop();
+                place(order, true);
             }
-            topSell = sellOrders.peek();
-            topBuy = buyOrders.peek();
+            triggered.clear();
         }
     }
 
 
     /**
-     * Helper function to carry out an order. Sends message, updates day prices,
-     * completes and updates pending orders.
+     * Applies the market order protection of this stock to a market order
+     * about to be matched in continuous trading. PROTECT turns it into a
+     * limit order at the protection price and REJECT turns it away if the
+     * other side of the book holds no limit orders; either way it becomes
+     * immediate-or-cancel, unless it is fill-or-kill, so that it never rests.
+     * NONE leaves the order as it is.
      *
-     * @param topSell - Sell order with the lowest price
-     * @param topBuy  - Buy order with the highest price
-     * @param price   - Actual price set for the transaction
+     * @param order    - a market order.
+     * @param opposite - the best limit price on the other side of the book,
+     *                 or NaN if there is none.
+     * @return the reason for turning the order away, or null if it can be
+     * placed.
      */
-    public void execution(TradeOrder topSell, TradeOrder topBuy, double price)
+    protected String protectMarketOrder(TradeOrder order, double opposite)
     {
-        int numShares = Math.min(topSell.getShares(), topBuy.getShares());
-
-        String sellMsg = "You sold:\t" + numShares + " " + topSell
-            .getSymbol() + " at " + money.format(price) + " amt " + money
-            .format(price * numShares);
-
-        String buyMsg = "You bought:\t" + numShares + " " + topSell
-            .getSymbol() + " at " + money.format(price) + " amt " + money
-            .format(price * numShares);
-
-        topBuy.getTrader().receiveMessage(buyMsg);
-        topSell.getTrader().receiveMessage(sellMsg);
-
-        volume += numShares;
-        hiPrice = Math.max(price, getHiPrice());
-        loPrice = Math.min(price, getLoPrice());
-        lastPrice = price;
-
-        topSell.subtractShares(numShares);
-        topBuy.subtractShares(numShares);
-
-        System.out.println(buyOrders);
-        if ( topSell.getShares() == 0 && topBuy.getShares() == 0 )
+        if ( marketOrderProtection == MarketOrderProtection.NONE )
+        {
+            return null;
+        }
+        if ( marketOrderProtection == MarketOrderProtection.REJECT )
         {
-            buyOrders.remove(topBuy);
-            sellOrders.remove(topSell);
+            if ( Double.isNaN(opposite) )
+            {
+                return describe(order) + " finds no " + (order.isBuy() ?
+                    "sell" : "buy") + " orders to trade with";
+            }
         }
-        else if ( topSell.getShares() == 0 )
+        else
         {
-            sellOrders.remove(topSell);
+            long reference = Math.round((Double.isNaN(opposite) ? lastPrice :
+                opposite) * 100);
+            long width = reference * protectionBasisPoints / 10000;
+            order.convertToLimit((order.isBuy() ? reference + width :
+                Math.max(1, reference - width)) / 100.0);
         }
-        else if ( topBuy.getShares() == 0 )
+        if ( order.getTimeInForce() != TimeInForce.FOK )
         {
-            buyOrders.remove(topBuy);
+            order.setTimeInForce(TimeInForce.IOC);
         }
+        return null;
     }
 
-    //
-    // The following are for test purposes only
-    //
+
+    /**
+     * Describes an order as in "Buy GGGL(Giggle.com)\n100 shares at $10.00".
+     *
+     * @param order - a trading order.
+     * @return the description used in messages about the order.
+     */
+    protected String describe(TradeOrder order)
+    {
+        String msg = (order.isBuy() ? "Buy " : "Sell ") + order
+            .getSymbol() + "(" + companyName + ")\n" + (order
+            .getShares() + order.getHiddenShares()) + " shares at " + (order
+            .isMarket() ? "market" : "$" + PriceFormat.format(order
+            .getPrice()));
+        if ( order.isStop() )
+        {
+            msg += ", stop at $" + PriceFormat.format(order.getStopPrice());
+        }
+        return msg;
+    }
 
 
     /**
+     * Cancels an order resting in the book or waiting in the stop index and
+     * tells its trader.
      *
-     * Returns a stock's symbol
-     * @return A stock's symbol
+     * @param order - the order to cancel.
+     * @return true if the order was cancelled; false if it was not resting
+     * here (already filled, cancelled or expired).
      */
-    protected String getStockSymbol()
+    public synchronized boolean cancelOrder(TradeOrder order)
     {
-        return stockSymbol;
+        if ( !removeOrder(order) )
+        {
+            return false;
+        }
+        send(order.getTrader(), "Cancelled:\t" + describe(order));
+        retire(order);
+        updateTopOfBook();
+        return true;
     }
 
+
     /**
+     * Expires every order whose expire time has passed by the clock of this
+     * stock, and ends a volatility auction whose time is up. Called before
+     * each new order is placed; the exchange can also call it on a timer so
+     * that expiries and halts do not wait for the next order.
      *
-     * Returns the company name
-     * @return the company name
+     * @return the number of orders expired.
      */
-    protected String getCompanyName()
+    public synchronized int expireOrders()
     {
-        return companyName;
+        long now = clock.millis();
+        int expired = expirations.advance(now);
+        if ( phase == TradingPhase.VOLATILITY_AUCTION && now >= auctionEnd )
+        {
+            startContinuousTrading();
+        }
+        else if ( expired > 0 )
+        {
+            updateTopOfBook();
+        }
+        return expired;
     }
 
+
     /**
-     * Returns a stock's lowest price
-     * @return lowest price
+     * Returns the orders resting in this stock, stop orders included, in the
+     * order they were placed here. The orders stay in the book.
+     *
+     * @return a new list of the resting orders.
      */
-    protected double getLoPrice()
+    public synchronized List<TradeOrder> getRestingOrders()
     {
-        return loPrice;
+        List<TradeOrder> resting = new ArrayList<>(buyOrders);
+        resting.addAll(sellOrders);
+        resting.addAll(marketBuyOrders);
+        resting.addAll(marketSellOrders);
+        stopOrders.copyTo(resting);
+        resting.sort(Comparator.comparingLong(TradeOrder::getSequence));
+        return resting;
     }
 
+
     /**
-     * Returns a stock's highest price
-     * @return highest price
+     * Carries the day's low, high, volume, trade count and turnover over from
+     * the stock this one replaces, as when a stock moves to another node of a
+     * cluster.
+     *
+     * @param lo       - the day's low price.
+     * @param hi       - the day's high price.
+     * @param volume   - the day's volume.
+     * @param trades   - the day's number of trades.
+     * @param turnover - the day's traded amount, shares times price.
      */
-    protected double getHiPrice()
+    protected synchronized void restoreDay(
+        double lo,
+        double hi,
+        int volume,
+        int trades,
+        double turnover)
     {
-        return hiPrice;
+        loPrice = lo;
+        hiPrice = hi;
+        this.volume = volume;
+        this.trades = trades;
+        this.turnover = turnover;
     }
 
+
     /**
-     * Returns a stock's last price
-     * @return last price
+     * Ends the trading day of this stock: takes the day's statistics and
+     * starts the next day with the low and high at the last price and no
+     * volume or trades. Runs under the stock's lock, so no fill falls between
+     * the summary and the reset. The book is left as it is.
+     *
+     * @return the day's statistics.
      */
-    protected double getLastPrice()
+    public synchronized DaySummary endDay()
     {
-        return lastPrice;
+        DaySummary summary = new DaySummary(stockSymbol, loPrice, hiPrice,
+            lastPrice, volume, trades, volume == 0 ? Double.NaN : turnover
+                / volume, countRestingOrders());
+        resetDay();
+        return summary;
+    }
+
+
+    // Starts a new day's statistics: the low and high at the last price and
+    // no volume, trades or turnover.
+    private void resetDay()
+    {
+        loPrice = lastPrice;
+        hiPrice = lastPrice;
+        volume = 0;
+        trades = 0;
+        turnover = 0;
     }
 
+
     /**
-     * Returns a stock's daily volume
-     * @return daily volume
+     * Returns the number of orders resting in this stock, stop orders
+     * included. Called with the stock's lock held.
+     *
+     * @return the resting order count.
      */
-    protected int getVolume()
+    protected int countRestingOrders()
     {
-        return volume;
+        return buyOrders.size() + sellOrders.size() + marketBuyOrders.size()
+            + marketSellOrders.size() + stopOrders.size();
     }
 
+
     /**
+     * Returns the best bid and ask of this stock, which other threads can
+     * read without locking through TopOfBook.copyTo. It is brought up to
+     * date whenever an order is placed, cancelled or expired and when an
+     * auction runs.
      *
-     * Returns priority queue of buy orders
-     * @return buy orders priority queue
+     * @return the published top of book.
      */
-    protected PriorityQueue<TradeOrder> getBuyOrders()
+    public TopOfBook getTopOfBook()
     {
-        return buyOrders;
+        return top;
+    }
+
+
+    /**
+     * Publishes the best bid and ask of this stock to its TopOfBook. The size
+     * shown for each side is the total of the shares shown at the best price,
+     * or of all market orders when one is first in line. With book snapshots
+     * on, a copy of the whole book is published as well.
+     */
+    protected void updateTopOfBook()
+    {
+        TradeOrder bid = bestBuy();
+        TradeOrder ask = bestSell();
+        top.update(bid == null || bid.isMarket() ? Double.NaN : bid
+            .getPrice(), levelShares(bid), ask == null || ask.isMarket() ?
+                Double.NaN : ask.getPrice(), levelShares(ask));
+        if ( bookSnapshots != null )
+        {
+            publishBookSnapshot();
+        }
     }
 
 
     /**
+     * Turns book snapshots on or off. With snapshots on, the stock copies its
+     * book into a BookSnapshot whenever it publishes its top of book, which
+     * costs time in proportion to the number of resting orders, so that
+     * other threads can read the whole book through acquireBookSnapshot.
+     * OffHeapStock does not publish snapshots.
      *
-     * Returns priority queue of sell orders
-     * @return sell orders priority queue
+     * @param on - true to publish book snapshots.
      */
-    protected PriorityQueue<TradeOrder> getSellOrders()
+    public synchronized void setBookSnapshots(boolean on)
     {
-        return sellOrders;
+        if ( on && bookSnapshots == null )
+        {
+            bookSnapshots = new ArrayList<>();
+            updateTopOfBook();
+        }
+        else if ( !on )
+        {
+            bookSnapshots = null;
+            bookSnapshot = null;
+        }
     }
 
 
     /**
-     * <p>
-     * A generic toString implementation that uses reflection to print names and
-     * values of all fields <em>
-     * declared in this class</em>. Note that superclass
-     * fields are left out of this implementation.
-     * </p>
+     * Returns the latest book snapshot of this stock without locking. The
+     * snapshot does not change until the caller hands it back with
+     * BookSnapshot.release, however long matching goes on meanwhile.
      *
-     * @return a string representation of this Stock.
+     * @return the latest snapshot, or null if book snapshots are off.
      */
-    public String toString()
+    public BookSnapshot acquireBookSnapshot()
     {
-        String str = this.getClass().getName() + "[";
-        String separator = "";
+        while ( true )
+        {
+            BookSnapshot snapshot = bookSnapshot;
+            if ( snapshot == null )
+            {
+                return null;
+            }
+            snapshot.acquire();
+            if ( bookSnapshot == snapshot )
+            {
+                return snapshot;
+            }
+            snapshot.release();
+        }
+    }
 
-        Field[] fields = this.getClass().getDeclaredFields();
 
-        for ( Field field : fields )
+    // Copies the book into a snapshot that is not published and that no
+    // reader holds, publishes it, and lets go of any other snapshots that
+    // readers are done with. A reader that counts itself on a snapshot just
+    // as it is picked here sees that it is no longer published and retries.
+    private void publishBookSnapshot()
+    {
+        BookSnapshot published = bookSnapshot;
+        BookSnapshot next = null;
+        for ( int i = bookSnapshots.size() - 1; i >= 0; i-- )
         {
-            try
+            BookSnapshot snapshot = bookSnapshots.get(i);
+            if ( snapshot != published && snapshot.isFree() )
             {
-                str += separator + field.getType().getName() + " " + field
-                    .getName() + ":" + field.get(this);
+                if ( next == null )
+                {
+                    next = snapshot;
+                }
+                else
+                {
+                    bookSnapshots.remove(i);
+                }
             }
-            catch ( IllegalAccessException ex )
+        }
+        if ( next == null )
+        {
+            next = new BookSnapshot();
+            bookSnapshots.add(next);
+        }
+        next.clear(++snapshotVersion, lastPrice, volume);
+        for ( TradeOrder order : marketBuyOrders )
+        {
+            next.add(order);
+        }
+        for ( TradeOrder order : buyOrders )
+        {
+            next.add(order);
+        }
+        for ( TradeOrder order : marketSellOrders )
+        {
+            next.add(order);
+        }
+        for ( TradeOrder order : sellOrders )
+        {
+            next.add(order);
+        }
+        bookSnapshot = next;
+    }
+
+
+    // Removes an order from the book or the stop index.
+    private boolean removeOrder(TradeOrder order)
+    {
+        boolean removed;
+        if ( order.isStop() )
+        {
+            removed = stopOrders.remove(order);
+        }
+        else
+        {
+            removed = queueOf(order).remove(order);
+            if ( removed )
             {
-                System.out.println(ex);
+                levelsOf(order).add(levelOf(order), -order.getShares());
             }
+        }
+        return removed;
+    }
+
+
+    // Puts an order in line in its side of the book and adds its shown shares
+    // to its price level.
+    private void enqueue(TradeOrder order)
+    {
+        queueOf(order).add(order);
+        levelsOf(order).add(levelOf(order), order.getShares());
+    }
+
+
+    // Takes traded or reduced shares off an order in the book and off its
+    // price level.
+    private void take(TradeOrder order, int numShares)
+    {
+        order.subtractShares(numShares);
+        levelsOf(order).add(levelOf(order), -numShares);
+    }
+
+
+    // Returns the price levels of the side of the book an order is on.
+    private PriceLevels levelsOf(TradeOrder order)
+    {
+        return order.isBuy() ? buyLevels : sellLevels;
+    }
+
+
+    // Returns the price level of an order in cents; all market orders of a
+    // side share one level below every price.
+    private static long levelOf(TradeOrder order)
+    {
+        return order.isMarket() ? Long.MIN_VALUE : Math.round(order
+            .getPrice() * 100);
+    }
+
+
+    // Returns the shares shown at the price of an order first in line, or 0
+    // if there is no order.
+    private int levelShares(TradeOrder order)
+    {
+        return order == null ? 0 : (int)Math.min(levelsOf(order).get(levelOf(
+            order)), Integer.MAX_VALUE);
+    }
+
+
+    // Returns the queue of the book a given order waits in: the first-in,
+    // first-out queue of its side for a market order, or the price queue of
+    // its side for a limit order.
+    private Queue<TradeOrder> queueOf(TradeOrder order)
+    {
+        if ( order.isMarket() )
+        {
+            return order.isBuy() ? marketBuyOrders : marketSellOrders;
+        }
+        return order.isBuy() ? buyOrders : sellOrders;
+    }
+
+
+    // Returns the buy order first in line: the oldest market buy order, or
+    // the best limit buy order if there is none.
+    private TradeOrder bestBuy()
+    {
+        TradeOrder order = marketBuyOrders.peek();
+        return order != null ? order : buyOrders.peek();
+    }
+
+
+    // Returns the sell order first in line: the oldest market sell order, or
+    // the best limit sell order if there is none.
+    private TradeOrder bestSell()
+    {
+        TradeOrder order = marketSellOrders.peek();
+        return order != null ? order : sellOrders.peek();
+    }
+
+
+    /**
+     * Finishes with an order that has left this stock for good: cancels its
+     * expiry timer, takes it out of its trader's open orders and hands a
+     * pooled order back to its pool.
+     *
+     * @param order - the order that has left the book.
+     */
+    protected void retire(TradeOrder order)
+    {
+        expirations.cancel(order.getExpiry());
+        order.setExpiry(null);
+        order.getTrader().orderClosed(order);
+        if ( order.getPool() != null )
+        {
+            order.getPool().release(order);
+        }
+    }
+
 
-            separator = ", ";
+    // Called by the timer wheel when an order's time is up.
+    private void expire(TradeOrder order)
+    {
+        order.setExpiry(null);
+        if ( removeOrder(order) )
+        {
+            send(order.getTrader(), "Expired:\t" + describe(order));
+            retire(order);
         }
+    }
+
 
-        return str + "]";
+    // Returns the time at which a given order expires, or Long.MAX_VALUE if
+    // it does not. Day orders expire at the end of the current day and
+    // good-till-date orders at the end of the day of their expire time, both
+    // in the time zone of the clock.
+    private long expireTime(TradeOrder order)
+    {
+        TimeInForce tif = order.getTimeInForce();
+        if ( tif == TimeInForce.DAY )
+        {
+            return endOfDay(clock.millis());
+        }
+        else if ( tif == TimeInForce.GTD )
+        {
+            return endOfDay(order.getExpireTime());
+        }
+        else if ( tif == TimeInForce.GTT )
+        {
+            return order.getExpireTime();
+        }
+        return Long.MAX_VALUE;
+    }
+
+
+    private long endOfDay(long time)
+    {
+        ZoneId zone = clock.getZone();
+        return Instant.ofEpochMilli(time).atZone(zone).toLocalDate()
+            .plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+
+    /**
+     * Executes as many pending orders as possible. When the best buy and sell
+     * orders come from the same trader, the self-trade prevention mode of
+     * this stock decides what happens instead of a trade; the check compares
+     * the owner ids carried by the orders, so traders of different brokerages
+     * are never taken for one another. Market orders go first
+     * but only trade with limit orders, at the limit price, so two market
+     * orders never trade with each other at a price nobody asked for.
+     */
+    protected void executeOrders()
+    {
+        while ( true )
+        {
+            TradeOrder topSell = bestSell();
+            TradeOrder topBuy = bestBuy();
+            if ( topSell != null && topBuy != null && topSell.isMarket() &&
+                topBuy.isMarket() )
+            {
+                if ( !sellOrders.isEmpty() )
+                {
+                    topSell = sellOrders.peek();
+                }
+                else
+                {
+                    topBuy = buyOrders.peek();
+                }
+            }
+            if ( topSell == null || topBuy == null || topBuy.isLimit() &&
+                topSell.isLimit() && topSell.getPrice() > topBuy.getPrice() )
+            {
+                return;
+            }
+
+            if ( selfTradePrevention != SelfTradePrevention.NONE && topSell
+                .getOwnerId() == topBuy.getOwnerId() && topBuy
+                .getOwnerId() >= 0 )
+            {
+                preventSelfTrade(topSell, topBuy);
+            }
+            else
+            {
+                double price = topSell.isLimit() ? topSell.getPrice() : topBuy
+                    .getPrice();
+                if ( isOutsideBand(price) )
+                {
+                    halt(topSell, topBuy, price);
+                    return;
+                }
+                execution(topSell, topBuy, price);
+            }
+        }
+    }
+
+
+    /**
+     * Returns true if a trade at a given price would fall outside the price
+     * band of this stock: two comparisons in whole cents. Without a band
+     * nothing is outside it.
+     *
+     * @param price - the price of a trade.
+     * @return true if the trade must not be made; false otherwise.
+     */
+    protected boolean isOutsideBand(double price)
+    {
+        long cents = Math.round(price * 100);
+        return cents < bandLow || cents > bandHigh;
+    }
+
+
+    /**
+     * Centers the price band on the last price. Called when a matching pass
+     * or an auction is over, so that the band stays put while one order
+     * works its way through the book.
+     */
+    protected void updateBand()
+    {
+        if ( bandBasisPoints <= 0 )
+        {
+            bandLow = Long.MIN_VALUE;
+            bandHigh = Long.MAX_VALUE;
+            return;
+        }
+        long reference = Math.round(lastPrice * 100);
+        long width = reference * bandBasisPoints / 10000;
+        bandLow = reference - width;
+        bandHigh = reference + width;
+    }
+
+
+    // Halts continuous trading instead of a trade outside the price band and
+    // starts a volatility auction. The trader whose order came last is told.
+    private void halt(TradeOrder topSell, TradeOrder topBuy, double price)
+    {
+        phase = TradingPhase.VOLATILITY_AUCTION;
+        auctionEnd = clock.millis() + auctionMillis;
+        TradeOrder newest =
+            topSell.getSequence() > topBuy.getSequence() ? topSell : topBuy;
+        send(newest.getTrader(), "Halted:\t" + stockSymbol + " would trade at "
+            + PriceFormat.format(price) + ", outside " + PriceFormat.format(
+                bandLow / 100.0) + " - " + PriceFormat.format(bandHigh
+                    / 100.0) + "; volatility auction for " + auctionMillis
+            + " ms");
+    }
+
+
+    /**
+     * Helper function to carry out an order. Sends message, updates day prices,
+     * completes and updates pending orders. In garbage-free mode no messages
+     * are built; fills are reported to the fill listener only.
+     *
+     * @param topSell - Sell order with the lowest price
+     * @param topBuy  - Buy order with the highest price
+     * @param price   - Actual price set for the transaction
+     */
+    public void execution(TradeOrder topSell, TradeOrder topBuy, double price)
+    {
+        int numShares = Math.min(topSell.getShares(), topBuy.getShares());
+
+        take(topSell, numShares);
+        take(topBuy, numShares);
+        recordFill(numShares, price);
+        reportFill(topBuy, topSell, numShares, price);
+
+        if ( !garbageFree )
+        {
+            System.out.println(buyOrders);
+        }
+        settle(topSell);
+        settle(topBuy);
+    }
+
+
+    /**
+     * Adds a fill to the day's volume, high, low and last price and to the
+     * trade tape.
+     *
+     * @param numShares - the number of shares traded.
+     * @param price     - the price of the trade.
+     */
+    protected void recordFill(int numShares, double price)
+    {
+        volume += numShares;
+        trades++;
+        turnover += numShares * price;
+        hiPrice = Math.max(price, getHiPrice());
+        loPrice = Math.min(price, getLoPrice());
+        lastPrice = price;
+        tape.append(clock.millis(), price, numShares);
+    }
+
+
+    /**
+     * Tells the traders of a buy and a sell order (and through them their
+     * brokerages) and the fill listener about a fill. The orders have already
+     * had the traded shares taken off.
+     *
+     * @param buy       - the buy order.
+     * @param sell      - the sell order.
+     * @param numShares - the number of shares traded.
+     * @param price     - the price of the trade.
+     */
+    protected void reportFill(TradeOrder buy, TradeOrder sell, int numShares,
+        double price)
+    {
+        if ( !garbageFree )
+        {
+            TradeOrder coalesced = coalesceFills ? aggressor : null;
+            if ( coalesced != null && (buy == coalesced || sell == coalesced) )
+            {
+                coalesceFill(numShares, price);
+            }
+            String fill = numShares + " " + sell.getSymbol() + " at " +
+                PriceFormat.format(price) + " amt " + PriceFormat.format(
+                price * numShares);
+            String sellMsg = "You sold:\t" + fill;
+            String buyMsg = "You bought:\t" + fill;
+
+            if ( buy != coalesced )
+            {
+                send(buy.getTrader(), buyMsg);
+            }
+            if ( sell != coalesced )
+            {
+                send(sell.getTrader(), sellMsg);
+            }
+        }
+        buy.getTrader().orderFilled(buy, numShares, price);
+        sell.getTrader().orderFilled(sell, numShares, price);
+        if ( fillListener != null )
+        {
+            fillListener.onFill(this, buy, sell, numShares, price);
+        }
+    }
+
+
+    /**
+     * Starts a matching pass for a newly placed order. When fill coalescing
+     * is on, the fills of that order during the pass are added up instead of
+     * being sent one by one; the other side of each fill is still told
+     * right away.
+     *
+     * @param order - the incoming order, or null if there is none.
+     */
+    protected void coalesceFillsOf(TradeOrder order)
+    {
+        aggressor = order;
+        aggressorTrader = order == null ? null : order.getTrader();
+        aggressorBuys = order != null && order.isBuy();
+        coalescedShares = 0;
+        coalescedAmount = 0;
+        coalescedFills = 0;
+        coalescedLevels = 0;
+    }
+
+
+    /**
+     * Ends a matching pass: sends the incoming order's trader one message
+     * for all of the order's fills in the pass, with the total shares, the
+     * volume-weighted average price, the number of fills and the number of
+     * prices they were at. A single fill is reported just as without
+     * coalescing.
+     */
+    protected void sendCoalescedFills()
+    {
+        if ( coalescedFills > 0 )
+        {
+            double average = coalescedAmount / coalescedShares;
+            String msg = (aggressorBuys ? "You bought:\t" : "You sold:\t") +
+                coalescedShares + " " + stockSymbol + " at " + PriceFormat
+                .format(average) + " amt " + PriceFormat.format(
+                coalescedAmount);
+            if ( coalescedFills > 1 )
+            {
+                msg += " (" + coalescedFills + " fills at " + coalescedLevels +
+                    " prices)";
+            }
+            send(aggressorTrader, msg);
+        }
+        coalesceFillsOf(null);
+    }
+
+
+    private void coalesceFill(int numShares, double price)
+    {
+        if ( coalescedFills == 0 || price != coalescedPrice )
+        {
+            coalescedLevels++;
+        }
+        coalescedShares += numShares;
+        coalescedAmount += price * numShares;
+        coalescedPrice = price;
+        coalescedFills++;
+    }
+
+
+    // Takes out of the book an order whose shown shares are used up and
+    // retires it, or shows the next slice of an iceberg order instead. A new
+    // slice gets a new sequence number and so goes behind the orders already
+    // waiting at its price.
+    private void settle(TradeOrder order)
+    {
+        if ( order.getShares() > 0 )
+        {
+            return;
+        }
+        queueOf(order).remove(order);
+        if ( order.refreshDisplay() )
+        {
+            order.setSequence(++sequence);
+            enqueue(order);
+        }
+        else
+        {
+            retire(order);
+        }
+    }
+
+
+    // Applies the self-trade prevention mode to a buy and a sell order of the
+    // same trader that would otherwise trade with each other.
+    private void preventSelfTrade(TradeOrder topSell, TradeOrder topBuy)
+    {
+        TradeOrder newest =
+            topSell.getSequence() > topBuy.getSequence() ? topSell : topBuy;
+        TradeOrder oldest = newest == topSell ? topBuy : topSell;
+        String reason = " to prevent a self-trade";
+
+        if ( selfTradePrevention == SelfTradePrevention.DECREMENT )
+        {
+            int numShares = Math.min(topSell.getShares(), topBuy.getShares());
+            take(topSell, numShares);
+            take(topBuy, numShares);
+            send(topBuy.getTrader(), "Reduced:\t" + numShares + " " +
+                stockSymbol + " buy and sell orders" + reason);
+            settle(topSell);
+            settle(topBuy);
+            return;
+        }
+        if ( selfTradePrevention != SelfTradePrevention.CANCEL_OLDEST &&
+            removeOrder(newest) )
+        {
+            send(newest.getTrader(), "Cancelled:\t" + describe(
+                newest) + reason);
+            retire(newest);
+        }
+        if ( selfTradePrevention != SelfTradePrevention.CANCEL_NEWEST &&
+            removeOrder(oldest) )
+        {
+            send(oldest.getTrader(), "Cancelled:\t" + describe(
+                oldest) + reason);
+            retire(oldest);
+        }
+    }
+
+
+    /**
+     * Starts a new session: resets the day's high and low to the last price,
+     * clears its volume, trade count and turnover, and starts collecting
+     * orders for the opening auction.
+     */
+    public synchronized void startPreOpen()
+    {
+        resetDay();
+        phase = TradingPhase.PRE_OPEN;
+    }
+
+
+    /**
+     * Runs the opening auction if the stock is in its pre-open phase, or the
+     * volatility auction if it is halted, and then switches to continuous
+     * trading, matching whatever still crosses. The price band is centered
+     * on the auction price.
+     */
+    public synchronized void startContinuousTrading()
+    {
+        if ( phase == TradingPhase.PRE_OPEN
+            || phase == TradingPhase.VOLATILITY_AUCTION )
+        {
+            uncross();
+        }
+        phase = TradingPhase.CONTINUOUS;
+        updateBand();
+        executeOrders();
+        triggerStops();
+        updateTopOfBook();
+    }
+
+
+    /**
+     * Stops continuous matching and starts collecting orders for the closing
+     * auction.
+     */
+    public synchronized void startClosingAuction()
+    {
+        phase = TradingPhase.CLOSING_AUCTION;
+    }
+
+
+    /**
+     * Runs the closing auction if one is in progress and closes the stock for
+     * the rest of the session. Orders left in the book stay there for the
+     * next session.
+     */
+    public synchronized void closeSession()
+    {
+        if ( phase == TradingPhase.CLOSING_AUCTION )
+        {
+            uncross();
+        }
+        phase = TradingPhase.CLOSED;
+        updateTopOfBook();
+    }
+
+
+    /**
+     * Sets what this stock does when a trader's buy and sell orders would
+     * trade with each other.
+     *
+     * @param mode - the self-trade prevention mode.
+     */
+    public void setSelfTradePrevention(SelfTradePrevention mode)
+    {
+        selfTradePrevention = mode;
+    }
+
+
+    /**
+     * Returns the self-trade prevention mode of this stock.
+     *
+     * @return the self-trade prevention mode.
+     */
+    public SelfTradePrevention getSelfTradePrevention()
+    {
+        return selfTradePrevention;
+    }
+
+
+    /**
+     * Turns garbage-free mode on or off. In garbage-free mode the stock does
+     * not build the "New Order" and fill messages or print the book on each
+     * fill, so that placing and matching an order allocates nothing once the
+     * book, the trade tape and any order pool have grown to their working
+     * size. Fills are then only reported to the fill listener. Rejections,
+     * cancellations and expiries are still sent as messages.
+     *
+     * @param garbageFree - true to turn garbage-free mode on.
+     */
+    public void setGarbageFree(boolean garbageFree)
+    {
+        this.garbageFree = garbageFree;
+    }
+
+
+    /**
+     * Sets the listener told about every fill in this stock.
+     *
+     * @param listener - the fill listener, or null for none.
+     */
+    public void setFillListener(FillListener listener)
+    {
+        fillListener = listener;
+    }
+
+
+    /**
+     * Turns fill coalescing on or off. With coalescing, an incoming order
+     * that trades several times in one matching pass gets one summary
+     * message instead of one message per fill.
+     *
+     * @param coalesceFills - true to coalesce fills.
+     */
+    public void setCoalesceFills(boolean coalesceFills)
+    {
+        this.coalesceFills = coalesceFills;
+    }
+
+
+    /**
+     * Sets the dispatcher that delivers this stock's messages to traders. With
+     * a dispatcher, matching only queues each message and the trader's
+     * mailbox and window are updated on a delivery thread, so a slow client
+     * does not hold up matching. Without one, messages are delivered right
+     * away on the calling thread.
+     *
+     * @param dispatcher - the message dispatcher, or null for none.
+     */
+    public void setMessageDispatcher(MessageDispatcher dispatcher)
+    {
+        this.dispatcher = dispatcher;
+    }
+
+
+    /**
+     * Sends a message to a trader, through the message dispatcher if this
+     * stock has one.
+     *
+     * @param trader - the trader to tell.
+     * @param msg    - the message.
+     */
+    protected void send(Trader trader, String msg)
+    {
+        if ( dispatcher == null )
+        {
+            trader.receiveMessage(msg);
+        }
+        else
+        {
+            dispatcher.publish(trader, msg);
+        }
+    }
+
+
+    /**
+     * Returns true if this stock is in garbage-free mode.
+     *
+     * @return true if fill messages are left out; false otherwise.
+     */
+    public boolean isGarbageFree()
+    {
+        return garbageFree;
+    }
+
+
+    /**
+     * Sets the price band of this stock. A continuous trade further from the
+     * reference price than the band allows is not made: trading halts and
+     * the stock collects orders for a volatility auction instead, which
+     * uncrosses once its time is up (see expireOrders) and reopens continuous
+     * trading. The reference price is the last price as it was when the
+     * incoming order started matching, or the price of the last auction.
+     *
+     * @param basisPoints   - the width of the band either side of the
+     *                      reference price, in hundredths of a percent, or 0
+     *                      for no band.
+     * @param auctionMillis - how long a volatility auction collects orders.
+     */
+    public synchronized void setPriceBand(int basisPoints, long auctionMillis)
+    {
+        bandBasisPoints = basisPoints;
+        this.auctionMillis = auctionMillis;
+        updateBand();
+    }
+
+
+    /**
+     * Returns the width of the price band of this stock.
+     *
+     * @return the width either side of the reference price in basis points,
+     * or 0 if there is no band.
+     */
+    public int getPriceBand()
+    {
+        return bandBasisPoints;
+    }
+
+
+    /**
+     * Returns how long a volatility auction of this stock collects orders.
+     *
+     * @return the auction time in milliseconds.
+     */
+    public long getAuctionMillis()
+    {
+        return auctionMillis;
+    }
+
+
+    /**
+     * Sets what this stock does with market orders during continuous
+     * trading. A market order placed in an auction phase waits for the
+     * auction as before.
+     *
+     * @param mode        - the market order protection mode.
+     * @param basisPoints - how far the protection price lies beyond the
+     *                    reference price, in hundredths of a percent; only
+     *                    used by PROTECT.
+     */
+    public synchronized void setMarketOrderProtection(
+        MarketOrderProtection mode,
+        int basisPoints)
+    {
+        marketOrderProtection = mode;
+        protectionBasisPoints = basisPoints;
+    }
+
+
+    /**
+     * Returns the market order protection mode of this stock.
+     *
+     * @return the market order protection mode.
+     */
+    public MarketOrderProtection getMarketOrderProtection()
+    {
+        return marketOrderProtection;
+    }
+
+
+    /**
+     * Returns the width of the market order protection of this stock.
+     *
+     * @return the width beyond the reference price in basis points.
+     */
+    public int getProtectionBasisPoints()
+    {
+        return protectionBasisPoints;
+    }
+
+
+    /**
+     * Returns the current trading phase of this stock.
+     *
+     * @return the trading phase.
+     */
+    public TradingPhase getPhase()
+    {
+        return phase;
+    }
+
+
+    /**
+     * Runs a call auction on the collected orders: finds the single price that
+     * executes the most shares and fills every order that crosses it at that
+     * price. Orders are first added up into price levels; the search itself is
+     * one pass over the levels for the cumulative demand and supply and one
+     * pass to pick the best price. Ties on executed volume go to the smallest
+     * imbalance and then to the price closest to the last price. The crossing
+     * orders are then filled best level first at that one price. Unlike
+     * execution, a fill does not print the book (which prints every trader's
+     * mailbox); one line with the auction's volume and price is printed
+     * instead, so a large auction stays linear in the number of fills.
+     *
+     * @return the auction price, or NaN if nothing crossed.
+     */
+    protected double uncross()
+    {
+        TreeMap<Long, long[]> levels = new TreeMap<>();
+        long marketBuys = addLevels(levels, buyOrders, 0) + addLevels(levels,
+            marketBuyOrders, 0);
+        long marketSells = addLevels(levels, sellOrders, 1) + addLevels(
+            levels, marketSellOrders, 1);
+
+        int numLevels = levels.size();
+        long[] prices = new long[numLevels];
+        long[] demand = new long[numLevels];
+        long[] supply = new long[numLevels];
+        int i = 0;
+        long cumulative = marketSells;
+        for ( Map.Entry<Long, long[]> level : levels.entrySet() )
+        {
+            prices[i] = level.getKey();
+            cumulative += level.getValue()[1];
+            supply[i] = cumulative;
+            i++;
+        }
+        cumulative = marketBuys;
+        for ( Map.Entry<Long, long[]> level : levels.descendingMap()
+            .entrySet() )
+        {
+            i--;
+            cumulative += level.getValue()[0];
+            demand[i] = cumulative;
+        }
+
+        long reference = Math.round(lastPrice * 100);
+        long bestPrice = reference;
+        long bestVolume = Math.min(marketBuys, marketSells);
+        long bestImbalance = Math.abs(marketBuys - marketSells);
+        boolean found = numLevels == 0;
+        for ( i = 0; i < numLevels; i++ )
+        {
+            long executed = Math.min(demand[i], supply[i]);
+            long imbalance = Math.abs(demand[i] - supply[i]);
+            if ( !found || executed > bestVolume || executed == bestVolume && (
+                imbalance < bestImbalance || imbalance == bestImbalance && Math
+                    .abs(prices[i] - reference) < Math
+                    .abs(bestPrice - reference)) )
+            {
+                bestPrice = prices[i];
+                bestVolume = executed;
+                bestImbalance = imbalance;
+                found = true;
+            }
+        }
+        if ( bestVolume == 0 )
+        {
+            return Double.NaN;
+        }
+
+        double price = bestPrice / 100.0;
+        long executed = 0;
+        while ( bestVolume > 0 )
+        {
+            TradeOrder topSell = bestSell();
+            TradeOrder topBuy = bestBuy();
+            int numShares = Math.min(topSell.getShares(), topBuy.getShares());
+            take(topSell, numShares);
+            take(topBuy, numShares);
+            recordFill(numShares, price);
+            reportFill(topBuy, topSell, numShares, price);
+            settle(topSell);
+            settle(topBuy);
+            bestVolume -= numShares;
+            executed += numShares;
+        }
+        if ( !garbageFree )
+        {
+            System.out.println(stockSymbol + " auction: " + executed
+                + " shares at " + PriceFormat.format(price));
+        }
+        return price;
+    }
+
+
+    // Adds up the shares of the limit orders in one side of the book into
+    // price levels (in cents) and returns the total shares of market orders.
+    private static long addLevels(
+        TreeMap<Long, long[]> levels,
+        Queue<TradeOrder> orders,
+        int side)
+    {
+        long market = 0;
+        for ( TradeOrder order : orders )
+        {
+            if ( order.isMarket() )
+            {
+                market += order.getShares() + order.getHiddenShares();
+            }
+            else
+            {
+                levels.computeIfAbsent(Math.round(order.getPrice() * 100),
+                    k -> new long[2])[side] += order.getShares() + order
+                    .getHiddenShares();
+            }
+        }
+        return market;
+    }
+
+
+    /**
+     * Returns the trade tape of this stock, which holds every fill and the
+     * OHLCV bars built from them.
+     *
+     * @return the trade tape.
+     */
+    public TradeTape getTradeTape()
+    {
+        return tape;
+    }
+
+
+    /**
+     * Sets the clock used to time stamp fills on the trade tape and to expire
+     * orders. Pending expiries keep their expire times.
+     *
+     * @param clock - the clock for this stock.
+     */
+    protected void setClock(Clock clock)
+    {
+        this.clock = clock;
+        expirations.rebase(clock.millis());
+    }
+
+    //
+    // The following are for test purposes only
+    //
+
+
+    /**
+     *
+     * Returns a stock's symbol
+     * @return A stock's symbol
+     */
+    protected String getStockSymbol()
+    {
+        return stockSymbol;
+    }
+
+    /**
+     *
+     * Returns the company name
+     * @return the company name
+     */
+    protected String getCompanyName()
+    {
+        return companyName;
+    }
+
+    /**
+     * Returns a stock's lowest price
+     * @return lowest price
+     */
+    protected double getLoPrice()
+    {
+        return loPrice;
+    }
+
+    /**
+     * Returns a stock's highest price
+     * @return highest price
+     */
+    protected double getHiPrice()
+    {
+        return hiPrice;
+    }
+
+    /**
+     * Returns a stock's last price
+     * @return last price
+     */
+    protected double getLastPrice()
+    {
+        return lastPrice;
+    }
+
+    /**
+     * Returns a stock's daily volume
+     * @return daily volume
+     */
+    protected int getVolume()
+    {
+        return volume;
+    }
+
+    /**
+     * Returns a stock's daily number of trades
+     * @return daily trade count
+     */
+    protected int getTrades()
+    {
+        return trades;
+    }
+
+    /**
+     * Returns a stock's daily traded amount, shares times price
+     * @return daily turnover
+     */
+    protected double getTurnover()
+    {
+        return turnover;
+    }
+
+    /**
+     *
+     * Returns priority queue of buy orders
+     * @return buy orders priority queue
+     */
+    protected PriorityQueue<TradeOrder> getBuyOrders()
+    {
+        return buyOrders;
+    }
+
+
+    /**
+     *
+     * Returns priority queue of sell orders
+     * @return sell orders priority queue
+     */
+    protected PriorityQueue<TradeOrder> getSellOrders()
+    {
+        return sellOrders;
+    }
+
+
+    /**
+     *
+     * Returns the queue of market buy orders
+     * @return market buy orders queue
+     */
+    protected ArrayDeque<TradeOrder> getMarketBuyOrders()
+    {
+        return marketBuyOrders;
+    }
+
+
+    /**
+     *
+     * Returns the queue of market sell orders
+     * @return market sell orders queue
+     */
+    protected ArrayDeque<TradeOrder> getMarketSellOrders()
+    {
+        return marketSellOrders;
+    }
+
+
+    /**
+     *
+     * Returns the index of stop orders waiting to be triggered
+     * @return stop order index
+     */
+    protected StopOrderIndex getStopOrders()
+    {
+        return stopOrders;
+    }
+
+
+    /**
+     * <p>
+     * A generic toString implementation that prints the names and
+     * values of all fields <em>
+     * declared in this class</em>. Note that superclass
+     * fields are left out of this implementation.
+     * </p>
+     *
+     * @return a string representation of this Stock.
+     */
+    public String toString()
+    {
+        return FieldFormatter.format(this);
     }
 }
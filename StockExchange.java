@@ -1,12 +1,29 @@
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Represents a stock exchange. A <code>StockExchange</code> keeps a
  * <code>HashMap</code> of stocks, keyed by a stock symbol. It has methods to
  * list a new stock, request a quote for a given stock symbol, and to place a
- * specified trade order.
+ * specified trade order. Each listed stock also gets a dense integer
+ * instrument id, so that orders that carry the id find their stock with an
+ * array lookup instead of hashing the symbol.
  *
  * @author Niranjan Mathirajan
  * @author Leo Xu
@@ -15,7 +32,19 @@ import java.util.Map;
  */
 public class StockExchange
 {
-    private Map<String, Stock> listedStocks;
+    // The number of stocks an end-of-day task handles without splitting.
+    private static final int END_DAY_BATCH = 16;
+
+    // The smallest slice of a listing file worth parsing on its own thread.
+    private static final int MIN_LISTING_SLICE = 1 << 16;
+
+    private Map<String, Stock>   listedStocks;
+    private SelfTradePrevention  selfTradePrevention;
+    private Map<String, Integer> instrumentIds;
+    private Stock[]              instruments;
+    private MessageDispatcher    dispatcher;
+    private boolean              coalesceFills;
+    private int                  brokerageCount;
 
     /**
      *
@@ -24,6 +53,22 @@ public class StockExchange
     public StockExchange()
     {
         listedStocks = new HashMap<>();
+        selfTradePrevention = SelfTradePrevention.NONE;
+        instrumentIds = new HashMap<>();
+        instruments = new Stock[16];
+    }
+
+
+    /**
+     * Hands out the next brokerage id of this exchange. Trader ids are only
+     * unique within a brokerage, so the brokerage id is what sets the traders
+     * of different brokerages at this exchange apart.
+     *
+     * @return a brokerage id not used before at this exchange.
+     */
+    protected synchronized int nextBrokerageId()
+    {
+        return brokerageCount++;
     }
 
 
@@ -36,7 +81,223 @@ public class StockExchange
      */
     public void listStock(String symbol, String name, double price)
     {
-        listedStocks.put(symbol, new Stock(symbol, name, price));
+        listStock(new Stock(symbol, name, price));
+    }
+
+
+    /**
+     * Adds a stock that has already been built, such as an OffHeapStock, to
+     * the listed stocks. A new symbol gets the next instrument id; a stock
+     * listed again under a symbol it already has replaces the old stock and
+     * keeps its id.
+     *
+     * @param stock - the stock to list.
+     */
+    public void listStock(Stock stock)
+    {
+        String symbol = stock.getStockSymbol().intern();
+        Integer id = instrumentIds.get(symbol);
+        if ( id == null )
+        {
+            id = instrumentIds.size();
+            instrumentIds.put(symbol, id);
+            if ( id == instruments.length )
+            {
+                instruments = Arrays.copyOf(instruments, id * 2);
+            }
+        }
+        instruments[id] = stock;
+        stock.setSelfTradePrevention(selfTradePrevention);
+        stock.setMessageDispatcher(dispatcher);
+        stock.setCoalesceFills(coalesceFills);
+        listedStocks.put(symbol, stock);
+    }
+
+
+    /**
+     * Lists every stock of a listing file. Each line of the file holds a
+     * symbol, a company name and an opening price, separated by commas, as
+     * in "GGGL,Giggle.com,10.00"; the company name may itself contain
+     * commas. Blank lines and lines starting with '#' are skipped.
+     *
+     * <p>
+     * The file is memory-mapped and cut at line breaks into a slice per
+     * processor. The slices are parsed, and their stocks built, in parallel
+     * on the common fork/join pool. The symbol tables are then sized for all
+     * the new stocks at once and the stocks listed in file order, so a new
+     * symbol gets the next instrument id just as with listStock.
+     * </p>
+     *
+     * @param file         - the listing file.
+     * @param bookCapacity - the number of orders each side of a new stock's
+     *                     book starts out with room for.
+     * @return the number of stocks listed.
+     * @throws IOException if the file cannot be read or has a line without a
+     *                     symbol, a name and a price.
+     */
+    public int listStocks(Path file, int bookCapacity) throws IOException
+    {
+        ByteBuffer listing;
+        try ( FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.READ) )
+        {
+            if ( channel.size() > Integer.MAX_VALUE )
+            {
+                throw new IOException(file + " is too large");
+            }
+            listing = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+                .size());
+        }
+        int length = listing.limit();
+        int slices = Math.max(1, Math.min(Runtime.getRuntime()
+            .availableProcessors(), length / MIN_LISTING_SLICE));
+        List<Callable<List<Stock>>> tasks = new ArrayList<>(slices);
+        int start = 0;
+        for ( int i = 1; i <= slices && start < length; i++ )
+        {
+            int end = i == slices ? length : nextLine(listing, Math.max(start,
+                (int)((long)length * i / slices)));
+            int from = start;
+            tasks.add(() -> parseListing(listing, from, end, bookCapacity));
+            start = end;
+        }
+
+        List<List<Stock>> parsed = new ArrayList<>(tasks.size());
+        try
+        {
+            for ( Future<List<Stock>> slice : ForkJoinPool.commonPool()
+                .invokeAll(tasks) )
+            {
+                parsed.add(slice.get());
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch ( ExecutionException e )
+        {
+            // The pool wraps checked exceptions in a RuntimeException.
+            for ( Throwable cause = e.getCause(); cause != null; cause = cause
+                .getCause() )
+            {
+                if ( cause instanceof IOException )
+                {
+                    throw (IOException)cause;
+                }
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+
+        int count = 0;
+        for ( List<Stock> stocks : parsed )
+        {
+            count += stocks.size();
+        }
+        reserve(count);
+        for ( List<Stock> stocks : parsed )
+        {
+            for ( Stock stock : stocks )
+            {
+                listStock(stock);
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Takes a stock off this exchange. Its symbol keeps its instrument id, so
+     * listing the symbol again gives it the same id.
+     *
+     * @param symbol - the stock symbol.
+     * @return the stock taken off, or null if the symbol is not listed.
+     */
+    public Stock delistStock(String symbol)
+    {
+        Stock stock = listedStocks.remove(symbol);
+        if ( stock != null )
+        {
+            instruments[instrumentIds.get(symbol)] = null;
+        }
+        return stock;
+    }
+
+
+    /**
+     * Returns the instrument id of a listed stock.
+     *
+     * @param symbol - the stock symbol.
+     * @return the instrument id, or -1 if the symbol is not listed.
+     */
+    public int getInstrumentId(String symbol)
+    {
+        Integer id = instrumentIds.get(symbol);
+        return id == null ? -1 : id;
+    }
+
+
+    /**
+     * Returns the stock with a given instrument id.
+     *
+     * @param instrumentId - an instrument id.
+     * @return the stock, or null if no stock has that id.
+     */
+    public Stock getStock(int instrumentId)
+    {
+        return instrumentId < 0 || instrumentId >= instrumentIds.size() ?
+            null : instruments[instrumentId];
+    }
+
+
+    /**
+     * Sets the self-trade prevention mode of every listed stock and of the
+     * stocks listed from now on.
+     *
+     * @param mode - the self-trade prevention mode.
+     */
+    public void setSelfTradePrevention(SelfTradePrevention mode)
+    {
+        selfTradePrevention = mode;
+        for ( Stock stock : listedStocks.values() )
+        {
+            stock.setSelfTradePrevention(mode);
+        }
+    }
+
+
+    /**
+     * Sets the dispatcher that delivers the messages of every listed stock
+     * and of the stocks listed from now on.
+     *
+     * @param dispatcher - the message dispatcher, or null to deliver messages
+     *                   on the matching thread.
+     */
+    public void setMessageDispatcher(MessageDispatcher dispatcher)
+    {
+        this.dispatcher = dispatcher;
+        for ( Stock stock : listedStocks.values() )
+        {
+            stock.setMessageDispatcher(dispatcher);
+        }
+    }
+
+
+    /**
+     * Turns fill coalescing on or off for every listed stock and for the
+     * stocks listed from now on.
+     *
+     * @param coalesceFills - true to send one summary message per incoming
+     *                      order and matching pass.
+     */
+    public void setCoalesceFills(boolean coalesceFills)
+    {
+        this.coalesceFills = coalesceFills;
+        for ( Stock stock : listedStocks.values() )
+        {
+            stock.setCoalesceFills(coalesceFills);
+        }
     }
 
 
@@ -51,11 +312,8 @@ public class StockExchange
      */
     public String getQuote(String symbol)
     {
-        if ( !listedStocks.containsKey(symbol) )
-        {
-            return symbol + " not found";
-        }
-        return listedStocks.get(symbol).getQuote();
+        Stock stock = listedStocks.get(symbol);
+        return stock == null ? symbol + " not found" : stock.getQuote();
     }
 
     /**
@@ -63,22 +321,263 @@ public class StockExchange
      *  Places a trade order by calling
      *  stock.placeOrder
      *  for the stock specified by the stock
-     *  symbol in the trade order.
+     *  symbol in the trade order. An order that carries its instrument id
+     *  skips the symbol lookup; otherwise the id is looked up once and set
+     *  on the order.
      * @param order - a trading order to be placed with this stock exchange.
      */
     public void placeOrder(TradeOrder order)
     {
-        if ( !listedStocks.containsKey(order.getSymbol()) )
+        Stock stock = findStock(order);
+        if ( stock == null )
         {
             order.getTrader().receiveMessage(order.getSymbol() + " not found");
         }
         else
         {
-            listedStocks.get(order.getSymbol()).placeOrder(order);
+            stock.placeOrder(order);
         }
     }
 
 
+    /**
+     * Cancels a resting trade order by calling stock.cancelOrder for the stock
+     * specified by the stock symbol in the trade order.
+     *
+     * @param order - a trading order placed with this stock exchange.
+     * @return true if the order was cancelled; false otherwise.
+     */
+    public boolean cancelOrder(TradeOrder order)
+    {
+        Stock stock = findStock(order);
+        return stock != null && stock.cancelOrder(order);
+    }
+
+
+    // Returns the index just past the line break at or after a position of a
+    // listing.
+    private static int nextLine(ByteBuffer listing, int position)
+    {
+        int length = listing.limit();
+        while ( position < length && listing.get(position) != '\n' )
+        {
+            position++;
+        }
+        return Math.min(position + 1, length);
+    }
+
+
+    // Builds the stocks of the lines in [from, to) of a listing.
+    private static List<Stock> parseListing(
+        ByteBuffer listing,
+        int from,
+        int to,
+        int bookCapacity)
+        throws IOException
+    {
+        List<Stock> stocks = new ArrayList<>((to - from) / 24 + 1);
+        byte[] line = new byte[256];
+        while ( from < to )
+        {
+            int end = nextLine(listing, from);
+            int length = end - from;
+            if ( length > line.length )
+            {
+                line = new byte[length];
+            }
+            listing.get(from, line, 0, length);
+            from = end;
+            while ( length > 0 && (line[length - 1] == '\n'
+                || line[length - 1] == '\r') )
+            {
+                length--;
+            }
+            if ( length == 0 || line[0] == '#' )
+            {
+                continue;
+            }
+            int first = 0;
+            while ( first < length && line[first] != ',' )
+            {
+                first++;
+            }
+            int last = length - 1;
+            while ( last > first && line[last] != ',' )
+            {
+                last--;
+            }
+            try
+            {
+                if ( last <= first )
+                {
+                    throw new NumberFormatException();
+                }
+                stocks.add(new Stock(field(line, 0, first), field(line, first
+                    + 1, last), Double.parseDouble(field(line, last + 1,
+                        length)), bookCapacity));
+            }
+            catch ( NumberFormatException e )
+            {
+                throw new IOException("Bad listing: " + new String(line, 0,
+                    length, StandardCharsets.UTF_8));
+            }
+        }
+        return stocks;
+    }
+
+
+    // Decodes a field of a listing line, without surrounding spaces.
+    private static String field(byte[] line, int from, int to)
+    {
+        while ( from < to && line[from] == ' ' )
+        {
+            from++;
+        }
+        while ( to > from && line[to - 1] == ' ' )
+        {
+            to--;
+        }
+        return new String(line, from, to - from, StandardCharsets.UTF_8);
+    }
+
+
+    // Sizes the symbol tables for a number of new stocks, so that listing
+    // them does not rehash or copy the instrument array.
+    private void reserve(int stocks)
+    {
+        int total = instrumentIds.size() + stocks;
+        int capacity = (int)(total / 0.75f) + 1;
+        Map<String, Stock> stocksBySymbol = new HashMap<>(capacity);
+        stocksBySymbol.putAll(listedStocks);
+        listedStocks = stocksBySymbol;
+        Map<String, Integer> ids = new HashMap<>(capacity);
+        ids.putAll(instrumentIds);
+        instrumentIds = ids;
+        if ( instruments.length < total )
+        {
+            instruments = Arrays.copyOf(instruments, total);
+        }
+    }
+
+
+    // Returns the stock of an order by its instrument id, falling back on the
+    // symbol (and setting the id) when the order has no id or a wrong one.
+    private Stock findStock(TradeOrder order)
+    {
+        Stock stock = getStock(order.getInstrumentId());
+        if ( stock != null && stock.getStockSymbol().equals(order.getSymbol()) )
+        {
+            return stock;
+        }
+        int id = getInstrumentId(order.getSymbol());
+        order.setInstrumentId(id);
+        return getStock(id);
+    }
+
+
+    /**
+     * Expires the orders whose time is up in every listed stock. Meant to be
+     * called periodically so that expiries do not wait for the next order in
+     * a quiet stock.
+     *
+     * @return the number of orders expired.
+     */
+    public int expireOrders()
+    {
+        int expired = 0;
+        for ( Stock stock : listedStocks.values() )
+        {
+            expired += stock.expireOrders();
+        }
+        return expired;
+    }
+
+
+    /**
+     * Starts the pre-open phase for every listed stock.
+     */
+    public void startPreOpen()
+    {
+        for ( Stock stock : listedStocks.values() )
+        {
+            stock.startPreOpen();
+        }
+    }
+
+
+    /**
+     * Runs the opening auctions and starts continuous trading for every listed
+     * stock.
+     */
+    public void startContinuousTrading()
+    {
+        for ( Stock stock : listedStocks.values() )
+        {
+            stock.startContinuousTrading();
+        }
+    }
+
+
+    /**
+     * Starts the closing auction for every listed stock.
+     */
+    public void startClosingAuction()
+    {
+        for ( Stock stock : listedStocks.values() )
+        {
+            stock.startClosingAuction();
+        }
+    }
+
+
+    /**
+     * Runs the closing auctions and closes every listed stock.
+     */
+    public void closeSession()
+    {
+        for ( Stock stock : listedStocks.values() )
+        {
+            stock.closeSession();
+        }
+    }
+
+
+    /**
+     * Ends the trading day of every listed stock in parallel on the common
+     * fork/join pool: takes each stock's statistics and resets its low, high
+     * and volume for the next day (see Stock.endDay). Meant to be called
+     * after closeSession; each stock is summarized and reset under its own
+     * lock, so a stock that is still trading loses no fills.
+     *
+     * @return the day summaries, sorted by symbol.
+     */
+    public List<DaySummary> endDay()
+    {
+        Stock[] stocks = listedStocks.values().toArray(new Stock[0]);
+        DaySummary[] summaries = new DaySummary[stocks.length];
+        ForkJoinPool.commonPool().invoke(new EndOfDay(stocks, summaries, 0,
+            stocks.length));
+        Arrays.sort(summaries, Comparator.comparing(DaySummary::getSymbol));
+        return Arrays.asList(summaries);
+    }
+
+
+    /**
+     * Ends the trading day of every listed stock, as endDay() does, and
+     * writes the summaries to a file, one line per stock.
+     *
+     * @param file - the summary file; an existing file is replaced.
+     * @return the day summaries, sorted by symbol.
+     * @throws IOException if the file cannot be written.
+     */
+    public List<DaySummary> endDay(Path file) throws IOException
+    {
+        List<DaySummary> summaries = endDay();
+        DaySummary.write(file, summaries);
+        return summaries;
+    }
+
+
     //
     // The following are for test purposes only
     //
@@ -95,7 +594,7 @@ public class StockExchange
 
     /**
      * <p>
-     * A generic toString implementation that uses reflection to print names and
+     * A generic toString implementation that prints the names and
      * values of all fields <em>declared in this class</em>. Note that
      * superclass fields are left out of this implementation.
      * </p>
@@ -104,26 +603,46 @@ public class StockExchange
      */
     public String toString()
     {
-        String str = this.getClass().getName() + "[";
-        String separator = "";
+        return FieldFormatter.format(this);
+    }
+
+
+    // Ends the day of a range of stocks, splitting the range in half until
+    // it is small enough to run in one task.
+    private static class EndOfDay
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
 
-        Field[] fields = this.getClass().getDeclaredFields();
+        private Stock[]      stocks;
+        private DaySummary[] summaries;
+        private int          from;
+        private int          to;
 
-        for ( Field field : fields )
+
+        private EndOfDay(Stock[] stocks, DaySummary[] summaries, int from,
+            int to)
         {
-            try
-            {
-                str += separator + field.getType().getName() + " " + field
-                    .getName() + ":" + field.get(this);
-            }
-            catch ( IllegalAccessException ex )
+            this.stocks = stocks;
+            this.summaries = summaries;
+            this.from = from;
+            this.to = to;
+        }
+
+
+        protected void compute()
+        {
+            if ( to - from <= END_DAY_BATCH )
             {
-                System.out.println(ex);
+                for ( int i = from; i < to; i++ )
+                {
+                    summaries[i] = stocks[i].endDay();
+                }
+                return;
             }
-
-            separator = ", ";
+            int middle = (from + to) >>> 1;
+            invokeAll(new EndOfDay(stocks, summaries, from, middle),
+                new EndOfDay(stocks, summaries, middle, to));
         }
-
-        return str + "]";
     }
 }
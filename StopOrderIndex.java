@@ -0,0 +1,169 @@
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Holds the stop orders of one stock until the last price reaches their stop
+ * price. Buy stops and sell stops are kept in separate maps sorted by stop
+ * price (in cents), with the orders at one stop price in arrival order, so
+ * that a price change finds the triggered orders with one range lookup
+ * instead of looking at every stop order.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class StopOrderIndex
+{
+    private TreeMap<Long, ArrayDeque<TradeOrder>> buyStops;
+    private TreeMap<Long, ArrayDeque<TradeOrder>> sellStops;
+    private int                                   size;
+
+
+    /**
+     * Constructs an empty index.
+     */
+    public StopOrderIndex()
+    {
+        buyStops = new TreeMap<>();
+        sellStops = new TreeMap<>();
+        size = 0;
+    }
+
+
+    /**
+     * Adds a stop order to this index.
+     *
+     * @param order - a stop order.
+     */
+    public void add(TradeOrder order)
+    {
+        TreeMap<Long, ArrayDeque<TradeOrder>> stops =
+            order.isBuy() ? buyStops : sellStops;
+        stops.computeIfAbsent(cents(order.getStopPrice()),
+            k -> new ArrayDeque<>()).add(order);
+        size++;
+    }
+
+
+    /**
+     * Removes a stop order from this index.
+     *
+     * @param order - a stop order.
+     * @return true if the order was in this index; false otherwise.
+     */
+    public boolean remove(TradeOrder order)
+    {
+        TreeMap<Long, ArrayDeque<TradeOrder>> stops =
+            order.isBuy() ? buyStops : sellStops;
+        Long key = cents(order.getStopPrice());
+        ArrayDeque<TradeOrder> level = stops.get(key);
+        if ( level == null )
+        {
+            return false;
+        }
+        for ( Iterator<TradeOrder> it = level.iterator(); it.hasNext(); )
+        {
+            if ( it.next() == order )
+            {
+                it.remove();
+                if ( level.isEmpty() )
+                {
+                    stops.remove(key);
+                }
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Removes every stop order triggered by a given last price and adds it to
+     * a collection: buy stops at or below the price, then sell stops at or
+     * above it, each in order of stop price and then arrival.
+     *
+     * @param lastPrice - the last price of the stock.
+     * @param triggered - the collection that receives the triggered orders.
+     * @return the number of orders triggered.
+     */
+    public int trigger(double lastPrice, Collection<TradeOrder> triggered)
+    {
+        if ( size == 0 )
+        {
+            return 0;
+        }
+        long price = cents(lastPrice);
+        int count = drain(buyStops.headMap(price, true), triggered);
+        count += drain(sellStops.tailMap(price, true).descendingMap(),
+            triggered);
+        size -= count;
+        return count;
+    }
+
+
+    /**
+     * Adds every stop order in this index to a collection, leaving the index
+     * as it is.
+     *
+     * @param into - the collection that receives the orders.
+     */
+    public void copyTo(Collection<TradeOrder> into)
+    {
+        for ( ArrayDeque<TradeOrder> level : buyStops.values() )
+        {
+            into.addAll(level);
+        }
+        for ( ArrayDeque<TradeOrder> level : sellStops.values() )
+        {
+            into.addAll(level);
+        }
+    }
+
+
+    /**
+     * Returns the number of stop orders in this index.
+     *
+     * @return the number of stop orders.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    /**
+     * Returns true if this index holds no stop orders.
+     *
+     * @return true if there are no stop orders; false otherwise.
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+
+    private static int drain(
+        NavigableMap<Long, ArrayDeque<TradeOrder>> levels,
+        Collection<TradeOrder> triggered)
+    {
+        int count = 0;
+        for ( ArrayDeque<TradeOrder> level : levels.values() )
+        {
+            count += level.size();
+            triggered.addAll(level);
+        }
+        levels.clear();
+        return count;
+    }
+
+
+    private static long cents(double price)
+    {
+        return Math.round(price * 100);
+    }
+}
@@ -0,0 +1,105 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns stock symbols to the nodes of an exchange cluster by consistent
+ * hashing. Every node is placed at a number of points on a ring of 64-bit
+ * hashes, and a symbol belongs to the node at the first point at or after
+ * the symbol's hash. Adding or removing a node only moves the symbols next to
+ * its points, about 1/n of them, instead of reshuffling every symbol.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class SymbolRing
+{
+    private static final int POINTS_PER_NODE = 64;
+
+    private TreeMap<Long, String> points;
+    private int                   nodes;
+
+
+    /**
+     * Constructs an empty ring.
+     */
+    public SymbolRing()
+    {
+        points = new TreeMap<>();
+    }
+
+
+    /**
+     * Places a node on the ring.
+     *
+     * @param node - the name of the node, such as its address.
+     */
+    public void addNode(String node)
+    {
+        for ( int i = 0; i < POINTS_PER_NODE; i++ )
+        {
+            points.put(hash(node + "#" + i), node);
+        }
+        nodes++;
+    }
+
+
+    /**
+     * Takes a node off the ring; its symbols go to the nodes after it.
+     *
+     * @param node - the name of the node.
+     */
+    public void removeNode(String node)
+    {
+        if ( points.values().removeIf(node::equals) )
+        {
+            nodes--;
+        }
+    }
+
+
+    /**
+     * Returns the node a symbol belongs to.
+     *
+     * @param symbol - a stock symbol.
+     * @return the name of the node, or null if the ring is empty.
+     */
+    public String nodeOf(String symbol)
+    {
+        if ( points.isEmpty() )
+        {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(symbol));
+        return point == null ? points.firstEntry().getValue() : point
+            .getValue();
+    }
+
+
+    /**
+     * Returns the number of nodes on the ring.
+     *
+     * @return the node count.
+     */
+    public int size()
+    {
+        return nodes;
+    }
+
+
+    // Hashes a string with 64-bit FNV-1a over its UTF-8 bytes, then mixes
+    // the bits so that similar names land far apart on the ring.
+    private static long hash(String key)
+    {
+        long h = 0xcbf29ce484222325L;
+        for ( byte b : key.getBytes(StandardCharsets.UTF_8) )
+        {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * How long a trade order stays working before whatever is left of it is
+ * cancelled.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public enum TimeInForce
+{
+    /**
+     * Good till cancelled: the order rests in the book until it is filled.
+     */
+    GTC,
+
+    /**
+     * Immediate or cancel: whatever does not fill right away is cancelled.
+     */
+    IOC,
+
+    /**
+     * Fill or kill: the order is rejected unless it can be filled in full
+     * right away.
+     */
+    FOK,
+
+    /**
+     * Day: the order expires at the end of the day it was placed.
+     */
+    DAY,
+
+    /**
+     * Good till date: the order expires at the end of the day of its expire
+     * time.
+     */
+    GTD,
+
+    /**
+     * Good till time: the order expires at its expire time.
+     */
+    GTT
+}
@@ -0,0 +1,360 @@
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timer wheel that fires items at given deadlines (in
+ * milliseconds). The wheel has eleven levels of 64 slots; level n covers
+ * 64<sup>n</sup> milliseconds per slot, so every possible deadline fits
+ * without overflow lists. Scheduling and cancelling a timer are O(1): a timer
+ * is linked into the slot of the highest time digit in which its deadline
+ * differs from the current time. As time advances, a slot on a higher level
+ * is split into the lower levels once its turn comes, and a bitmap per level
+ * lets the wheel jump straight to the next occupied slot instead of stepping
+ * through empty milliseconds. Timers that have fired or been cancelled are
+ * kept on a free list and reused, so a handle must not be used after that.
+ * The slots of a level are allocated when its first timer is scheduled, so
+ * a wheel that never gets a timer, like that of a stock nobody places day
+ * orders in, stays small.
+ *
+ * @param <T> the type of items scheduled on this wheel.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class TimerWheel<T>
+{
+    private static final int BITS   = 6;
+    private static final int SLOTS  = 1 << BITS;
+    private static final int MASK   = SLOTS - 1;
+    private static final int LEVELS = (Long.SIZE + BITS - 1) / BITS;
+
+    private Consumer<T>    handler;
+    private long           current;
+    private Timeout<T>[][] heads;
+    private Timeout<T>     free;
+    private long[]         occupied;
+    private int            size;
+
+
+    /**
+     * Constructs an empty timer wheel.
+     *
+     * @param time    - the current time in milliseconds.
+     * @param handler - receives each item whose deadline has passed.
+     */
+    public TimerWheel(long time, Consumer<T> handler)
+    {
+        this.handler = handler;
+        current = time;
+        @SuppressWarnings("unchecked")
+        Timeout<T>[][] levels = (Timeout<T>[][])new Timeout<?>[LEVELS][];
+        heads = levels;
+        occupied = new long[LEVELS];
+        size = 0;
+    }
+
+
+    /**
+     * Schedules an item to fire at a given deadline. An item whose deadline
+     * has already passed fires on the next call to advance.
+     *
+     * @param deadline - the time to fire at, in milliseconds.
+     * @param item     - the item to hand to the handler.
+     * @return a handle for cancelling the timer.
+     */
+    public Timeout<T> schedule(long deadline, T item)
+    {
+        Timeout<T> timeout = free;
+        if ( timeout == null )
+        {
+            timeout = new Timeout<>();
+        }
+        else
+        {
+            free = timeout.next;
+        }
+        timeout.deadline = deadline;
+        timeout.item = item;
+        insert(timeout);
+        size++;
+        return timeout;
+    }
+
+
+    /**
+     * Cancels a scheduled timer.
+     *
+     * @param timeout - the handle returned by schedule.
+     * @return true if the timer was cancelled; false if it had already fired
+     * or been cancelled.
+     */
+    public boolean cancel(Timeout<T> timeout)
+    {
+        if ( timeout == null || timeout.level < 0 )
+        {
+            return false;
+        }
+        unlink(timeout);
+        size--;
+        recycle(timeout);
+        return true;
+    }
+
+
+    /**
+     * Moves the wheel forward to a given time, firing every timer whose
+     * deadline is at or before that time, in deadline order.
+     *
+     * @param time - the new current time in milliseconds.
+     * @return the number of timers fired.
+     */
+    public int advance(long time)
+    {
+        int fired = 0;
+        while ( size > 0 )
+        {
+            int digit = (int)current & MASK;
+            long pending = occupied[0] & (-1L << digit);
+            if ( pending != 0 )
+            {
+                int slot = Long.numberOfTrailingZeros(pending);
+                long when = (current & ~(long)MASK) | slot;
+                if ( when > time )
+                {
+                    break;
+                }
+                current = when;
+                fired += fire(slot);
+                continue;
+            }
+
+            int level = 1;
+            int slot = 0;
+            long next = 0;
+            for ( ; level < LEVELS; level++ )
+            {
+                int shift = level * BITS;
+                digit = (int)(current >>> shift) & MASK;
+                pending = digit == MASK ? 0 :
+                    occupied[level] & (-1L << (digit + 1));
+                if ( pending != 0 )
+                {
+                    slot = Long.numberOfTrailingZeros(pending);
+                    int upper = shift + BITS;
+                    next = (upper >= Long.SIZE ? 0 :
+                        current >>> upper << upper) | (long)slot << shift;
+                    break;
+                }
+            }
+            if ( level == LEVELS || next > time )
+            {
+                break;
+            }
+            current = next;
+            cascade(level, slot);
+        }
+        if ( time > current )
+        {
+            current = time;
+        }
+        return fired;
+    }
+
+
+    /**
+     * Moves the wheel to a new current time without firing anything, for
+     * instance after the clock behind it has been replaced. Pending timers
+     * keep their deadlines; those now in the past fire on the next advance.
+     *
+     * @param time - the new current time in milliseconds.
+     */
+    public void rebase(long time)
+    {
+        Timeout<T> pending = null;
+        for ( int level = 0; level < LEVELS; level++ )
+        {
+            for ( int slot = 0; heads[level] != null && slot < SLOTS; slot++ )
+            {
+                while ( heads[level][slot] != null )
+                {
+                    Timeout<T> timeout = heads[level][slot];
+                    unlink(timeout);
+                    timeout.next = pending;
+                    pending = timeout;
+                }
+            }
+        }
+        current = time;
+        while ( pending != null )
+        {
+            Timeout<T> timeout = pending;
+            pending = pending.next;
+            insert(timeout);
+        }
+    }
+
+
+    /**
+     * Returns the current time of this wheel.
+     *
+     * @return the time in milliseconds up to which timers have fired.
+     */
+    public long getTime()
+    {
+        return current;
+    }
+
+
+    /**
+     * Returns the number of scheduled timers.
+     *
+     * @return the number of timers that have not fired or been cancelled.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    // Fires every timer in a level 0 slot.
+    private int fire(int slot)
+    {
+        int fired = 0;
+        while ( heads[0][slot] != null )
+        {
+            Timeout<T> timeout = heads[0][slot];
+            unlink(timeout);
+            size--;
+            fired++;
+            T item = timeout.item;
+            recycle(timeout);
+            handler.accept(item);
+        }
+        return fired;
+    }
+
+
+    private void recycle(Timeout<T> timeout)
+    {
+        timeout.item = null;
+        timeout.next = free;
+        free = timeout;
+    }
+
+
+    // Spreads the timers of a higher level slot over the lower levels once the
+    // current time has reached the start of that slot.
+    private void cascade(int level, int slot)
+    {
+        while ( heads[level][slot] != null )
+        {
+            Timeout<T> timeout = heads[level][slot];
+            unlink(timeout);
+            insert(timeout);
+        }
+    }
+
+
+    private void insert(Timeout<T> timeout)
+    {
+        long when = Math.max(timeout.deadline, current);
+        long diff = when ^ current;
+        int level = diff == 0 ? 0 :
+            (Long.SIZE - 1 - Long.numberOfLeadingZeros(diff)) / BITS;
+        int slot = (int)(when >>> (level * BITS)) & MASK;
+        if ( heads[level] == null )
+        {
+            @SuppressWarnings("unchecked")
+            Timeout<T>[] slots = (Timeout<T>[])new Timeout<?>[SLOTS];
+            heads[level] = slots;
+        }
+
+        Timeout<T> head = heads[level][slot];
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = head;
+        if ( head != null )
+        {
+            head.prev = timeout;
+        }
+        heads[level][slot] = timeout;
+        occupied[level] |= 1L << slot;
+    }
+
+
+    private void unlink(Timeout<T> timeout)
+    {
+        int level = timeout.level;
+        int slot = timeout.slot;
+        if ( timeout.prev != null )
+        {
+            timeout.prev.next = timeout.next;
+        }
+        else
+        {
+            heads[level][slot] = timeout.next;
+        }
+        if ( timeout.next != null )
+        {
+            timeout.next.prev = timeout.prev;
+        }
+        if ( heads[level][slot] == null )
+        {
+            occupied[level] &= ~(1L << slot);
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.level = -1;
+    }
+
+
+    /**
+     * A timer scheduled on a TimerWheel.
+     *
+     * @param <T> the type of the scheduled item.
+     */
+    public static class Timeout<T>
+    {
+        private T          item;
+        private long       deadline;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+        private int        level = -1;
+        private int        slot;
+
+
+        /**
+         * Returns the item this timer fires.
+         *
+         * @return the scheduled item.
+         */
+        public T getItem()
+        {
+            return item;
+        }
+
+
+        /**
+         * Returns the deadline of this timer.
+         *
+         * @return the deadline in milliseconds.
+         */
+        public long getDeadline()
+        {
+            return deadline;
+        }
+
+
+        /**
+         * Returns true if this timer has neither fired nor been cancelled.
+         *
+         * @return true if the timer is still scheduled; false otherwise.
+         */
+        public boolean isScheduled()
+        {
+            return level >= 0;
+        }
+    }
+}
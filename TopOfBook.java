@@ -0,0 +1,141 @@
+import java.lang.invoke.VarHandle;
+
+/**
+ * The best bid and ask of a stock, published by the thread that matches its
+ * orders and read by other threads (such as a smart order router) without
+ * locking. Updates go through a sequence lock: the writer makes the version
+ * odd, writes the fields and makes it even again, and a reader retries until
+ * it has seen the same even version before and after copying the fields.
+ * Readers copy into a TopOfBook of their own, so reading allocates nothing.
+ *
+ * <p>
+ * A price of NaN stands for a market order at the top of its side, and a
+ * size of 0 for an empty side.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class TopOfBook
+{
+    private volatile long version;
+    private double        bidPrice;
+    private int           bidSize;
+    private double        askPrice;
+    private int           askSize;
+
+
+    /**
+     * Publishes a new best bid and ask. Only one thread may update a
+     * TopOfBook at a time.
+     *
+     * @param bidPrice - the best bid, or NaN for a market order.
+     * @param bidSize  - the shares shown at the best bid, or 0 for none.
+     * @param askPrice - the best ask, or NaN for a market order.
+     * @param askSize  - the shares shown at the best ask, or 0 for none.
+     */
+    public void update(double bidPrice, int bidSize, double askPrice,
+        int askSize)
+    {
+        long v = version;
+        version = v + 1;
+        VarHandle.storeStoreFence();
+        this.bidPrice = bidPrice;
+        this.bidSize = bidSize;
+        this.askPrice = askPrice;
+        this.askSize = askSize;
+        version = v + 2;
+    }
+
+
+    /**
+     * Copies a consistent view of this top of book into another one, waiting
+     * out any update in progress.
+     *
+     * @param into - the TopOfBook that receives the copy; it must not be
+     *             shared with other threads.
+     * @return the copy.
+     */
+    public TopOfBook copyTo(TopOfBook into)
+    {
+        while ( true )
+        {
+            long v = version;
+            if ( (v & 1) == 0 )
+            {
+                double bid = bidPrice;
+                int bids = bidSize;
+                double ask = askPrice;
+                int asks = askSize;
+                VarHandle.loadLoadFence();
+                if ( version == v )
+                {
+                    into.bidPrice = bid;
+                    into.bidSize = bids;
+                    into.askPrice = ask;
+                    into.askSize = asks;
+                    into.version = v;
+                    return into;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+
+    /**
+     * Returns the best bid.
+     *
+     * @return the bid price, or NaN for a market order.
+     */
+    public double getBidPrice()
+    {
+        return bidPrice;
+    }
+
+
+    /**
+     * Returns the shares shown at the best bid.
+     *
+     * @return the bid size, or 0 if there are no buy orders.
+     */
+    public int getBidSize()
+    {
+        return bidSize;
+    }
+
+
+    /**
+     * Returns the best ask.
+     *
+     * @return the ask price, or NaN for a market order.
+     */
+    public double getAskPrice()
+    {
+        return askPrice;
+    }
+
+
+    /**
+     * Returns the shares shown at the best ask.
+     *
+     * @return the ask size, or 0 if there are no sell orders.
+     */
+    public int getAskSize()
+    {
+        return askSize;
+    }
+
+
+    /**
+     * Returns the number of updates published so far.
+     *
+     * @return the update count.
+     */
+    public long getVersion()
+    {
+        return version / 2;
+    }
+}
@@ -1,4 +1,3 @@
-import java.lang.reflect.Field;
 
 /**
  * Represents a buy or sell order for trading a given number of shares of a
@@ -10,17 +9,32 @@ import java.lang.reflect.Field;
  */
 public class TradeOrder
 {
-    private Trader  trader;
-    private String  symbol;
-    private boolean buyOrder;
-    private boolean marketOrder;
-    private int     numShares;
-    private double  price;
+    private Trader                         trader;
+    private String                         symbol;
+    private boolean                        buyOrder;
+    private boolean                        marketOrder;
+    private int                            numShares;
+    private double                         price;
+    private TimeInForce                    timeInForce;
+    private double                         stopPrice;
+    private int                            displayShares;
+    private int                            hiddenShares;
+    private long                           expireTime;
+    private TimerWheel.Timeout<TradeOrder> expiry;
+    private int                            traderId;
+    private long                           ownerId;
+    private long                           sequence;
+    private TradeOrderPool                 pool;
+    private int                            instrumentId;
+    private long                           journalId;
+    private long                           orderId;
 
 
     /**
      * Constructs a new TradeOrder for a given trader,
      * stock symbol, a number of shares, and other parameters.
+     * The order is good till cancelled, has no stop price and shows all of
+     * its shares.
      *
      * @param trader      a trader who placed this order.
      * @param symbol      stock symbol.
@@ -38,6 +52,32 @@ public class TradeOrder
         boolean marketOrder,
         int numShares,
         double price)
+    {
+        reset(trader, symbol, buyOrder, marketOrder, numShares, price);
+    }
+
+
+    /**
+     * Sets this order up again as a new good-till-cancelled order with the
+     * given parameters, as if it had just been constructed. Used by
+     * TradeOrderPool to reuse orders.
+     *
+     * @param trader      a trader who placed this order.
+     * @param symbol      stock symbol.
+     * @param buyOrder    if true this is a
+     *  buy order; otherwise this is a sell order.
+     * @param marketOrder if true this is a market order; otherwise this is a
+     *                    limit order.
+     * @param numShares   the number of shares to be traded.
+     * @param price       the bid or ask price, if this is a limit order.
+     */
+    public void reset(
+        Trader trader,
+        String symbol,
+        boolean buyOrder,
+        boolean marketOrder,
+        int numShares,
+        double price)
     {
         this.buyOrder = buyOrder;
         this.trader = trader;
@@ -45,6 +85,18 @@ public class TradeOrder
         this.numShares = numShares;
         this.price = price;
         this.symbol = symbol;
+        this.timeInForce = TimeInForce.GTC;
+        this.stopPrice = 0;
+        this.displayShares = 0;
+        this.hiddenShares = 0;
+        this.expireTime = 0;
+        this.expiry = null;
+        this.traderId = trader == null ? -1 : trader.getId();
+        this.ownerId = trader == null ? -1 : trader.getOwnerId();
+        this.sequence = 0;
+        this.instrumentId = -1;
+        this.journalId = 0;
+        this.orderId = 0;
     }
 
 
@@ -59,6 +111,146 @@ public class TradeOrder
     }
 
 
+    /**
+     * Returns the numeric id of the trader for this trade order.
+     *
+     * @return the id of the trader who placed this order, or -1 if none.
+     */
+    public int getTraderId()
+    {
+        return traderId;
+    }
+
+
+    /**
+     * Returns the owner id of the trader for this trade order, which is
+     * unique across the brokerages of a stock exchange.
+     *
+     * @return the owner id of the trader who placed this order, or -1 if
+     * none.
+     */
+    public long getOwnerId()
+    {
+        return ownerId;
+    }
+
+
+    /**
+     * Returns the arrival sequence number given to this order by its stock.
+     *
+     * @return the sequence number; later orders have larger numbers.
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+
+    /**
+     * Sets the arrival sequence number of this order.
+     *
+     * @param sequence - the sequence number.
+     */
+    public void setSequence(long sequence)
+    {
+        this.sequence = sequence;
+    }
+
+
+    /**
+     * Returns the pool this order was taken from.
+     *
+     * @return the pool, or null if this order is not pooled.
+     */
+    public TradeOrderPool getPool()
+    {
+        return pool;
+    }
+
+
+    /**
+     * Sets the pool this order was taken from.
+     *
+     * @param pool - the pool, or null.
+     */
+    public void setPool(TradeOrderPool pool)
+    {
+        this.pool = pool;
+    }
+
+
+    /**
+     * Returns the instrument id of the stock of this order, as given out by
+     * the stock exchange.
+     *
+     * @return the instrument id, or -1 if it has not been looked up yet.
+     */
+    public int getInstrumentId()
+    {
+        return instrumentId;
+    }
+
+
+    /**
+     * Sets the instrument id of the stock of this order, so that the stock
+     * exchange can find the stock without hashing the symbol.
+     *
+     * @param instrumentId - the id from StockExchange.getInstrumentId.
+     */
+    public void setInstrumentId(int instrumentId)
+    {
+        this.instrumentId = instrumentId;
+    }
+
+
+    /**
+     * Returns the id a ReplicatedExchange gave this order when it journaled
+     * it, or a ClusterExchange when it sent it to a node, which names the
+     * order to the backup exchange or the node.
+     *
+     * @return the journal id, or 0 if the order has not been journaled.
+     */
+    public long getJournalId()
+    {
+        return journalId;
+    }
+
+
+    /**
+     * Sets the journal id of this order.
+     *
+     * @param journalId - the sequence number of the event or request that
+     *                  placed it.
+     */
+    public void setJournalId(long journalId)
+    {
+        this.journalId = journalId;
+    }
+
+
+    /**
+     * Returns the id the order store of this order's trader gave it when it
+     * was placed in a book.
+     *
+     * @return the order id, or 0 if the order has not been open.
+     */
+    public long getOrderId()
+    {
+        return orderId;
+    }
+
+
+    /**
+     * Sets the order id of this order.
+     *
+     * @param orderId - the id from the trader's order store.
+     */
+    public void setOrderId(long orderId)
+    {
+        this.orderId = orderId;
+    }
+
+
     /**
      * Returns true if this is a buy order; otherwise returns false.
      *
@@ -155,6 +347,212 @@ public class TradeOrder
         }
     }
 
+    /**
+     * Returns the time in force of this trade order.
+     *
+     * @return the time in force.
+     */
+    public TimeInForce getTimeInForce()
+    {
+        return timeInForce;
+    }
+
+
+    /**
+     * Sets the time in force of this trade order. Must be called before the
+     * order is placed.
+     *
+     * @param timeInForce - the time in force.
+     */
+    public void setTimeInForce(TimeInForce timeInForce)
+    {
+        this.timeInForce = timeInForce;
+    }
+
+
+    /**
+     * Returns true if this is a stop order that has not been triggered yet.
+     * A market order with a stop price is a stop order; a limit order with a
+     * stop price is a stop-limit order.
+     *
+     * @return true if this order waits for its stop price; false otherwise.
+     */
+    public boolean isStop()
+    {
+        return stopPrice > 0;
+    }
+
+
+    /**
+     * Returns the stop price of this trade order.
+     *
+     * @return the stop price, or 0 if this is not a stop order.
+     */
+    public double getStopPrice()
+    {
+        return stopPrice;
+    }
+
+
+    /**
+     * Makes this order a stop order. A buy stop is triggered when the last
+     * price rises to the stop price or above; a sell stop is triggered when
+     * the last price falls to the stop price or below. Must be called before
+     * the order is placed.
+     *
+     * @param stopPrice - the stop price.
+     */
+    public void setStopPrice(double stopPrice)
+    {
+        if ( stopPrice <= 0 )
+        {
+            throw new IllegalArgumentException();
+        }
+        this.stopPrice = stopPrice;
+    }
+
+
+    /**
+     * Turns a triggered stop order into a regular market or limit order.
+     */
+    public void triggerStop()
+    {
+        stopPrice = 0;
+    }
+
+
+    /**
+     * Turns a market order into a limit order at a given price, as the
+     * market order protection of a stock does.
+     *
+     * @param limitPrice - the limit price.
+     */
+    public void convertToLimit(double limitPrice)
+    {
+        marketOrder = false;
+        price = limitPrice;
+    }
+
+
+    /**
+     * Returns true if this is an iceberg order, which shows only a slice of
+     * its shares in the book at a time.
+     *
+     * @return true if this is an iceberg order; false otherwise.
+     */
+    public boolean isIceberg()
+    {
+        return displayShares > 0;
+    }
+
+
+    /**
+     * Makes this order an iceberg order that shows at most a given number of
+     * shares. getShares() then returns the shown slice and getHiddenShares()
+     * the reserve behind it. Must be called before the order is placed.
+     *
+     * @param shares - the number of shares to show at a time.
+     */
+    public void setDisplayShares(int shares)
+    {
+        if ( shares <= 0 )
+        {
+            throw new IllegalArgumentException();
+        }
+        int total = numShares + hiddenShares;
+        displayShares = shares;
+        numShares = Math.min(shares, total);
+        hiddenShares = total - numShares;
+    }
+
+
+    /**
+     * Returns the number of shares shown at a time by an iceberg order.
+     *
+     * @return the shown slice, or 0 if this is not an iceberg order.
+     */
+    public int getDisplayShares()
+    {
+        return displayShares;
+    }
+
+
+    /**
+     * Returns the number of shares an iceberg order holds in reserve.
+     *
+     * @return the shares not shown in the book.
+     */
+    public int getHiddenShares()
+    {
+        return hiddenShares;
+    }
+
+
+    /**
+     * Shows the next slice of an iceberg order once the current slice is
+     * used up.
+     *
+     * @return true if a new slice was shown; false if the shown slice is not
+     * used up or there is no reserve left.
+     */
+    public boolean refreshDisplay()
+    {
+        if ( numShares > 0 || hiddenShares == 0 )
+        {
+            return false;
+        }
+        numShares = Math.min(displayShares, hiddenShares);
+        hiddenShares -= numShares;
+        return true;
+    }
+
+
+    /**
+     * Returns the expire time of a good-till-date or good-till-time order.
+     *
+     * @return the expire time in milliseconds.
+     */
+    public long getExpireTime()
+    {
+        return expireTime;
+    }
+
+
+    /**
+     * Sets the time at which a good-till-time order expires; a good-till-date
+     * order expires at the end of the day of this time. Must be called before
+     * the order is placed.
+     *
+     * @param expireTime - the expire time in milliseconds.
+     */
+    public void setExpireTime(long expireTime)
+    {
+        this.expireTime = expireTime;
+    }
+
+
+    /**
+     * Returns the timer that expires this order while it rests in the book.
+     *
+     * @return the expiry timer, or null if none is scheduled.
+     */
+    public TimerWheel.Timeout<TradeOrder> getExpiry()
+    {
+        return expiry;
+    }
+
+
+    /**
+     * Sets the timer that expires this order while it rests in the book.
+     *
+     * @param expiry - the expiry timer, or null.
+     */
+    public void setExpiry(TimerWheel.Timeout<TradeOrder> expiry)
+    {
+        this.expiry = expiry;
+    }
+
+
     //
     // The following are for test purposes only
     //
@@ -162,7 +560,7 @@ public class TradeOrder
 
     /**
      * <p>
-     * A generic toString implementation that uses reflection to print names and
+     * A generic toString implementation that prints the names and
      * values of all fields <em>declared in this class</em>. Note that
      * superclass fields are left out of this implementation.
      * </p>
@@ -171,26 +569,6 @@ public class TradeOrder
      */
     public String toString()
     {
-        String str = this.getClass().getName() + "[";
-        String separator = "";
-
-        Field[] fields = this.getClass().getDeclaredFields();
-
-        for ( Field field : fields )
-        {
-            try
-            {
-                str += separator + field.getType().getName() + " " + field
-                    .getName() + ":" + field.get(this);
-            }
-            catch ( IllegalAccessException ex )
-            {
-                System.out.println(ex);
-            }
-
-            separator = ", ";
-        }
-
-        return str + "]";
+        return FieldFormatter.format(this);
     }
 }
@@ -0,0 +1,116 @@
+import java.util.ArrayDeque;
+
+/**
+ * A pool of reusable trade orders. Orders are taken from the pool with
+ * acquire instead of being constructed, and a stock hands each one back once
+ * it is done with it, so a steady flow of orders allocates no new TradeOrder
+ * objects once the pool holds as many orders as are ever outstanding at the
+ * same time.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class TradeOrderPool
+{
+    private ArrayDeque<TradeOrder> free;
+    private int                    created;
+
+
+    /**
+     * Constructs a pool filled with a given number of orders.
+     *
+     * @param size - the number of orders to create up front.
+     */
+    public TradeOrderPool(int size)
+    {
+        free = new ArrayDeque<>(Math.max(size, 16));
+        created = 0;
+        for ( int i = 0; i < size; i++ )
+        {
+            free.push(newOrder());
+        }
+    }
+
+
+    /**
+     * Takes an order from this pool and sets it up as a new good-till-cancelled
+     * order with the given parameters, creating a new order only if the pool
+     * is empty.
+     *
+     * @param trader      a trader who placed this order.
+     * @param symbol      stock symbol.
+     * @param buyOrder    if true this is a buy order; otherwise this is a sell
+     *                    order.
+     * @param marketOrder if true this is a market order; otherwise this is a
+     *                    limit order.
+     * @param numShares   the number of shares to be traded.
+     * @param price       the bid or ask price, if this is a limit order.
+     * @return an order ready to be placed.
+     */
+    public TradeOrder acquire(
+        Trader trader,
+        String symbol,
+        boolean buyOrder,
+        boolean marketOrder,
+        int numShares,
+        double price)
+    {
+        TradeOrder order = free.poll();
+        if ( order == null )
+        {
+            order = newOrder();
+        }
+        order.reset(trader, symbol, buyOrder, marketOrder, numShares, price);
+        order.setPool(this);
+        return order;
+    }
+
+
+    /**
+     * Hands an order back to this pool. The order is cleared so that it holds
+     * on to no trader.
+     *
+     * @param order - an order taken from this pool.
+     */
+    public void release(TradeOrder order)
+    {
+        if ( order.getPool() != this )
+        {
+            throw new IllegalArgumentException();
+        }
+        order.reset(null, null, false, false, 0, 0);
+        order.setPool(null);
+        free.push(order);
+    }
+
+
+    /**
+     * Returns the number of orders waiting in this pool.
+     *
+     * @return the number of free orders.
+     */
+    public int size()
+    {
+        return free.size();
+    }
+
+
+    /**
+     * Returns the number of orders this pool has created.
+     *
+     * @return the number of orders created.
+     */
+    public int getCreated()
+    {
+        return created;
+    }
+
+
+    private TradeOrder newOrder()
+    {
+        created++;
+        return new TradeOrder(null, null, false, false, 0, 0);
+    }
+}
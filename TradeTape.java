@@ -0,0 +1,419 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Represents the trade tape of one stock: every fill, in the order it
+ * happened, stored column by column (timestamps, prices and share counts)
+ * outside of the Java heap. A tape either lives in direct buffers or, when
+ * constructed with a directory, in memory-mapped files. The files are
+ * truncated when the tape is constructed and the number of fills is not
+ * recorded in them, so a tape is not reloaded after a restart; mapping only
+ * moves the columns into the page cache. Range queries scan the columns
+ * directly and never create an object per fill. The tape also keeps 1
+ * second, 1 minute and 5 minute OHLCV bars up to date as fills are
+ * appended. A tape in direct buffers allocates them on its first fill, so
+ * that the many stocks of a large listing that never trade cost no
+ * off-heap memory.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class TradeTape
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private Column    times;
+    private Column    prices;
+    private Column    shares;
+    private int       size;
+    private int       capacity;
+    private OhlcvBars secondBars;
+    private OhlcvBars minuteBars;
+    private OhlcvBars fiveMinuteBars;
+
+
+    /**
+     * Constructs an empty tape held in direct (off-heap) buffers.
+     */
+    public TradeTape()
+    {
+        try
+        {
+            init(null);
+        }
+        catch ( IOException ex )
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+
+    /**
+     * Constructs an empty tape whose columns are memory-mapped files in a
+     * given directory. Any existing column files there are truncated.
+     *
+     * @param directory - the directory for the column files.
+     * @throws IOException if the files cannot be created or mapped.
+     */
+    public TradeTape(Path directory)
+        throws IOException
+    {
+        Files.createDirectories(directory);
+        init(directory);
+    }
+
+
+    private void init(Path directory)
+        throws IOException
+    {
+        size = 0;
+        capacity = directory == null ? 0 : INITIAL_CAPACITY;
+        times = new Column(directory, "times", 8, capacity);
+        prices = new Column(directory, "prices", 8, capacity);
+        shares = new Column(directory, "shares", 4, capacity);
+        secondBars = new OhlcvBars(1000);
+        minuteBars = new OhlcvBars(60 * 1000);
+        fiveMinuteBars = new OhlcvBars(5 * 60 * 1000);
+    }
+
+
+    /**
+     * Appends a fill to the end of this tape and updates the bars.
+     *
+     * @param time      - the time of the fill in milliseconds.
+     * @param price     - the price of the fill.
+     * @param numShares - the number of shares filled.
+     */
+    public void append(long time, double price, int numShares)
+    {
+        if ( size == capacity )
+        {
+            try
+            {
+                capacity = Math.max(capacity * 2, INITIAL_CAPACITY);
+                times.grow(capacity);
+                prices.grow(capacity);
+                shares.grow(capacity);
+            }
+            catch ( IOException ex )
+            {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        times.buffer.putLong(size * 8, time);
+        prices.buffer.putDouble(size * 8, price);
+        shares.buffer.putInt(size * 4, numShares);
+        size++;
+
+        secondBars.add(time, price, numShares);
+        minuteBars.add(time, price, numShares);
+        fiveMinuteBars.add(time, price, numShares);
+    }
+
+
+    /**
+     * Returns the number of fills on this tape.
+     *
+     * @return the number of fills.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    /**
+     * Returns the time of a given fill.
+     *
+     * @param i - index of the fill.
+     * @return the time of the fill in milliseconds.
+     */
+    public long getTime(int i)
+    {
+        checkIndex(i);
+        return times.buffer.getLong(i * 8);
+    }
+
+
+    /**
+     * Returns the price of a given fill.
+     *
+     * @param i - index of the fill.
+     * @return the price of the fill.
+     */
+    public double getPrice(int i)
+    {
+        checkIndex(i);
+        return prices.buffer.getDouble(i * 8);
+    }
+
+
+    /**
+     * Returns the number of shares of a given fill.
+     *
+     * @param i - index of the fill.
+     * @return the number of shares filled.
+     */
+    public int getShares(int i)
+    {
+        checkIndex(i);
+        return shares.buffer.getInt(i * 4);
+    }
+
+
+    /**
+     * Returns the index of the first fill at or after a given time, or size()
+     * if there is none. Fills are appended in time order, so this is a binary
+     * search over the time column.
+     *
+     * @param time - a time in milliseconds.
+     * @return the index of the first fill at or after time.
+     */
+    public int indexOf(long time)
+    {
+        ByteBuffer column = times.buffer;
+        int lo = 0;
+        int hi = size;
+        while ( lo < hi )
+        {
+            int mid = (lo + hi) >>> 1;
+            if ( column.getLong(mid * 8) < time )
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+
+    /**
+     * Returns the number of fills in the time range [from, to).
+     *
+     * @param from - start of the range in milliseconds, inclusive.
+     * @param to   - end of the range in milliseconds, exclusive.
+     * @return the number of fills in the range.
+     */
+    public int getTradeCount(long from, long to)
+    {
+        return Math.max(0, indexOf(to) - indexOf(from));
+    }
+
+
+    /**
+     * Returns the number of shares traded in the time range [from, to).
+     *
+     * @param from - start of the range in milliseconds, inclusive.
+     * @param to   - end of the range in milliseconds, exclusive.
+     * @return the volume in the range.
+     */
+    public long getVolume(long from, long to)
+    {
+        ByteBuffer column = shares.buffer;
+        long volume = 0;
+        for ( int i = indexOf(from), end = indexOf(to); i < end; i++ )
+        {
+            volume += column.getInt(i * 4);
+        }
+        return volume;
+    }
+
+
+    /**
+     * Returns the volume weighted average price in the time range [from, to).
+     *
+     * @param from - start of the range in milliseconds, inclusive.
+     * @param to   - end of the range in milliseconds, exclusive.
+     * @return the VWAP in the range, or NaN if nothing traded.
+     */
+    public double getVwap(long from, long to)
+    {
+        ByteBuffer priceColumn = prices.buffer;
+        ByteBuffer sharesColumn = shares.buffer;
+        double amount = 0;
+        long volume = 0;
+        for ( int i = indexOf(from), end = indexOf(to); i < end; i++ )
+        {
+            int numShares = sharesColumn.getInt(i * 4);
+            amount += priceColumn.getDouble(i * 8) * numShares;
+            volume += numShares;
+        }
+        return volume == 0 ? Double.NaN : amount / volume;
+    }
+
+
+    /**
+     * Returns the highest fill price in the time range [from, to).
+     *
+     * @param from - start of the range in milliseconds, inclusive.
+     * @param to   - end of the range in milliseconds, exclusive.
+     * @return the highest price in the range, or NaN if nothing traded.
+     */
+    public double getHigh(long from, long to)
+    {
+        ByteBuffer column = prices.buffer;
+        double high = Double.NaN;
+        for ( int i = indexOf(from), end = indexOf(to); i < end; i++ )
+        {
+            double price = column.getDouble(i * 8);
+            if ( !(price <= high) )
+            {
+                high = price;
+            }
+        }
+        return high;
+    }
+
+
+    /**
+     * Returns the lowest fill price in the time range [from, to).
+     *
+     * @param from - start of the range in milliseconds, inclusive.
+     * @param to   - end of the range in milliseconds, exclusive.
+     * @return the lowest price in the range, or NaN if nothing traded.
+     */
+    public double getLow(long from, long to)
+    {
+        ByteBuffer column = prices.buffer;
+        double low = Double.NaN;
+        for ( int i = indexOf(from), end = indexOf(to); i < end; i++ )
+        {
+            double price = column.getDouble(i * 8);
+            if ( !(price >= low) )
+            {
+                low = price;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * Returns the 1 second bars of this tape.
+     *
+     * @return the 1 second bars.
+     */
+    public OhlcvBars getSecondBars()
+    {
+        return secondBars;
+    }
+
+
+    /**
+     * Returns the 1 minute bars of this tape.
+     *
+     * @return the 1 minute bars.
+     */
+    public OhlcvBars getMinuteBars()
+    {
+        return minuteBars;
+    }
+
+
+    /**
+     * Returns the 5 minute bars of this tape.
+     *
+     * @return the 5 minute bars.
+     */
+    public OhlcvBars getFiveMinuteBars()
+    {
+        return fiveMinuteBars;
+    }
+
+
+    /**
+     * Releases the files behind a memory-mapped tape. Does nothing for a tape
+     * held in direct buffers.
+     *
+     * @throws IOException if a file cannot be closed.
+     */
+    public void close()
+        throws IOException
+    {
+        times.close();
+        prices.close();
+        shares.close();
+    }
+
+
+    private void checkIndex(int i)
+    {
+        if ( i < 0 || i >= size )
+        {
+            throw new IndexOutOfBoundsException(i);
+        }
+    }
+
+
+    // One column of fixed-width values, either in a direct buffer or in a
+    // memory-mapped file that is remapped at a larger size when it fills up.
+    // A column of capacity 0 has no buffer yet.
+    private static class Column
+    {
+        private FileChannel channel;
+        private int         width;
+        private ByteBuffer  buffer;
+
+
+        Column(Path directory, String name, int width, int capacity)
+            throws IOException
+        {
+            this.width = width;
+            if ( directory != null )
+            {
+                channel = FileChannel.open(directory.resolve(name + ".col"),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            if ( capacity > 0 )
+            {
+                grow(capacity);
+            }
+        }
+
+
+        void grow(int capacity)
+            throws IOException
+        {
+            ByteBuffer bigger;
+            if ( channel == null )
+            {
+                bigger = ByteBuffer.allocateDirect(capacity * width);
+                if ( buffer != null )
+                {
+                    bigger.put(buffer.duplicate().clear());
+                }
+            }
+            else
+            {
+                bigger = channel.map(FileChannel.MapMode.READ_WRITE,
+                    0,
+                    (long)capacity * width);
+            }
+            buffer = bigger.order(ByteOrder.nativeOrder());
+        }
+
+
+        void close()
+            throws IOException
+        {
+            if ( channel != null )
+            {
+                channel.close();
+            }
+        }
+    }
+}
@@ -1,5 +1,5 @@
-import java.lang.reflect.Field;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 /**
@@ -17,12 +17,16 @@ public class Trader
     private String password;
     private TraderWindow  myWindow;
     private Queue<String> mailbox;
+    private int           id;
+    private long          ownerId;
+    private String        nameKey;
 
 
     /**
      * Constructs a new trader,
      * affiliated with a given brockerage, with a given
-     * screen name and password.
+     * screen name and password. The brokerage hands out
+     * the trader's numeric id.
      *
      * @param brokerage - the brokerage for this trader.
      * @param name      - user name.
@@ -34,20 +38,43 @@ public class Trader
         this.screenName = name;
         this.password = pswd;
         this.mailbox = new LinkedList<>();
+        this.id = brokerage == null ? -1 : brokerage.nextTraderId();
+        this.ownerId = brokerage == null ? -1 : brokerage.ownerIdOf(id);
+        this.nameKey = foldCase(name);
 
     }
 
 
+    // Folds every character of a name the way compareToIgnoreCase does, so
+    // that comparing the folded names with compareTo gives the same order
+    // without folding on every comparison.
+    private static String foldCase(String name)
+    {
+        StringBuilder key = new StringBuilder(name.length());
+        for ( int i = 0; i < name.length(); i++ )
+        {
+            key.append(Character.toLowerCase(Character.toUpperCase(name
+                .charAt(i))));
+        }
+        return key.toString();
+    }
+
+
     /**
      * Compares this trader to another
-     * by comparing their screen names case blind.
+     * by comparing their screen names case blind. Traders of the same
+     * brokerage with the same id are equal without looking at their names.
      *
      * @param other - the reference to a trader with which to compare.
      * @return the result of the comparison of this trader and other.
      */
     public int compareTo(Trader other)
     {
-        return getName().compareToIgnoreCase(other.getName());
+        if ( id >= 0 && id == other.id && brokerage == other.brokerage )
+        {
+            return 0;
+        }
+        return nameKey.compareTo(other.nameKey);
     }
 
 
@@ -73,6 +100,17 @@ public class Trader
     }
 
 
+    /**
+     * Returns a hash code that agrees with equals.
+     *
+     * @return the hash code of the case-folded screen name.
+     */
+    public int hashCode()
+    {
+        return nameKey.hashCode();
+    }
+
+
     /**
      * Returns the screen name for this trader.
      *
@@ -84,6 +122,31 @@ public class Trader
     }
 
 
+    /**
+     * Returns the numeric id of this trader. Ids are unique within a
+     * brokerage and cheap to compare on the matching path.
+     *
+     * @return the id of this trader, or -1 if it has no brokerage.
+     */
+    public int getId()
+    {
+        return id;
+    }
+
+
+    /**
+     * Returns the owner id of this trader, which unlike the trader id is
+     * unique across the brokerages of a stock exchange. Self-trade prevention
+     * compares owner ids.
+     *
+     * @return the owner id of this trader, or -1 if it has no brokerage.
+     */
+    public long getOwnerId()
+    {
+        return ownerId;
+    }
+
+
     /**
      * Returns the password for this trader.
      *
@@ -112,7 +175,7 @@ public class Trader
      *
      * @return true if this trader has messages; false otherwise.
      */
-    public boolean hasMessages()
+    public synchronized boolean hasMessages()
     {
         return !mailbox.isEmpty();
     }
@@ -124,7 +187,7 @@ public class Trader
      * displays all the messages, if any, from this trader's
      * mailbox by calling myWindow.showMessage(msg) for each message.
      */
-    public void openWindow()
+    public synchronized void openWindow()
     {
         myWindow = new TraderWindow(this);
         for ( int i = 0; i < mailbox.size(); i++ )
@@ -146,6 +209,19 @@ public class Trader
     }
 
 
+    /**
+     * Cancels a given resting order with the
+     *  brokerage by calling brokerage's cancelOrder.
+     *
+     * @param order - a trading order placed earlier.
+     * @return true if the order was cancelled; false otherwise.
+     */
+    public boolean cancelOrder(TradeOrder order)
+    {
+        return brokerage.cancelOrder(order);
+    }
+
+
     /**
      * Logs out this trader.
      * Calls brokerage's logout for this trader. Sets myWindow
@@ -166,10 +242,11 @@ public class Trader
      * is logged in (myWindow is not null)
      * removes and shows all the messages in the
      * mailbox by calling myWindow.showMessage(msg)
-     * for each msg in the mailbox.
+     * for each msg in the mailbox. Synchronized, as messages may come from
+     * the delivery threads of a MessageDispatcher.
      * @param msg - message to recieve
      */
-    public void receiveMessage(String msg)
+    public synchronized void receiveMessage(String msg)
     {
         mailbox.add(msg);
         if ( myWindow != null )
@@ -182,6 +259,78 @@ public class Trader
     }
 
 
+    /**
+     * Returns the orders of this trader now open at the exchange, from the
+     * brokerage's order store.
+     *
+     * @return a new list of the open orders.
+     */
+    public List<TradeOrder> getOpenOrders()
+    {
+        return brokerage.getOpenOrders(this);
+    }
+
+
+    /**
+     * Returns the latest fills of this trader's orders, newest first, from
+     * the brokerage's order store.
+     *
+     * @param max - the most fills to return.
+     * @return a new list of at most max fills.
+     */
+    public List<OrderStore.Fill> getRecentFills(int max)
+    {
+        return brokerage.getRecentFills(this, max);
+    }
+
+
+    /**
+     * Tells the brokerage of this trader that one of the trader's orders has
+     * been placed in a book.
+     *
+     * @param order - the order placed.
+     */
+    protected void orderOpened(TradeOrder order)
+    {
+        if ( brokerage != null )
+        {
+            brokerage.recordOpen(this, order);
+        }
+    }
+
+
+    /**
+     * Tells the brokerage of this trader that one of the trader's orders has
+     * traded.
+     *
+     * @param order     - the order that traded.
+     * @param numShares - the number of shares traded.
+     * @param price     - the price of the trade.
+     */
+    protected void orderFilled(TradeOrder order, int numShares, double price)
+    {
+        if ( brokerage != null )
+        {
+            brokerage.recordFill(this, order, numShares, price);
+        }
+    }
+
+
+    /**
+     * Tells the brokerage of this trader that one of the trader's orders has
+     * left the book for good: filled, cancelled, expired or rejected.
+     *
+     * @param order - the order.
+     */
+    protected void orderClosed(TradeOrder order)
+    {
+        if ( brokerage != null )
+        {
+            brokerage.recordClose(this, order);
+        }
+    }
+
+
     //
     // The following are for test purposes only
     //
@@ -199,45 +348,19 @@ public class Trader
 
     /**
      * <p>
-     * A generic toString implementation that uses reflection to print names and
+     * A generic toString implementation that prints the names and
      * values of all fields <em>declared in this class</em>. Note
      * that superclass
-     * fields are left out of this implementation.
+     * fields are left out of this implementation. Synchronized with
+     * receiveMessage, as printing the mailbox while a message is added to it
+     * would fail.
      * </p>
      *
      * @return a string representation of this Trader.
      */
-    public String toString()
+    public synchronized String toString()
     {
-        String str = this.getClass().getName() + "[";
-        String separator = "";
-
-        Field[] fields = this.getClass().getDeclaredFields();
-
-        for ( Field field : fields )
-        {
-            try
-            {
-                if ( field.getType().getName().equals("Brokerage") )
-                {
-                    str += separator + field.getType().getName() + " " + field
-                        .getName();
-                }
-                else
-                {
-                    str += separator + field.getType().getName() + " " + field
-                        .getName() + ":" + field.get(this);
-                }
-            }
-            catch ( IllegalAccessException ex )
-            {
-                System.out.println(ex);
-            }
-
-            separator = ", ";
-        }
-
-        return str + "]";
+        return FieldFormatter.format(this, "Brokerage");
     }
 
 }
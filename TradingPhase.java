@@ -0,0 +1,37 @@
+/**
+ * The trading phases a stock goes through during a session.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public enum TradingPhase
+{
+    /**
+     * Orders are collected for the opening auction but nothing is matched.
+     */
+    PRE_OPEN,
+
+    /**
+     * Orders are matched as soon as they cross.
+     */
+    CONTINUOUS,
+
+    /**
+     * Orders are collected for the closing auction but nothing is matched.
+     */
+    CLOSING_AUCTION,
+
+    /**
+     * The session is over and new orders are turned away.
+     */
+    CLOSED,
+
+    /**
+     * Trading is halted after a trade would have broken the stock's price
+     * band; orders are collected for a volatility auction that reopens
+     * continuous trading.
+     */
+    VOLATILITY_AUCTION
+}
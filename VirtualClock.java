@@ -0,0 +1,113 @@
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * A clock that only moves when it is told to. Used to drive stocks through
+ * time deterministically, for instance in tests and when replaying recorded
+ * input.
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class VirtualClock
+    extends Clock
+{
+    private volatile long millis;
+    private ZoneId        zone;
+
+
+    /**
+     * Constructs a virtual clock in UTC set to a given time.
+     *
+     * @param millis - the starting time in milliseconds since the epoch.
+     */
+    public VirtualClock(long millis)
+    {
+        this(millis, ZoneOffset.UTC);
+    }
+
+
+    /**
+     * Constructs a virtual clock in a given time zone set to a given time.
+     *
+     * @param millis - the starting time in milliseconds since the epoch.
+     * @param zone   - the time zone of the clock.
+     */
+    public VirtualClock(long millis, ZoneId zone)
+    {
+        this.millis = millis;
+        this.zone = zone;
+    }
+
+
+    /**
+     * Sets the time of this clock.
+     *
+     * @param millis - the new time in milliseconds since the epoch.
+     */
+    public void setMillis(long millis)
+    {
+        this.millis = millis;
+    }
+
+
+    /**
+     * Moves this clock forward by a given amount.
+     *
+     * @param delta - the number of milliseconds to move by.
+     */
+    public void advance(long delta)
+    {
+        millis += delta;
+    }
+
+
+    /**
+     * Returns the current time of this clock.
+     *
+     * @return the time in milliseconds since the epoch.
+     */
+    public long millis()
+    {
+        return millis;
+    }
+
+
+    /**
+     * Returns the current time of this clock as an instant.
+     *
+     * @return the current instant.
+     */
+    public Instant instant()
+    {
+        return Instant.ofEpochMilli(millis);
+    }
+
+
+    /**
+     * Returns the time zone of this clock.
+     *
+     * @return the time zone.
+     */
+    public ZoneId getZone()
+    {
+        return zone;
+    }
+
+
+    /**
+     * Returns a virtual clock in another time zone, set to the same time.
+     * The new clock moves independently of this one.
+     *
+     * @param zone - the time zone.
+     * @return a clock in the given time zone.
+     */
+    public Clock withZone(ZoneId zone)
+    {
+        return new VirtualClock(millis, zone);
+    }
+}
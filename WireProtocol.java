@@ -0,0 +1,1089 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A compact binary protocol for the messages between traders and the
+ * exchange: new orders, cancels, acknowledgements, fills, rejects and quotes.
+ * Every message has a fixed layout in little-endian byte order, so a field is
+ * read or written at a known offset without parsing the fields before it.
+ * Fields are read and written little-endian whatever the byte order of the
+ * buffer, which is left as it is.
+ *
+ * <p>
+ * Messages are read and written through flyweights: a flyweight is wrapped
+ * around a ByteBuffer at an offset and its getters and setters go straight to
+ * the bytes there, so encoding and decoding copy nothing and allocate
+ * nothing. One flyweight can be wrapped around message after message. Stocks
+ * are named by their instrument ids at the exchange (see
+ * StockExchange.getInstrumentId) and prices travel in whole cents.
+ * </p>
+ *
+ * <pre>
+ * every message:  0 type, 1 flags, 2 length (short), 4 trader id
+ * NEW_ORDER (56): 8 client order id, 16 instrument, 20 shares, 24 price,
+ *                 32 stop price, 40 display shares, 44 time in force,
+ *                 48 expire time; flags BUY, MARKET
+ * CANCEL    (32): 8 client order id, 16 order id, 24 instrument
+ * ACK       (32): 8 client order id, 16 order id, 24 instrument
+ * FILL      (40): 8 order id, 16 instrument, 20 shares, 24 price,
+ *                 32 shares left; flags BUY
+ * REJECT    (24): 8 client order id, 16 instrument; flags the reason
+ * QUOTE     (48): 8 instrument, 12 volume, 16 bid, 24 bid size, 28 ask size,
+ *                 32 ask, 40 last price
+ * </pre>
+ *
+ * <p>
+ * Running the class benchmarks the codecs: "WireProtocol [iterations]"
+ * prints the time to encode and to decode each message.
+ * </p>
+ *
+ * @author Niranjan Mathirajan
+ * @author Leo Xu
+ *
+ * @version March 22, 2021
+ */
+public class WireProtocol
+{
+    /**
+     * A new order.
+     */
+    public static final byte NEW_ORDER = 1;
+
+    /**
+     * A request to cancel an order.
+     */
+    public static final byte CANCEL    = 2;
+
+    /**
+     * An order has been taken.
+     */
+    public static final byte ACK       = 3;
+
+    /**
+     * Some shares of an order traded.
+     */
+    public static final byte FILL      = 4;
+
+    /**
+     * An order has been turned away.
+     */
+    public static final byte REJECT    = 5;
+
+    /**
+     * The quote of a stock.
+     */
+    public static final byte QUOTE     = 6;
+
+    /**
+     * The flag of a buy order.
+     */
+    public static final byte BUY       = 1;
+
+    /**
+     * The flag of a market order.
+     */
+    public static final byte MARKET    = 2;
+
+    /**
+     * A price that is not there: a market order's, or an empty side's.
+     */
+    public static final long NO_PRICE  = Long.MIN_VALUE;
+
+    /**
+     * A reject for a symbol the exchange does not list.
+     */
+    public static final byte UNKNOWN_SYMBOL = 1;
+
+    /**
+     * A reject for an order that breaks a risk limit.
+     */
+    public static final byte RISK_LIMIT     = 2;
+
+    /**
+     * A reject for an order the stock cannot take now.
+     */
+    public static final byte NOT_ACCEPTED   = 3;
+
+    /**
+     * A reject for a cancel of an order that is no longer resting.
+     */
+    public static final byte UNKNOWN_ORDER  = 4;
+
+    private static final int TYPE   = 0;
+    private static final int FLAGS  = 1;
+    private static final int LENGTH = 2;
+    private static final int TRADER = 4;
+
+    private static final TimeInForce[] TIMES_IN_FORCE = TimeInForce.values();
+
+
+    private WireProtocol()
+    {
+    }
+
+
+    /**
+     * Returns the type of the message at an offset.
+     *
+     * @param buffer - the buffer holding the message.
+     * @param offset - where the message starts.
+     * @return the message type.
+     */
+    public static byte typeOf(ByteBuffer buffer, int offset)
+    {
+        return buffer.get(offset + TYPE);
+    }
+
+
+    /**
+     * Returns the length of the message at an offset, so that the next one
+     * can be found.
+     *
+     * @param buffer - the buffer holding the message.
+     * @param offset - where the message starts.
+     * @return the message length in bytes.
+     */
+    public static int lengthOf(ByteBuffer buffer, int offset)
+    {
+        short length = buffer.getShort(offset + LENGTH);
+        return buffer.order() == ByteOrder.LITTLE_ENDIAN ? length : Short
+            .reverseBytes(length);
+    }
+
+
+    // Converts a price to whole cents.
+    private static long cents(double price)
+    {
+        return Math.round(price * 100);
+    }
+
+
+    // Converts whole cents to a price, with NaN for NO_PRICE.
+    private static double price(long cents)
+    {
+        return cents == NO_PRICE ? Double.NaN : cents / 100.0;
+    }
+
+
+    /**
+     * A view of one message in a buffer. Fields are read and written
+     * little-endian at absolute indexes, so neither the byte order nor the
+     * position of the buffer is changed.
+     */
+    public abstract static class Flyweight
+    {
+        /**
+         * The buffer holding the message.
+         */
+        protected ByteBuffer buffer;
+
+        /**
+         * Where the message starts in the buffer.
+         */
+        protected int        offset;
+
+
+        /**
+         * Points this flyweight at the message at an offset.
+         *
+         * @param buffer - the buffer holding the message.
+         * @param offset - where the message starts.
+         */
+        protected void wrapAt(ByteBuffer buffer, int offset)
+        {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+
+        /**
+         * Points this flyweight at an offset and writes the header of a new
+         * message there, with no flags set.
+         *
+         * @param buffer - the buffer to write to.
+         * @param offset - where the message starts.
+         * @param type   - the message type.
+         * @param length - the message length.
+         */
+        protected void encodeAt(ByteBuffer buffer, int offset, byte type,
+            int length)
+        {
+            wrapAt(buffer, offset);
+            buffer.put(offset + TYPE, type);
+            buffer.put(offset + FLAGS, (byte)0);
+            putShort(LENGTH, (short)length);
+        }
+
+
+        /**
+         * Returns the trader id of this message.
+         *
+         * @return the trader id.
+         */
+        public int getTraderId()
+        {
+            return getInt(TRADER);
+        }
+
+
+        /**
+         * Sets the trader id of this message.
+         *
+         * @param traderId - the trader id.
+         */
+        public void setTraderId(int traderId)
+        {
+            putInt(TRADER, traderId);
+        }
+
+
+        /**
+         * Returns the length of this message.
+         *
+         * @return the length in bytes.
+         */
+        public int getLength()
+        {
+            return getShort(LENGTH);
+        }
+
+
+        /**
+         * Returns true if the buffer reads and writes little-endian, so that
+         * fields need no byte swap.
+         *
+         * @return true for a little-endian buffer; false otherwise.
+         */
+        protected boolean littleEndian()
+        {
+            return buffer.order() == ByteOrder.LITTLE_ENDIAN;
+        }
+
+
+        /**
+         * Reads a little-endian short field of this message.
+         *
+         * @param field - the offset of the field in the message.
+         * @return the field.
+         */
+        protected short getShort(int field)
+        {
+            short value = buffer.getShort(offset + field);
+            return littleEndian() ? value : Short.reverseBytes(value);
+        }
+
+
+        /**
+         * Writes a little-endian short field of this message.
+         *
+         * @param field - the offset of the field in the message.
+         * @param value - the new value.
+         */
+        protected void putShort(int field, short value)
+        {
+            buffer.putShort(offset + field, littleEndian() ? value : Short
+                .reverseBytes(value));
+        }
+
+
+        /**
+         * Reads a little-endian int field of this message.
+         *
+         * @param field - the offset of the field in the message.
+         * @return the field.
+         */
+        protected int getInt(int field)
+        {
+            int value = buffer.getInt(offset + field);
+            return littleEndian() ? value : Integer.reverseBytes(value);
+        }
+
+
+        /**
+         * Writes a little-endian int field of this message.
+         *
+         * @param field - the offset of the field in the message.
+         * @param value - the new value.
+         */
+        protected void putInt(int field, int value)
+        {
+            buffer.putInt(offset + field, littleEndian() ? value : Integer
+                .reverseBytes(value));
+        }
+
+
+        /**
+         * Reads a little-endian long field of this message.
+         *
+         * @param field - the offset of the field in the message.
+         * @return the field.
+         */
+        protected long getLong(int field)
+        {
+            long value = buffer.getLong(offset + field);
+            return littleEndian() ? value : Long.reverseBytes(value);
+        }
+
+
+        /**
+         * Writes a little-endian long field of this message.
+         *
+         * @param field - the offset of the field in the message.
+         * @param value - the new value.
+         */
+        protected void putLong(int field, long value)
+        {
+            buffer.putLong(offset + field, littleEndian() ? value : Long
+                .reverseBytes(value));
+        }
+
+
+        /**
+         * Returns true if a flag of this message is set.
+         *
+         * @param flag - the flag.
+         * @return true if the flag is set; false otherwise.
+         */
+        protected boolean hasFlag(byte flag)
+        {
+            return (buffer.get(offset + FLAGS) & flag) != 0;
+        }
+
+
+        /**
+         * Sets or clears a flag of this message.
+         *
+         * @param flag - the flag.
+         * @param on   - true to set the flag; false to clear it.
+         */
+        protected void setFlag(byte flag, boolean on)
+        {
+            byte flags = buffer.get(offset + FLAGS);
+            buffer.put(offset + FLAGS, (byte)(on ? flags | flag :
+                flags & ~flag));
+        }
+    }
+
+
+    /**
+     * A new order.
+     */
+    public static class NewOrder
+        extends Flyweight
+    {
+        /**
+         * The length of the message.
+         */
+        public static final int LENGTH = 56;
+
+        private static final int CLIENT_ID     = 8;
+        private static final int INSTRUMENT    = 16;
+        private static final int SHARES        = 20;
+        private static final int PRICE         = 24;
+        private static final int STOP_PRICE    = 32;
+        private static final int DISPLAY       = 40;
+        private static final int TIME_IN_FORCE = 44;
+        private static final int EXPIRE_TIME   = 48;
+
+
+        /**
+         * Points this flyweight at a message to read.
+         *
+         * @param buffer - the buffer holding the message.
+         * @param offset - where the message starts.
+         * @return this flyweight.
+         */
+        public NewOrder wrap(ByteBuffer buffer, int offset)
+        {
+            wrapAt(buffer, offset);
+            return this;
+        }
+
+
+        /**
+         * Writes a new order message from the terms of an order, which must
+         * have its instrument id set.
+         *
+         * @param buffer        - the buffer to write to.
+         * @param offset        - where the message starts.
+         * @param clientOrderId - the id the trader's side gives the order.
+         * @param order         - the order.
+         * @return this flyweight.
+         */
+        public NewOrder encode(ByteBuffer buffer, int offset,
+            long clientOrderId, TradeOrder order)
+        {
+            encodeAt(buffer, offset, NEW_ORDER, LENGTH);
+            setFlag(BUY, order.isBuy());
+            setFlag(MARKET, order.isMarket());
+            setTraderId(order.getTraderId());
+            putLong(CLIENT_ID, clientOrderId);
+            putInt(INSTRUMENT, order.getInstrumentId());
+            putInt(SHARES, order.getShares() + order
+                .getHiddenShares());
+            putLong(PRICE, order.isMarket() ? NO_PRICE :
+                cents(order.getPrice()));
+            putLong(STOP_PRICE, cents(order.getStopPrice()));
+            putInt(DISPLAY, order.getDisplayShares());
+            buffer.put(offset + TIME_IN_FORCE, (byte)order.getTimeInForce()
+                .ordinal());
+            putLong(EXPIRE_TIME, order.getExpireTime());
+            return this;
+        }
+
+
+        /**
+         * Sets up an order, such as one taken from a TradeOrderPool, with the
+         * terms of this message. A message with an unknown time in force is
+         * rejected before the order is touched.
+         *
+         * @param order  - the order to set up.
+         * @param trader - the trader of the order.
+         * @param symbol - the symbol of the message's instrument.
+         * @return the order.
+         * @throws IllegalArgumentException if the time in force is unknown.
+         */
+        public TradeOrder decodeInto(TradeOrder order, Trader trader,
+            String symbol)
+        {
+            TimeInForce timeInForce = getTimeInForce();
+            order.reset(trader, symbol, isBuy(), isMarket(), getShares(),
+                isMarket() ? 0 : getPrice());
+            order.setInstrumentId(getInstrumentId());
+            order.setTimeInForce(timeInForce);
+            long stop = getLong(STOP_PRICE);
+            if ( stop > 0 )
+            {
+                order.setStopPrice(stop / 100.0);
+            }
+            int display = getInt(DISPLAY);
+            if ( display > 0 )
+            {
+                order.setDisplayShares(display);
+            }
+            order.setExpireTime(getLong(EXPIRE_TIME));
+            return order;
+        }
+
+
+        /**
+         * Returns true for a buy order.
+         *
+         * @return true for a buy; false for a sell.
+         */
+        public boolean isBuy()
+        {
+            return hasFlag(BUY);
+        }
+
+
+        /**
+         * Returns true for a market order.
+         *
+         * @return true for a market order; false for a limit order.
+         */
+        public boolean isMarket()
+        {
+            return hasFlag(MARKET);
+        }
+
+
+        /**
+         * Returns the id the trader's side gave the order.
+         *
+         * @return the client order id.
+         */
+        public long getClientOrderId()
+        {
+            return getLong(CLIENT_ID);
+        }
+
+
+        /**
+         * Returns the instrument id of the stock.
+         *
+         * @return the instrument id.
+         */
+        public int getInstrumentId()
+        {
+            return getInt(INSTRUMENT);
+        }
+
+
+        /**
+         * Returns the shares of the order, hidden ones included.
+         *
+         * @return the shares.
+         */
+        public int getShares()
+        {
+            return getInt(SHARES);
+        }
+
+
+        /**
+         * Returns the limit price.
+         *
+         * @return the price, or NaN for a market order.
+         */
+        public double getPrice()
+        {
+            return price(getLong(PRICE));
+        }
+
+
+        /**
+         * Returns the time in force.
+         *
+         * @return the time in force.
+         * @throws IllegalArgumentException if the message holds no known time
+         *                                  in force.
+         */
+        public TimeInForce getTimeInForce()
+        {
+            int code = buffer.get(offset + TIME_IN_FORCE) & 0xFF;
+            if ( code >= TIMES_IN_FORCE.length )
+            {
+                throw new IllegalArgumentException("Unknown time in force "
+                    + code);
+            }
+            return TIMES_IN_FORCE[code];
+        }
+    }
+
+
+    /**
+     * A request to cancel an order, or an acknowledgement that an order was
+     * taken: both name an order by the trader's id and the exchange's.
+     */
+    public static class OrderReference
+        extends Flyweight
+    {
+        /**
+         * The length of the message.
+         */
+        public static final int LENGTH = 32;
+
+        private static final int CLIENT_ID  = 8;
+        private static final int ORDER_ID   = 16;
+        private static final int INSTRUMENT = 24;
+
+
+        /**
+         * Points this flyweight at a message to read.
+         *
+         * @param buffer - the buffer holding the message.
+         * @param offset - where the message starts.
+         * @return this flyweight.
+         */
+        public OrderReference wrap(ByteBuffer buffer, int offset)
+        {
+            wrapAt(buffer, offset);
+            return this;
+        }
+
+
+        /**
+         * Writes a cancel or acknowledgement message.
+         *
+         * @param buffer        - the buffer to write to.
+         * @param offset        - where the message starts.
+         * @param type          - CANCEL or ACK.
+         * @param traderId      - the trader id.
+         * @param clientOrderId - the id the trader's side gave the order.
+         * @param orderId       - the id the exchange gave the order (see
+         *                      TradeOrder.getOrderId).
+         * @param instrumentId  - the instrument id of the stock.
+         * @return this flyweight.
+         */
+        public OrderReference encode(ByteBuffer buffer, int offset, byte type,
+            int traderId, long clientOrderId, long orderId, int instrumentId)
+        {
+            if ( type != CANCEL && type != ACK )
+            {
+                throw new IllegalArgumentException();
+            }
+            encodeAt(buffer, offset, type, LENGTH);
+            setTraderId(traderId);
+            putLong(CLIENT_ID, clientOrderId);
+            putLong(ORDER_ID, orderId);
+            putInt(INSTRUMENT, instrumentId);
+            return this;
+        }
+
+
+        /**
+         * Returns the id the trader's side gave the order.
+         *
+         * @return the client order id.
+         */
+        public long getClientOrderId()
+        {
+            return getLong(CLIENT_ID);
+        }
+
+
+        /**
+         * Returns the id the exchange gave the order.
+         *
+         * @return the order id.
+         */
+        public long getOrderId()
+        {
+            return getLong(ORDER_ID);
+        }
+
+
+        /**
+         * Returns the instrument id of the stock.
+         *
+         * @return the instrument id.
+         */
+        public int getInstrumentId()
+        {
+            return getInt(INSTRUMENT);
+        }
+    }
+
+
+    /**
+     * Some shares of an order traded.
+     */
+    public static class Fill
+        extends Flyweight
+    {
+        /**
+         * The length of the message.
+         */
+        public static final int LENGTH = 40;
+
+        private static final int ORDER_ID   = 8;
+        private static final int INSTRUMENT = 16;
+        private static final int SHARES     = 20;
+        private static final int PRICE      = 24;
+        private static final int LEFT       = 32;
+
+
+        /**
+         * Points this flyweight at a message to read.
+         *
+         * @param buffer - the buffer holding the message.
+         * @param offset - where the message starts.
+         * @return this flyweight.
+         */
+        public Fill wrap(ByteBuffer buffer, int offset)
+        {
+            wrapAt(buffer, offset);
+            return this;
+        }
+
+
+        /**
+         * Writes a fill of an order, which has already had the traded shares
+         * taken off.
+         *
+         * @param buffer    - the buffer to write to.
+         * @param offset    - where the message starts.
+         * @param order     - the order that traded.
+         * @param numShares - the number of shares traded.
+         * @param price     - the price of the trade.
+         * @return this flyweight.
+         */
+        public Fill encode(ByteBuffer buffer, int offset, TradeOrder order,
+            int numShares, double price)
+        {
+            encodeAt(buffer, offset, FILL, LENGTH);
+            setFlag(BUY, order.isBuy());
+            setTraderId(order.getTraderId());
+            putLong(ORDER_ID, order.getOrderId());
+            putInt(INSTRUMENT, order.getInstrumentId());
+            putInt(SHARES, numShares);
+            putLong(PRICE, cents(price));
+            putInt(LEFT, order.getShares() + order
+                .getHiddenShares());
+            return this;
+        }
+
+
+        /**
+         * Returns true if the order bought.
+         *
+         * @return true for a buy; false for a sell.
+         */
+        public boolean isBuy()
+        {
+            return hasFlag(BUY);
+        }
+
+
+        /**
+         * Returns the id the exchange gave the order.
+         *
+         * @return the order id.
+         */
+        public long getOrderId()
+        {
+            return getLong(ORDER_ID);
+        }
+
+
+        /**
+         * Returns the instrument id of the stock.
+         *
+         * @return the instrument id.
+         */
+        public int getInstrumentId()
+        {
+            return getInt(INSTRUMENT);
+        }
+
+
+        /**
+         * Returns the number of shares traded.
+         *
+         * @return the shares.
+         */
+        public int getShares()
+        {
+            return getInt(SHARES);
+        }
+
+
+        /**
+         * Returns the price of the trade.
+         *
+         * @return the price.
+         */
+        public double getPrice()
+        {
+            return price(getLong(PRICE));
+        }
+
+
+        /**
+         * Returns the shares of the order left after the trade.
+         *
+         * @return the shares left, hidden ones included.
+         */
+        public int getSharesLeft()
+        {
+            return getInt(LEFT);
+        }
+    }
+
+
+    /**
+     * An order or a cancel has been turned away.
+     */
+    public static class Reject
+        extends Flyweight
+    {
+        /**
+         * The length of the message.
+         */
+        public static final int LENGTH = 24;
+
+        private static final int CLIENT_ID  = 8;
+        private static final int INSTRUMENT = 16;
+
+
+        /**
+         * Points this flyweight at a message to read.
+         *
+         * @param buffer - the buffer holding the message.
+         * @param offset - where the message starts.
+         * @return this flyweight.
+         */
+        public Reject wrap(ByteBuffer buffer, int offset)
+        {
+            wrapAt(buffer, offset);
+            return this;
+        }
+
+
+        /**
+         * Writes a reject.
+         *
+         * @param buffer        - the buffer to write to.
+         * @param offset        - where the message starts.
+         * @param traderId      - the trader id.
+         * @param clientOrderId - the id the trader's side gave the order.
+         * @param instrumentId  - the instrument id of the stock.
+         * @param reason        - UNKNOWN_SYMBOL, RISK_LIMIT, NOT_ACCEPTED or
+         *                      UNKNOWN_ORDER.
+         * @return this flyweight.
+         */
+        public Reject encode(ByteBuffer buffer, int offset, int traderId,
+            long clientOrderId, int instrumentId, byte reason)
+        {
+            encodeAt(buffer, offset, REJECT, LENGTH);
+            buffer.put(offset + FLAGS, reason);
+            setTraderId(traderId);
+            putLong(CLIENT_ID, clientOrderId);
+            putInt(INSTRUMENT, instrumentId);
+            return this;
+        }
+
+
+        /**
+         * Returns why the order was turned away.
+         *
+         * @return the reason code.
+         */
+        public byte getReason()
+        {
+            return buffer.get(offset + FLAGS);
+        }
+
+
+        /**
+         * Returns the id the trader's side gave the order.
+         *
+         * @return the client order id.
+         */
+        public long getClientOrderId()
+        {
+            return getLong(CLIENT_ID);
+        }
+
+
+        /**
+         * Returns the instrument id of the stock.
+         *
+         * @return the instrument id.
+         */
+        public int getInstrumentId()
+        {
+            return getInt(INSTRUMENT);
+        }
+    }
+
+
+    /**
+     * The quote of a stock for a trader.
+     */
+    public static class Quote
+        extends Flyweight
+    {
+        /**
+         * The length of the message.
+         */
+        public static final int LENGTH = 48;
+
+        private static final int INSTRUMENT = 8;
+        private static final int VOLUME     = 12;
+        private static final int BID        = 16;
+        private static final int BID_SIZE   = 24;
+        private static final int ASK_SIZE   = 28;
+        private static final int ASK        = 32;
+        private static final int LAST       = 40;
+
+
+        /**
+         * Points this flyweight at a message to read.
+         *
+         * @param buffer - the buffer holding the message.
+         * @param offset - where the message starts.
+         * @return this flyweight.
+         */
+        public Quote wrap(ByteBuffer buffer, int offset)
+        {
+            wrapAt(buffer, offset);
+            return this;
+        }
+
+
+        /**
+         * Writes a quote from a copy of a stock's top of book.
+         *
+         * @param buffer       - the buffer to write to.
+         * @param offset       - where the message starts.
+         * @param traderId     - the trader who asked for the quote.
+         * @param instrumentId - the instrument id of the stock.
+         * @param top          - a copy of the stock's top of book.
+         * @param lastPrice    - the last price of the stock.
+         * @param volume       - the day's volume of the stock.
+         * @return this flyweight.
+         */
+        public Quote encode(ByteBuffer buffer, int offset, int traderId,
+            int instrumentId, TopOfBook top, double lastPrice, int volume)
+        {
+            encodeAt(buffer, offset, QUOTE, LENGTH);
+            setTraderId(traderId);
+            putInt(INSTRUMENT, instrumentId);
+            putInt(VOLUME, volume);
+            putLong(BID, Double.isNaN(top.getBidPrice()) ?
+                NO_PRICE : cents(top.getBidPrice()));
+            putInt(BID_SIZE, top.getBidSize());
+            putInt(ASK_SIZE, top.getAskSize());
+            putLong(ASK, Double.isNaN(top.getAskPrice()) ?
+                NO_PRICE : cents(top.getAskPrice()));
+            putLong(LAST, cents(lastPrice));
+            return this;
+        }
+
+
+        /**
+         * Returns the instrument id of the stock.
+         *
+         * @return the instrument id.
+         */
+        public int getInstrumentId()
+        {
+            return getInt(INSTRUMENT);
+        }
+
+
+        /**
+         * Returns the day's volume.
+         *
+         * @return the volume.
+         */
+        public int getVolume()
+        {
+            return getInt(VOLUME);
+        }
+
+
+        /**
+         * Returns the best bid.
+         *
+         * @return the bid, or NaN for none or a market order.
+         */
+        public double getBidPrice()
+        {
+            return price(getLong(BID));
+        }
+
+
+        /**
+         * Returns the shares shown at the best bid.
+         *
+         * @return the bid size.
+         */
+        public int getBidSize()
+        {
+            return getInt(BID_SIZE);
+        }
+
+
+        /**
+         * Returns the best ask.
+         *
+         * @return the ask, or NaN for none or a market order.
+         */
+        public double getAskPrice()
+        {
+            return price(getLong(ASK));
+        }
+
+
+        /**
+         * Returns the shares shown at the best ask.
+         *
+         * @return the ask size.
+         */
+        public int getAskSize()
+        {
+            return getInt(ASK_SIZE);
+        }
+
+
+        /**
+         * Returns the last price.
+         *
+         * @return the last price.
+         */
+        public double getLastPrice()
+        {
+            return price(getLong(LAST));
+        }
+    }
+
+
+    /**
+     * Benchmarks the codecs: encodes and decodes each message a number of
+     * times into a direct buffer and prints the average time of each.
+     *
+     * @param args - the number of iterations, 10,000,000 by default.
+     */
+    public static void main(String[] args)
+    {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) :
+            10000000;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        TradeOrder order = new TradeOrder(null, "GGGL", true, false, 100,
+            10.05);
+        order.setInstrumentId(3);
+        TradeOrder decoded = new TradeOrder(null, "GGGL", true, false, 0, 0);
+        TopOfBook top = new TopOfBook();
+        top.update(10.00, 300, 10.05, 200);
+        NewOrder newOrder = new NewOrder();
+        OrderReference reference = new OrderReference();
+        Fill fill = new Fill();
+        Reject reject = new Reject();
+        Quote quote = new Quote();
+
+        for ( int round = 0; round < 2; round++ )
+        {
+            long sum = 0;
+            long start = System.nanoTime();
+            for ( int i = 0; i < iterations; i++ )
+            {
+                newOrder.encode(buffer, (i & 63) * 64, i, order);
+            }
+            report(round, "NewOrder encode", start, iterations);
+            start = System.nanoTime();
+            for ( int i = 0; i < iterations; i++ )
+            {
+                sum += newOrder.wrap(buffer, (i & 63) * 64).decodeInto(decoded,
+                    null, "GGGL").getShares();
+            }
+            report(round, "NewOrder decode", start, iterations);
+            start = System.nanoTime();
+            for ( int i = 0; i < iterations; i++ )
+            {
+                reference.encode(buffer, (i & 63) * 64, ACK, 7, i, i, 3);
+                sum += reference.wrap(buffer, (i & 63) * 64).getOrderId();
+            }
+            report(round, "Ack encode+decode", start, iterations);
+            start = System.nanoTime();
+            for ( int i = 0; i < iterations; i++ )
+            {
+                fill.encode(buffer, (i & 63) * 64, order, 10, 10.05);
+                sum += fill.wrap(buffer, (i & 63) * 64).getShares();
+            }
+            report(round, "Fill encode+decode", start, iterations);
+            start = System.nanoTime();
+            for ( int i = 0; i < iterations; i++ )
+            {
+                reject.encode(buffer, (i & 63) * 64, 7, i, 3, RISK_LIMIT);
+                sum += reject.wrap(buffer, (i & 63) * 64).getReason();
+            }
+            report(round, "Reject encode+decode", start, iterations);
+            start = System.nanoTime();
+            for ( int i = 0; i < iterations; i++ )
+            {
+                quote.encode(buffer, (i & 63) * 64, 7, 3, top, 10.02, i);
+                sum += quote.wrap(buffer, (i & 63) * 64).getVolume();
+            }
+            report(round, "Quote encode+decode", start, iterations);
+            if ( round == 1 )
+            {
+                System.out.println("(checksum " + sum + ")");
+            }
+        }
+    }
+
+
+    // Prints the average time of one operation, after the warm-up round.
+    private static void report(int round, String name, long start,
+        int iterations)
+    {
+        if ( round == 1 )
+        {
+            System.out.printf("%-22s %6.1f ns%n", name, (System.nanoTime()
+                - start) / (double)iterations);
+        }
+    }
+}
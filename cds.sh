@@ -0,0 +1,53 @@
+#!/bin/sh
+#
+# Builds the headless SafeTrade server with an AppCDS (class data sharing)
+# archive and measures its startup time with and without the archive.
+#
+#   ./cds.sh [listing] [runs]
+#
+# The server jar and archive go to build/. The archive is made by a training
+# run of SafeTradeServer --train, so it holds the classes of the exchange,
+# the brokerage and the matching path (Stock, StockExchange, Brokerage,
+# Trader, TradeOrder and the classes they use). It is only valid for the JDK
+# that made it; run the server with it as
+#
+#   java -XX:SharedArchiveFile=build/safetrade.jsa -cp build/safetrade-server.jar SafeTradeServer
+#
+# The benchmark starts the server with --exit a number of times each way and
+# prints the average wall-clock time from launch to exit.
+
+set -e
+cd "$(dirname "$0")"
+LISTING=$1
+RUNS=${2:-10}
+BUILD=build
+JAR=$BUILD/safetrade-server.jar
+ARCHIVE=$BUILD/safetrade.jsa
+
+rm -rf $BUILD/classes
+mkdir -p $BUILD/classes
+javac -d $BUILD/classes $(ls *.java | grep -v '^JUSafeTradeTest.java$')
+jar --create --file $JAR -C $BUILD/classes .
+
+java -XX:ArchiveClassesAtExit=$ARCHIVE -cp $JAR SafeTradeServer --train \
+    $LISTING > /dev/null
+
+# Prints the average startup time in milliseconds of the server run with the
+# given JVM options.
+startup()
+{
+    total=0
+    i=0
+    while [ $i -lt $RUNS ]
+    do
+        begin=$(date +%s%N)
+        java "$@" -cp $JAR SafeTradeServer --exit $LISTING > /dev/null
+        end=$(date +%s%N)
+        total=$((total + (end - begin) / 1000000))
+        i=$((i + 1))
+    done
+    echo $((total / RUNS))
+}
+
+echo "startup without archive: $(startup -Xshare:auto) ms"
+echo "startup with archive:    $(startup -XX:SharedArchiveFile=$ARCHIVE) ms"